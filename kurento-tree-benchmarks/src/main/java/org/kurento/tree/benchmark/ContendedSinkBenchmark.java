@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.tree.server.treemanager.AbstractNTreeTM;
+import org.kurento.tree.server.treemanager.AbstractNTreeTM.ConcurrencyMode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * Sinks joining and leaving from several threads at the same time, with every concurrency mode of
+ * the tree managers. Threads are spread over the trees, so with one tree
+ * all of them contend for it and with as many trees as threads only the kmss are shared. The
+ * number of threads can be changed with the {@code -t} option of JMH.
+ *
+ * <p>
+ * Only fixed kms managers are used, as the elastic fake one is not thread safe.
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ContendedSinkBenchmark {
+
+  @Param
+  public TreeManagerType treeManager;
+
+  @Param
+  public ConcurrencyMode concurrencyMode;
+
+  @Param({ "4", "16" })
+  public int numKmss;
+
+  @Param({ "1", "4" })
+  public int numTrees;
+
+  @Param({ "100" })
+  public int sinksPerTree;
+
+  private TreeFixture fixture;
+
+  @State(Scope.Thread)
+  public static class ThreadSinks {
+
+    private int tree;
+    private String lastSinkId;
+
+    @Setup(Level.Trial)
+    public void setup(ContendedSinkBenchmark benchmark, ThreadParams threadParams) {
+      tree = threadParams.getThreadIndex() % benchmark.fixture.getNumTrees();
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    // Concurrency mode is read from the properties when the tree manager is created
+    String previousMode = System.getProperty(AbstractNTreeTM.CONCURRENCY_MODE_PROPERTY);
+    System.setProperty(AbstractNTreeTM.CONCURRENCY_MODE_PROPERTY, concurrencyMode.name());
+    try {
+      fixture = new TreeFixture(treeManager, KmsManagerType.FIXED, numKmss, numTrees,
+          sinksPerTree);
+    } finally {
+      if (previousMode == null) {
+        System.clearProperty(AbstractNTreeTM.CONCURRENCY_MODE_PROPERTY);
+      } else {
+        System.setProperty(AbstractNTreeTM.CONCURRENCY_MODE_PROPERTY, previousMode);
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.release();
+  }
+
+  @Benchmark
+  @BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+  public String churnSink(ThreadSinks sinks) {
+    String sinkId = fixture.addSink(sinks.tree);
+    if (sinks.lastSinkId != null) {
+      fixture.removeSink(sinks.tree, sinks.lastSinkId);
+    }
+    sinks.lastSinkId = sinkId;
+    return sinkId;
+  }
+}
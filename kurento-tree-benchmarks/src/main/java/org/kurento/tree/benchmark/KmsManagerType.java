@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.benchmark;
+
+import org.kurento.tree.server.kmsmanager.FakeElasticKmsManager;
+import org.kurento.tree.server.kmsmanager.FakeFixedNKmsManager;
+import org.kurento.tree.server.kmsmanager.KmsManager;
+
+/**
+ * Fake kms managers the tree managers are benchmarked against.
+ */
+public enum KmsManagerType {
+
+  /**
+   * Always the given number of kmss.
+   */
+  FIXED {
+    @Override
+    public KmsManager create(int numKmss) {
+      return new FakeFixedNKmsManager(numKmss);
+    }
+  },
+
+  /**
+   * Starts with two kmss and grows up to the given number of kmss when the mean load of the kmss is
+   * high. As fake kmss have a big capacity, this mainly measures the cost of checking the load on
+   * every placement.
+   */
+  ELASTIC {
+    @Override
+    public KmsManager create(int numKmss) {
+      return new FakeElasticKmsManager(MEAN_LOAD_TO_GROW, Math.min(2, numKmss), numKmss);
+    }
+  };
+
+  private static final double MEAN_LOAD_TO_GROW = 0.8;
+
+  public abstract KmsManager create(int numKmss);
+}
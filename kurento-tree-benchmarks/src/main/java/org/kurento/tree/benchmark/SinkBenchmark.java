@@ -0,0 +1,136 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.benchmark;
+
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Single threaded cost of adding and removing sinks in every tree manager. Trees are filled with
+ * the given number of sinks before measuring, and that number is kept stable during the
+ * measurement.
+ *
+ * <p>
+ * {@code churnSink} adds a sink to a tree and removes its oldest one, which is the steady state of
+ * a broadcast with viewers coming and going. {@code addTreeSink} and {@code removeTreeSink} measure
+ * each operation alone, undoing it outside the measured time.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SinkBenchmark {
+
+  @Param
+  public TreeManagerType treeManager;
+
+  @Param
+  public KmsManagerType kmsManager;
+
+  @Param({ "4", "16" })
+  public int numKmss;
+
+  @Param({ "1", "10" })
+  public int numTrees;
+
+  @Param({ "10", "100" })
+  public int sinksPerTree;
+
+  private TreeFixture fixture;
+  private int nextTree;
+
+  @State(Scope.Thread)
+  public static class AddedSink {
+
+    private int tree;
+    private String sinkId;
+
+    @TearDown(Level.Invocation)
+    public void remove(SinkBenchmark benchmark) {
+      benchmark.fixture.removeSink(tree, sinkId);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class SinkToRemove {
+
+    private int tree;
+    private String sinkId;
+
+    @Setup(Level.Invocation)
+    public void add(SinkBenchmark benchmark) {
+      tree = benchmark.nextTree();
+      sinkId = benchmark.fixture.addSink(tree);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    fixture = new TreeFixture(treeManager, kmsManager, numKmss, numTrees, sinksPerTree);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    fixture.release();
+  }
+
+  private int nextTree() {
+    int tree = nextTree;
+    nextTree = (nextTree + 1) % fixture.getNumTrees();
+    return tree;
+  }
+
+  @Benchmark
+  @BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+  public String churnSink() {
+    int tree = nextTree();
+    Deque<String> sinkIds = fixture.getSinkIds(tree);
+    String sinkId = fixture.addSink(tree);
+    sinkIds.addLast(sinkId);
+    fixture.removeSink(tree, sinkIds.removeFirst());
+    return sinkId;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public String addTreeSink(AddedSink added) {
+    added.tree = nextTree();
+    added.sinkId = fixture.addSink(added.tree);
+    return added.sinkId;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public void removeTreeSink(SinkToRemove toRemove) {
+    fixture.removeSink(toRemove.tree, toRemove.sinkId);
+  }
+}
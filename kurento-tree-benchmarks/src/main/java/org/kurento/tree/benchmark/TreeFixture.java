@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.kurento.tree.server.treemanager.TreeManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Trees with a source and a number of sinks created in a tree manager, used as the starting point
+ * of the benchmarks. Fake kmss accept any sdp, and fake sinks have no client session.
+ */
+public class TreeFixture {
+
+  private static final Logger log = LoggerFactory.getLogger(TreeFixture.class);
+
+  private static final String SDP_OFFER = "sdpOffer";
+
+  private final TreeManager treeManager;
+  private final List<String> treeIds = new ArrayList<>();
+  private final List<Deque<String>> sinkIds = new ArrayList<>();
+
+  public TreeFixture(TreeManagerType type, KmsManagerType kmsManagerType, int numKmss,
+      int numTrees, int sinksPerTree) {
+
+    if (numKmss > type.getMaxKmss()) {
+      log.warn("{} only supports {} kmss. Using {} instead of {}", type, type.getMaxKmss(),
+          type.getMaxKmss(), numKmss);
+      numKmss = type.getMaxKmss();
+    }
+
+    this.treeManager = type.create(kmsManagerType.create(numKmss));
+
+    for (int i = 0; i < numTrees; i++) {
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(null, treeId, SDP_OFFER);
+      treeIds.add(treeId);
+      Deque<String> treeSinkIds = new ArrayDeque<>(sinksPerTree + 1);
+      sinkIds.add(treeSinkIds);
+      for (int j = 0; j < sinksPerTree; j++) {
+        treeSinkIds.addLast(addSink(i));
+      }
+    }
+  }
+
+  public TreeManager getTreeManager() {
+    return treeManager;
+  }
+
+  public int getNumTrees() {
+    return treeIds.size();
+  }
+
+  /**
+   * Ids of the sinks created with the fixture in the given tree, oldest first. Not thread safe.
+   */
+  public Deque<String> getSinkIds(int tree) {
+    return sinkIds.get(tree);
+  }
+
+  public String addSink(int tree) {
+    return treeManager.addTreeSink(null, treeIds.get(tree), SDP_OFFER).getId();
+  }
+
+  public void removeSink(int tree, String sinkId) {
+    treeManager.removeTreeSink(treeIds.get(tree), sinkId);
+  }
+
+  public void release() {
+    for (String treeId : treeIds) {
+      treeManager.releaseTree(treeId);
+    }
+    treeIds.clear();
+    sinkIds.clear();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.benchmark;
+
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.treemanager.LessLoadedElasticAllKMSsTM;
+import org.kurento.tree.server.treemanager.LessLoadedElasticTM;
+import org.kurento.tree.server.treemanager.LessLoadedFixedTM;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySourceTM;
+import org.kurento.tree.server.treemanager.OneKmsTM;
+import org.kurento.tree.server.treemanager.TreeManager;
+
+/**
+ * Tree managers that can be benchmarked against fake kmss. Managers with a webrtc limit per kms are
+ * configured with the capacity of a fake kms, so that placement is never rejected because of it.
+ *
+ * <p>
+ * One tree managers ({@code LessLoadedOneTreeFixedTM} and {@code LexicalFixedTM}) are not
+ * included, as they identify sinks by their position in the pipeline and never free the place of
+ * a removed sink, so they can't keep a stable number of sinks while sinks come and go.
+ */
+public enum TreeManagerType {
+
+  LESS_LOADED_ONLY_SOURCE_2 {
+    @Override
+    public TreeManager create(KmsManager kmsManager) {
+      return new LessLoadedOnlySource2TM(kmsManager, FAKE_KMS_CAPACITY);
+    }
+  },
+  LESS_LOADED_ONLY_SOURCE {
+    @Override
+    public TreeManager create(KmsManager kmsManager) {
+      return new LessLoadedOnlySourceTM(kmsManager, FAKE_KMS_CAPACITY);
+    }
+  },
+  LESS_LOADED_ELASTIC {
+    @Override
+    public TreeManager create(KmsManager kmsManager) {
+      return new LessLoadedElasticTM(kmsManager);
+    }
+  },
+  LESS_LOADED_ELASTIC_ALL_KMSS {
+    @Override
+    public TreeManager create(KmsManager kmsManager) {
+      return new LessLoadedElasticAllKMSsTM(kmsManager, FAKE_KMS_CAPACITY);
+    }
+  },
+  LESS_LOADED_FIXED {
+    @Override
+    public TreeManager create(KmsManager kmsManager) {
+      return new LessLoadedFixedTM(kmsManager);
+    }
+  },
+  ONE_KMS(1) {
+    @Override
+    public TreeManager create(KmsManager kmsManager) {
+      return new OneKmsTM(kmsManager);
+    }
+  };
+
+  /**
+   * Webrtcs allowed by the default load manager of a fake kms.
+   */
+  public static final int FAKE_KMS_CAPACITY = 10000;
+
+  private final int maxKmss;
+
+  private TreeManagerType() {
+    this(Integer.MAX_VALUE);
+  }
+
+  private TreeManagerType(int maxKmss) {
+    this.maxKmss = maxKmss;
+  }
+
+  public abstract TreeManager create(KmsManager kmsManager);
+
+  /**
+   * Number of kmss the manager is able to use.
+   */
+  public int getMaxKmss() {
+    return maxKmss;
+  }
+}
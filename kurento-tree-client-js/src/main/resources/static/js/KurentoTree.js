@@ -34,6 +34,15 @@ function KurentoTree(wsUri) {
 	var localIceCandidates = [];
 	var remoteIceCandidates = [];
 
+	// Candidates gathered after the response are coalesced during this
+	// window (ms) and sent in one request. 0 sends each one when gathered
+	var iceCandidatesBatchWindow = 0;
+	var candidatesTimer;
+
+	this.setIceCandidatesBatchWindow = function(batchWindow) {
+		iceCandidatesBatchWindow = batchWindow;
+	}
+
 	this.addTreeSink = function(treeId, options) {
 
 		_treeId = treeId;
@@ -101,6 +110,11 @@ function KurentoTree(wsUri) {
 			}
 		}
 
+		if (candidatesTimer) {
+			clearTimeout(candidatesTimer);
+			candidatesTimer = null;
+		}
+
 		if (webRtcPeer) {
 			webRtcPeer.dispose();
 			webRtcPeer = null;
@@ -154,6 +168,12 @@ function KurentoTree(wsUri) {
 		if (!treeResponseReady) {
 			console.log("Stored IceCandidate until response");
 			localIceCandidates.push(candidate);
+		} else if (iceCandidatesBatchWindow > 0) {
+			localIceCandidates.push(candidate);
+			if (!candidatesTimer) {
+				candidatesTimer = setTimeout(sendStoredCandidates,
+						iceCandidatesBatchWindow);
+			}
 		} else {
 			sendCandidate(candidate);
 		}
@@ -162,15 +182,40 @@ function KurentoTree(wsUri) {
 	function sendStoredCandidates() {
 
 		console.log("Sending stored local IceCandidates");
-		
-		var i;
-		for (i = 0; i < localIceCandidates.length; i++) {
-			sendCandidate(localIceCandidates[i]);
+
+		if (candidatesTimer) {
+			clearTimeout(candidatesTimer);
+			candidatesTimer = null;
+		}
+
+		if (localIceCandidates.length > 0) {
+			sendCandidates(localIceCandidates);
 		}
 
 		localIceCandidates = [];
 	}
 
+	function sendCandidates(candidates) {
+
+		var copiedCandidates = candidates.map(function(candidate) {
+			return {
+				candidate : candidate.candidate,
+				sdpMid : candidate.sdpMid,
+				sdpMLineIndex : candidate.sdpMLineIndex
+			};
+		});
+
+		jsonrpcClient.send('addIceCandidates', {
+			treeId : _treeId,
+			sinkId : sinkId,
+			candidates : copiedCandidates
+		}, function(error, result) {
+			if (error) {
+				requestErrorHandler(error, "onIceCandidates");
+			}
+		});
+	}
+
 	function sendCandidate(candidate) {
 
 		// FIXME have to make a copy to another object.
@@ -211,6 +256,14 @@ function KurentoTree(wsUri) {
 
 	}
 
+	function remoteOnIceCandidates(message) {
+
+		var i;
+		for (i = 0; i < message.candidates.length; i++) {
+			remoteOnIceCandidate(message.candidates[i]);
+		}
+	}
+
 	function init() {
 
 		var config = {
@@ -228,6 +281,8 @@ function KurentoTree(wsUri) {
 				requestTimeout : 15000,
 				treeStopped : treeStopped,
 				iceCandidate : remoteOnIceCandidate,
+				iceCandidates : remoteOnIceCandidates,
+				sinkEvicted : sinkEvicted,
 			}
 		};
 
@@ -252,6 +307,23 @@ function KurentoTree(wsUri) {
 		console.log("Tree stopped");
 	}
 
+	// The server removed the sink because its media never connected or
+	// stopped
+	function sinkEvicted(message) {
+		console.log("Sink " + message.sinkId + " evicted: " + message.reason);
+
+		if (webRtcPeer) {
+			webRtcPeer.dispose();
+			webRtcPeer = null;
+		}
+
+		ee.emitEvent('sink-evicted', [ message ]);
+	}
+
+	this.addEventListener = function(eventName, listener) {
+		ee.addListener(eventName, listener);
+	}
+
 	function requestErrorHandler(error, label) {
 		console.error("Error " + JSON.stringify(error)
 				+ " processing request with label '" + label + "'.");
@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tree.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * Coalesces the candidates gathered on the client side for each endpoint during a window, so they
+ * are sent to the server in a single request when the window expires or the endpoint is flushed.
+ */
+class IceCandidateCoalescer {
+
+  @FunctionalInterface
+  interface Sender {
+    CompletableFuture<Void> send(String treeId, String sinkId, List<IceCandidate> candidates);
+  }
+
+  private static class Batch {
+
+    private final List<IceCandidate> candidates = new ArrayList<>();
+    private final CompletableFuture<Void> sent = new CompletableFuture<>();
+    private ScheduledFuture<?> scheduledFlush;
+  }
+
+  private final long batchWindow;
+  private final Sender sender;
+
+  private final ScheduledExecutorService scheduler = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "tree-client-candidates");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Guarded by this. Batch being coalesced of each endpoint ([treeId, sinkId])
+  private final Map<List<String>, Batch> batches = new HashMap<>();
+
+  IceCandidateCoalescer(long batchWindow, Sender sender) {
+    this.batchWindow = batchWindow;
+    this.sender = sender;
+  }
+
+  /**
+   * @return a future completed when the batch of the candidate is applied by the server
+   */
+  CompletableFuture<Void> add(String treeId, String sinkId, IceCandidate candidate) {
+
+    synchronized (this) {
+      Batch batch = batches.get(Arrays.asList(treeId, sinkId));
+      if (batch == null) {
+        batch = new Batch();
+        batches.put(Arrays.asList(treeId, sinkId), batch);
+        batch.scheduledFlush = scheduler.schedule(() -> flush(treeId, sinkId), batchWindow,
+            TimeUnit.MILLISECONDS);
+      }
+      batch.candidates.add(candidate);
+      return batch.sent;
+    }
+  }
+
+  void flush(String treeId, String sinkId) {
+
+    Batch batch;
+    synchronized (this) {
+      batch = batches.remove(Arrays.asList(treeId, sinkId));
+    }
+    if (batch == null) {
+      return;
+    }
+
+    batch.scheduledFlush.cancel(false);
+    sender.send(treeId, sinkId, batch.candidates).whenComplete((v, e) -> {
+      if (e != null) {
+        batch.sent.completeExceptionally(e);
+      } else {
+        batch.sent.complete(null);
+      }
+    });
+  }
+
+  void close() {
+    scheduler.shutdownNow();
+    synchronized (this) {
+      for (Batch batch : batches.values()) {
+        batch.sent.completeExceptionally(new TreeException("Client closed"));
+      }
+      batches.clear();
+    }
+  }
+}
@@ -17,38 +17,54 @@
 
 package org.kurento.tree.client;
 
+import static org.kurento.tree.client.internal.ProtocolElements.ADD_ICE_CANDIDATES_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.ADD_ICE_CANDIDATE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.ADD_TREE_SINKS_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.ADD_TREE_SINK_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.ANSWER_SDP;
 import static org.kurento.tree.client.internal.ProtocolElements.CREATE_TREE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.ERROR;
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATE;
+import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATES;
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_SDP_MID;
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_SDP_M_LINE_INDEX;
 import static org.kurento.tree.client.internal.ProtocolElements.OFFER_SDP;
+import static org.kurento.tree.client.internal.ProtocolElements.OFFER_SDPS;
 import static org.kurento.tree.client.internal.ProtocolElements.RELEASE_TREE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.REMOVE_TREE_SINKS_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.REMOVE_TREE_SINK_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.REMOVE_TREE_SOURCE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.RESULTS;
 import static org.kurento.tree.client.internal.ProtocolElements.SET_TREE_SOURCE_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.SINK_ID;
+import static org.kurento.tree.client.internal.ProtocolElements.SINK_IDS;
 import static org.kurento.tree.client.internal.ProtocolElements.TREE_ID;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.JsonRpcErrorException;
+import org.kurento.jsonrpc.JsonRpcException;
 import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.jsonrpc.client.Continuation;
 import org.kurento.jsonrpc.client.JsonRpcClient;
 import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
 import org.kurento.tree.client.internal.JsonTreeUtils;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 
 public class KurentoTreeClient {
 
   private JsonRpcClient client;
   private ServerJsonRpcHandler handler;
+  private volatile IceCandidateCoalescer candidateCoalescer;
 
   public KurentoTreeClient(String wsUri) {
     this(new JsonRpcClientWebSocket(wsUri + "/websocket"));
@@ -92,6 +108,8 @@ public class KurentoTreeClient {
       client.sendRequest(RELEASE_TREE_METHOD, params);
     } catch (JsonRpcErrorException e) {
       processException(e);
+    } finally {
+      handler.removeIceCandidateListeners(treeId);
     }
   }
 
@@ -122,6 +140,8 @@ public class KurentoTreeClient {
 
     } catch (JsonRpcErrorException e) {
       processException(e);
+    } finally {
+      handler.removeIceCandidateListener(treeId, null);
     }
   }
 
@@ -134,10 +154,7 @@ public class KurentoTreeClient {
 
     try {
 
-      JsonElement result = client.sendRequest(ADD_TREE_SINK_METHOD, params);
-
-      return new TreeEndpoint(JsonTreeUtils.getResponseProperty(result, ANSWER_SDP, String.class),
-          JsonTreeUtils.getResponseProperty(result, SINK_ID, String.class));
+      return toTreeEndpoint(client.sendRequest(ADD_TREE_SINK_METHOD, params));
 
     } catch (JsonRpcErrorException e) {
       processException(e);
@@ -157,6 +174,54 @@ public class KurentoTreeClient {
 
     } catch (JsonRpcErrorException e) {
       processException(e);
+    } finally {
+      handler.removeIceCandidateListener(treeId, sinkId);
+    }
+  }
+
+  /**
+   * Adds a sink to the tree for each offer in a single request. Results are in the same order as
+   * the offers, and each of them can fail independently.
+   */
+  public List<TreeBatchResult<TreeEndpoint>> addTreeSinks(String treeId, List<String> offerSdps)
+      throws IOException, TreeException {
+
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.add(OFFER_SDPS, toJsonArray(offerSdps));
+
+    try {
+
+      return toAddTreeSinksResults(client.sendRequest(ADD_TREE_SINKS_METHOD, params));
+
+    } catch (JsonRpcErrorException e) {
+      processException(e);
+      return null;
+    }
+  }
+
+  /**
+   * Removes the given sinks of the tree in a single request. Results are in the same order as the
+   * sink ids, and each of them can fail independently.
+   */
+  public List<TreeBatchResult<Void>> removeTreeSinks(String treeId, List<String> sinkIds)
+      throws IOException, TreeException {
+
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.add(SINK_IDS, toJsonArray(sinkIds));
+
+    try {
+
+      return toRemoveTreeSinksResults(client.sendRequest(REMOVE_TREE_SINKS_METHOD, params));
+
+    } catch (JsonRpcErrorException e) {
+      processException(e);
+      return null;
+    } finally {
+      for (String sinkId : sinkIds) {
+        handler.removeIceCandidateListener(treeId, sinkId);
+      }
     }
   }
 
@@ -171,6 +236,43 @@ public class KurentoTreeClient {
     return this.handler.getCandidateInfo();
   }
 
+  /**
+   * Delivers the candidates gathered by the server for an endpoint to the given listener, instead
+   * of queueing them for {@link #getServerCandidate()}. Candidates received before, like the ones
+   * gathered while adding a sink, are delivered too. The listener is removed when the sink is
+   * removed or the tree is released with this client.
+   *
+   * @param treeId
+   *          the tree identifier
+   * @param sinkId
+   *          the sink identifier, null for the source of the tree
+   * @param listener
+   *          invoked for each candidate from the listeners thread of this client
+   */
+  public void addIceCandidateListener(String treeId, String sinkId,
+      IceCandidateListener listener) {
+    handler.addIceCandidateListener(treeId, sinkId, listener);
+  }
+
+  public void removeIceCandidateListener(String treeId, String sinkId) {
+    handler.removeIceCandidateListener(treeId, sinkId);
+  }
+
+  /**
+   * Delivers the candidates of all endpoints without a specific listener to the given one.
+   */
+  public void setDefaultIceCandidateListener(IceCandidateListener listener) {
+    handler.setDefaultIceCandidateListener(listener);
+  }
+
+  /**
+   * Sets the listener of the sinks removed by the server, which happens when their media does not
+   * connect or stops for too long. Evicted sinks must not be removed again.
+   */
+  public void setSinkEvictedListener(SinkEvictedListener listener) {
+    handler.setSinkEvictedListener(listener);
+  }
+
   /**
    * Notifies the server of a gathered ICE candidate on the client side.
    *
@@ -200,8 +302,254 @@ public class KurentoTreeClient {
     }
   }
 
+  /**
+   * Notifies the server of several gathered ICE candidates with a single request. The server
+   * applies all of them at once.
+   *
+   * @param treeId
+   *          the tree identifier
+   * @param sinkId
+   *          optional (nullable) identifier
+   * @param candidates
+   *          the gathered candidates
+   * @throws TreeException
+   * @throws IOException
+   */
+  public void addIceCandidates(String treeId, String sinkId, List<IceCandidate> candidates)
+      throws TreeException, IOException {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    if (sinkId != null && !sinkId.isEmpty()) {
+      params.addProperty(SINK_ID, sinkId);
+    }
+    params.add(ICE_CANDIDATES, JsonTreeUtils.toJsonArray(candidates));
+    try {
+      client.sendRequest(ADD_ICE_CANDIDATES_METHOD, params);
+    } catch (JsonRpcErrorException e) {
+      processException(e);
+    }
+  }
+
+  public CompletableFuture<String> createTreeAsync() {
+    return sendRequestAsync(CREATE_TREE_METHOD, null)
+        .thenApply(response -> JsonUtils.extractJavaValueFromResult(response, String.class));
+  }
+
+  public CompletableFuture<Void> createTreeAsync(String treeId) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    return sendVoidRequestAsync(CREATE_TREE_METHOD, params);
+  }
+
+  public CompletableFuture<Void> releaseTreeAsync(String treeId) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    return sendVoidRequestAsync(RELEASE_TREE_METHOD, params)
+        .whenComplete((v, e) -> handler.removeIceCandidateListeners(treeId));
+  }
+
+  public CompletableFuture<String> setTreeSourceAsync(String treeId, String offerSdp) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.addProperty(OFFER_SDP, offerSdp);
+    return sendRequestAsync(SET_TREE_SOURCE_METHOD, params)
+        .thenApply(result -> JsonTreeUtils.getResponseProperty(result, ANSWER_SDP, String.class));
+  }
+
+  public CompletableFuture<Void> removeTreeSourceAsync(String treeId) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    return sendVoidRequestAsync(REMOVE_TREE_SOURCE_METHOD, params)
+        .whenComplete((v, e) -> handler.removeIceCandidateListener(treeId, null));
+  }
+
+  public CompletableFuture<TreeEndpoint> addTreeSinkAsync(String treeId, String offerSdp) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.addProperty(OFFER_SDP, offerSdp);
+    return sendRequestAsync(ADD_TREE_SINK_METHOD, params).thenApply(this::toTreeEndpoint);
+  }
+
+  public CompletableFuture<Void> removeTreeSinkAsync(String treeId, String sinkId) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.addProperty(SINK_ID, sinkId);
+    return sendVoidRequestAsync(REMOVE_TREE_SINK_METHOD, params)
+        .whenComplete((v, e) -> handler.removeIceCandidateListener(treeId, sinkId));
+  }
+
+  public CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> addTreeSinksAsync(String treeId,
+      List<String> offerSdps) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.add(OFFER_SDPS, toJsonArray(offerSdps));
+    return sendRequestAsync(ADD_TREE_SINKS_METHOD, params).thenApply(this::toAddTreeSinksResults);
+  }
+
+  public CompletableFuture<List<TreeBatchResult<Void>>> removeTreeSinksAsync(String treeId,
+      List<String> sinkIds) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    params.add(SINK_IDS, toJsonArray(sinkIds));
+    return sendRequestAsync(REMOVE_TREE_SINKS_METHOD, params)
+        .thenApply(this::toRemoveTreeSinksResults).whenComplete((v, e) -> {
+          for (String sinkId : sinkIds) {
+            handler.removeIceCandidateListener(treeId, sinkId);
+          }
+        });
+  }
+
+  /**
+   * Coalesces the candidates passed to {@link #addIceCandidateAsync} for each endpoint during the
+   * given window, so they are sent to the server in a single request. Candidates are sent as soon
+   * as they are added by default.
+   *
+   * @param batchWindow
+   *          window in milliseconds, 0 to disable coalescing
+   */
+  public void setIceCandidatesBatchWindow(long batchWindow) {
+    IceCandidateCoalescer previous = candidateCoalescer;
+    candidateCoalescer = batchWindow > 0
+        ? new IceCandidateCoalescer(batchWindow, this::addIceCandidatesAsync) : null;
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  /**
+   * Sends the candidates coalesced for an endpoint without waiting for the window to expire, like
+   * when the gathering of candidates is done.
+   */
+  public void flushIceCandidates(String treeId, String sinkId) {
+    IceCandidateCoalescer coalescer = candidateCoalescer;
+    if (coalescer != null) {
+      coalescer.flush(treeId, sinkId);
+    }
+  }
+
+  /**
+   * Notifies the server of a gathered ICE candidate on the client side. When a batch window is set
+   * with {@link #setIceCandidatesBatchWindow}, the candidate is sent with the rest of candidates of
+   * its endpoint gathered during the window, and the future is completed with their request.
+   */
+  public CompletableFuture<Void> addIceCandidateAsync(String treeId, String sinkId,
+      IceCandidate candidate) {
+    IceCandidateCoalescer coalescer = candidateCoalescer;
+    if (coalescer != null) {
+      return coalescer.add(treeId, sinkId, candidate);
+    }
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    if (sinkId != null && !sinkId.isEmpty()) {
+      params.addProperty(SINK_ID, sinkId);
+    }
+    params.addProperty(ICE_CANDIDATE, candidate.getCandidate());
+    params.addProperty(ICE_SDP_M_LINE_INDEX, candidate.getSdpMLineIndex());
+    params.addProperty(ICE_SDP_MID, candidate.getSdpMid());
+    return sendVoidRequestAsync(ADD_ICE_CANDIDATE_METHOD, params);
+  }
+
+  public CompletableFuture<Void> addIceCandidatesAsync(String treeId, String sinkId,
+      List<IceCandidate> candidates) {
+    JsonObject params = new JsonObject();
+    params.addProperty(TREE_ID, treeId);
+    if (sinkId != null && !sinkId.isEmpty()) {
+      params.addProperty(SINK_ID, sinkId);
+    }
+    params.add(ICE_CANDIDATES, JsonTreeUtils.toJsonArray(candidates));
+    return sendVoidRequestAsync(ADD_ICE_CANDIDATES_METHOD, params);
+  }
+
   public void close() throws IOException {
+    if (this.candidateCoalescer != null) {
+      this.candidateCoalescer.close();
+    }
     this.client.close();
+    this.handler.close();
+  }
+
+  private JsonArray toJsonArray(List<String> values) {
+    JsonArray array = new JsonArray();
+    for (String value : values) {
+      array.add(new JsonPrimitive(value));
+    }
+    return array;
+  }
+
+  /**
+   * Sends a request without waiting for its response, so any number of requests can be
+   * outstanding in the same connection. Errors reported by the tree server complete the future
+   * with a {@link TreeException}.
+   */
+  private CompletableFuture<JsonElement> sendRequestAsync(String method, JsonObject params) {
+
+    CompletableFuture<JsonElement> future = new CompletableFuture<>();
+    try {
+      client.sendRequest(method, params, new Continuation<JsonElement>() {
+        @Override
+        public void onSuccess(JsonElement result) {
+          future.complete(result);
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+          future.completeExceptionally(toTreeException(cause));
+        }
+      });
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
+
+  private CompletableFuture<Void> sendVoidRequestAsync(String method, JsonObject params) {
+    return sendRequestAsync(method, params).thenApply(result -> null);
+  }
+
+  private TreeEndpoint toTreeEndpoint(JsonElement result) {
+    return new TreeEndpoint(JsonTreeUtils.getResponseProperty(result, ANSWER_SDP, String.class),
+        JsonTreeUtils.getResponseProperty(result, SINK_ID, String.class));
+  }
+
+  private List<TreeBatchResult<TreeEndpoint>> toAddTreeSinksResults(JsonElement response) {
+    List<TreeBatchResult<TreeEndpoint>> results = new ArrayList<>();
+    for (JsonElement result : getResults(response)) {
+      JsonObject item = result.getAsJsonObject();
+      if (item.has(ERROR)) {
+        results.add(TreeBatchResult.failure(item.get(ERROR).getAsString()));
+      } else {
+        results.add(TreeBatchResult.success(toTreeEndpoint(item)));
+      }
+    }
+    return results;
+  }
+
+  private List<TreeBatchResult<Void>> toRemoveTreeSinksResults(JsonElement response) {
+    List<TreeBatchResult<Void>> results = new ArrayList<>();
+    for (JsonElement result : getResults(response)) {
+      JsonObject item = result.getAsJsonObject();
+      if (item.has(ERROR)) {
+        results.add(TreeBatchResult.failure(item.get(ERROR).getAsString()));
+      } else {
+        results.add(TreeBatchResult.success(null));
+      }
+    }
+    return results;
+  }
+
+  private JsonArray getResults(JsonElement response) {
+    if (!(response instanceof JsonObject) || !response.getAsJsonObject().has(RESULTS)) {
+      throw new JsonRpcException("Invalid response format. The response '" + response
+          + "' should be a Json object with '" + RESULTS + "'");
+    }
+    return response.getAsJsonObject().getAsJsonArray(RESULTS);
+  }
+
+  private Throwable toTreeException(Throwable cause) {
+    if (cause instanceof JsonRpcErrorException && ((JsonRpcErrorException) cause).getCode() == 2) {
+      return new TreeException(cause.getMessage());
+    }
+    return cause;
   }
 
   private void processException(JsonRpcErrorException e) throws TreeException {
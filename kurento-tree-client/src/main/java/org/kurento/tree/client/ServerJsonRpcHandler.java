@@ -18,14 +18,28 @@
 package org.kurento.tree.client;
 
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATE;
+import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATES;
+import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATES_EVENT;
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATE_EVENT;
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_SDP_MID;
 import static org.kurento.tree.client.internal.ProtocolElements.ICE_SDP_M_LINE_INDEX;
+import static org.kurento.tree.client.internal.ProtocolElements.REASON;
+import static org.kurento.tree.client.internal.ProtocolElements.SINK_EVICTED_EVENT;
 import static org.kurento.tree.client.internal.ProtocolElements.SINK_ID;
 import static org.kurento.tree.client.internal.ProtocolElements.TREE_ID;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.DefaultJsonRpcHandler;
@@ -41,8 +55,148 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
 
   private static final Logger log = LoggerFactory.getLogger(ServerJsonRpcHandler.class);
 
-  private static BlockingQueue<IceCandidateInfo> candidates = new ArrayBlockingQueue<IceCandidateInfo>(
-      100);
+  // Key used for the source endpoint, which has no sink id
+  private static final String SOURCE_KEY = "";
+
+  public static final int DEFAULT_MAX_PENDING_CANDIDATES = 100;
+
+  public static final long DEFAULT_PENDING_CANDIDATES_TIMEOUT = 60000;
+
+  private static final class EndpointKey {
+
+    private final String treeId;
+    private final String sinkKey;
+
+    private EndpointKey(String treeId, String sinkId) {
+      this.treeId = treeId;
+      this.sinkKey = sinkKey(sinkId);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof EndpointKey)) {
+        return false;
+      }
+      EndpointKey other = (EndpointKey) obj;
+      return treeId.equals(other.treeId) && sinkKey.equals(other.sinkKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(treeId, sinkKey);
+    }
+  }
+
+  /**
+   * Candidates of an endpoint without listener. Once dropped, because they are delivered to a
+   * listener, taken or expired, candidates are not added anymore and a new instance is created.
+   */
+  private final class PendingCandidates {
+
+    private final EndpointKey key;
+    private final Deque<IceCandidateInfo> candidates = new ArrayDeque<>();
+    private long lastAdded;
+    private boolean dropped;
+    // In readyEndpoints, waiting for getCandidateInfo()
+    private boolean ready;
+
+    private PendingCandidates(EndpointKey key) {
+      this.key = key;
+    }
+
+    private synchronized boolean add(IceCandidateInfo candidateInfo) {
+      if (dropped) {
+        return false;
+      }
+      if (candidates.size() >= maxPendingCandidates) {
+        log.debug("Discarding ICE candidate info {}, as there are {} pending in its endpoint",
+            candidates.pollFirst(), maxPendingCandidates);
+      }
+      candidates.addLast(candidateInfo);
+      lastAdded = System.currentTimeMillis();
+      return true;
+    }
+
+    /**
+     * Returns true if the endpoint has to be added to readyEndpoints.
+     */
+    private synchronized boolean markReady() {
+      if (dropped || ready) {
+        return false;
+      }
+      ready = true;
+      return true;
+    }
+
+    /**
+     * Returns the oldest candidate, or null if there is none, once the endpoint has been removed
+     * from readyEndpoints. It is dropped when it has no more candidates.
+     */
+    private synchronized IceCandidateInfo take() {
+      ready = false;
+      IceCandidateInfo candidateInfo = candidates.pollFirst();
+      if (candidates.isEmpty()) {
+        dropped = true;
+        pendingCandidates.remove(key, this);
+      }
+      return candidateInfo;
+    }
+
+    private synchronized List<IceCandidateInfo> drop() {
+      dropped = true;
+      List<IceCandidateInfo> candidatesInfo = new ArrayList<>(candidates);
+      candidates.clear();
+      return candidatesInfo;
+    }
+
+    private synchronized boolean isDropped() {
+      return dropped;
+    }
+
+    private synchronized boolean isExpired(long now) {
+      return now - lastAdded >= pendingCandidatesTimeout;
+    }
+  }
+
+  // Listeners and pending candidates are looked up without locks, so the thread reading the
+  // connection is never blocked by the threads adding or removing listeners
+  private final ConcurrentHashMap<String, Map<String, IceCandidateListener>> listeners =
+      new ConcurrentHashMap<>();
+
+  // The candidates of an endpoint are usually received before the response that gives its sink
+  // id, so they are kept until a listener is added, they are taken with getCandidateInfo(), the
+  // endpoint is removed or they expire
+  private final ConcurrentHashMap<EndpointKey, PendingCandidates> pendingCandidates =
+      new ConcurrentHashMap<>();
+
+  // Endpoints with pending candidates in the order they were received, each one at most once.
+  // Permits are released for each added endpoint
+  private final ConcurrentLinkedQueue<PendingCandidates> readyEndpoints =
+      new ConcurrentLinkedQueue<>();
+  private final Semaphore readyPermits = new Semaphore(0);
+
+  private volatile int maxPendingCandidates = DEFAULT_MAX_PENDING_CANDIDATES;
+  private volatile long pendingCandidatesTimeout = DEFAULT_PENDING_CANDIDATES_TIMEOUT;
+  private final AtomicLong nextExpiration = new AtomicLong();
+
+  private volatile IceCandidateListener defaultListener;
+
+  private volatile SinkEvictedListener sinkEvictedListener;
+
+  // Listeners are invoked in order from this executor, so they never block the reader thread
+  private final ExecutorService listenersExecutor;
+
+  public ServerJsonRpcHandler() {
+    this(Executors.newSingleThreadExecutor(r -> {
+      Thread thread = new Thread(r, "tree-client-listeners");
+      thread.setDaemon(true);
+      return thread;
+    }));
+  }
+
+  public ServerJsonRpcHandler(ExecutorService listenersExecutor) {
+    this.listenersExecutor = listenersExecutor;
+  }
 
   @Override
   public void handleRequest(Transaction transaction, Request<JsonObject> request) throws Exception {
@@ -51,6 +205,12 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
       case ICE_CANDIDATE_EVENT:
         iceCandidateEvent(transaction, request);
         break;
+      case ICE_CANDIDATES_EVENT:
+        iceCandidatesEvent(transaction, request);
+        break;
+      case SINK_EVICTED_EVENT:
+        sinkEvictedEvent(transaction, request);
+        break;
       default:
         log.error("Unrecognized request {}", request);
         break;
@@ -72,28 +232,244 @@ public class ServerJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
     String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
     String sinkId = JsonTreeUtils.getRequestParam(request, SINK_ID, String.class, true);
 
-    IceCandidateInfo eventInfo = new IceCandidateInfo(iceCandidate, treeId, sinkId);
+    enqueue(new IceCandidateInfo(iceCandidate, treeId, sinkId));
+  }
 
-    log.debug("Enqueueing ICE candidate info {}", eventInfo);
-    try {
-      candidates.put(eventInfo);
-      log.debug("Enqueued ICE candidate info {}", eventInfo);
-    } catch (InterruptedException e) {
-      e.printStackTrace();
+  private void iceCandidatesEvent(Transaction transaction, Request<JsonObject> request) {
+
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    String sinkId = JsonTreeUtils.getRequestParam(request, SINK_ID, String.class, true);
+
+    for (IceCandidate iceCandidate : JsonTreeUtils.getRequestIceCandidates(request,
+        ICE_CANDIDATES)) {
+      enqueue(new IceCandidateInfo(iceCandidate, treeId, sinkId));
+    }
+  }
+
+  private void sinkEvictedEvent(Transaction transaction, Request<JsonObject> request) {
+
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    String sinkId = JsonTreeUtils.getRequestParam(request, SINK_ID, String.class);
+    String reason = JsonTreeUtils.getRequestParam(request, REASON, String.class);
+
+    log.info("Sink {} of tree {} evicted by the server: {}", sinkId, treeId, reason);
+
+    // The sink does not exist anymore, so it will not have more candidates
+    removeIceCandidateListener(treeId, sinkId);
+
+    SinkEvictedListener listener = sinkEvictedListener;
+    if (listener != null) {
+      listenersExecutor.execute(() -> {
+        try {
+          listener.onSinkEvicted(treeId, sinkId, reason);
+        } catch (Exception e) {
+          log.warn("Exception in listener of evicted sink {} of tree {}", sinkId, treeId, e);
+        }
+      });
+    }
+  }
+
+  public void setSinkEvictedListener(SinkEvictedListener listener) {
+    this.sinkEvictedListener = listener;
+  }
+
+  private void enqueue(IceCandidateInfo eventInfo) {
+
+    String treeId = eventInfo.getTreeId();
+    String sinkId = eventInfo.getSinkId();
+
+    IceCandidateListener listener = getListener(treeId, sinkId);
+    if (listener == null) {
+      listener = defaultListener;
+    }
+    if (listener != null) {
+      dispatch(listener, eventInfo);
+      return;
+    }
+
+    EndpointKey key = new EndpointKey(treeId, sinkId);
+    PendingCandidates pending;
+    while (true) {
+      pending = pendingCandidates.computeIfAbsent(key, k -> new PendingCandidates(k));
+      if (pending.add(eventInfo)) {
+        break;
+      }
+      // Dropped since it was obtained
+      pendingCandidates.remove(key, pending);
+    }
+    log.debug("Enqueued ICE candidate info {}", eventInfo);
+
+    // A listener added meanwhile may have missed the candidate
+    listener = getListener(treeId, sinkId);
+    if (listener != null) {
+      dispatchPending(key, listener);
+    } else if (pending.markReady()) {
+      readyEndpoints.offer(pending);
+      readyPermits.release();
+    }
+
+    expirePendingIfNeeded();
+  }
+
+  private void dispatch(IceCandidateListener listener, IceCandidateInfo eventInfo) {
+    listenersExecutor.execute(() -> {
+      try {
+        listener.onIceCandidate(eventInfo);
+      } catch (Exception e) {
+        log.warn("Exception in listener of ICE candidate info {}", eventInfo, e);
+      }
+    });
+  }
+
+  private void dispatchPending(EndpointKey key, IceCandidateListener listener) {
+    PendingCandidates pending = pendingCandidates.remove(key);
+    if (pending != null) {
+      for (IceCandidateInfo eventInfo : pending.drop()) {
+        dispatch(listener, eventInfo);
+      }
+    }
+  }
+
+  private void discardPending(EndpointKey key) {
+    PendingCandidates pending = pendingCandidates.remove(key);
+    if (pending != null) {
+      pending.drop();
+    }
+  }
+
+  /**
+   * Delivers the candidates of an endpoint to the given listener instead of queueing them. The
+   * candidates received before, and not yet retrieved with {@link #getCandidateInfo()}, are
+   * delivered to the listener too.
+   *
+   * @param treeId
+   *          the tree identifier
+   * @param sinkId
+   *          the sink identifier, null for the source of the tree
+   */
+  public void addIceCandidateListener(String treeId, String sinkId,
+      IceCandidateListener listener) {
+
+    listeners.compute(treeId, (id, treeListeners) -> {
+      if (treeListeners == null) {
+        treeListeners = new ConcurrentHashMap<>();
+      }
+      treeListeners.put(sinkKey(sinkId), listener);
+      return treeListeners;
+    });
+
+    dispatchPending(new EndpointKey(treeId, sinkId), listener);
+  }
+
+  /**
+   * Delivers the candidates of endpoints without a specific listener to the given one instead of
+   * queueing them. Null restores the queue.
+   */
+  public void setDefaultIceCandidateListener(IceCandidateListener listener) {
+    this.defaultListener = listener;
+  }
+
+  /**
+   * Removes the listener of an endpoint and discards its queued candidates, as the endpoint will
+   * not be used anymore.
+   */
+  public void removeIceCandidateListener(String treeId, String sinkId) {
+    listeners.computeIfPresent(treeId, (id, treeListeners) -> {
+      treeListeners.remove(sinkKey(sinkId));
+      return treeListeners.isEmpty() ? null : treeListeners;
+    });
+    discardPending(new EndpointKey(treeId, sinkId));
+  }
+
+  public void removeIceCandidateListeners(String treeId) {
+    listeners.remove(treeId);
+    for (EndpointKey key : pendingCandidates.keySet()) {
+      if (key.treeId.equals(treeId)) {
+        discardPending(key);
+      }
+    }
+  }
+
+  /**
+   * Sets the maximum number of candidates kept for an endpoint without listener. The oldest ones
+   * are discarded when it is exceeded.
+   */
+  public void setMaxPendingCandidates(int maxPendingCandidates) {
+    this.maxPendingCandidates = maxPendingCandidates;
+  }
+
+  /**
+   * Sets the milliseconds the candidates of an endpoint without listener are kept since the last
+   * one was received, so candidates of endpoints that are never used are not kept forever.
+   */
+  public void setPendingCandidatesTimeout(long pendingCandidatesTimeout) {
+    this.pendingCandidatesTimeout = pendingCandidatesTimeout;
+  }
+
+  /**
+   * Discards expired candidates from the listeners thread, at most once per timeout.
+   */
+  private void expirePendingIfNeeded() {
+    long now = System.currentTimeMillis();
+    long next = nextExpiration.get();
+    if (now >= next && nextExpiration.compareAndSet(next, now + pendingCandidatesTimeout)) {
+      listenersExecutor.execute(this::expirePending);
     }
   }
 
+  private void expirePending() {
+    long now = System.currentTimeMillis();
+    for (PendingCandidates pending : pendingCandidates.values()) {
+      if (pending.isExpired(now) && pendingCandidates.remove(pending.key, pending)) {
+        log.debug("Discarding {} expired ICE candidates of sink {} of tree {}",
+            pending.drop().size(), pending.key.sinkKey, pending.key.treeId);
+      }
+    }
+    readyEndpoints.removeIf(PendingCandidates::isDropped);
+  }
+
   /**
-   * Blocks until an element is available and then returns it by removing it from the queue.
-   * 
+   * Stops the thread delivering candidates and evictions to the listeners.
+   */
+  public void close() {
+    listenersExecutor.shutdown();
+  }
+
+  private IceCandidateListener getListener(String treeId, String sinkId) {
+    Map<String, IceCandidateListener> treeListeners = listeners.get(treeId);
+    return treeListeners != null ? treeListeners.get(sinkKey(sinkId)) : null;
+  }
+
+  private static String sinkKey(String sinkId) {
+    return sinkId != null ? sinkId : SOURCE_KEY;
+  }
+
+  /**
+   * Blocks until an element is available and then returns it by removing it from the queue. Only
+   * candidates of endpoints without {@link IceCandidateListener} are queued.
+   *
    * @return an {@link IceCandidateInfo} from the queue, null when interrupted
-   * @see BlockingQueue#take()
    */
   public IceCandidateInfo getCandidateInfo() {
     try {
-      IceCandidateInfo candidateInfo = candidates.take();
-      log.debug("Dequeued ICE candidate info {}", candidateInfo);
-      return candidateInfo;
+      while (true) {
+        readyPermits.acquire();
+        PendingCandidates pending = readyEndpoints.poll();
+        if (pending == null) {
+          // Removed after being dropped
+          continue;
+        }
+        IceCandidateInfo candidateInfo = pending.take();
+        // The rest of its candidates go after the ones of other endpoints
+        if (pending.markReady()) {
+          readyEndpoints.offer(pending);
+          readyPermits.release();
+        }
+        if (candidateInfo != null) {
+          log.debug("Dequeued ICE candidate info {}", candidateInfo);
+          return candidateInfo;
+        }
+      }
     } catch (InterruptedException e) {
       e.printStackTrace();
       return null;
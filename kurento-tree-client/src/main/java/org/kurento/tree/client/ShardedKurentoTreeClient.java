@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
+import org.kurento.tree.client.internal.ConsistentHashRing;
+
+/**
+ * Client of several tree servers with several connections to each of them. All the operations of
+ * a tree have to be done with the client returned by {@link #getClient(String)}, which selects a
+ * server by consistent hashing of the tree id and then one of its connections. This way a tree is
+ * always managed by the same server, trees are spread among all connections and adding a server
+ * only moves a fraction of them.
+ * <p>
+ * Servers are hashed by their uri as in {@code ClusteredTreeManager}, so a client with the member
+ * list of a cluster sends the operations of each tree directly to its owner.
+ */
+public class ShardedKurentoTreeClient {
+
+  private final ConsistentHashRing<List<KurentoTreeClient>> ring = new ConsistentHashRing<>();
+  private final List<KurentoTreeClient> clients = new ArrayList<>();
+
+  /**
+   * Creates the connections to the given servers. Connections are reestablished transparently
+   * when lost.
+   */
+  public ShardedKurentoTreeClient(List<String> wsUris, int connectionsPerServer) {
+    this(wsUris, connectionsPerServer, wsUri -> {
+      JsonRpcClientWebSocket client = new JsonRpcClientWebSocket(wsUri + "/websocket");
+      client.setTryReconnectingForever(true);
+      return new KurentoTreeClient(client);
+    });
+  }
+
+  public ShardedKurentoTreeClient(List<String> wsUris, int connectionsPerServer,
+      Function<String, KurentoTreeClient> clientFactory) {
+
+    if (wsUris.isEmpty() || connectionsPerServer < 1) {
+      throw new IllegalArgumentException("At least one server and one connection are required");
+    }
+
+    for (String wsUri : wsUris) {
+      List<KurentoTreeClient> serverClients = new ArrayList<>(connectionsPerServer);
+      for (int i = 0; i < connectionsPerServer; i++) {
+        serverClients.add(clientFactory.apply(wsUri));
+      }
+      clients.addAll(serverClients);
+      ring.addNode(wsUri, serverClients);
+    }
+  }
+
+  /**
+   * @return the client that has to be used for all the operations of the tree
+   */
+  public KurentoTreeClient getClient(String treeId) {
+    List<KurentoTreeClient> serverClients = ring.getNode(treeId);
+    // The candidates of a tree are received by the connection used to create its endpoints
+    return serverClients.get(Math.floorMod(treeId.hashCode(), serverClients.size()));
+  }
+
+  /**
+   * Creates a tree in the server that corresponds to a new random id.
+   *
+   * @return the id of the created tree
+   */
+  public String createTree() throws IOException {
+    String treeId = UUID.randomUUID().toString();
+    getClient(treeId).createTree(treeId);
+    return treeId;
+  }
+
+  public CompletableFuture<String> createTreeAsync() {
+    String treeId = UUID.randomUUID().toString();
+    return getClient(treeId).createTreeAsync(treeId).thenApply(v -> treeId);
+  }
+
+  public List<KurentoTreeClient> getClients() {
+    return Collections.unmodifiableList(clients);
+  }
+
+  public void close() throws IOException {
+    IOException exception = null;
+    for (KurentoTreeClient client : clients) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.client;
+
+/**
+ * Receives the sinks removed by the server because their media never connected or stopped. It is
+ * invoked from the same thread as the {@link IceCandidateListener}s of the client.
+ */
+@FunctionalInterface
+public interface SinkEvictedListener {
+
+  /**
+   * @param reason
+   *          {@link org.kurento.tree.client.internal.ProtocolElements#EVICTED_NOT_CONNECTED} or
+   *          {@link org.kurento.tree.client.internal.ProtocolElements#EVICTED_IDLE}
+   */
+  void onSinkEvicted(String treeId, String sinkId, String reason);
+}
@@ -0,0 +1,60 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.client;
+
+/**
+ * Result of one of the items of a batch operation. Each item succeeds or fails independently of
+ * the others.
+ */
+public class TreeBatchResult<T> {
+
+  private boolean success;
+  private T value;
+  private String error;
+
+  private TreeBatchResult(boolean success, T value, String error) {
+    this.success = success;
+    this.value = value;
+    this.error = error;
+  }
+
+  public static <T> TreeBatchResult<T> success(T value) {
+    return new TreeBatchResult<>(true, value, null);
+  }
+
+  public static <T> TreeBatchResult<T> failure(String error) {
+    return new TreeBatchResult<>(false, null, error);
+  }
+
+  public boolean isSuccess() {
+    return success;
+  }
+
+  public T getValue() {
+    return value;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  @Override
+  public String toString() {
+    return success ? "[value=" + value + "]" : "[error=" + error + "]";
+  }
+
+}
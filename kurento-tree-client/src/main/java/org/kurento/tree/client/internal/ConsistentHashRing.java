@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.client.internal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of keys to nodes. Each node is placed in several points of the ring, so keys
+ * are evenly distributed and adding or removing a node only moves the keys of that node.
+ * <p>
+ * Nodes change rarely compared with lookups, so the ring is copied on write and lookups do not
+ * take any lock.
+ */
+public class ConsistentHashRing<T> {
+
+  public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+  private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+  });
+
+  // Never modified once published, writers replace it holding the lock of the ring
+  private volatile NavigableMap<Integer, T> ring = new TreeMap<>();
+  private final int virtualNodes;
+
+  public ConsistentHashRing() {
+    this(DEFAULT_VIRTUAL_NODES);
+  }
+
+  public ConsistentHashRing(int virtualNodes) {
+    this.virtualNodes = virtualNodes;
+  }
+
+  /**
+   * @param nodeId
+   *          identifies the node in the ring. The same ids give the same distribution of keys in
+   *          every ring
+   */
+  public synchronized void addNode(String nodeId, T node) {
+    NavigableMap<Integer, T> newRing = new TreeMap<>(ring);
+    for (int i = 0; i < virtualNodes; i++) {
+      newRing.put(hash(nodeId + "#" + i), node);
+    }
+    ring = newRing;
+  }
+
+  public synchronized void removeNode(String nodeId) {
+    NavigableMap<Integer, T> newRing = new TreeMap<>(ring);
+    for (int i = 0; i < virtualNodes; i++) {
+      newRing.remove(hash(nodeId + "#" + i));
+    }
+    ring = newRing;
+  }
+
+  /**
+   * @return the node of the key, null if the ring is empty
+   */
+  public T getNode(String key) {
+    NavigableMap<Integer, T> ring = this.ring;
+    if (ring.isEmpty()) {
+      return null;
+    }
+    Entry<Integer, T> entry = ring.ceilingEntry(hash(key));
+    return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+  }
+
+  private static int hash(String key) {
+    byte[] digest = MD5.get().digest(key.getBytes(StandardCharsets.UTF_8));
+    return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16) | ((digest[2] & 0xFF) << 8)
+        | (digest[3] & 0xFF);
+  }
+}
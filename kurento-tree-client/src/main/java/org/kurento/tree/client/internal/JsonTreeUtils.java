@@ -17,10 +17,15 @@
 
 package org.kurento.tree.client.internal;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.JsonRpcErrorException;
 import org.kurento.jsonrpc.JsonRpcException;
 import org.kurento.jsonrpc.message.Request;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonNull;
 import com.google.gson.JsonObject;
@@ -55,6 +60,73 @@ public class JsonTreeUtils {
     return getConverted(((JsonObject) result).get(property), property, type, false);
   }
 
+  public static List<String> getRequestStringList(Request<JsonObject> request, String paramName) {
+    List<String> values = new ArrayList<>();
+    for (JsonElement value : getRequestParam(request, paramName, JsonArray.class)) {
+      values.add(getConverted(value, paramName, String.class, false));
+    }
+    return values;
+  }
+
+  public static List<IceCandidate> getRequestIceCandidates(Request<JsonObject> request,
+      String paramName) {
+    List<IceCandidate> candidates = new ArrayList<>();
+    for (JsonElement value : getRequestParam(request, paramName, JsonArray.class)) {
+      candidates.add(getIceCandidate(getConverted(value, paramName, JsonObject.class, false)));
+    }
+    return candidates;
+  }
+
+  /**
+   * Returns the params of a request, failing if it has none. Used with the typed getters below by
+   * the methods received most often, which read their params without a class token per param.
+   */
+  public static JsonObject getRequestParams(Request<JsonObject> request) {
+    JsonObject params = request.getParams();
+    if (params == null) {
+      throw new JsonRpcErrorException(1, "Invalid request lacking parameters");
+    }
+    return params;
+  }
+
+  public static String getString(JsonObject params, String name, boolean allowNull) {
+    JsonElement value = params.get(name);
+    if (value != null && value.isJsonPrimitive()) {
+      return value.getAsString();
+    }
+    return getConverted(value, name, String.class, allowNull);
+  }
+
+  public static int getInt(JsonObject params, String name) {
+    JsonElement value = params.get(name);
+    if (value != null && value.isJsonPrimitive()) {
+      return value.getAsInt();
+    }
+    return getConverted(value, name, Integer.class, false);
+  }
+
+  /**
+   * Reads a candidate from the fields of a json object, like the params of an
+   * {@link ProtocolElements#ADD_ICE_CANDIDATE_METHOD} request.
+   */
+  public static IceCandidate getIceCandidate(JsonObject json) {
+    return new IceCandidate(getString(json, ProtocolElements.ICE_CANDIDATE, false),
+        getString(json, ProtocolElements.ICE_SDP_MID, false),
+        getInt(json, ProtocolElements.ICE_SDP_M_LINE_INDEX));
+  }
+
+  public static JsonArray toJsonArray(List<IceCandidate> candidates) {
+    JsonArray array = new JsonArray();
+    for (IceCandidate candidate : candidates) {
+      JsonObject json = new JsonObject();
+      json.addProperty(ProtocolElements.ICE_CANDIDATE, candidate.getCandidate());
+      json.addProperty(ProtocolElements.ICE_SDP_MID, candidate.getSdpMid());
+      json.addProperty(ProtocolElements.ICE_SDP_M_LINE_INDEX, candidate.getSdpMLineIndex());
+      array.add(json);
+    }
+    return array;
+  }
+
   @SuppressWarnings("unchecked")
   private static <T> T getConverted(JsonElement paramValue, String property, Class<T> type,
       boolean allowNull) {
@@ -78,6 +150,18 @@ public class JsonTreeUtils {
       }
     }
 
+    if (type == JsonArray.class) {
+      if (paramValue.isJsonArray()) {
+        return (T) paramValue.getAsJsonArray();
+      }
+    }
+
+    if (type == JsonObject.class) {
+      if (paramValue.isJsonObject()) {
+        return (T) paramValue.getAsJsonObject();
+      }
+    }
+
     throw new JsonRpcErrorException(2,
         "Param '" + property + "' with value '" + paramValue + "' is not a " + type.getName());
   }
@@ -24,8 +24,13 @@ public class ProtocolElements {
   public static final String ADD_TREE_SINK_METHOD = "addTreeSink";
   public static final String REMOVE_TREE_SOURCE_METHOD = "removeTreeSource";
   public static final String REMOVE_TREE_SINK_METHOD = "removeTreeSink";
+  public static final String ADD_TREE_SINKS_METHOD = "addTreeSinks";
+  public static final String REMOVE_TREE_SINKS_METHOD = "removeTreeSinks";
   public static final String ADD_ICE_CANDIDATE_METHOD = "addIceCandidate";
+  public static final String ADD_ICE_CANDIDATES_METHOD = "addIceCandidates";
   public static final String ICE_CANDIDATE_EVENT = "iceCandidate";
+  public static final String ICE_CANDIDATES_EVENT = "iceCandidates";
+  public static final String SINK_EVICTED_EVENT = "sinkEvicted";
 
   public static final String SINK_ID = "sinkId";
   public static final String ANSWER_SDP = "answerSdp";
@@ -35,4 +40,13 @@ public class ProtocolElements {
   public static final String ICE_CANDIDATE = "candidate";
   public static final String ICE_SDP_MID = "sdpMid";
   public static final String ICE_SDP_M_LINE_INDEX = "sdpMLineIndex";
+  public static final String OFFER_SDPS = "offerSdps";
+  public static final String SINK_IDS = "sinkIds";
+  public static final String RESULTS = "results";
+  public static final String ERROR = "error";
+  public static final String ICE_CANDIDATES = "candidates";
+  public static final String REASON = "reason";
+
+  public static final String EVICTED_NOT_CONNECTED = "notConnected";
+  public static final String EVICTED_IDLE = "idle";
 }
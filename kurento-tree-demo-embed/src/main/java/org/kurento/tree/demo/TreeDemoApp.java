@@ -54,7 +54,9 @@ public class TreeDemoApp extends KurentoTreeServerApp implements WebSocketConfig
   @Bean
   public KurentoTreeClient kurentoTreeClient() {
     TreeManager treeMgr = app.getBean(TreeManager.class);
-    JsonRpcClientLocal localClient = new JsonRpcClientLocal(new ClientsJsonRpcHandler(treeMgr));
+    // Local clients need the response before handleRequest returns
+    JsonRpcClientLocal localClient = new JsonRpcClientLocal(
+        new ClientsJsonRpcHandler(treeMgr, false));
     return new KurentoTreeClient(localClient);
   }
 
@@ -16,31 +16,59 @@
  */
 package org.kurento.tree.server.app;
 
+import static org.kurento.tree.client.internal.ProtocolElements.ADD_ICE_CANDIDATES_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.ADD_ICE_CANDIDATE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.ADD_TREE_SINKS_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.ADD_TREE_SINK_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.ANSWER_SDP;
-import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATE;
-import static org.kurento.tree.client.internal.ProtocolElements.ICE_SDP_MID;
-import static org.kurento.tree.client.internal.ProtocolElements.ICE_SDP_M_LINE_INDEX;
+import static org.kurento.tree.client.internal.ProtocolElements.CREATE_TREE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.ERROR;
+import static org.kurento.tree.client.internal.ProtocolElements.ICE_CANDIDATES;
 import static org.kurento.tree.client.internal.ProtocolElements.OFFER_SDP;
+import static org.kurento.tree.client.internal.ProtocolElements.OFFER_SDPS;
+import static org.kurento.tree.client.internal.ProtocolElements.RELEASE_TREE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.REMOVE_TREE_SINKS_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.REMOVE_TREE_SINK_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.REMOVE_TREE_SOURCE_METHOD;
+import static org.kurento.tree.client.internal.ProtocolElements.RESULTS;
+import static org.kurento.tree.client.internal.ProtocolElements.SET_TREE_SOURCE_METHOD;
 import static org.kurento.tree.client.internal.ProtocolElements.SINK_ID;
+import static org.kurento.tree.client.internal.ProtocolElements.SINK_IDS;
 import static org.kurento.tree.client.internal.ProtocolElements.TREE_ID;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 
 import org.kurento.client.IceCandidate;
+import org.kurento.commons.PropertiesManager;
 import org.kurento.jsonrpc.DefaultJsonRpcHandler;
 import org.kurento.jsonrpc.JsonRpcErrorException;
 import org.kurento.jsonrpc.Session;
 import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.message.Request;
 import org.kurento.jsonrpc.message.Response;
+import org.kurento.tree.client.TreeBatchResult;
 import org.kurento.tree.client.TreeEndpoint;
 import org.kurento.tree.client.TreeException;
 import org.kurento.tree.client.internal.JsonTreeUtils;
+import org.kurento.tree.server.app.SessionTreeIndex.SessionTrees;
+import org.kurento.tree.server.treemanager.AsyncTreeManager;
 import org.kurento.tree.server.treemanager.TreeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
@@ -49,39 +77,159 @@ public class ClientsJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
 
   private static final Logger log = LoggerFactory.getLogger(ClientsJsonRpcHandler.class);
 
+  public static final boolean SESSION_CLEANUP = PropertiesManager
+      .getProperty("tree.session.cleanup", true);
+
+  public static final int SESSION_CLEANUP_THREADS = PropertiesManager
+      .getProperty("tree.session.cleanupThreads", 2);
+
+  /**
+   * Handles requests of a method. The result can be a {@link Response}, null for void responses or
+   * a {@link CompletableFuture} of any of them.
+   */
+  @FunctionalInterface
+  protected interface MethodHandler {
+    Object handle(Session session, Request<JsonObject> request);
+  }
+
   private TreeManager treeManager;
+  private AsyncTreeManager asyncTreeManager;
+  private boolean asyncResponses;
+
+  // Trees, sources and sinks of each session, removed when the session is
+  // closed
+  private final SessionTreeIndex sessionTrees = new SessionTreeIndex();
+  private volatile boolean sessionCleanup = SESSION_CLEANUP;
+
+  // Cleanup of closed sessions waits for tree locks and media servers, so it
+  // has its own threads instead of the common pool
+  private final ExecutorService cleanupExecutor = Executors
+      .newFixedThreadPool(SESSION_CLEANUP_THREADS, r -> {
+        Thread thread = new Thread(r, "tree-session-cleanup");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Built once so dispatching a request needs neither reflection nor
+  // exception wrapping
+  private final Map<String, MethodHandler> handlers = new HashMap<>();
 
   public ClientsJsonRpcHandler(TreeManager treeManager) {
+    this(treeManager, true);
+  }
+
+  /**
+   * @param asyncResponses
+   *          if true, requests executed asynchronously by the {@link AsyncTreeManager} are
+   *          answered when they complete, releasing the request thread in the meantime. Transports
+   *          that expect the response before handleRequest returns (like local clients) have to
+   *          disable it
+   */
+  public ClientsJsonRpcHandler(TreeManager treeManager, boolean asyncResponses) {
     this.treeManager = treeManager;
+    this.asyncResponses = asyncResponses;
+    if (treeManager instanceof AsyncTreeManager) {
+      this.asyncTreeManager = (AsyncTreeManager) treeManager;
+    }
+
+    registerHandler(CREATE_TREE_METHOD, this::createTree);
+    registerHandler(RELEASE_TREE_METHOD, (session, request) -> {
+      releaseTree(session, request);
+      return null;
+    });
+    registerHandler(SET_TREE_SOURCE_METHOD, this::setTreeSource);
+    registerHandler(REMOVE_TREE_SOURCE_METHOD, (session, request) -> {
+      removeTreeSource(session, request);
+      return null;
+    });
+    registerHandler(ADD_TREE_SINK_METHOD, this::addTreeSink);
+    registerHandler(REMOVE_TREE_SINK_METHOD, this::removeTreeSink);
+    registerHandler(ADD_TREE_SINKS_METHOD, this::addTreeSinks);
+    registerHandler(REMOVE_TREE_SINKS_METHOD, this::removeTreeSinks);
+    registerHandler(ADD_ICE_CANDIDATE_METHOD, (session, request) -> {
+      addIceCandidate(session, request);
+      return null;
+    });
+    registerHandler(ADD_ICE_CANDIDATES_METHOD, (session, request) -> {
+      addIceCandidates(session, request);
+      return null;
+    });
+  }
+
+  /**
+   * Enables or disables the removal of the trees created by a session, and the sources and sinks
+   * added by it, when the session is closed.
+   */
+  public void setSessionCleanup(boolean sessionCleanup) {
+    this.sessionCleanup = sessionCleanup;
+  }
+
+  /**
+   * Returns the index of the trees, sources and sinks of each session, so sinks removed by the
+   * server can be removed from it too.
+   */
+  public SessionTreeIndex getSessionTreeIndex() {
+    return sessionTrees;
+  }
+
+  /**
+   * Stops the threads used to clean up closed sessions. Pending cleanups are discarded.
+   */
+  public void close() {
+    cleanupExecutor.shutdownNow();
+  }
+
+  /**
+   * Registers the handler of a method, replacing the previous one if any. Subclasses can use it to
+   * support new methods.
+   */
+  protected void registerHandler(String method, MethodHandler handler) {
+    handlers.put(method, handler);
   }
 
-  @SuppressWarnings("unchecked")
   @Override
   public void handleRequest(Transaction transaction, Request<JsonObject> request) throws Exception {
 
-    Response<JsonElement> response = null;
+    MethodHandler handler = handlers.get(request.getMethod());
+    if (handler == null) {
+      log.error("Requesting unrecognized method '{}'", request.getMethod());
+      transaction.sendError(1, "Unrecognized method '" + request.getMethod() + "'", null);
+      return;
+    }
 
     try {
-      Method method = this.getClass().getMethod(request.getMethod(), Session.class, Request.class);
-      Session session = transaction.getSession();
-
-      response = (Response<JsonElement>) method.invoke(this, session, request);
+      Object result = handler.handle(transaction.getSession(), request);
+
+      if (result instanceof CompletableFuture) {
+
+        CompletableFuture<?> future = (CompletableFuture<?>) result;
+
+        if (future.isDone() || !asyncResponses) {
+          sendResponse(transaction, request, future.get());
+        } else {
+          transaction.startAsync();
+          future.whenComplete((response, e) -> {
+            try {
+              if (e != null) {
+                sendError(transaction, request, e);
+              } else {
+                sendResponse(transaction, request, response);
+              }
+            } catch (Exception ex) {
+              log.error("Exception sending response to request {}", request, ex);
+            }
+          });
+        }
 
-      if (response != null) {
-        response.setId(request.getId());
-        transaction.sendResponseObject(response);
       } else {
-        transaction.sendVoidResponse();
+        sendResponse(transaction, request, result);
       }
 
-    } catch (InvocationTargetException e) {
-      log.error("Exception executing request {}", request, e);
-
-      transaction.sendError(e.getCause());
+    } catch (ExecutionException e) {
+      sendError(transaction, request, e.getCause());
 
-    } catch (NoSuchMethodException e) {
-      log.error("Requesting unrecognized method '{}'", request.getMethod());
-      transaction.sendError(1, "Unrecognized method '" + request.getMethod() + "'", null);
+    } catch (TreeException | JsonRpcErrorException e) {
+      sendError(transaction, request, e);
 
     } catch (Exception e) {
       log.error("Exception processing request {}", request, e);
@@ -89,95 +237,385 @@ public class ClientsJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
     }
   }
 
+  @Override
+  public void afterConnectionClosed(Session session, String status) throws Exception {
+
+    SessionTrees trees = sessionTrees.removeSession(session.getSessionId());
+    if (trees == null) {
+      return;
+    }
+
+    if (!sessionCleanup) {
+      log.info("Session {} closed ({}) without removing its trees", session.getSessionId(),
+          status);
+      return;
+    }
+
+    log.info("Session {} closed ({}). Releasing {} trees, {} sources and sinks of {} trees",
+        session.getSessionId(), status, trees.getCreatedTrees().size(),
+        trees.getSourceTrees().size(), trees.getSinks().size());
+
+    List<CompletableFuture<?>> removals = new ArrayList<>();
+
+    for (String treeId : trees.getCreatedTrees()) {
+      removals.add(CompletableFuture.runAsync(() -> treeManager.releaseTree(treeId),
+          cleanupExecutor).whenComplete((v, e) -> logCleanupError(e, "releasing tree", treeId)));
+    }
+
+    for (Map.Entry<String, Set<String>> sinks : trees.getSinks().entrySet()) {
+      String treeId = sinks.getKey();
+      CompletableFuture<?> removal = removeSessionSinks(treeId, new ArrayList<>(sinks.getValue()))
+          .whenComplete((v, e) -> logCleanupError(e, "removing sinks of tree", treeId));
+      if (trees.getSourceTrees().contains(treeId)) {
+        removal = removal.handle((v, e) -> null)
+            .thenRunAsync(() -> removeSessionSource(treeId), cleanupExecutor);
+      }
+      removals.add(removal);
+    }
+
+    for (String treeId : trees.getSourceTrees()) {
+      if (!trees.getSinks().containsKey(treeId)) {
+        removals.add(CompletableFuture.runAsync(() -> removeSessionSource(treeId),
+            cleanupExecutor));
+      }
+    }
+
+    CompletableFuture.allOf(removals.toArray(new CompletableFuture<?>[removals.size()]))
+        .whenComplete((v, e) -> log.info("Finished cleanup of session {}", session.getSessionId()));
+  }
+
+  private CompletableFuture<List<TreeBatchResult<Void>>> removeSessionSinks(String treeId,
+      List<String> sinkIds) {
+    // The asynchronous version also takes the lock of the tree in the calling thread
+    if (asyncTreeManager != null) {
+      return CompletableFuture
+          .supplyAsync(() -> asyncTreeManager.removeTreeSinksAsync(treeId, sinkIds),
+              cleanupExecutor)
+          .thenCompose(removal -> removal);
+    } else {
+      return CompletableFuture.supplyAsync(() -> treeManager.removeTreeSinks(treeId, sinkIds),
+          cleanupExecutor);
+    }
+  }
+
+  /**
+   * Removes the sinks added for a session that was closed while they were being negotiated, as
+   * they were not in the index when the session was cleaned up.
+   */
+  private void removeClosedSessionSinks(String sessionId, String treeId, List<String> sinkIds) {
+    if (!sessionCleanup) {
+      return;
+    }
+    log.info("Session {} closed while adding sinks {} of tree {}. Removing them", sessionId,
+        sinkIds, treeId);
+    removeSessionSinks(treeId, sinkIds)
+        .whenComplete((v, e) -> logCleanupError(e, "removing sinks of tree", treeId));
+  }
+
+  /**
+   * Removes the source set for a session that was closed while it was being negotiated.
+   */
+  private void removeClosedSessionSource(String sessionId, String treeId) {
+    if (!sessionCleanup) {
+      return;
+    }
+    log.info("Session {} closed while setting the source of tree {}. Removing it", sessionId,
+        treeId);
+    CompletableFuture.runAsync(() -> removeSessionSource(treeId), cleanupExecutor);
+  }
+
+  /**
+   * Releases the tree created for a session that was closed while it was being created.
+   */
+  private void releaseClosedSessionTree(String sessionId, String treeId) {
+    if (!sessionCleanup) {
+      return;
+    }
+    log.info("Session {} closed while creating tree {}. Releasing it", sessionId, treeId);
+    CompletableFuture.runAsync(() -> treeManager.releaseTree(treeId), cleanupExecutor)
+        .whenComplete((v, e) -> logCleanupError(e, "releasing tree", treeId));
+  }
+
+  private void removeSessionSource(String treeId) {
+    try {
+      treeManager.removeTreeSource(treeId);
+    } catch (Exception e) {
+      logCleanupError(e, "removing source of tree", treeId);
+    }
+  }
+
+  private void logCleanupError(Throwable e, String action, String treeId) {
+    if (e != null) {
+      log.warn("Exception {} {} of closed session: {}", action, treeId, e.getMessage());
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void sendResponse(Transaction transaction, Request<JsonObject> request, Object result)
+      throws IOException {
+
+    Response<JsonElement> response = (Response<JsonElement>) result;
+
+    if (response != null) {
+      response.setId(request.getId());
+      transaction.sendResponseObject(response);
+    } else {
+      transaction.sendVoidResponse();
+    }
+  }
+
+  private void sendError(Transaction transaction, Request<JsonObject> request, Throwable e)
+      throws IOException {
+
+    if (e instanceof CompletionException && e.getCause() != null) {
+      e = e.getCause();
+    }
+
+    log.error("Exception executing request {}", request, e);
+
+    if (e instanceof TreeException) {
+      e = new JsonRpcErrorException(2, e.getMessage());
+    }
+
+    transaction.sendError(e);
+  }
+
   public Response<JsonElement> createTree(Session session, Request<JsonObject> request)
       throws TreeException {
 
     String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class, true);
+
+    String sessionId = session.getSessionId();
+    sessionTrees.operationStarted(sessionId);
     try {
       if (treeId == null) {
         String newTreeId = treeManager.createTree();
+        checkTreeCreated(sessionId, newTreeId);
         return new Response<JsonElement>(null, new JsonPrimitive(newTreeId));
       } else {
         treeManager.createTree(treeId);
+        checkTreeCreated(sessionId, treeId);
         return null;
       }
     } catch (TreeException e) {
       e.printStackTrace();
       throw new JsonRpcErrorException(2, e.getMessage());
+    } finally {
+      sessionTrees.operationFinished(sessionId);
+    }
+  }
+
+  private void checkTreeCreated(String sessionId, String treeId) {
+    if (!sessionTrees.treeCreated(sessionId, treeId)) {
+      releaseClosedSessionTree(sessionId, treeId);
+      throw new TreeException("Session " + sessionId + " closed while creating a tree");
     }
   }
 
   public void releaseTree(Session session, Request<JsonObject> request) {
     try {
-      treeManager.releaseTree(JsonTreeUtils.getRequestParam(request, TREE_ID, String.class));
+      String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+      treeManager.releaseTree(treeId);
+      sessionTrees.treeReleased(treeId);
     } catch (TreeException e) {
       throw new JsonRpcErrorException(2, e.getMessage());
     }
   }
 
-  public Response<JsonElement> setTreeSource(Session session, Request<JsonObject> request) {
+  public CompletableFuture<Response<JsonElement>> setTreeSource(Session session,
+      Request<JsonObject> request) {
+
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    String offerSdp = JsonTreeUtils.getRequestParam(request, OFFER_SDP, String.class);
+
+    String sessionId = session.getSessionId();
+    sessionTrees.operationStarted(sessionId);
+
+    CompletableFuture<String> sdp;
     try {
-      String sdp = treeManager.setTreeSource(session,
-          JsonTreeUtils.getRequestParam(request, TREE_ID, String.class),
-          JsonTreeUtils.getRequestParam(request, OFFER_SDP, String.class));
+      if (asyncTreeManager != null) {
+        sdp = asyncTreeManager.setTreeSourceAsync(session, treeId, offerSdp);
+      } else {
+        sdp = CompletableFuture
+            .completedFuture(treeManager.setTreeSource(session, treeId, offerSdp));
+      }
+    } catch (RuntimeException e) {
+      sessionTrees.operationFinished(sessionId);
+      throw e;
+    }
+
+    return sdp.thenApply(answerSdp -> {
+      if (!sessionTrees.sourceSet(sessionId, treeId)) {
+        removeClosedSessionSource(sessionId, treeId);
+        throw new TreeException("Session " + sessionId + " closed while setting a source");
+      }
 
       JsonObject result = new JsonObject();
-      result.addProperty(ANSWER_SDP, sdp);
+      result.addProperty(ANSWER_SDP, answerSdp);
 
       return new Response<JsonElement>(null, result);
-
-    } catch (TreeException e) {
-      throw new JsonRpcErrorException(2, e.getMessage());
-    }
+    }).whenComplete((r, e) -> sessionTrees.operationFinished(sessionId));
   }
 
-  public Response<JsonElement> addTreeSink(Session session, Request<JsonObject> request) {
+  public CompletableFuture<Response<JsonElement>> addTreeSink(Session session,
+      Request<JsonObject> request) {
+
+    log.info("Session: id {} , regInfo {} , class {}", session.getSessionId(),
+        session.getRegisterInfo(), session.getClass().getName());
+
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    String offerSdp = JsonTreeUtils.getRequestParam(request, OFFER_SDP, String.class);
+
+    String sessionId = session.getSessionId();
+    sessionTrees.operationStarted(sessionId);
+
+    CompletableFuture<TreeEndpoint> endpoint;
     try {
-      log.info("Session: id {} , regInfo {} , class {}", session.getSessionId(),
-          session.getRegisterInfo(), session.getClass().getName());
-      TreeEndpoint endpoint = treeManager.addTreeSink(session,
-          JsonTreeUtils.getRequestParam(request, TREE_ID, String.class),
-          JsonTreeUtils.getRequestParam(request, OFFER_SDP, String.class));
+      if (asyncTreeManager != null) {
+        endpoint = asyncTreeManager.addTreeSinkAsync(session, treeId, offerSdp);
+      } else {
+        endpoint = CompletableFuture
+            .completedFuture(treeManager.addTreeSink(session, treeId, offerSdp));
+      }
+    } catch (RuntimeException e) {
+      sessionTrees.operationFinished(sessionId);
+      throw e;
+    }
+
+    return endpoint.thenApply(treeEndpoint -> {
+      if (!sessionTrees.sinkAdded(sessionId, treeId, treeEndpoint.getId())) {
+        removeClosedSessionSinks(sessionId, treeId,
+            Collections.singletonList(treeEndpoint.getId()));
+        throw new TreeException("Session " + sessionId + " closed while adding a sink");
+      }
 
       JsonObject result = new JsonObject();
-      result.addProperty(SINK_ID, endpoint.getId());
-      result.addProperty(ANSWER_SDP, endpoint.getSdp());
+      result.addProperty(SINK_ID, treeEndpoint.getId());
+      result.addProperty(ANSWER_SDP, treeEndpoint.getSdp());
 
       return new Response<JsonElement>(null, result);
+    }).whenComplete((r, e) -> sessionTrees.operationFinished(sessionId));
+  }
 
-    } catch (TreeException e) {
-      throw new JsonRpcErrorException(2, e.getMessage());
+  public CompletableFuture<Response<JsonElement>> addTreeSinks(Session session,
+      Request<JsonObject> request) {
+
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    List<String> offerSdps = JsonTreeUtils.getRequestStringList(request, OFFER_SDPS);
+
+    String sessionId = session.getSessionId();
+    sessionTrees.operationStarted(sessionId);
+
+    CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> endpoints;
+    try {
+      if (asyncTreeManager != null) {
+        endpoints = asyncTreeManager.addTreeSinksAsync(session, treeId, offerSdps);
+      } else {
+        endpoints = CompletableFuture
+            .completedFuture(treeManager.addTreeSinks(session, treeId, offerSdps));
+      }
+    } catch (RuntimeException e) {
+      sessionTrees.operationFinished(sessionId);
+      throw e;
+    }
+
+    return endpoints.thenApply(results -> {
+      List<String> orphanSinkIds = new ArrayList<>();
+      Response<JsonElement> response = createBatchResponse(results, (item, treeEndpoint) -> {
+        if (!sessionTrees.sinkAdded(sessionId, treeId, treeEndpoint.getId())) {
+          orphanSinkIds.add(treeEndpoint.getId());
+        }
+        item.addProperty(SINK_ID, treeEndpoint.getId());
+        item.addProperty(ANSWER_SDP, treeEndpoint.getSdp());
+      });
+      if (!orphanSinkIds.isEmpty()) {
+        removeClosedSessionSinks(sessionId, treeId, orphanSinkIds);
+        throw new TreeException("Session " + sessionId + " closed while adding sinks");
+      }
+      return response;
+    }).whenComplete((r, e) -> sessionTrees.operationFinished(sessionId));
+  }
+
+  public CompletableFuture<Response<JsonElement>> removeTreeSinks(Session session,
+      Request<JsonObject> request) {
+
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    List<String> sinkIds = JsonTreeUtils.getRequestStringList(request, SINK_IDS);
+
+    CompletableFuture<List<TreeBatchResult<Void>>> removals;
+    if (asyncTreeManager != null) {
+      removals = asyncTreeManager.removeTreeSinksAsync(treeId, sinkIds);
+    } else {
+      removals = CompletableFuture.completedFuture(treeManager.removeTreeSinks(treeId, sinkIds));
+    }
+
+    return removals.thenApply(results -> {
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i).isSuccess()) {
+          sessionTrees.sinkRemoved(treeId, sinkIds.get(i));
+        }
+      }
+      return createBatchResponse(results, (item, v) -> {
+      });
+    });
+  }
+
+  private <T> Response<JsonElement> createBatchResponse(List<TreeBatchResult<T>> results,
+      BiConsumer<JsonObject, T> valueWriter) {
+
+    JsonArray items = new JsonArray();
+    for (TreeBatchResult<T> result : results) {
+      JsonObject item = new JsonObject();
+      if (result.isSuccess()) {
+        valueWriter.accept(item, result.getValue());
+      } else {
+        item.addProperty(ERROR, result.getError());
+      }
+      items.add(item);
     }
+
+    JsonObject result = new JsonObject();
+    result.add(RESULTS, items);
+
+    return new Response<JsonElement>(null, result);
   }
 
   public void removeTreeSource(Session session, Request<JsonObject> request) {
     try {
-      treeManager.removeTreeSource(JsonTreeUtils.getRequestParam(request, TREE_ID, String.class));
+      String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+      treeManager.removeTreeSource(treeId);
+      sessionTrees.sourceRemoved(treeId);
 
     } catch (TreeException e) {
       throw new JsonRpcErrorException(2, e.getMessage());
     }
   }
 
-  public void removeTreeSink(Session session, Request<JsonObject> request) {
-    try {
-      treeManager.removeTreeSink(JsonTreeUtils.getRequestParam(request, TREE_ID, String.class),
-          JsonTreeUtils.getRequestParam(request, SINK_ID, String.class));
+  public CompletableFuture<Response<JsonElement>> removeTreeSink(Session session,
+      Request<JsonObject> request) {
 
-    } catch (TreeException e) {
-      throw new JsonRpcErrorException(2, e.getMessage());
+    String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
+    String sinkId = JsonTreeUtils.getRequestParam(request, SINK_ID, String.class);
+
+    if (asyncTreeManager != null) {
+      return asyncTreeManager.removeTreeSinkAsync(treeId, sinkId).thenApply(v -> {
+        sessionTrees.sinkRemoved(treeId, sinkId);
+        return null;
+      });
+    } else {
+      treeManager.removeTreeSink(treeId, sinkId);
+      sessionTrees.sinkRemoved(treeId, sinkId);
+      return CompletableFuture.completedFuture(null);
     }
   }
 
   public void addIceCandidate(Session session, Request<JsonObject> request) {
     try {
-      String candidate = JsonTreeUtils.getRequestParam(request, ICE_CANDIDATE, String.class);
-      String sdpMid = JsonTreeUtils.getRequestParam(request, ICE_SDP_MID, String.class);
-      int sdpMLineIndex = JsonTreeUtils.getRequestParam(request, ICE_SDP_M_LINE_INDEX,
-          Integer.class);
-      IceCandidate iceCandidate = new IceCandidate(candidate, sdpMid, sdpMLineIndex);
-      String treeId = JsonTreeUtils.getRequestParam(request, TREE_ID, String.class);
-      String sinkId = JsonTreeUtils.getRequestParam(request, SINK_ID, String.class, true);
+      // Sent for each candidate of each client, so params are read with the typed getters
+      JsonObject params = JsonTreeUtils.getRequestParams(request);
+      IceCandidate iceCandidate = JsonTreeUtils.getIceCandidate(params);
+      String treeId = JsonTreeUtils.getString(params, TREE_ID, false);
+      String sinkId = JsonTreeUtils.getString(params, SINK_ID, true);
 
       if (sinkId != null) {
         treeManager.addSinkIceCandidate(treeId, sinkId, iceCandidate);
@@ -189,4 +627,23 @@ public class ClientsJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
       throw new JsonRpcErrorException(2, e.getMessage());
     }
   }
+
+  public void addIceCandidates(Session session, Request<JsonObject> request) {
+    try {
+      List<IceCandidate> iceCandidates = JsonTreeUtils.getRequestIceCandidates(request,
+          ICE_CANDIDATES);
+      JsonObject params = JsonTreeUtils.getRequestParams(request);
+      String treeId = JsonTreeUtils.getString(params, TREE_ID, false);
+      String sinkId = JsonTreeUtils.getString(params, SINK_ID, true);
+
+      if (sinkId != null) {
+        treeManager.addSinkIceCandidates(treeId, sinkId, iceCandidates);
+      } else {
+        treeManager.addTreeIceCandidates(treeId, iceCandidates);
+      }
+
+    } catch (TreeException e) {
+      throw new JsonRpcErrorException(2, e.getMessage());
+    }
+  }
 }
@@ -18,8 +18,14 @@
 package org.kurento.tree.server.app;
 
 import static org.kurento.commons.PropertiesManager.getProperty;
+import static org.kurento.commons.PropertiesManager.getPropertyJson;
+import static org.kurento.commons.PropertiesManager.getPropertyOrException;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Properties;
 
 import org.kurento.commons.ConfigFileManager;
@@ -30,9 +36,14 @@ import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
 import org.kurento.tree.client.TreeException;
 import org.kurento.tree.server.kmsmanager.KmsManager;
 import org.kurento.tree.server.kmsmanager.MinWebRtcEpsKmsManager;
+import org.kurento.tree.server.kmsmanager.OrphanPipelineCollector;
 import org.kurento.tree.server.kmsmanager.RealElasticKmsManager;
+import org.kurento.tree.server.treemanager.AbstractNTreeTM;
+import org.kurento.tree.server.treemanager.ClusteredTreeManager;
+import org.kurento.tree.server.treemanager.IdleSinkEvictor;
 import org.kurento.tree.server.treemanager.LessLoadedElasticTM;
 import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+import org.kurento.tree.server.treemanager.TreeJournal;
 import org.kurento.tree.server.treemanager.TreeManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,6 +54,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Import;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
 @SpringBootApplication
@@ -74,6 +87,9 @@ public class KurentoTreeServerApp implements JsonRpcConfigurer {
 
   private static ConfigurableApplicationContext app;
 
+  // Created with the tree manager, so it is registered before the trees are recovered
+  private IdleSinkEvictor idleSinkEvictor;
+
   @Bean
   public KmsManager kmsManager() {
 
@@ -87,6 +103,18 @@ public class KurentoTreeServerApp implements JsonRpcConfigurer {
     }
   }
 
+  @Bean
+  public OrphanPipelineCollector orphanPipelineCollector() {
+    return new OrphanPipelineCollector(kmsManager());
+  }
+
+  @Bean
+  public IdleSinkEvictor idleSinkEvictor() {
+    treeManager();
+    idleSinkEvictor.setSessionTreeIndex(clientsJsonRpcHandler().getSessionTreeIndex());
+    return idleSinkEvictor;
+  }
+
   private String loadKmsUrl() {
     String kmsUrl = getProperty(KMS_URI_PROPERTY, KMS_URI_DEFAULT);
 
@@ -98,6 +126,48 @@ public class KurentoTreeServerApp implements JsonRpcConfigurer {
   @Bean
   public TreeManager treeManager() {
 
+    TreeManager treeManager = localTreeManager();
+
+    // Recovered sinks are watched like new ones, so the ones whose client is gone are evicted
+    idleSinkEvictor = new IdleSinkEvictor(treeManager);
+    kmsManager().addWebRtcListener(idleSinkEvictor);
+
+    String journalPath = getProperty(TreeJournal.PATH_PROPERTY, (String) null);
+    if (journalPath != null && treeManager instanceof AbstractNTreeTM) {
+      recoverFromJournal((AbstractNTreeTM) treeManager, journalPath);
+    }
+
+    List<String> members = loadClusterMembers();
+    if (members.isEmpty()) {
+      return treeManager;
+    }
+
+    return new ClusteredTreeManager(getPropertyOrException(ClusteredTreeManager.SELF_PROPERTY,
+        "The uri of this member is required in cluster mode"), members, treeManager);
+  }
+
+  private void recoverFromJournal(AbstractNTreeTM treeManager, String journalPath) {
+    try {
+      TreeJournal journal = new TreeJournal(Paths.get(journalPath));
+      treeManager.recover(journal);
+      treeManager.setJournal(journal);
+    } catch (IOException e) {
+      throw new TreeException(
+          "Exception opening tree journal " + journalPath + ": " + e.getMessage());
+    }
+  }
+
+  private List<String> loadClusterMembers() {
+    List<String> members = new ArrayList<>();
+    for (JsonElement member : getPropertyJson(ClusteredTreeManager.MEMBERS_PROPERTY, "[]",
+        JsonArray.class)) {
+      members.add(member.getAsString());
+    }
+    return members;
+  }
+
+  private TreeManager localTreeManager() {
+
     KmsManager kmsManager = kmsManager();
 
     switch (kmsMode) {
@@ -128,7 +198,12 @@ public class KurentoTreeServerApp implements JsonRpcConfigurer {
 
   @Bean
   public ClientsJsonRpcHandler clientsJsonRpcHandler() {
-    return new ClientsJsonRpcHandler(treeManager());
+    TreeManager treeManager = treeManager();
+    ClientsJsonRpcHandler handler = new ClientsJsonRpcHandler(treeManager);
+    if (treeManager instanceof ClusteredTreeManager) {
+      ((ClusteredTreeManager) treeManager).setSessionTreeIndex(handler.getSessionTreeIndex());
+    }
+    return handler;
   }
 
   public static ConfigurableApplicationContext start() {
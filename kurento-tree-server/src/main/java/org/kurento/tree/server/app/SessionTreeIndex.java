@@ -0,0 +1,303 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.app;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Index of the trees, sources and sinks requested by each client session, so they can be removed
+ * when the session is closed without the client removing them.
+ * <p>
+ * Sources and sinks are only known once they are negotiated, so a session is tracked while it has
+ * operations in progress. If it is closed in the meantime, {@link #treeCreated(String, String)},
+ * {@link #sourceSet(String, String)} and {@link #sinkAdded(String, String, String)} do not index
+ * the tree, source or sink and the caller has to remove it.
+ */
+public class SessionTreeIndex {
+
+  /**
+   * Trees, sources and sinks of a session. Sinks of trees created by the session are not included,
+   * because they are released with the tree.
+   */
+  public static class SessionTrees {
+
+    private final Set<String> createdTrees = new HashSet<>();
+    private final Set<String> sourceTrees = new HashSet<>();
+    private final Map<String, Set<String>> sinks = new HashMap<>();
+    private int pendingOperations;
+    private boolean closed;
+
+    public Set<String> getCreatedTrees() {
+      return createdTrees;
+    }
+
+    public Set<String> getSourceTrees() {
+      return sourceTrees;
+    }
+
+    public Map<String, Set<String>> getSinks() {
+      return sinks;
+    }
+
+    public boolean isEmpty() {
+      return createdTrees.isEmpty() && sourceTrees.isEmpty() && sinks.isEmpty()
+          && pendingOperations == 0;
+    }
+  }
+
+  private static class TreeOwners {
+
+    private String creator;
+    private String source;
+    private final Map<String, String> sinks = new LinkedHashMap<>();
+
+    private boolean isEmpty() {
+      return creator == null && source == null && sinks.isEmpty();
+    }
+  }
+
+  // Both maps are only modified with the lock of the tree in trees, so the
+  // entries of a tree in sessions are always consistent with its owners
+  private final ConcurrentHashMap<String, TreeOwners> trees = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, SessionTrees> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Indexes a tree created by a session.
+   *
+   * @return false if the session was closed while the tree was being created, so it is not indexed
+   */
+  public boolean treeCreated(String sessionId, String treeId) {
+    AtomicBoolean created = new AtomicBoolean();
+    trees.compute(treeId, (id, owners) -> {
+      owners = owners != null ? owners : new TreeOwners();
+      if (updateSession(sessionId, s -> s.createdTrees.add(treeId))) {
+        owners.creator = sessionId;
+        created.set(true);
+      }
+      return owners.isEmpty() ? null : owners;
+    });
+    return created.get();
+  }
+
+  public void treeReleased(String treeId) {
+    trees.computeIfPresent(treeId, (id, owners) -> {
+      if (owners.creator != null) {
+        updateSession(owners.creator, s -> s.createdTrees.remove(treeId));
+      }
+      if (owners.source != null) {
+        updateSession(owners.source, s -> s.sourceTrees.remove(treeId));
+      }
+      for (Map.Entry<String, String> sink : owners.sinks.entrySet()) {
+        updateSession(sink.getValue(), s -> removeSink(s, treeId, sink.getKey()));
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Indexes the source of a tree set by a session, which replaces the previous one if any.
+   *
+   * @return false if the session was closed while the source was being set, so it is not indexed
+   */
+  public boolean sourceSet(String sessionId, String treeId) {
+    AtomicBoolean set = new AtomicBoolean();
+    trees.compute(treeId, (id, owners) -> {
+      owners = owners != null ? owners : new TreeOwners();
+      if (owners.source != null && !owners.source.equals(sessionId)) {
+        updateSession(owners.source, s -> s.sourceTrees.remove(treeId));
+      }
+      owners.source = null;
+      if (updateSession(sessionId, s -> s.sourceTrees.add(treeId))) {
+        owners.source = sessionId;
+        set.set(true);
+      }
+      return owners.isEmpty() ? null : owners;
+    });
+    return set.get();
+  }
+
+  public void sourceRemoved(String treeId) {
+    trees.computeIfPresent(treeId, (id, owners) -> {
+      if (owners.source != null) {
+        updateSession(owners.source, s -> s.sourceTrees.remove(treeId));
+        owners.source = null;
+      }
+      return owners.isEmpty() ? null : owners;
+    });
+  }
+
+  /**
+   * Keeps track of a session while it creates a tree or adds a source or sinks, until
+   * {@link #operationFinished(String)}.
+   */
+  public void operationStarted(String sessionId) {
+    updateSession(sessionId, s -> s.pendingOperations++);
+  }
+
+  public void operationFinished(String sessionId) {
+    // Also closed sessions, which are removed once they have no pending operations
+    sessions.computeIfPresent(sessionId, (id, sessionTrees) -> {
+      synchronized (sessionTrees) {
+        sessionTrees.pendingOperations--;
+      }
+      return sessionTrees.isEmpty() ? null : sessionTrees;
+    });
+  }
+
+  /**
+   * Indexes a sink of a session.
+   *
+   * @return false if the session was closed while the sink was being added, so it is not indexed
+   */
+  public boolean sinkAdded(String sessionId, String treeId, String sinkId) {
+    AtomicBoolean added = new AtomicBoolean();
+    trees.compute(treeId, (id, owners) -> {
+      owners = owners != null ? owners : new TreeOwners();
+      if (updateSession(sessionId,
+          s -> s.sinks.computeIfAbsent(treeId, t -> new LinkedHashSet<>()).add(sinkId))) {
+        owners.sinks.put(sinkId, sessionId);
+        added.set(true);
+      }
+      return owners.isEmpty() ? null : owners;
+    });
+    return added.get();
+  }
+
+  public void sinkRemoved(String treeId, String sinkId) {
+    trees.computeIfPresent(treeId, (id, owners) -> {
+      String sessionId = owners.sinks.remove(sinkId);
+      if (sessionId != null) {
+        updateSession(sessionId, s -> removeSink(s, treeId, sinkId));
+      }
+      return owners.isEmpty() ? null : owners;
+    });
+  }
+
+  /**
+   * Removes a session from the index and returns its trees, sources and sinks, or null if it has
+   * none.
+   */
+  public SessionTrees removeSession(String sessionId) {
+
+    // A closed session with sinks being added is kept, without its trees, until they finish
+    AtomicReference<SessionTrees> removedRef = new AtomicReference<>();
+    sessions.computeIfPresent(sessionId, (id, sessionTrees) -> {
+      removedRef.set(sessionTrees);
+      synchronized (sessionTrees) {
+        if (sessionTrees.pendingOperations == 0) {
+          return null;
+        }
+        SessionTrees closedSession = new SessionTrees();
+        closedSession.pendingOperations = sessionTrees.pendingOperations;
+        closedSession.closed = true;
+        return closedSession;
+      }
+    });
+
+    SessionTrees removed = removedRef.get();
+    if (removed == null || removed.closed) {
+      return null;
+    }
+
+    SessionTrees result = new SessionTrees();
+    for (String treeId : snapshot(removed, removed.createdTrees)) {
+      trees.computeIfPresent(treeId, (id, owners) -> {
+        if (sessionId.equals(owners.creator)) {
+          owners.creator = null;
+          result.createdTrees.add(treeId);
+        }
+        return owners.isEmpty() ? null : owners;
+      });
+    }
+    for (String treeId : snapshot(removed, removed.sourceTrees)) {
+      trees.computeIfPresent(treeId, (id, owners) -> {
+        if (sessionId.equals(owners.source)) {
+          owners.source = null;
+          if (!result.createdTrees.contains(treeId)) {
+            result.sourceTrees.add(treeId);
+          }
+        }
+        return owners.isEmpty() ? null : owners;
+      });
+    }
+    for (String treeId : snapshot(removed, removed.sinks.keySet())) {
+      trees.computeIfPresent(treeId, (id, owners) -> {
+        owners.sinks.entrySet().removeIf(sink -> {
+          if (sessionId.equals(sink.getValue())) {
+            if (!result.createdTrees.contains(treeId)) {
+              result.sinks.computeIfAbsent(treeId, t -> new LinkedHashSet<>()).add(sink.getKey());
+            }
+            return true;
+          }
+          return false;
+        });
+        return owners.isEmpty() ? null : owners;
+      });
+    }
+
+    return result.isEmpty() ? null : result;
+  }
+
+  public int getNumSessions() {
+    return sessions.size();
+  }
+
+  private Set<String> snapshot(SessionTrees sessionTrees, Set<String> ids) {
+    synchronized (sessionTrees) {
+      return new HashSet<>(ids);
+    }
+  }
+
+  private void removeSink(SessionTrees sessionTrees, String treeId, String sinkId) {
+    Set<String> sinkIds = sessionTrees.sinks.get(treeId);
+    if (sinkIds != null) {
+      sinkIds.remove(sinkId);
+      if (sinkIds.isEmpty()) {
+        sessionTrees.sinks.remove(treeId);
+      }
+    }
+  }
+
+  /**
+   * Updates the trees of a session, creating them if needed, unless the session is closed.
+   *
+   * @return false if the session is closed and the update was not applied
+   */
+  private boolean updateSession(String sessionId, Consumer<SessionTrees> update) {
+    AtomicBoolean updated = new AtomicBoolean();
+    sessions.compute(sessionId, (id, sessionTrees) -> {
+      sessionTrees = sessionTrees != null ? sessionTrees : new SessionTrees();
+      synchronized (sessionTrees) {
+        if (!sessionTrees.closed) {
+          update.accept(sessionTrees);
+          updated.set(true);
+        }
+      }
+      return sessionTrees.isEmpty() ? null : sessionTrees;
+    });
+    return updated.get();
+  }
+}
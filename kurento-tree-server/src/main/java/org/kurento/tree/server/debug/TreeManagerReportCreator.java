@@ -24,6 +24,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.Session;
@@ -179,4 +180,18 @@ public class TreeManagerReportCreator implements TreeManager {
     includeOperation("addTreeIceCandidate(" + treeId + "," + iceCandidate.getCandidate() + ")");
   }
 
+  @Override
+  public void addSinkIceCandidates(String treeId, String sinkId,
+      List<IceCandidate> iceCandidates) {
+    treeManager.addSinkIceCandidates(treeId, sinkId, iceCandidates);
+    includeOperation(
+        "addSinkIceCandidates(" + treeId + "," + sinkId + "," + iceCandidates.size() + ")");
+  }
+
+  @Override
+  public void addTreeIceCandidates(String treeId, List<IceCandidate> iceCandidates) {
+    treeManager.addTreeIceCandidates(treeId, iceCandidates);
+    includeOperation("addTreeIceCandidates(" + treeId + "," + iceCandidates.size() + ")");
+  }
+
 }
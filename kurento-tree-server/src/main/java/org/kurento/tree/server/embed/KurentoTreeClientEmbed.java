@@ -33,7 +33,8 @@ public class KurentoTreeClientEmbed {
 
     TreeManager treeMgr = server.getBean(TreeManager.class);
 
-    JsonRpcClientLocal localClient = new JsonRpcClientLocal(new ClientsJsonRpcHandler(treeMgr));
+    JsonRpcClientLocal localClient = new JsonRpcClientLocal(
+        new ClientsJsonRpcHandler(treeMgr, false));
 
     return new KurentoTreeClient(localClient) {
       @Override
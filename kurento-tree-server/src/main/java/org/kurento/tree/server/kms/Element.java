@@ -18,11 +18,16 @@ package org.kurento.tree.server.kms;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Element extends KurentoObj {
 
+  private final String id = UUID.randomUUID().toString();
+
   private Pipeline pipeline;
-  private List<Element> sinks = new ArrayList<>();
+  // A source can have hundreds of sinks, disconnected one by one
+  private List<Element> sinks = new LinkedHashList<>();
   private Element source;
 
   public Element(Pipeline pipeline) {
@@ -30,6 +35,27 @@ public abstract class Element extends KurentoObj {
   }
 
   public void connect(Element element) {
+    connectInModel(element);
+  }
+
+  /**
+   * Connects the element in the model right away, and returns a future completed when it is
+   * connected in the media server.
+   */
+  public CompletableFuture<Void> connectAsync(Element element) {
+    connect(element);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Connects the element only in the model, as it is already connected in the media server, like
+   * the elements recovered from a previous execution of the server.
+   */
+  public void restoreConnection(Element element) {
+    connectInModel(element);
+  }
+
+  private void connectInModel(Element element) {
 
     checkReleased();
 
@@ -37,16 +63,25 @@ public abstract class Element extends KurentoObj {
       throw new RuntimeException("Elements from different pipelines can not be connected");
     }
 
+    // Connecting an element again does not change the model
+    if (element.source == this) {
+      return;
+    }
+
     this.sinks.add(element);
     element.setSource(this);
+
+    if (this.sinks.size() == 1) {
+      pipeline.sinksChanged(this, true);
+    }
   }
 
   public void disconnect() {
 
     checkReleased();
 
-    if (source != null) {
-      this.source.sinks.remove(this);
+    if (source != null && this.source.sinks.remove(this) && source.sinks.isEmpty()) {
+      source.pipeline.sinksChanged(source, false);
     }
     this.source = null;
   }
@@ -83,8 +118,12 @@ public abstract class Element extends KurentoObj {
     super.release();
   }
 
+  /**
+   * Returns the id of this object in the media server. Objects without one get a unique id, as
+   * labels are shared by the objects of a tree.
+   */
   public String getId() {
-    return getLabel();
+    return id;
   }
 
 }
@@ -17,16 +17,45 @@
 package org.kurento.tree.server.kms;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.kurento.tree.server.kms.loadmanager.LoadManager;
 import org.kurento.tree.server.kms.loadmanager.MaxWebRtcLoadManager;
 
 public class Kms extends KurentoObj {
 
-  protected List<Pipeline> pipelines = new ArrayList<>();
+  // Pipelines of different trees can be created and released concurrently
+  protected List<Pipeline> pipelines = new CopyOnWriteArrayList<>();
+  // Pooled pipelines, that exist in the media server but are not in pipelines
+  private final Set<Pipeline> detachedPipelines = ConcurrentHashMap.newKeySet();
   private LoadManager loadManager = new MaxWebRtcLoadManager(10000);
 
+  // Counters of elements in all pipelines of this kms, updated by pipelines
+  // when elements are created and removed, so load can be calculated
+  // without walking the pipelines
+  private final AtomicInteger numWebRtcs = new AtomicInteger();
+  private final AtomicInteger numPlumbers = new AtomicInteger();
+  private final AtomicInteger numSourceWebRtcs = new AtomicInteger();
+
+  // Memory used by the media server in KiB, or -1 if unknown
+  private volatile long usedMemory = -1;
+
+  // Cpus of the media server and percentage of them in use, or -1 if unknown
+  private volatile int cpuCount = -1;
+  private volatile double usedCpu = -1;
+
+  // Draining kmss are not selected for new elements, so they can be removed
+  // when their current elements are released
+  private volatile boolean draining;
+
+  private final List<KmsLoadListener> loadListeners = new CopyOnWriteArrayList<>();
+  private final List<WebRtcListener> webRtcListeners = new CopyOnWriteArrayList<>();
+
   public Kms() {
 
   }
@@ -41,18 +70,71 @@ public class Kms extends KurentoObj {
     return pipeline;
   }
 
+  /**
+   * Adds a pipeline to the model without waiting for its creation in the media server. Its
+   * elements should be created with {@link Pipeline#createWebRtcAsync} and
+   * {@link Pipeline#createPlumberAsync()}.
+   */
+  public Pipeline createPipelineAsync() {
+    Pipeline pipeline = newPipelineAsync();
+    pipelines.add(pipeline);
+    return pipeline;
+  }
+
+  /**
+   * Adds to the model a pipeline that exists in the media server, like the ones created by a
+   * previous execution of the server. Its elements have to be recovered with
+   * {@link Pipeline#recoverWebRtc} and {@link Pipeline#recoverPlumber(String)}.
+   *
+   * @return the pipeline, or null if it does not exist in the media server
+   */
+  public Pipeline recoverPipeline(String pipelineId) {
+    Pipeline pipeline = newRecoveredPipeline(pipelineId);
+    if (pipeline != null) {
+      pipelines.add(pipeline);
+    }
+    return pipeline;
+  }
+
+  /**
+   * Creates a pipeline that is not part of this kms (neither in its pipelines nor in its load) until
+   * it is attached with {@link #attachPipeline(Pipeline)}.
+   */
+  Pipeline createDetachedPipeline() {
+    Pipeline pipeline = newPipeline();
+    pipeline.detach();
+    detachedPipelines.add(pipeline);
+    return pipeline;
+  }
+
+  void attachPipeline(Pipeline pipeline) {
+    pipeline.attach();
+    pipelines.add(pipeline);
+    detachedPipelines.remove(pipeline);
+  }
+
   public List<Pipeline> getPipelines() {
     return pipelines;
   }
 
   public void setLoadManager(LoadManager loadManager) {
     this.loadManager = loadManager;
+    fireLoadChanged();
   }
 
   protected Pipeline newPipeline() {
     return new Pipeline(this);
   }
 
+  protected Pipeline newPipelineAsync() {
+    return newPipeline();
+  }
+
+  // This kms is not backed by a media server, so there is nothing to recover
+  protected Pipeline newRecoveredPipeline(String pipelineId) {
+    return null;
+  }
+
   public double getLoad() {
     return loadManager.calculateLoad(this);
   }
@@ -61,8 +143,170 @@ public class Kms extends KurentoObj {
     return loadManager.allowMoreElements(this);
   }
 
+  /**
+   * Releases a pipeline of the media server that is not part of the model, like the pipelines
+   * left by a previous execution of the server.
+   *
+   * @return true if the pipeline existed and has been released
+   */
+  public boolean releaseUnknownPipeline(String pipelineId) {
+    return false;
+  }
+
+  /**
+   * Returns the ids of the pipelines that exist in the media server, including the ones that are
+   * not part of the model. This kms is not backed by a media server, so they are the ids of its
+   * own pipelines.
+   */
+  public List<String> getServerPipelineIds() {
+    return new ArrayList<>(getPipelineIds());
+  }
+
+  /**
+   * Returns the ids of all the pipelines created by this kms that have not been released, including
+   * the pooled ones that are not yet in {@link #getPipelines()}.
+   */
+  public Set<String> getPipelineIds() {
+    Set<String> ids = new HashSet<>();
+    for (Pipeline pipeline : pipelines) {
+      ids.add(pipeline.getId());
+    }
+    for (Pipeline pipeline : detachedPipelines) {
+      ids.add(pipeline.getId());
+    }
+    return ids;
+  }
+
   void removePipeline(Pipeline pipeline) {
     this.pipelines.remove(pipeline);
+    this.detachedPipelines.remove(pipeline);
+  }
+
+  public int getNumWebRtcs() {
+    return numWebRtcs.get();
+  }
+
+  public int getNumPlumbers() {
+    return numPlumbers.get();
+  }
+
+  /**
+   * Returns the number of webrtcs with other elements connected to them, that is, the webrtcs
+   * publishing media. They are also included in {@link #getNumWebRtcs()}.
+   */
+  public int getNumSourceWebRtcs() {
+    return numSourceWebRtcs.get();
+  }
+
+  public long getUsedMemory() {
+    return usedMemory;
+  }
+
+  public void setUsedMemory(long usedMemory) {
+    this.usedMemory = usedMemory;
+    fireLoadChanged();
+  }
+
+  public int getCpuCount() {
+    return cpuCount;
+  }
+
+  public void setCpuCount(int cpuCount) {
+    this.cpuCount = cpuCount;
+  }
+
+  /**
+   * Returns the average usage of all the cpus of the media server, as a percentage, or -1 if
+   * unknown.
+   */
+  public double getUsedCpu() {
+    return usedCpu;
+  }
+
+  public void setUsedCpu(double usedCpu) {
+    this.usedCpu = usedCpu;
+    fireLoadChanged();
+  }
+
+  public boolean isDraining() {
+    return draining;
+  }
+
+  public void setDraining(boolean draining) {
+    this.draining = draining;
+  }
+
+  public int getNumElements() {
+    return numWebRtcs.get() + numPlumbers.get();
+  }
+
+  void webRtcAdded(WebRtc webRtc) {
+    numWebRtcs.incrementAndGet();
+    fireLoadChanged();
+    for (WebRtcListener listener : webRtcListeners) {
+      listener.webRtcAdded(webRtc);
+    }
+  }
+
+  void webRtcRemoved(WebRtc webRtc) {
+    numWebRtcs.decrementAndGet();
+    fireLoadChanged();
+    for (WebRtcListener listener : webRtcListeners) {
+      listener.webRtcRemoved(webRtc);
+    }
+  }
+
+  void fireMediaChanged(WebRtc webRtc) {
+    for (WebRtcListener listener : webRtcListeners) {
+      listener.mediaChanged(webRtc);
+    }
+  }
+
+  void sourceWebRtcAdded() {
+    numSourceWebRtcs.incrementAndGet();
+    fireLoadChanged();
+  }
+
+  void sourceWebRtcRemoved() {
+    numSourceWebRtcs.decrementAndGet();
+    fireLoadChanged();
+  }
+
+  void plumberAdded() {
+    numPlumbers.incrementAndGet();
+    fireLoadChanged();
+  }
+
+  void plumberRemoved() {
+    numPlumbers.decrementAndGet();
+    fireLoadChanged();
+  }
+
+  public void addLoadListener(KmsLoadListener listener) {
+    loadListeners.add(listener);
+  }
+
+  public void removeLoadListener(KmsLoadListener listener) {
+    loadListeners.remove(listener);
+  }
+
+  public void addWebRtcListener(WebRtcListener listener) {
+    webRtcListeners.add(listener);
+  }
+
+  public void removeWebRtcListener(WebRtcListener listener) {
+    webRtcListeners.remove(listener);
+  }
+
+  /**
+   * Notifies listeners that the value returned by {@link #getLoad()} may have changed. It is
+   * invoked when elements are created or removed, but it can also be invoked by load managers
+   * that take into account other information.
+   */
+  public void fireLoadChanged() {
+    for (KmsLoadListener listener : loadListeners) {
+      listener.loadChanged(this);
+    }
   }
 
   @Override
@@ -16,6 +16,8 @@
  */
 package org.kurento.tree.server.kms;
 
+import java.util.concurrent.CompletableFuture;
+
 public class KurentoObj {
 
   private String label;
@@ -40,6 +42,14 @@ public class KurentoObj {
     released = true;
   }
 
+  /**
+   * Returns a future completed once the object exists in the media server. Objects created
+   * asynchronously do not know their id until then.
+   */
+  public CompletableFuture<Void> whenCreated() {
+    return CompletableFuture.completedFuture(null);
+  }
+
   protected void checkReleased() {
     if (released) {
       throw new RuntimeException("Trying to execute an operation in a released element");
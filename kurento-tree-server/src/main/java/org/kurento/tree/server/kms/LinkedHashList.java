@@ -0,0 +1,282 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms;
+
+import java.util.AbstractSequentialList;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * List of distinct elements in insertion order, linked like a {@link java.util.LinkedList} and
+ * indexed by element, so adding, removing and looking up an element are O(1) and removing an
+ * element does not change the order of the rest.
+ * <p>
+ * Positional access walks the list from the nearest end, so the first element (like the input
+ * plumber of a pipeline) and the last one are obtained in O(1).
+ */
+final class LinkedHashList<E> extends AbstractSequentialList<E> {
+
+  private static final class Node<E> {
+
+    private E element;
+    private Node<E> prev;
+    private Node<E> next;
+
+    private Node(E element) {
+      this.element = element;
+    }
+  }
+
+  private final Map<Object, Node<E>> nodes = new HashMap<>();
+  private Node<E> first;
+  private Node<E> last;
+
+  /**
+   * Appends the element to the end of this list.
+   *
+   * @throws IllegalArgumentException
+   *           if the element is already in this list
+   */
+  @Override
+  public boolean add(E element) {
+    linkBefore(element, null);
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object element) {
+    Node<E> node = nodes.get(element);
+    if (node == null) {
+      return false;
+    }
+    unlink(node);
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object element) {
+    return nodes.containsKey(element);
+  }
+
+  @Override
+  public int indexOf(Object element) {
+    return contains(element) ? super.indexOf(element) : -1;
+  }
+
+  @Override
+  public int lastIndexOf(Object element) {
+    return indexOf(element);
+  }
+
+  @Override
+  public E get(int index) {
+    return node(index).element;
+  }
+
+  @Override
+  public int size() {
+    return nodes.size();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+
+  @Override
+  public void clear() {
+    nodes.clear();
+    first = null;
+    last = null;
+    modCount++;
+  }
+
+  @Override
+  public ListIterator<E> listIterator(int index) {
+    if (index < 0 || index > size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    return new Itr(index);
+  }
+
+  private Node<E> node(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    Node<E> node;
+    if (index < size() / 2) {
+      node = first;
+      for (int i = 0; i < index; i++) {
+        node = node.next;
+      }
+    } else {
+      node = last;
+      for (int i = size() - 1; i > index; i--) {
+        node = node.prev;
+      }
+    }
+    return node;
+  }
+
+  /**
+   * Links the element before the given node, or at the end if it is null.
+   */
+  private void linkBefore(E element, Node<E> succ) {
+    Node<E> node = new Node<>(element);
+    if (nodes.putIfAbsent(element, node) != null) {
+      throw new IllegalArgumentException("Element " + element + " is already in the list");
+    }
+    Node<E> pred = succ != null ? succ.prev : last;
+    node.prev = pred;
+    node.next = succ;
+    if (pred == null) {
+      first = node;
+    } else {
+      pred.next = node;
+    }
+    if (succ == null) {
+      last = node;
+    } else {
+      succ.prev = node;
+    }
+    modCount++;
+  }
+
+  private void unlink(Node<E> node) {
+    nodes.remove(node.element);
+    if (node.prev == null) {
+      first = node.next;
+    } else {
+      node.prev.next = node.next;
+    }
+    if (node.next == null) {
+      last = node.prev;
+    } else {
+      node.next.prev = node.prev;
+    }
+    modCount++;
+  }
+
+  private class Itr implements ListIterator<E> {
+
+    private Node<E> next;
+    private Node<E> lastReturned;
+    private int nextIndex;
+    private int expectedModCount = modCount;
+
+    private Itr(int index) {
+      this.next = index == size() ? null : node(index);
+      this.nextIndex = index;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return nextIndex < size();
+    }
+
+    @Override
+    public E next() {
+      checkForComodification();
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastReturned = next;
+      next = next.next;
+      nextIndex++;
+      return lastReturned.element;
+    }
+
+    @Override
+    public boolean hasPrevious() {
+      return nextIndex > 0;
+    }
+
+    @Override
+    public E previous() {
+      checkForComodification();
+      if (!hasPrevious()) {
+        throw new NoSuchElementException();
+      }
+      next = next == null ? last : next.prev;
+      lastReturned = next;
+      nextIndex--;
+      return lastReturned.element;
+    }
+
+    @Override
+    public int nextIndex() {
+      return nextIndex;
+    }
+
+    @Override
+    public int previousIndex() {
+      return nextIndex - 1;
+    }
+
+    @Override
+    public void remove() {
+      checkForComodification();
+      if (lastReturned == null) {
+        throw new IllegalStateException();
+      }
+      Node<E> lastNext = lastReturned.next;
+      unlink(lastReturned);
+      if (next == lastReturned) {
+        next = lastNext;
+      } else {
+        nextIndex--;
+      }
+      lastReturned = null;
+      expectedModCount = modCount;
+    }
+
+    @Override
+    public void set(E element) {
+      checkForComodification();
+      if (lastReturned == null) {
+        throw new IllegalStateException();
+      }
+      Node<E> node = nodes.get(element);
+      if (node != null && node != lastReturned) {
+        throw new IllegalArgumentException("Element " + element + " is already in the list");
+      }
+      if (node == null) {
+        nodes.remove(lastReturned.element);
+        nodes.put(element, lastReturned);
+      }
+      lastReturned.element = element;
+    }
+
+    @Override
+    public void add(E element) {
+      checkForComodification();
+      linkBefore(element, next);
+      nextIndex++;
+      lastReturned = null;
+      expectedModCount = modCount;
+    }
+
+    private void checkForComodification() {
+      if (modCount != expectedModCount) {
+        throw new ConcurrentModificationException();
+      }
+    }
+  }
+}
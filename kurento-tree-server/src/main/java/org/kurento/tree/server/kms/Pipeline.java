@@ -16,19 +16,26 @@
  */
 package org.kurento.tree.server.kms;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
 
 import org.kurento.tree.server.app.TreeElementSession;
 
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 
 public class Pipeline extends KurentoObj {
 
+  private final String id = UUID.randomUUID().toString();
+
   protected Kms kms;
-  protected List<WebRtc> webRtcs = new ArrayList<>();
-  protected List<Plumber> plumbers = new ArrayList<>();
+  // Elements are removed one by one when sinks leave, so removal is O(1)
+  protected List<WebRtc> webRtcs = new LinkedHashList<>();
+  protected List<Plumber> plumbers = new LinkedHashList<>();
+
+  // Pooled pipelines are not taken into account in kms counters until they
+  // are attached
+  private boolean attached = true;
 
   public Pipeline(Kms kms) {
     this.kms = kms;
@@ -42,8 +49,25 @@ public class Pipeline extends KurentoObj {
 
     checkReleased();
 
-    WebRtc webRtc = newWebRtc(session);
+    return addWebRtc(newWebRtc(session));
+  }
+
+  /**
+   * Adds a webrtc to the model without waiting for its creation in the media server. Its
+   * operations are chained to {@link #whenCreated()}.
+   */
+  public WebRtc createWebRtcAsync(TreeElementSession session) {
+
+    checkReleased();
+
+    return addWebRtc(newWebRtcAsync(session));
+  }
+
+  private WebRtc addWebRtc(WebRtc webRtc) {
     webRtcs.add(webRtc);
+    if (attached) {
+      kms.webRtcAdded(webRtc);
+    }
     return webRtc;
   }
 
@@ -51,8 +75,68 @@ public class Pipeline extends KurentoObj {
 
     checkReleased();
 
-    Plumber plumber = newPlumber();
+    return addPlumber(newPlumber());
+  }
+
+  /**
+   * Adds a plumber to the model without waiting for its creation in the media server.
+   */
+  public Plumber createPlumberAsync() {
+
+    checkReleased();
+
+    return addPlumber(newPlumberAsync());
+  }
+
+  private Plumber addPlumber(Plumber plumber) {
     plumbers.add(plumber);
+    if (attached) {
+      kms.plumberAdded();
+    }
+    return plumber;
+  }
+
+  /**
+   * Adds to the model a webrtc that exists in the media server, like the ones created by a previous
+   * execution of the server.
+   *
+   * @return the webrtc, or null if it does not exist in the media server
+   */
+  public WebRtc recoverWebRtc(String webRtcId, TreeElementSession session) {
+
+    checkReleased();
+
+    WebRtc webRtc = newRecoveredWebRtc(webRtcId, session);
+    if (webRtc != null) {
+      webRtc.setRecovered();
+      webRtcs.add(webRtc);
+      if (attached) {
+        kms.webRtcAdded(webRtc);
+      }
+      // After notifying it, so listeners get the changes
+      webRtc.recoverMediaState();
+    }
+    return webRtc;
+  }
+
+  /**
+   * Adds to the model a plumber that exists in the media server. Its connections and links have to
+   * be restored with {@link Element#restoreConnection(Element)} and
+   * {@link Plumber#restoreLink(Plumber)}.
+   *
+   * @return the plumber, or null if it does not exist in the media server
+   */
+  public Plumber recoverPlumber(String plumberId) {
+
+    checkReleased();
+
+    Plumber plumber = newRecoveredPlumber(plumberId);
+    if (plumber != null) {
+      plumbers.add(plumber);
+      if (attached) {
+        kms.plumberAdded();
+      }
+    }
     return plumber;
   }
 
@@ -93,7 +177,7 @@ public class Pipeline extends KurentoObj {
 
     checkReleased();
 
-    return new WebRtc(this);
+    return new WebRtc(this, session);
   }
 
   protected Plumber newPlumber() {
@@ -103,12 +187,72 @@ public class Pipeline extends KurentoObj {
     return new Plumber(this);
   }
 
+  protected WebRtc newWebRtcAsync(TreeElementSession session) {
+    return newWebRtc(session);
+  }
+
+  protected Plumber newPlumberAsync() {
+    return newPlumber();
+  }
+
+  // This pipeline is not backed by a media server, so there is nothing to recover
+  protected WebRtc newRecoveredWebRtc(String webRtcId, TreeElementSession session) {
+    return null;
+  }
+
+  protected Plumber newRecoveredPlumber(String plumberId) {
+    return null;
+  }
+
   void removeElement(Element element) {
 
     checkReleased();
 
-    this.webRtcs.remove(element);
-    this.plumbers.remove(element);
+    if (this.webRtcs.remove(element)) {
+      if (attached) {
+        kms.webRtcRemoved((WebRtc) element);
+      }
+    } else if (this.plumbers.remove(element)) {
+      if (attached) {
+        kms.plumberRemoved();
+      }
+    }
+  }
+
+  // Webrtcs with sinks are sources of media in this kms
+  void sinksChanged(Element element, boolean hasSinks) {
+    if (attached && element instanceof WebRtc) {
+      if (hasSinks) {
+        kms.sourceWebRtcAdded();
+      } else {
+        kms.sourceWebRtcRemoved();
+      }
+    }
+  }
+
+  void detach() {
+    this.attached = false;
+  }
+
+  void attach() {
+    this.attached = true;
+    for (WebRtc webRtc : webRtcs) {
+      kms.webRtcAdded(webRtc);
+      if (!webRtc.getSinks().isEmpty()) {
+        kms.sourceWebRtcAdded();
+      }
+    }
+    for (int i = 0; i < plumbers.size(); i++) {
+      kms.plumberAdded();
+    }
+  }
+
+  /**
+   * Returns the id of this object in the media server. Objects without one get a unique id, as
+   * labels are shared by the objects of a tree.
+   */
+  public String getId() {
+    return id;
   }
 
   @Override
@@ -119,10 +263,9 @@ public class Pipeline extends KurentoObj {
   @Override
   public void release() {
 
-    Iterator<Element> it = getElements().iterator();
-    while (it.hasNext()) {
-      Element element = it.next();
-      it.remove();
+    // Elements remove themselves from the pipeline (updating kms counters)
+    // when released
+    for (Element element : Lists.newArrayList(getElements())) {
       element.release();
     }
 
@@ -0,0 +1,246 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms;
+
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.kurento.commons.PropertiesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps, for each kms, a number of pipelines created in background with an input plumber connected
+ * to some output plumbers, so they can be used to extend a tree to that kms without waiting for
+ * the media server to create them. Idle pipelines are not taken into account in the kms load.
+ * <p>
+ * When the number of idle pipelines of a kms falls to the low watermark, the pool is filled up
+ * to the high watermark. Idle pipelines above the low watermark are released after the idle
+ * timeout.
+ */
+public class PipelinePool {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelinePool.class);
+
+  public static final int LOW_WATERMARK = PropertiesManager.getProperty("kms.pool.lowWatermark",
+      0);
+
+  public static final int HIGH_WATERMARK = PropertiesManager
+      .getProperty("kms.pool.highWatermark", 0);
+
+  public static final long IDLE_TIMEOUT = PropertiesManager.getProperty("kms.pool.idleTimeout",
+      60000);
+
+  private static class IdlePipeline {
+
+    private final Pipeline pipeline;
+    private final long since = System.currentTimeMillis();
+
+    public IdlePipeline(Pipeline pipeline) {
+      this.pipeline = pipeline;
+    }
+  }
+
+  private static class KmsPool {
+
+    private final Deque<IdlePipeline> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicBoolean filling = new AtomicBoolean();
+    private volatile boolean removed;
+  }
+
+  private final int numOutputPlumbers;
+  private final int lowWatermark;
+  private final int highWatermark;
+  private final long idleTimeout;
+
+  private final ConcurrentMap<Kms, KmsPool> pools = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+
+  public PipelinePool(int numOutputPlumbers) {
+    this(numOutputPlumbers, LOW_WATERMARK, HIGH_WATERMARK, IDLE_TIMEOUT);
+  }
+
+  public PipelinePool(int numOutputPlumbers, int lowWatermark, int highWatermark,
+      long idleTimeout) {
+
+    if (lowWatermark > highWatermark) {
+      throw new IllegalArgumentException("Low watermark " + lowWatermark
+          + " can not be greater than high watermark " + highWatermark);
+    }
+
+    this.numOutputPlumbers = numOutputPlumbers;
+    this.lowWatermark = lowWatermark;
+    this.highWatermark = highWatermark;
+    this.idleTimeout = idleTimeout;
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "pipeline-pool");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    executor.scheduleWithFixedDelay(this::releaseIdlePipelines, idleTimeout, idleTimeout,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Starts filling the pool of the given kms. Kmss are also added the first time a pipeline is
+   * requested for them.
+   */
+  public void addKms(Kms kms) {
+    fill(kms, getKmsPool(kms));
+  }
+
+  public void removeKms(Kms kms) {
+    KmsPool pool = pools.remove(kms);
+    if (pool != null) {
+      pool.removed = true;
+      executor.execute(() -> releaseAll(pool));
+    }
+  }
+
+  /**
+   * Returns an idle pipeline of the given kms, or null if there is none. The returned pipeline is
+   * attached to the kms and has an input plumber (the first one) connected to the output plumbers.
+   */
+  public Pipeline acquirePipeline(Kms kms) {
+
+    KmsPool pool = getKmsPool(kms);
+    // Newest pipelines are used first so the oldest ones can be released
+    IdlePipeline idlePipeline = pool.idle.pollFirst();
+
+    if (pool.idle.size() <= lowWatermark) {
+      fill(kms, pool);
+    }
+
+    if (idlePipeline == null) {
+      log.debug("No idle pipeline in kms {}", kms);
+      return null;
+    }
+
+    kms.attachPipeline(idlePipeline.pipeline);
+    return idlePipeline.pipeline;
+  }
+
+  public int getNumOutputPlumbers() {
+    return numOutputPlumbers;
+  }
+
+  public int getNumIdlePipelines(Kms kms) {
+    KmsPool pool = pools.get(kms);
+    return pool != null ? pool.idle.size() : 0;
+  }
+
+  public void close() {
+    executor.shutdownNow();
+    for (KmsPool pool : pools.values()) {
+      pool.removed = true;
+      releaseAll(pool);
+    }
+    pools.clear();
+  }
+
+  private KmsPool getKmsPool(Kms kms) {
+    return pools.computeIfAbsent(kms, k -> {
+      KmsPool pool = new KmsPool();
+      fill(k, pool);
+      return pool;
+    });
+  }
+
+  private void fill(Kms kms, KmsPool pool) {
+
+    if (!pool.filling.compareAndSet(false, true)) {
+      return;
+    }
+
+    executor.execute(() -> {
+      try {
+        while (!pool.removed && pool.idle.size() < highWatermark) {
+          pool.idle.addFirst(new IdlePipeline(createIdlePipeline(kms)));
+        }
+      } catch (Exception e) {
+        log.warn("Exception creating idle pipeline in kms {}", kms, e);
+      } finally {
+        pool.filling.set(false);
+      }
+
+      if (pool.removed) {
+        releaseAll(pool);
+      } else if (pool.idle.size() <= lowWatermark) {
+        // Pipelines acquired while this task was finishing
+        fill(kms, pool);
+      }
+    });
+  }
+
+  private Pipeline createIdlePipeline(Kms kms) {
+
+    Pipeline pipeline = kms.createDetachedPipeline();
+
+    Plumber inputPlumber = pipeline.createPlumber();
+    for (int i = 0; i < numOutputPlumbers; i++) {
+      inputPlumber.connect(pipeline.createPlumber());
+    }
+
+    log.debug("Created idle pipeline in kms {}", kms);
+    return pipeline;
+  }
+
+  private void releaseIdlePipelines() {
+
+    long now = System.currentTimeMillis();
+
+    for (KmsPool pool : pools.values()) {
+
+      // Older pipelines are at the end of the deque
+      Iterator<IdlePipeline> it = pool.idle.descendingIterator();
+      while (it.hasNext() && pool.idle.size() > lowWatermark) {
+        IdlePipeline idlePipeline = it.next();
+        if (now - idlePipeline.since < idleTimeout) {
+          break;
+        }
+        if (pool.idle.removeLastOccurrence(idlePipeline)) {
+          release(idlePipeline.pipeline);
+        }
+      }
+    }
+  }
+
+  private void releaseAll(KmsPool pool) {
+    IdlePipeline idlePipeline;
+    while ((idlePipeline = pool.idle.pollFirst()) != null) {
+      release(idlePipeline.pipeline);
+    }
+  }
+
+  private void release(Pipeline pipeline) {
+    try {
+      pipeline.release();
+    } catch (Exception e) {
+      log.warn("Exception releasing idle pipeline", e);
+    }
+  }
+
+}
@@ -16,6 +16,8 @@
  */
 package org.kurento.tree.server.kms;
 
+import java.util.concurrent.CompletableFuture;
+
 public class Plumber extends Element {
 
   private Plumber linkedTo;
@@ -25,6 +27,27 @@ public class Plumber extends Element {
   }
 
   public void link(Plumber plumber) {
+    linkInModel(plumber);
+  }
+
+  /**
+   * Links the plumber in the model right away, and returns a future completed when it is linked
+   * in the media servers.
+   */
+  public CompletableFuture<Void> linkAsync(Plumber plumber) {
+    link(plumber);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /**
+   * Links the plumber only in the model, as it is already linked in the media servers, like the
+   * plumbers recovered from a previous execution of the server.
+   */
+  public void restoreLink(Plumber plumber) {
+    linkInModel(plumber);
+  }
+
+  private void linkInModel(Plumber plumber) {
     if (plumber.getPipeline().getKms() == this.getPipeline().getKms()) {
       throw new RuntimeException("Two plumbers of the same Kms can not be linked");
     }
@@ -16,21 +16,111 @@
  */
 package org.kurento.tree.server.kms;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.kurento.client.IceCandidate;
+import org.kurento.tree.server.app.TreeElementSession;
 
 public class WebRtc extends Element {
 
+  private final TreeElementSession session;
+
+  // Updated by the media server events, if any
+  private volatile boolean mediaConnected;
+  private volatile boolean mediaFlowing;
+  private volatile boolean recovered;
+
   protected WebRtc(Pipeline pipeline) {
+    this(pipeline, null);
+  }
+
+  protected WebRtc(Pipeline pipeline, TreeElementSession session) {
     super(pipeline);
+    this.session = session;
+  }
+
+  /**
+   * Returns the session of the client using this webrtc, or null if it has no client.
+   */
+  public TreeElementSession getSession() {
+    return session;
+  }
+
+  /**
+   * Returns true if this webrtc was created by a previous execution of the server, so its client,
+   * if any, is no longer known.
+   */
+  public boolean isRecovered() {
+    return recovered;
+  }
+
+  void setRecovered() {
+    this.recovered = true;
+  }
+
+  public boolean isSink() {
+    return session != null && session.getSinkId() != null;
+  }
+
+  /**
+   * Returns true if the client is connected, that is, the media server is receiving RTCP packets
+   * from it.
+   */
+  public boolean isMediaConnected() {
+    return mediaConnected;
+  }
+
+  /**
+   * Returns true if media is being sent to the client.
+   */
+  public boolean isMediaFlowing() {
+    return mediaFlowing;
+  }
+
+  public void setMediaConnected(boolean mediaConnected) {
+    if (this.mediaConnected != mediaConnected) {
+      this.mediaConnected = mediaConnected;
+      fireMediaChanged();
+    }
+  }
+
+  public void setMediaFlowing(boolean mediaFlowing) {
+    if (this.mediaFlowing != mediaFlowing) {
+      this.mediaFlowing = mediaFlowing;
+      fireMediaChanged();
+    }
+  }
+
+  /**
+   * Loads the media state of a webrtc recovered from the media server, whose previous events have
+   * been lost.
+   */
+  protected void recoverMediaState() {
+  }
+
+  private void fireMediaChanged() {
+    // Events of the media server can arrive after the release
+    if (!released) {
+      getPipeline().getKms().fireMediaChanged(this);
+    }
   }
 
   public String processSdpOffer(String sdpOffer) {
     return "fakeSdpResponse";
   }
 
+  public CompletableFuture<String> processSdpOfferAsync(String sdpOffer) {
+    return CompletableFuture.completedFuture(processSdpOffer(sdpOffer));
+  }
+
   public void gatherCandidates() {
   }
 
+  public CompletableFuture<Void> gatherCandidatesAsync() {
+    gatherCandidates();
+    return CompletableFuture.completedFuture(null);
+  }
+
   public void addIceCandidate(IceCandidate candidate) {
   }
 
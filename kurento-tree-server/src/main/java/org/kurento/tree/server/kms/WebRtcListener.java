@@ -0,0 +1,35 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms;
+
+/**
+ * Receives the changes of the webrtcs of a kms. Pooled pipelines have no webrtcs, so all the
+ * webrtcs are part of the kms load when they are notified.
+ */
+public interface WebRtcListener {
+
+  public void webRtcAdded(WebRtc webRtc);
+
+  public void webRtcRemoved(WebRtc webRtc);
+
+  /**
+   * Invoked when the values returned by {@link WebRtc#isMediaConnected()} or
+   * {@link WebRtc#isMediaFlowing()} change.
+   */
+  public void mediaChanged(WebRtc webRtc);
+
+}
@@ -0,0 +1,246 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.fake;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.kurento.commons.exception.KurentoException;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.KurentoObj;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Kms not backed by a media server that behaves like a remote one: operations take the latencies of
+ * its {@link FakeKmsConfig}, fail with its error rates and can crash the kms. Blocking operations
+ * sleep in the calling thread and asynchronous ones complete in another thread, like the calls of
+ * kurento-client do.
+ *
+ * <p>
+ * A crashed kms loses its pipelines and fails every operation until it is back. Its webrtcs are
+ * disconnected, but they are kept in the model until the tree manager releases them.
+ */
+public class FakeKms extends Kms {
+
+  private static final Logger log = LoggerFactory.getLogger(FakeKms.class);
+
+  private static final ScheduledExecutorService executor = Executors
+      .newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "fake-kms");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final FakeKmsConfig config;
+
+  private static final AtomicLong pipelineCounter = new AtomicLong();
+
+  // Pipelines that exist in the fake media server. They are lost when it crashes
+  private final Set<String> serverPipelineIds = ConcurrentHashMap.newKeySet();
+  // Webrtcs are tracked here so a crash can disconnect them while the pipelines are being changed
+  private final Set<FakeWebRtc> webRtcs = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean crashed;
+  private final AtomicLong injectedErrors = new AtomicLong();
+  private final AtomicLong crashes = new AtomicLong();
+
+  public FakeKms() {
+    this(FakeKmsConfig.fromConfig());
+  }
+
+  public FakeKms(FakeKmsConfig config) {
+    this.config = config;
+  }
+
+  public FakeKmsConfig getConfig() {
+    return config;
+  }
+
+  @Override
+  protected Pipeline newPipeline() {
+    execute(Operation.CREATE_PIPELINE);
+    FakePipeline pipeline = new FakePipeline(this,
+        "fakePipeline" + pipelineCounter.incrementAndGet());
+    serverPipelineIds.add(pipeline.getId());
+    return pipeline;
+  }
+
+  @Override
+  public List<String> getServerPipelineIds() {
+    if (crashed) {
+      throw new KurentoException("Kms " + getLabel() + " is down");
+    }
+    return new ArrayList<>(serverPipelineIds);
+  }
+
+  @Override
+  public boolean releaseUnknownPipeline(String pipelineId) {
+    return !crashed && serverPipelineIds.remove(pipelineId);
+  }
+
+  /**
+   * Makes the kms fail every operation, as if the media server had died. It is back after the
+   * crash duration of the configuration, if any.
+   */
+  public void crash() {
+
+    log.warn("Crashing fake kms {}", getLabel());
+
+    crashed = true;
+    crashes.incrementAndGet();
+    serverPipelineIds.clear();
+
+    for (WebRtc webRtc : webRtcs) {
+      webRtc.setMediaConnected(false);
+      webRtc.setMediaFlowing(false);
+    }
+
+    if (config.getCrashDuration() > 0) {
+      executor.schedule(this::recover, config.getCrashDuration(), TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Brings a crashed kms back, without the pipelines it had.
+   */
+  public void recover() {
+    log.info("Fake kms {} is back", getLabel());
+    crashed = false;
+  }
+
+  public boolean isCrashed() {
+    return crashed;
+  }
+
+  public long getInjectedErrors() {
+    return injectedErrors.get();
+  }
+
+  public long getCrashes() {
+    return crashes.get();
+  }
+
+  void webRtcCreated(FakeWebRtc webRtc) {
+    webRtcs.add(webRtc);
+  }
+
+  void webRtcReleased(FakeWebRtc webRtc) {
+    webRtcs.remove(webRtc);
+  }
+
+  /**
+   * Executes an operation in the calling thread, waiting for its latency.
+   */
+  void execute(Operation operation) {
+    checkAvailable(operation);
+    long latency = config.sampleLatency(operation, ThreadLocalRandom.current());
+    if (latency > 0) {
+      try {
+        Thread.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new KurentoException("Interrupted while executing " + operation);
+      }
+    }
+    checkError(operation);
+  }
+
+  /**
+   * Executes an operation asynchronously, completing the returned future with the given result
+   * after its latency.
+   */
+  <T> CompletableFuture<T> executeAsync(Operation operation, Supplier<T> result) {
+
+    CompletableFuture<T> future = new CompletableFuture<>();
+    Runnable completion = () -> {
+      try {
+        checkError(operation);
+        future.complete(result.get());
+      } catch (RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    };
+
+    try {
+      checkAvailable(operation);
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+      return future;
+    }
+
+    long latency = config.sampleLatency(operation, ThreadLocalRandom.current());
+    if (latency > 0) {
+      executor.schedule(completion, latency, TimeUnit.MILLISECONDS);
+    } else {
+      completion.run();
+    }
+    return future;
+  }
+
+  /**
+   * Releases an object in the fake media server without blocking, as releases are asynchronous in
+   * the real kmss.
+   */
+  void releaseInServer(KurentoObj obj, String pipelineId) {
+    executeAsync(Operation.RELEASE, () -> {
+      if (pipelineId != null) {
+        serverPipelineIds.remove(pipelineId);
+      }
+      return null;
+    }).whenComplete((result, cause) -> {
+      if (cause != null) {
+        log.warn("Exception releasing {} in fake kms {}: {}", obj.getLabel(), getLabel(),
+            cause.getMessage());
+      }
+    });
+  }
+
+  private void checkAvailable(Operation operation) {
+    if (!crashed && config.getCrashRate() > 0
+        && ThreadLocalRandom.current().nextDouble() < config.getCrashRate()) {
+      crash();
+    }
+    if (crashed) {
+      throw new KurentoException("Kms " + getLabel() + " is down executing " + operation);
+    }
+  }
+
+  private void checkError(Operation operation) {
+    if (crashed) {
+      throw new KurentoException("Kms " + getLabel() + " is down executing " + operation);
+    }
+    double errorRate = config.getErrorRate(operation);
+    if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+      injectedErrors.incrementAndGet();
+      throw new KurentoException("Injected error executing " + operation + " in kms "
+          + getLabel());
+    }
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.fake;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.kurento.commons.PropertiesManager;
+
+/**
+ * Latencies, error rates and crashes injected by a {@link FakeKms}. By default operations have no
+ * latency and never fail, like a plain {@link org.kurento.tree.server.kms.Kms}.
+ */
+public class FakeKmsConfig {
+
+  public enum Operation {
+    CREATE_PIPELINE("createPipeline"), CREATE_ENDPOINT("createEndpoint"), PROCESS_OFFER(
+        "processOffer"), GATHER_CANDIDATES("gatherCandidates"), LINK("link"), RELEASE("release");
+
+    private final String propertyName;
+
+    private Operation(String propertyName) {
+      this.propertyName = propertyName;
+    }
+
+    public String getPropertyName() {
+      return propertyName;
+    }
+  }
+
+  public enum LatencyDistribution {
+    FIXED, EXPONENTIAL, LOGNORMAL
+  }
+
+  private final Map<Operation, Long> latencies = new EnumMap<>(Operation.class);
+  private final Map<Operation, Double> errorRates = new EnumMap<>(Operation.class);
+  private LatencyDistribution latencyDistribution = LatencyDistribution.LOGNORMAL;
+  private double latencySigma = 0.5;
+  private double crashRate;
+  private long crashDuration;
+
+  /**
+   * Reads the configuration from properties kms.fake.&lt;operation&gt;.latency (mean milliseconds)
+   * and kms.fake.&lt;operation&gt;.errorRate for each operation, and kms.fake.latencyDistribution,
+   * kms.fake.latencySigma, kms.fake.crashRate and kms.fake.crashDuration.
+   */
+  public static FakeKmsConfig fromConfig() {
+    FakeKmsConfig config = new FakeKmsConfig();
+    for (Operation operation : Operation.values()) {
+      String prefix = "kms.fake." + operation.getPropertyName();
+      config.setLatency(operation, PropertiesManager.getProperty(prefix + ".latency", 0L));
+      config.setErrorRate(operation, PropertiesManager.getProperty(prefix + ".errorRate", 0.0));
+    }
+    config.setLatencyDistribution(PropertiesManager.getProperty("kms.fake.latencyDistribution",
+        LatencyDistribution.LOGNORMAL));
+    config.setLatencySigma(PropertiesManager.getProperty("kms.fake.latencySigma", 0.5));
+    config.setCrashRate(PropertiesManager.getProperty("kms.fake.crashRate", 0.0));
+    config.setCrashDuration(PropertiesManager.getProperty("kms.fake.crashDuration", 0L));
+    return config;
+  }
+
+  /**
+   * Sets the mean latency of an operation in milliseconds.
+   */
+  public void setLatency(Operation operation, long meanLatency) {
+    latencies.put(operation, meanLatency);
+  }
+
+  public long getLatency(Operation operation) {
+    return latencies.getOrDefault(operation, 0L);
+  }
+
+  /**
+   * Sets the probability of an operation failing, between 0 and 1.
+   */
+  public void setErrorRate(Operation operation, double errorRate) {
+    errorRates.put(operation, errorRate);
+  }
+
+  public double getErrorRate(Operation operation) {
+    return errorRates.getOrDefault(operation, 0.0);
+  }
+
+  public void setLatencyDistribution(LatencyDistribution latencyDistribution) {
+    this.latencyDistribution = latencyDistribution;
+  }
+
+  public LatencyDistribution getLatencyDistribution() {
+    return latencyDistribution;
+  }
+
+  /**
+   * Standard deviation of the underlying normal distribution when latencies are log-normal. Greater
+   * values give a longer tail.
+   */
+  public void setLatencySigma(double latencySigma) {
+    this.latencySigma = latencySigma;
+  }
+
+  public double getLatencySigma() {
+    return latencySigma;
+  }
+
+  /**
+   * Sets the probability of the kms crashing in each operation, between 0 and 1.
+   */
+  public void setCrashRate(double crashRate) {
+    this.crashRate = crashRate;
+  }
+
+  public double getCrashRate() {
+    return crashRate;
+  }
+
+  /**
+   * Sets the milliseconds a crashed kms takes to be back, or 0 if it stays crashed.
+   */
+  public void setCrashDuration(long crashDuration) {
+    this.crashDuration = crashDuration;
+  }
+
+  public long getCrashDuration() {
+    return crashDuration;
+  }
+
+  /**
+   * Returns a random latency in milliseconds for the given operation.
+   */
+  public long sampleLatency(Operation operation, Random random) {
+    long mean = getLatency(operation);
+    if (mean <= 0) {
+      return 0;
+    }
+    switch (latencyDistribution) {
+      case EXPONENTIAL:
+        return Math.round(-Math.log(1 - random.nextDouble()) * mean);
+      case LOGNORMAL:
+        double mu = Math.log(mean) - latencySigma * latencySigma / 2;
+        return Math.round(Math.exp(mu + latencySigma * random.nextGaussian()));
+      default:
+        return mean;
+    }
+  }
+}
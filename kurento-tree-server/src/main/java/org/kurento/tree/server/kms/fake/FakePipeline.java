@@ -0,0 +1,63 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.fake;
+
+import org.kurento.tree.server.app.TreeElementSession;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.Plumber;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+
+public class FakePipeline extends Pipeline {
+
+  private final String id;
+
+  public FakePipeline(FakeKms kms, String id) {
+    super(kms);
+    this.id = id;
+  }
+
+  @Override
+  public FakeKms getKms() {
+    return (FakeKms) kms;
+  }
+
+  @Override
+  protected WebRtc newWebRtc(TreeElementSession session) {
+    getKms().execute(Operation.CREATE_ENDPOINT);
+    FakeWebRtc webRtc = new FakeWebRtc(this, session);
+    getKms().webRtcCreated(webRtc);
+    return webRtc;
+  }
+
+  @Override
+  protected Plumber newPlumber() {
+    getKms().execute(Operation.CREATE_ENDPOINT);
+    return new FakePlumber(this);
+  }
+
+  @Override
+  public void release() {
+    super.release();
+    getKms().releaseInServer(this, id);
+  }
+
+  @Override
+  public String getId() {
+    return id;
+  }
+}
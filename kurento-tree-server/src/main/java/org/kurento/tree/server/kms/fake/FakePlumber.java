@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.fake;
+
+import org.kurento.tree.server.kms.Plumber;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+
+public class FakePlumber extends Plumber {
+
+  public FakePlumber(FakePipeline pipeline) {
+    super(pipeline);
+  }
+
+  private FakeKms getKms() {
+    return (FakeKms) getPipeline().getKms();
+  }
+
+  @Override
+  public void link(Plumber plumber) {
+    getKms().execute(Operation.LINK);
+    super.link(plumber);
+  }
+
+  @Override
+  public void release() {
+    FakeKms kms = getKms();
+    super.release();
+    kms.releaseInServer(this, null);
+  }
+}
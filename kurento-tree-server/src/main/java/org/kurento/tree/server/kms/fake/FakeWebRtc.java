@@ -0,0 +1,77 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.fake;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.kurento.tree.server.app.TreeElementSession;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+
+/**
+ * Webrtc whose client connects and receives media as soon as its candidates are gathered.
+ */
+public class FakeWebRtc extends WebRtc {
+
+  private static final String SDP_ANSWER = "fakeSdpResponse";
+
+  public FakeWebRtc(FakePipeline pipeline, TreeElementSession session) {
+    super(pipeline, session);
+  }
+
+  private FakeKms getKms() {
+    return (FakeKms) getPipeline().getKms();
+  }
+
+  @Override
+  public String processSdpOffer(String sdpOffer) {
+    getKms().execute(Operation.PROCESS_OFFER);
+    return SDP_ANSWER;
+  }
+
+  @Override
+  public CompletableFuture<String> processSdpOfferAsync(String sdpOffer) {
+    return getKms().executeAsync(Operation.PROCESS_OFFER, () -> SDP_ANSWER);
+  }
+
+  @Override
+  public void gatherCandidates() {
+    getKms().execute(Operation.GATHER_CANDIDATES);
+    connectMedia();
+  }
+
+  @Override
+  public CompletableFuture<Void> gatherCandidatesAsync() {
+    return getKms().executeAsync(Operation.GATHER_CANDIDATES, () -> {
+      connectMedia();
+      return null;
+    });
+  }
+
+  private void connectMedia() {
+    setMediaConnected(true);
+    setMediaFlowing(true);
+  }
+
+  @Override
+  public void release() {
+    FakeKms kms = getKms();
+    super.release();
+    kms.webRtcReleased(this);
+    kms.releaseInServer(this, null);
+  }
+}
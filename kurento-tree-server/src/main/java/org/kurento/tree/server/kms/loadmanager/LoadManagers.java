@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.loadmanager;
+
+import org.kurento.commons.PropertiesManager;
+
+/**
+ * Creates the load manager of kmss as configured in property {@value #LOAD_MODEL_PROPERTY}.
+ */
+public class LoadManagers {
+
+  public static final String LOAD_MODEL_PROPERTY = "kms.loadModel";
+
+  public enum LoadModel {
+    MAX_WEBRTC, WEIGHTED
+  }
+
+  public static final LoadModel LOAD_MODEL = PropertiesManager.getProperty(LOAD_MODEL_PROPERTY,
+      LoadModel.MAX_WEBRTC);
+
+  public static final double SOURCE_WEIGHT = PropertiesManager
+      .getProperty("kms.load.sourceWeight", 1.0);
+
+  public static final double SINK_WEIGHT = PropertiesManager.getProperty("kms.load.sinkWeight",
+      1.0);
+
+  // KiB of memory used by a kms at full load, 0 to not consider memory
+  public static final long MAX_MEMORY = PropertiesManager.getProperty("kms.load.maxMemory", 0L);
+
+  // Percentage of the cpus used by a kms at full load, 0 to not consider cpu
+  public static final double MAX_CPU = PropertiesManager.getProperty("kms.load.maxCpu", 0.0);
+
+  private LoadManagers() {
+  }
+
+  public static LoadManager create(int maxWebRtcPerKms, double plumberLoadWeight) {
+
+    switch (LOAD_MODEL) {
+      case WEIGHTED:
+        return new WeightedLoadManager(maxWebRtcPerKms, SOURCE_WEIGHT, SINK_WEIGHT,
+            plumberLoadWeight, MAX_MEMORY, MAX_CPU);
+      default:
+        return new MaxWebRtcLoadManager(maxWebRtcPerKms, plumberLoadWeight);
+    }
+  }
+
+  /**
+   * Returns true if the configured load managers need the memory or cpu used by kmss, so they have
+   * to be polled with a {@link org.kurento.tree.server.kms.real.KmsStatsPoller}.
+   */
+  public static boolean areStatsUsed() {
+    return LOAD_MODEL == LoadModel.WEIGHTED && (MAX_MEMORY > 0 || MAX_CPU > 0);
+  }
+}
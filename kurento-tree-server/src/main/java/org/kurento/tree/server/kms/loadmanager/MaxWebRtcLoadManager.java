@@ -17,19 +17,29 @@
 package org.kurento.tree.server.kms.loadmanager;
 
 import org.kurento.tree.server.kms.Kms;
-import org.kurento.tree.server.kms.Pipeline;
 
 public class MaxWebRtcLoadManager implements LoadManager {
 
   private int maxWebRtcPerKms;
+  private double plumberLoadWeight;
 
   public MaxWebRtcLoadManager(int maxWebRtcPerKms) {
+    this(maxWebRtcPerKms, 1);
+  }
+
+  /**
+   * @param plumberLoadWeight
+   *          load of each plumber relative to a WebRtcEndpoint. Plumbers cheaper than a
+   *          WebRtcEndpoint (as rtp ones) allow more elements per kms.
+   */
+  public MaxWebRtcLoadManager(int maxWebRtcPerKms, double plumberLoadWeight) {
     this.maxWebRtcPerKms = maxWebRtcPerKms;
+    this.plumberLoadWeight = plumberLoadWeight;
   }
 
   @Override
   public double calculateLoad(Kms kms) {
-    int numWebRtcs = countWebRtcEndpoints(kms);
+    double numWebRtcs = countWebRtcEndpoints(kms);
     if (numWebRtcs > maxWebRtcPerKms) {
       return 1;
     } else {
@@ -37,13 +47,8 @@ public class MaxWebRtcLoadManager implements LoadManager {
     }
   }
 
-  private int countWebRtcEndpoints(Kms kms) {
-    int numWebRtcs = 0;
-    for (Pipeline pipeline : kms.getPipelines()) {
-      numWebRtcs += pipeline.getWebRtcs().size();
-      numWebRtcs += pipeline.getPlumbers().size();
-    }
-    return numWebRtcs;
+  private double countWebRtcEndpoints(Kms kms) {
+    return kms.getNumWebRtcs() + plumberLoadWeight * kms.getNumPlumbers();
   }
 
   @Override
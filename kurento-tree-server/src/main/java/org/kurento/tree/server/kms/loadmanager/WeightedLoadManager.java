@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.loadmanager;
+
+import org.kurento.tree.server.kms.Kms;
+
+/**
+ * Calculates the load of a kms adding a weight for each element depending on its type: webrtcs
+ * publishing media (sources), webrtcs only receiving media (sinks) and plumbers. If a maximum
+ * memory or cpu is given, the memory or cpu used by the kms is also taken into account, and the
+ * load is the highest of them.
+ */
+public class WeightedLoadManager implements LoadManager {
+
+  private double maxLoadPoints;
+  private double sourceWeight;
+  private double sinkWeight;
+  private double plumberWeight;
+  private long maxMemory;
+  private double maxCpu;
+
+  public WeightedLoadManager(double maxLoadPoints, double sourceWeight, double sinkWeight,
+      double plumberWeight) {
+    this(maxLoadPoints, sourceWeight, sinkWeight, plumberWeight, 0);
+  }
+
+  /**
+   * @param maxMemory
+   *          memory in KiB that a kms can use at full load, or 0 to not consider memory
+   */
+  public WeightedLoadManager(double maxLoadPoints, double sourceWeight, double sinkWeight,
+      double plumberWeight, long maxMemory) {
+    this(maxLoadPoints, sourceWeight, sinkWeight, plumberWeight, maxMemory, 0);
+  }
+
+  /**
+   * @param maxMemory
+   *          memory in KiB that a kms can use at full load, or 0 to not consider memory
+   * @param maxCpu
+   *          percentage of the cpus of a kms that it can use at full load, or 0 to not consider
+   *          cpu
+   */
+  public WeightedLoadManager(double maxLoadPoints, double sourceWeight, double sinkWeight,
+      double plumberWeight, long maxMemory, double maxCpu) {
+    this.maxLoadPoints = maxLoadPoints;
+    this.sourceWeight = sourceWeight;
+    this.sinkWeight = sinkWeight;
+    this.plumberWeight = plumberWeight;
+    this.maxMemory = maxMemory;
+    this.maxCpu = maxCpu;
+  }
+
+  @Override
+  public double calculateLoad(Kms kms) {
+    return Math.min(1, calculateRawLoad(kms));
+  }
+
+  @Override
+  public boolean allowMoreElements(Kms kms) {
+    return calculateRawLoad(kms) < 1;
+  }
+
+  private double calculateRawLoad(Kms kms) {
+
+    double load = calculateLoadPoints(kms) / maxLoadPoints;
+
+    long usedMemory = kms.getUsedMemory();
+    if (maxMemory > 0 && usedMemory >= 0) {
+      load = Math.max(load, usedMemory / (double) maxMemory);
+    }
+
+    double usedCpu = kms.getUsedCpu();
+    if (maxCpu > 0 && usedCpu >= 0) {
+      load = Math.max(load, usedCpu / maxCpu);
+    }
+
+    return load;
+  }
+
+  public double calculateLoadPoints(Kms kms) {
+    int numSources = kms.getNumSourceWebRtcs();
+    int numSinks = kms.getNumWebRtcs() - numSources;
+    return sourceWeight * numSources + sinkWeight * numSinks
+        + plumberWeight * kms.getNumPlumbers();
+  }
+
+}
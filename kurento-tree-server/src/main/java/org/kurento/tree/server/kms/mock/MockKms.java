@@ -0,0 +1,146 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.mock;
+
+import static org.kurento.commons.PropertiesManager.getProperty;
+
+import java.io.Closeable;
+
+import org.kurento.commons.ConfigFileManager;
+import org.kurento.jsonrpc.internal.server.config.JsonRpcConfiguration;
+import org.kurento.jsonrpc.server.JsonRpcConfigurer;
+import org.kurento.jsonrpc.server.JsonRpcHandlerRegistry;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.Banner;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.env.Environment;
+import org.springframework.web.socket.config.annotation.EnableWebSocket;
+
+/**
+ * In-process stand-in of a Kurento Media Server. It listens for kurento-client connections in
+ * ws://localhost:&lt;port&gt;/kurento, so the real kms classes and kurento-client itself can be
+ * tested and profiled without media servers. Latencies and error rates are read from the
+ * kms.fake.* properties of {@link FakeKmsConfig}.
+ *
+ * <p>
+ * It can also be started alone, listening in port kms.mock.port (8888 by default), to run a tree
+ * server against it with kms.url.
+ */
+public class MockKms implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(MockKms.class);
+
+  public static final String PORT_PROPERTY = "kms.mock.port";
+  public static final int PORT_DEFAULT = 8888;
+
+  public static final String PATH_PROPERTY = "kms.mock.path";
+  public static final String PATH_DEFAULT = "kurento";
+
+  @Configuration
+  @EnableAutoConfiguration
+  @Import(JsonRpcConfiguration.class)
+  @EnableWebSocket
+  public static class MockKmsApp implements JsonRpcConfigurer {
+
+    @Autowired
+    private MockKmsJsonRpcHandler handler;
+
+    @Autowired
+    private Environment environment;
+
+    @Override
+    public void registerJsonRpcHandlers(JsonRpcHandlerRegistry registry) {
+      registry.addHandler(handler, environment.getProperty(PATH_PROPERTY, PATH_DEFAULT));
+    }
+  }
+
+  private final MockKmsJsonRpcHandler handler;
+
+  private ConfigurableApplicationContext context;
+  private String uri;
+
+  public MockKms() {
+    this(FakeKmsConfig.fromConfig());
+  }
+
+  public MockKms(FakeKmsConfig config) {
+    this.handler = new MockKmsJsonRpcHandler(config);
+  }
+
+  /**
+   * Starts listening in a free port.
+   */
+  public MockKms start() {
+    return start(0);
+  }
+
+  public synchronized MockKms start(int port) {
+
+    if (context != null) {
+      throw new IllegalStateException("Mock kms already started in " + uri);
+    }
+
+    String path = getProperty(PATH_PROPERTY, PATH_DEFAULT);
+
+    SpringApplication application = new SpringApplication(MockKmsApp.class);
+    application.setBannerMode(Banner.Mode.OFF);
+    application.addInitializers(
+        ctx -> ctx.getBeanFactory().registerSingleton("mockKmsJsonRpcHandler", handler));
+
+    // Arguments override application.properties, where ssl is enabled for the tree server. Kmss
+    // are usually connected without ssl
+    context = application.run("--server.port=" + port, "--server.ssl.enabled=false",
+        "--spring.jmx.enabled=false", "--" + PATH_PROPERTY + "=" + path);
+
+    int localPort = ((EmbeddedWebApplicationContext) context).getEmbeddedServletContainer()
+        .getPort();
+    uri = "ws://localhost:" + localPort + "/" + path;
+
+    log.info("Mock kms listening in {}", uri);
+
+    return this;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public MockKmsJsonRpcHandler getHandler() {
+    return handler;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (context != null) {
+      context.close();
+      context = null;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    ConfigFileManager.loadConfigFile("kurento-tree.conf.json");
+    new MockKms().start(getProperty(PORT_PROPERTY, PORT_DEFAULT));
+  }
+}
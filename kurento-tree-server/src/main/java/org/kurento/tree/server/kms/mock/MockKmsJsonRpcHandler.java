@@ -0,0 +1,480 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.DefaultJsonRpcHandler;
+import org.kurento.jsonrpc.JsonRpcErrorException;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+import org.kurento.tree.server.kms.mock.MockMediaObject.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Implements the part of the JSON-RPC protocol of Kurento Media Server used by kurento-client:
+ * create, invoke, subscribe, unsubscribe, release and describe requests, and onEvent notifications.
+ * No media is processed. WebRtcEndpoints gather a fixed number of ICE candidates and report their
+ * media as connected and flowing once the candidates are gathered.
+ *
+ * <p>
+ * Requests are answered after the latencies of a {@link FakeKmsConfig} and fail with its error
+ * rates. Crashes are not simulated; closing the {@link MockKms} has the same effect on its clients.
+ */
+public class MockKmsJsonRpcHandler extends DefaultJsonRpcHandler<JsonObject> {
+
+  private static final Logger log = LoggerFactory.getLogger(MockKmsJsonRpcHandler.class);
+
+  public static final String SERVER_MANAGER_ID = "manager_ServerManager";
+
+  public static final int UNEXPECTED_ERROR = 40001;
+  public static final int OBJECT_NOT_FOUND = 40101;
+  public static final int METHOD_NOT_FOUND = 40105;
+  public static final int ILLEGAL_PARAM = 40107;
+
+  private static final String PIPELINE_TYPE = "MediaPipeline";
+  private static final String WEBRTC_TYPE = "WebRtcEndpoint";
+
+  private static final String ON_EVENT_METHOD = "onEvent";
+
+  private static final ScheduledExecutorService executor = Executors
+      .newScheduledThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread(r, "mock-kms");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final FakeKmsConfig config;
+  private final int numIceCandidates = PropertiesManager.getProperty("kms.mock.iceCandidates", 2);
+
+  private final Map<String, MockMediaObject> objects = new ConcurrentHashMap<>();
+  private final MockMediaObject serverManager = new MockMediaObject(SERVER_MANAGER_ID,
+      "ServerManager", null);
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong injectedErrors = new AtomicLong();
+
+  public MockKmsJsonRpcHandler(FakeKmsConfig config) {
+    this.config = config;
+  }
+
+  @Override
+  public void handleRequest(Transaction transaction, Request<JsonObject> request) throws Exception {
+
+    requests.incrementAndGet();
+
+    Operation operation = getOperation(request);
+    long latency = operation != null
+        ? config.sampleLatency(operation, ThreadLocalRandom.current()) : 0;
+
+    if (latency > 0) {
+      transaction.startAsync();
+      executor.schedule(() -> process(transaction, request, operation), latency,
+          TimeUnit.MILLISECONDS);
+    } else {
+      process(transaction, request, operation);
+    }
+  }
+
+  @Override
+  public void afterConnectionClosed(Session session, String status) throws Exception {
+    // Like in a real kms, the objects of a client are kept after it disconnects
+    for (MockMediaObject object : objects.values()) {
+      object.unsubscribeAll(session);
+    }
+  }
+
+  public int getNumObjects() {
+    return objects.size();
+  }
+
+  public List<String> getPipelineIds() {
+    List<String> ids = new ArrayList<>();
+    for (MockMediaObject object : objects.values()) {
+      if (object.isPipeline()) {
+        ids.add(object.getId());
+      }
+    }
+    return ids;
+  }
+
+  public long getRequests() {
+    return requests.get();
+  }
+
+  public long getInjectedErrors() {
+    return injectedErrors.get();
+  }
+
+  private void process(Transaction transaction, Request<JsonObject> request, Operation operation) {
+
+    List<Runnable> events = new ArrayList<>();
+
+    try {
+
+      double errorRate = operation != null ? config.getErrorRate(operation) : 0;
+      if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+        injectedErrors.incrementAndGet();
+        throw new JsonRpcErrorException(UNEXPECTED_ERROR,
+            "Injected error executing " + operation);
+      }
+
+      JsonElement value = execute(transaction.getSession(), request, events);
+
+      JsonObject result = new JsonObject();
+      if (value != null) {
+        result.add("value", value);
+      }
+      transaction.sendResponse(result);
+
+    } catch (JsonRpcErrorException e) {
+      log.debug("Error processing request {}: {}", request, e.getMessage());
+      sendError(transaction, e);
+      return;
+    } catch (Exception e) {
+      log.warn("Exception processing request {}", request, e);
+      sendError(transaction, new JsonRpcErrorException(UNEXPECTED_ERROR, e.getMessage()));
+      return;
+    }
+
+    for (Runnable event : events) {
+      event.run();
+    }
+  }
+
+  private JsonElement execute(Session session, Request<JsonObject> request, List<Runnable> events) {
+
+    JsonObject params = request.getParams() != null ? request.getParams() : new JsonObject();
+
+    switch (request.getMethod()) {
+      case "create":
+        return new JsonPrimitive(create(params));
+      case "invoke":
+        return invoke(getObject(params), getString(params, "operation"),
+            params.has("operationParams") ? params.getAsJsonObject("operationParams")
+                : new JsonObject(),
+            events);
+      case "subscribe":
+        return new JsonPrimitive(subscribe(session, getObject(params), getString(params, "type")));
+      case "unsubscribe":
+        if (!getObject(params).unsubscribe(getString(params, "subscription"))) {
+          throw new JsonRpcErrorException(ILLEGAL_PARAM,
+              "Subscription " + getString(params, "subscription") + " not found");
+        }
+        return null;
+      case "release":
+        release(getObject(params));
+        return null;
+      case "describe":
+        return describe(getObject(params));
+      default:
+        throw new JsonRpcErrorException(METHOD_NOT_FOUND,
+            "Unknown request with method '" + request.getMethod() + "'");
+    }
+  }
+
+  private String create(JsonObject params) {
+
+    String type = getString(params, "type");
+    String id = UUID.randomUUID() + "_kurento." + type;
+
+    if (PIPELINE_TYPE.equals(type)) {
+      objects.put(id, new MockMediaObject(id, type, null));
+    } else {
+      JsonObject constructorParams = params.getAsJsonObject("constructorParams");
+      if (constructorParams == null || !constructorParams.has("mediaPipeline")) {
+        throw new JsonRpcErrorException(ILLEGAL_PARAM, "Element " + type + " without pipeline");
+      }
+      MockMediaObject pipeline = getObject(constructorParams.get("mediaPipeline").getAsString());
+      id = pipeline.getId() + "/" + id;
+      objects.put(id, new MockMediaObject(id, type, pipeline.getId()));
+    }
+
+    log.debug("Created {}", id);
+    return id;
+  }
+
+  private JsonElement invoke(MockMediaObject object, String operation, JsonObject params,
+      List<Runnable> events) {
+
+    if (SERVER_MANAGER_ID.equals(object.getId())) {
+      return invokeServerManager(operation);
+    }
+
+    switch (operation) {
+      case "getName":
+        return new JsonPrimitive(object.getName());
+      case "setName":
+        object.setName(getString(params, "name"));
+        return null;
+      case "getMediaPipeline":
+        return new JsonPrimitive(object.isPipeline() ? object.getId() : object.getPipelineId());
+      case "getChildren":
+        JsonArray children = new JsonArray();
+        for (MockMediaObject child : objects.values()) {
+          if (object.getId().equals(child.getPipelineId())) {
+            children.add(child.getId());
+          }
+        }
+        return children;
+      case "connect":
+        MockMediaObject sink = getObject(getString(params, "sink"));
+        if (object.isPipeline() || !object.getPipelineId().equals(sink.getPipelineId())) {
+          throw new JsonRpcErrorException(ILLEGAL_PARAM,
+              "Objects " + object.getId() + " and " + sink.getId() + " can not be connected");
+        }
+        return null;
+      case "processOffer":
+      case "processAnswer":
+      case "generateOffer":
+        // The sdps are not parsed, any offer gets the same answer
+        return new JsonPrimitive(createSdp(object));
+      case "gatherCandidates":
+        events.add(() -> gatherCandidates(object));
+        return null;
+      case "getMediaState":
+        return new JsonPrimitive(object.isMediaFlowing() ? "CONNECTED" : "DISCONNECTED");
+      case "isMediaFlowingOut":
+        return new JsonPrimitive(object.isMediaFlowing());
+      default:
+        // Other setters and calls without result (addIceCandidate, disconnect...) are accepted
+        if (operation.startsWith("get")) {
+          throw new JsonRpcErrorException(METHOD_NOT_FOUND,
+              "Unknown operation " + operation + " in object " + object.getType());
+        }
+        return null;
+    }
+  }
+
+  private JsonElement invokeServerManager(String operation) {
+    switch (operation) {
+      case "getPipelines":
+        JsonArray pipelines = new JsonArray();
+        for (String id : getPipelineIds()) {
+          pipelines.add(id);
+        }
+        return pipelines;
+      case "getSessions":
+        return new JsonArray();
+      case "getUsedMemory":
+        // Kbytes, growing with the number of objects like in a real kms
+        return new JsonPrimitive(100_000L + 1_000L * objects.size());
+      case "getCpuCount":
+        return new JsonPrimitive(Runtime.getRuntime().availableProcessors());
+      case "getUsedCpu":
+        return new JsonPrimitive(0.0f);
+      default:
+        throw new JsonRpcErrorException(METHOD_NOT_FOUND,
+            "Unknown operation " + operation + " in ServerManager");
+    }
+  }
+
+  private String subscribe(Session session, MockMediaObject object, String type) {
+    Subscription subscription = new Subscription(UUID.randomUUID().toString(), type, session);
+    object.subscribe(subscription);
+    return subscription.getId();
+  }
+
+  private void release(MockMediaObject object) {
+    if (SERVER_MANAGER_ID.equals(object.getId())) {
+      throw new JsonRpcErrorException(ILLEGAL_PARAM, "ServerManager can not be released");
+    }
+    objects.remove(object.getId());
+    if (object.isPipeline()) {
+      objects.values().removeIf(element -> object.getId().equals(element.getPipelineId()));
+    }
+    log.debug("Released {}", object.getId());
+  }
+
+  private JsonElement describe(MockMediaObject object) {
+    JsonObject description = new JsonObject();
+    description.addProperty("type", object.getType());
+    description.addProperty("qualifiedType", "kurento." + object.getType());
+    JsonArray hierarchy = new JsonArray();
+    if (!object.isPipeline() && !SERVER_MANAGER_ID.equals(object.getId())) {
+      hierarchy.add("kurento.MediaElement");
+    }
+    hierarchy.add("kurento.MediaObject");
+    description.add("hierarchy", hierarchy);
+    return description;
+  }
+
+  private void gatherCandidates(MockMediaObject object) {
+
+    for (int i = 0; i < numIceCandidates; i++) {
+      JsonObject candidate = new JsonObject();
+      candidate.addProperty("__module__", "kurento");
+      candidate.addProperty("__type__", "IceCandidate");
+      candidate.addProperty("candidate", "candidate:" + (i + 1) + " 1 UDP 2013266431 127.0.0.1 "
+          + (50000 + i) + " typ host");
+      candidate.addProperty("sdpMid", i % 2 == 0 ? "audio" : "video");
+      candidate.addProperty("sdpMLineIndex", i % 2);
+
+      JsonObject data = new JsonObject();
+      data.add("candidate", candidate);
+      sendEvent(object, "IceCandidateFound", data);
+      sendEvent(object, "OnIceCandidate", data);
+    }
+
+    sendEvent(object, "IceGatheringDone", new JsonObject());
+    sendEvent(object, "OnIceGatheringDone", new JsonObject());
+
+    object.setMediaFlowing(true);
+
+    JsonObject mediaState = new JsonObject();
+    mediaState.addProperty("oldState", "DISCONNECTED");
+    mediaState.addProperty("newState", "CONNECTED");
+    sendEvent(object, "MediaStateChanged", mediaState);
+
+    for (String mediaType : new String[] { "AUDIO", "VIDEO" }) {
+      JsonObject flowState = new JsonObject();
+      flowState.addProperty("state", "FLOWING");
+      flowState.addProperty("padName", "default");
+      flowState.addProperty("mediaType", mediaType);
+      sendEvent(object, "MediaFlowOutStateChange", flowState);
+    }
+  }
+
+  private void sendEvent(MockMediaObject object, String type, JsonObject eventData) {
+
+    for (Subscription subscription : object.getSubscriptions()) {
+
+      if (!subscription.getType().equals(type)) {
+        continue;
+      }
+
+      JsonObject data = new JsonObject();
+      for (Entry<String, JsonElement> property : eventData.entrySet()) {
+        data.add(property.getKey(), property.getValue());
+      }
+      data.addProperty("source", object.getId());
+      data.addProperty("type", type);
+      data.addProperty("timestamp", Long.toString(System.currentTimeMillis() / 1000));
+      data.add("tags", new JsonArray());
+
+      JsonObject value = new JsonObject();
+      value.add("data", data);
+      value.addProperty("object", object.getId());
+      value.addProperty("subscription", subscription.getId());
+      value.addProperty("type", type);
+
+      JsonObject params = new JsonObject();
+      params.add("value", value);
+
+      try {
+        subscription.getSession().sendNotification(ON_EVENT_METHOD, params);
+      } catch (IOException e) {
+        log.warn("Exception sending event {} of {}: {}", type, object.getId(), e.getMessage());
+      }
+    }
+  }
+
+  private String createSdp(MockMediaObject object) {
+    long sessionId = Math.abs((long) object.getId().hashCode());
+    return "v=0\r\n" + "o=- " + sessionId + " 0 IN IP4 127.0.0.1\r\n"
+        + "s=Kurento Media Server\r\n" + "c=IN IP4 127.0.0.1\r\n" + "t=0 0\r\n"
+        + "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n" + "a=mid:audio\r\n" + "a=sendrecv\r\n"
+        + "m=video 9 UDP/TLS/RTP/SAVPF 96\r\n" + "a=mid:video\r\n" + "a=sendrecv\r\n";
+  }
+
+  private Operation getOperation(Request<JsonObject> request) {
+
+    JsonObject params = request.getParams();
+    if (params == null) {
+      return null;
+    }
+
+    switch (request.getMethod()) {
+      case "create":
+        return params.has("type") && PIPELINE_TYPE.equals(params.get("type").getAsString())
+            ? Operation.CREATE_PIPELINE : Operation.CREATE_ENDPOINT;
+      case "release":
+        return Operation.RELEASE;
+      case "invoke":
+        if (!params.has("operation")) {
+          return null;
+        }
+        switch (params.get("operation").getAsString()) {
+          case "processOffer":
+          case "processAnswer":
+          case "generateOffer":
+            return Operation.PROCESS_OFFER;
+          case "gatherCandidates":
+            return Operation.GATHER_CANDIDATES;
+          case "connect":
+            return Operation.LINK;
+          default:
+            return null;
+        }
+      default:
+        return null;
+    }
+  }
+
+  private MockMediaObject getObject(JsonObject params) {
+    return getObject(getString(params, "object"));
+  }
+
+  private MockMediaObject getObject(String id) {
+    if (SERVER_MANAGER_ID.equals(id)) {
+      return serverManager;
+    }
+    MockMediaObject object = objects.get(id);
+    if (object == null) {
+      throw new JsonRpcErrorException(OBJECT_NOT_FOUND, "Object '" + id + "' not found");
+    }
+    return object;
+  }
+
+  private String getString(JsonObject params, String paramName) {
+    JsonElement value = params.get(paramName);
+    if (value == null || !value.isJsonPrimitive()) {
+      throw new JsonRpcErrorException(ILLEGAL_PARAM,
+          "Invalid request lacking string parameter '" + paramName + "'");
+    }
+    return value.getAsString();
+  }
+
+  private void sendError(Transaction transaction, JsonRpcErrorException e) {
+    try {
+      transaction.sendError(e.getError());
+    } catch (IOException ioe) {
+      log.warn("Exception sending error response: {}", ioe.getMessage());
+    }
+  }
+}
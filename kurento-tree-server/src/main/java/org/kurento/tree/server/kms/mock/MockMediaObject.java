@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.mock;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.jsonrpc.Session;
+
+/**
+ * Media object created in a {@link MockKmsJsonRpcHandler}. Only keeps the state needed to answer
+ * the requests of kurento-client and to send the events its clients are subscribed to.
+ */
+class MockMediaObject {
+
+  static class Subscription {
+
+    private final String id;
+    private final String type;
+    private final Session session;
+
+    Subscription(String id, String type, Session session) {
+      this.id = id;
+      this.type = type;
+      this.session = session;
+    }
+
+    String getId() {
+      return id;
+    }
+
+    String getType() {
+      return type;
+    }
+
+    Session getSession() {
+      return session;
+    }
+  }
+
+  private final String id;
+  private final String type;
+  private final String pipelineId;
+  private volatile String name;
+  // Set when the candidates are gathered, as the media is then reported as connected and flowing
+  private volatile boolean mediaFlowing;
+
+  private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+  MockMediaObject(String id, String type, String pipelineId) {
+    this.id = id;
+    this.type = type;
+    this.pipelineId = pipelineId;
+  }
+
+  String getId() {
+    return id;
+  }
+
+  String getType() {
+    return type;
+  }
+
+  /**
+   * Returns the id of the pipeline of this element, or null if this object is a pipeline.
+   */
+  String getPipelineId() {
+    return pipelineId;
+  }
+
+  boolean isPipeline() {
+    return pipelineId == null;
+  }
+
+  String getName() {
+    return name != null ? name : id;
+  }
+
+  void setName(String name) {
+    this.name = name;
+  }
+
+  boolean isMediaFlowing() {
+    return mediaFlowing;
+  }
+
+  void setMediaFlowing(boolean mediaFlowing) {
+    this.mediaFlowing = mediaFlowing;
+  }
+
+  void subscribe(Subscription subscription) {
+    subscriptions.put(subscription.getId(), subscription);
+  }
+
+  boolean unsubscribe(String subscriptionId) {
+    return subscriptions.remove(subscriptionId) != null;
+  }
+
+  void unsubscribeAll(Session session) {
+    subscriptions.values().removeIf(s -> s.getSession() == session);
+  }
+
+  Collection<Subscription> getSubscriptions() {
+    return subscriptions.values();
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.kurento.client.Continuation;
+
+/**
+ * {@link CompletableFuture} that can be passed as {@link Continuation} to the asynchronous methods
+ * of kurento-client, so that KMS round trips can be composed without blocking threads.
+ */
+public class ContinuationFuture<T> extends CompletableFuture<T> implements Continuation<T> {
+
+  @Override
+  public void onSuccess(T result) {
+    complete(result);
+  }
+
+  @Override
+  public void onError(Throwable cause) {
+    completeExceptionally(cause);
+  }
+}
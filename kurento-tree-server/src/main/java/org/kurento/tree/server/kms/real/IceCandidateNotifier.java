@@ -0,0 +1,173 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.commons.PropertiesManager;
+import org.kurento.tree.client.internal.JsonTreeUtils;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.TreeElementSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Sends the candidates gathered by a WebRtcEndpoint to its client. When a batch window is
+ * configured, candidates are coalesced and sent in a single notification when the window expires
+ * or the gathering is done. Otherwise each candidate is sent as soon as it is gathered.
+ * <p>
+ * Notifications are sent without holding the monitor of the notifier, so a slow client does not
+ * block the threads gathering candidates of its endpoint, and the windows of all the endpoints
+ * expire in a shared pool of threads.
+ */
+public class IceCandidateNotifier {
+
+  private static final Logger log = LoggerFactory.getLogger(IceCandidateNotifier.class);
+
+  public static final long BATCH_WINDOW = PropertiesManager
+      .getProperty("tree.iceCandidates.batchWindow", 0L);
+
+  public static final int SCHEDULER_THREADS = PropertiesManager
+      .getProperty("tree.iceCandidates.schedulerThreads", 4);
+
+  private static ScheduledExecutorService sharedScheduler;
+
+  private final TreeElementSession session;
+  private final long batchWindow;
+  private final ScheduledExecutorService scheduler;
+
+  private List<IceCandidate> pending = new ArrayList<>();
+  private ScheduledFuture<?> scheduledFlush;
+
+  public IceCandidateNotifier(TreeElementSession session) {
+    this(session, BATCH_WINDOW, BATCH_WINDOW > 0 ? getSharedScheduler() : null);
+  }
+
+  public IceCandidateNotifier(TreeElementSession session, long batchWindow,
+      ScheduledExecutorService scheduler) {
+    this.session = session;
+    this.batchWindow = batchWindow;
+    this.scheduler = scheduler;
+  }
+
+  public TreeElementSession getSession() {
+    return session;
+  }
+
+  public void candidateGathered(IceCandidate candidate) {
+
+    if (batchWindow <= 0) {
+      sendCandidate(candidate);
+      return;
+    }
+
+    synchronized (this) {
+      pending.add(candidate);
+      if (scheduledFlush == null) {
+        scheduledFlush = scheduler.schedule(this::flush, batchWindow, TimeUnit.MILLISECONDS);
+      }
+    }
+  }
+
+  public void gatheringDone() {
+    flush();
+  }
+
+  /**
+   * Sends the pending candidates, if any.
+   */
+  public void flush() {
+
+    List<IceCandidate> candidates;
+    synchronized (this) {
+      cancelScheduledFlush();
+      if (pending.isEmpty()) {
+        return;
+      }
+      candidates = pending;
+      pending = new ArrayList<>();
+    }
+    sendCandidates(candidates);
+  }
+
+  /**
+   * Discards the pending candidates. Used when the endpoint is released.
+   */
+  public synchronized void cancel() {
+    cancelScheduledFlush();
+    pending.clear();
+  }
+
+  private void cancelScheduledFlush() {
+    if (scheduledFlush != null) {
+      scheduledFlush.cancel(false);
+      scheduledFlush = null;
+    }
+  }
+
+  private void sendCandidate(IceCandidate candidate) {
+    try {
+      JsonObject params = createParams();
+      params.addProperty(ProtocolElements.ICE_SDP_M_LINE_INDEX, candidate.getSdpMLineIndex());
+      params.addProperty(ProtocolElements.ICE_SDP_MID, candidate.getSdpMid());
+      params.addProperty(ProtocolElements.ICE_CANDIDATE, candidate.getCandidate());
+      session.getSession().sendNotification(ProtocolElements.ICE_CANDIDATE_EVENT, params);
+      log.debug("Sent ICE candidate notif for {}: {} - {}", session, candidate.getSdpMid(),
+          candidate.getCandidate());
+    } catch (IOException e) {
+      log.warn("Exception while sending ice candidate for {}", session, e);
+    }
+  }
+
+  private void sendCandidates(List<IceCandidate> candidates) {
+    try {
+      JsonObject params = createParams();
+      params.add(ProtocolElements.ICE_CANDIDATES, JsonTreeUtils.toJsonArray(candidates));
+      session.getSession().sendNotification(ProtocolElements.ICE_CANDIDATES_EVENT, params);
+      log.debug("Sent {} ICE candidates notif for {}", candidates.size(), session);
+    } catch (IOException e) {
+      log.warn("Exception while sending ice candidates for {}", session, e);
+    }
+  }
+
+  private JsonObject createParams() {
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, session.getTreeId());
+    params.addProperty(ProtocolElements.SINK_ID, session.getSinkId());
+    return params;
+  }
+
+  private static synchronized ScheduledExecutorService getSharedScheduler() {
+    if (sharedScheduler == null) {
+      sharedScheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, r -> {
+        Thread thread = new Thread(r, "ice-candidates-notifier");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return sharedScheduler;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.ServerManager;
+import org.kurento.commons.PropertiesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically requests resource usage to the media servers and stores it in their {@link RealKms}
+ * so load managers can use it without waiting for the media server.
+ */
+public class KmsStatsPoller {
+
+  private static final Logger log = LoggerFactory.getLogger(KmsStatsPoller.class);
+
+  public static final long POLL_INTERVAL = PropertiesManager
+      .getProperty("kms.load.statsInterval", 5000L);
+
+  // Milliseconds the media server measures its cpu usage for
+  public static final int CPU_INTERVAL = PropertiesManager.getProperty("kms.load.cpuInterval",
+      1000);
+
+  private final Set<RealKms> kmss = ConcurrentHashMap.newKeySet();
+  private final ScheduledExecutorService executor;
+
+  public KmsStatsPoller() {
+    this(POLL_INTERVAL);
+  }
+
+  public KmsStatsPoller(long pollInterval) {
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "kms-stats-poller");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    executor.scheduleWithFixedDelay(this::pollKmss, 0, pollInterval, TimeUnit.MILLISECONDS);
+  }
+
+  public void addKms(RealKms kms) {
+    kmss.add(kms);
+  }
+
+  public void removeKms(RealKms kms) {
+    kmss.remove(kms);
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private void pollKmss() {
+    for (RealKms kms : kmss) {
+      try {
+        ServerManager serverManager = kms.getKurentoClient().getServerManager();
+        kms.setUsedMemory(serverManager.getUsedMemory());
+        if (kms.getCpuCount() < 0) {
+          kms.setCpuCount(serverManager.getCpuCount());
+        }
+        // The media server answers once the interval is measured, so it is not waited for
+        serverManager.getUsedCpu(CPU_INTERVAL, new Continuation<Float>() {
+          @Override
+          public void onSuccess(Float usedCpu) {
+            kms.setUsedCpu(usedCpu);
+          }
+
+          @Override
+          public void onError(Throwable cause) {
+            log.warn("Exception requesting cpu usage of kms {}", kms, cause);
+          }
+        });
+      } catch (Exception e) {
+        log.warn("Exception requesting stats of kms {}", kms, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import org.kurento.commons.PropertiesManager;
+
+/**
+ * Endpoint used to link pipelines of different kmss. WebRtcEndpoints can cross networks, but kmss
+ * in the same network can be linked with RtpEndpoints, avoiding ICE, DTLS and SRTP.
+ */
+public enum PlumberType {
+
+  WEBRTC(1), RTP(PropertiesManager.getProperty("kms.rtpPlumberLoadWeight", 0.5));
+
+  public static final String PLUMBER_TYPE_PROPERTY = "kms.plumberType";
+
+  // Load of a plumber relative to a WebRtcEndpoint of a viewer
+  private final double loadWeight;
+
+  private PlumberType(double loadWeight) {
+    this.loadWeight = loadWeight;
+  }
+
+  public double getLoadWeight() {
+    return loadWeight;
+  }
+
+  public static PlumberType fromConfig() {
+    return PropertiesManager.getProperty(PLUMBER_TYPE_PROPERTY, WEBRTC);
+  }
+}
@@ -16,10 +16,30 @@
  */
 package org.kurento.tree.server.kms.real;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.kurento.client.MediaElement;
 
 public interface RealElement {
 
   public MediaElement getMediaElement();
 
+  /**
+   * Returns a future completed with the media element once it is created in the media server.
+   */
+  public CompletableFuture<? extends MediaElement> getMediaElementAsync();
+
+  /**
+   * Connects the media elements once both of them exist in the media server, without waiting for
+   * the KMS round trips.
+   */
+  public static CompletableFuture<Void> connectAsync(RealElement source, RealElement sink) {
+    return source.getMediaElementAsync()
+        .thenCombine(sink.getMediaElementAsync(), (sourceElement, sinkElement) -> {
+          ContinuationFuture<Void> connected = new ContinuationFuture<>();
+          sourceElement.connect(sinkElement, connected);
+          return connected;
+        }).thenCompose(connected -> connected);
+  }
+
 }
@@ -16,24 +16,83 @@
  */
 package org.kurento.tree.server.kms.real;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.commons.exception.KurentoException;
 import org.kurento.tree.server.kms.Kms;
 import org.kurento.tree.server.kms.Pipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RealKms extends Kms {
 
+  private static final Logger log = LoggerFactory.getLogger(RealKms.class);
+
   private KurentoClient client;
+  private PlumberType plumberType;
 
   public RealKms(KurentoClient client) {
+    this(client, PlumberType.fromConfig());
+  }
+
+  public RealKms(KurentoClient client, PlumberType plumberType) {
     this.client = client;
+    this.plumberType = plumberType;
   }
 
   protected Pipeline newPipeline() {
     return new RealPipeline(this);
   }
 
+  @Override
+  protected Pipeline newPipelineAsync() {
+    ContinuationFuture<MediaPipeline> mediaPipeline = new ContinuationFuture<>();
+    client.createMediaPipeline(mediaPipeline);
+    return new RealPipeline(this, mediaPipeline);
+  }
+
   public KurentoClient getKurentoClient() {
     return client;
   }
 
+  public PlumberType getPlumberType() {
+    return plumberType;
+  }
+
+  @Override
+  protected Pipeline newRecoveredPipeline(String pipelineId) {
+    try {
+      if (!getServerPipelineIds().contains(pipelineId)) {
+        return null;
+      }
+      return new RealPipeline(this, client.getById(pipelineId, MediaPipeline.class));
+    } catch (KurentoException e) {
+      log.debug("Pipeline {} not recovered in kms {}: {}", pipelineId, getLabel(), e.getMessage());
+      return null;
+    }
+  }
+
+  @Override
+  public boolean releaseUnknownPipeline(String pipelineId) {
+    try {
+      client.getById(pipelineId, MediaPipeline.class).release();
+      return true;
+    } catch (KurentoException e) {
+      log.debug("Pipeline {} not released in kms {}: {}", pipelineId, getLabel(), e.getMessage());
+      return false;
+    }
+  }
+
+  @Override
+  public List<String> getServerPipelineIds() {
+    List<String> ids = new ArrayList<>();
+    for (MediaPipeline pipeline : client.getServerManager().getPipelines()) {
+      ids.add(pipeline.getId());
+    }
+    return ids;
+  }
+
 }
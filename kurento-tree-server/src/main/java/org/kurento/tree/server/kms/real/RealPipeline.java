@@ -16,45 +16,179 @@
  */
 package org.kurento.tree.server.kms.real;
 
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import org.kurento.client.AbstractBuilder;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaObject;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.commons.exception.KurentoException;
 import org.kurento.tree.server.app.TreeElementSession;
 import org.kurento.tree.server.kms.Pipeline;
 import org.kurento.tree.server.kms.Plumber;
 import org.kurento.tree.server.kms.WebRtc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RealPipeline extends Pipeline {
 
-  private MediaPipeline mediaPipeline;
+  private static final Logger log = LoggerFactory.getLogger(RealPipeline.class);
+
+  private final CompletableFuture<MediaPipeline> mediaPipeline;
+  private final boolean async;
+
+  // Ids of the elements of the media pipeline, fetched when the first element is recovered
+  private Set<String> childIds;
 
   public RealPipeline(RealKms realKms) {
+    this(realKms, realKms.getKurentoClient().createMediaPipeline());
+  }
+
+  /**
+   * Creates a pipeline for a media pipeline that already exists in the kms.
+   */
+  public RealPipeline(RealKms realKms, MediaPipeline mediaPipeline) {
+    this(realKms, CompletableFuture.completedFuture(mediaPipeline), false);
+  }
+
+  /**
+   * Creates a pipeline whose media pipeline is being created in the kms. Its elements are created
+   * once it exists, and its name is set without waiting for the KMS round trip.
+   */
+  public RealPipeline(RealKms realKms, CompletableFuture<MediaPipeline> mediaPipeline) {
+    this(realKms, mediaPipeline, true);
+  }
+
+  private RealPipeline(RealKms realKms, CompletableFuture<MediaPipeline> mediaPipeline,
+      boolean async) {
     super(realKms);
-    mediaPipeline = realKms.getKurentoClient().createMediaPipeline();
+    this.mediaPipeline = mediaPipeline;
+    this.async = async;
   }
 
   public MediaPipeline getMediaPipeline() {
+    return mediaPipeline.join();
+  }
+
+  public CompletableFuture<MediaPipeline> getMediaPipelineAsync() {
     return mediaPipeline;
   }
 
+  /**
+   * Creates a media element in the media pipeline once it exists, without waiting for the KMS
+   * round trips.
+   */
+  <T> CompletableFuture<T> buildAsync(Function<MediaPipeline, AbstractBuilder<T>> builder) {
+    return mediaPipeline.thenCompose(pipeline -> {
+      ContinuationFuture<T> created = new ContinuationFuture<>();
+      builder.apply(pipeline).buildAsync(created);
+      return created;
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> whenCreated() {
+    return mediaPipeline.thenApply(pipeline -> null);
+  }
+
   @Override
   protected WebRtc newWebRtc(TreeElementSession session) {
     return new RealWebRtc(this, session);
   }
 
+  @Override
+  protected WebRtc newWebRtcAsync(TreeElementSession session) {
+    return new RealWebRtc(this, session,
+        this.<WebRtcEndpoint> buildAsync(WebRtcEndpoint.Builder::new));
+  }
+
   @Override
   protected Plumber newPlumber() {
-    return new RealPlumber(this);
+    switch (((RealKms) getKms()).getPlumberType()) {
+      case RTP:
+        return new RealRtpPlumber(this);
+      default:
+        return new RealPlumber(this);
+    }
+  }
+
+  @Override
+  protected Plumber newPlumberAsync() {
+    switch (((RealKms) getKms()).getPlumberType()) {
+      case RTP:
+        return new RealRtpPlumber(this, this.<RtpEndpoint> buildAsync(RtpEndpoint.Builder::new));
+      default:
+        return new RealPlumber(this,
+            this.<WebRtcEndpoint> buildAsync(WebRtcEndpoint.Builder::new));
+    }
+  }
+
+  @Override
+  protected WebRtc newRecoveredWebRtc(String webRtcId, TreeElementSession session) {
+    if (!hasChild(webRtcId)) {
+      return null;
+    }
+    return new RealWebRtc(this, session, getKurentoClient().getById(webRtcId,
+        WebRtcEndpoint.class));
+  }
+
+  @Override
+  protected Plumber newRecoveredPlumber(String plumberId) {
+    if (!hasChild(plumberId)) {
+      return null;
+    }
+    switch (((RealKms) getKms()).getPlumberType()) {
+      case RTP:
+        return new RealRtpPlumber(this, getKurentoClient().getById(plumberId, RtpEndpoint.class));
+      default:
+        return new RealPlumber(this,
+            getKurentoClient().getById(plumberId, WebRtcEndpoint.class));
+    }
+  }
+
+  private boolean hasChild(String elementId) {
+    if (childIds == null) {
+      childIds = new HashSet<>();
+      try {
+        for (MediaObject child : getMediaPipeline().getChildren()) {
+          childIds.add(child.getId());
+        }
+      } catch (KurentoException e) {
+        log.debug("Elements of pipeline {} not recovered: {}", getId(), e.getMessage());
+      }
+    }
+    return childIds.contains(elementId);
+  }
+
+  private KurentoClient getKurentoClient() {
+    return ((RealKms) getKms()).getKurentoClient();
   }
 
   @Override
   public void release() {
     super.release();
-    mediaPipeline.release();
+    // A pipeline that failed to be created has nothing to release
+    mediaPipeline.thenAccept(pipeline -> pipeline.release(new ReleaseContinuation(this)));
+  }
+
+  @Override
+  public String getId() {
+    return getMediaPipeline().getId();
   }
 
   @Override
   public void setLabel(String label) {
     super.setLabel(label);
-    mediaPipeline.setName(label);
+    if (async) {
+      mediaPipeline.thenAccept(pipeline -> pipeline.setName(label, new NameContinuation(this)));
+    } else {
+      getMediaPipeline().setName(label);
+    }
   }
 
 }
@@ -17,7 +17,9 @@
 
 package org.kurento.tree.server.kms.real;
 
-import org.kurento.client.MediaElement;
+import java.util.concurrent.CompletableFuture;
+
+import org.kurento.client.Continuation;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.tree.server.kms.Element;
 import org.kurento.tree.server.kms.Plumber;
@@ -28,31 +30,68 @@ public class RealPlumber extends Plumber implements RealElement {
 
   private static Logger log = LoggerFactory.getLogger(RealPlumber.class);
 
-  private MediaElement endpoint;
+  private final CompletableFuture<WebRtcEndpoint> endpoint;
+  private final boolean async;
 
   public RealPlumber(RealPipeline pipeline) {
+    this(pipeline, new WebRtcEndpoint.Builder(pipeline.getMediaPipeline()).build());
+  }
+
+  /**
+   * Creates a plumber for an endpoint that already exists in the kms.
+   */
+  public RealPlumber(RealPipeline pipeline, WebRtcEndpoint endpoint) {
+    this(pipeline, CompletableFuture.completedFuture(endpoint), false);
+  }
+
+  /**
+   * Creates a plumber for an endpoint that is being created in the kms. Its operations are
+   * invoked once it exists.
+   */
+  public RealPlumber(RealPipeline pipeline, CompletableFuture<WebRtcEndpoint> endpoint) {
+    this(pipeline, endpoint, true);
+  }
+
+  private RealPlumber(RealPipeline pipeline, CompletableFuture<WebRtcEndpoint> endpoint,
+      boolean async) {
     super(pipeline);
-    endpoint = new WebRtcEndpoint.Builder(pipeline.getMediaPipeline()).build();
+    this.endpoint = endpoint;
+    this.async = async;
+  }
 
-    if (getLabel() != null) {
-      endpoint.setName(getLabel());
+  @Override
+  public void connect(Element element) {
+    if (!(element instanceof RealElement)) {
+      throw new RuntimeException("A real element can not be connected to non real one");
     }
+    super.connect(element);
+    getMediaElement().connect(((RealElement) element).getMediaElement());
   }
 
   @Override
-  public void connect(Element element) {
+  public CompletableFuture<Void> connectAsync(Element element) {
     if (!(element instanceof RealElement)) {
       throw new RuntimeException("A real element can not be connected to non real one");
     }
     super.connect(element);
-    endpoint.connect(((RealElement) element).getMediaElement());
+    return RealElement.connectAsync(this, (RealElement) element);
+  }
+
+  @Override
+  public WebRtcEndpoint getMediaElement() {
+    return endpoint.join();
   }
 
   @Override
-  public MediaElement getMediaElement() {
+  public CompletableFuture<WebRtcEndpoint> getMediaElementAsync() {
     return endpoint;
   }
 
+  @Override
+  public CompletableFuture<Void> whenCreated() {
+    return endpoint.thenApply(webRtc -> null);
+  }
+
   @Override
   public void link(Plumber plumber) {
     if (!(plumber instanceof RealPlumber)) {
@@ -61,8 +100,8 @@ public class RealPlumber extends Plumber implements RealElement {
 
     super.link(plumber);
 
-    WebRtcEndpoint thisWebRtc = (WebRtcEndpoint) endpoint;
-    WebRtcEndpoint otherWebRtc = (WebRtcEndpoint) ((RealPlumber) plumber).endpoint;
+    WebRtcEndpoint thisWebRtc = getMediaElement();
+    WebRtcEndpoint otherWebRtc = ((RealPlumber) plumber).getMediaElement();
 
     log.debug("Connecting webRtcs from Kms {} to Kms {}", this.getPipeline().getKms(),
         plumber.getPipeline().getKms());
@@ -77,15 +116,103 @@ public class RealPlumber extends Plumber implements RealElement {
 
   }
 
+  /**
+   * Links the plumbers with the same steps as {@link #link(Plumber)}, chained with the asynchronous
+   * methods of kurento-client, so the caller does not wait for the KMS round trips holding the lock
+   * of the tree. Candidates are exchanged with asynchronous calls too. The steps start once both
+   * endpoints are created.
+   */
+  @Override
+  public CompletableFuture<Void> linkAsync(Plumber plumber) {
+    if (!(plumber instanceof RealPlumber)) {
+      throw new RuntimeException("A real plumber can not be linked to non real one");
+    }
+
+    super.link(plumber);
+
+    log.debug("Connecting webRtcs from Kms {} to Kms {} asynchronously",
+        this.getPipeline().getKms(), plumber.getPipeline().getKms());
+
+    return endpoint.thenCombine(((RealPlumber) plumber).endpoint,
+        (thisWebRtc, otherWebRtc) -> linkEndpointsAsync(plumber, thisWebRtc, otherWebRtc))
+        .thenCompose(linked -> linked);
+  }
+
+  private CompletableFuture<Void> linkEndpointsAsync(Plumber plumber, WebRtcEndpoint thisWebRtc,
+      WebRtcEndpoint otherWebRtc) {
+
+    SubscriptionContinuation thisSubscription = new SubscriptionContinuation(this,
+        "OnIceCandidate");
+    SubscriptionContinuation otherSubscription = new SubscriptionContinuation(plumber,
+        "OnIceCandidate");
+    thisWebRtc.addOnIceCandidateListener(
+        (e) -> otherWebRtc.addIceCandidate(e.getCandidate(), new CandidateContinuation(plumber)),
+        thisSubscription);
+    otherWebRtc.addOnIceCandidateListener(
+        (e) -> thisWebRtc.addIceCandidate(e.getCandidate(), new CandidateContinuation(this)),
+        otherSubscription);
+
+    ContinuationFuture<String> offer = new ContinuationFuture<>();
+    thisWebRtc.generateOffer(offer);
+
+    return CompletableFuture.allOf(thisSubscription, otherSubscription)
+        .thenCombine(offer, (v, sdpOffer) -> sdpOffer).thenCompose(sdpOffer -> {
+          ContinuationFuture<String> answer = new ContinuationFuture<>();
+          otherWebRtc.processOffer(sdpOffer, answer);
+          return answer;
+        }).thenCompose(sdpAnswer -> {
+          ContinuationFuture<String> answerProcessed = new ContinuationFuture<>();
+          thisWebRtc.processAnswer(sdpAnswer, answerProcessed);
+          return answerProcessed;
+        }).thenCompose(v -> {
+          ContinuationFuture<Void> thisGathering = new ContinuationFuture<>();
+          ContinuationFuture<Void> otherGathering = new ContinuationFuture<>();
+          thisWebRtc.gatherCandidates(thisGathering);
+          otherWebRtc.gatherCandidates(otherGathering);
+          return CompletableFuture.allOf(thisGathering, otherGathering);
+        });
+  }
+
+  /**
+   * Candidates of the other plumber are added without waiting for the KMS round trip.
+   */
+  private static class CandidateContinuation implements Continuation<Void> {
+
+    private final Plumber plumber;
+
+    CandidateContinuation(Plumber plumber) {
+      this.plumber = plumber;
+    }
+
+    @Override
+    public void onSuccess(Void result) {
+    }
+
+    @Override
+    public void onError(Throwable cause) {
+      log.warn("Exception adding candidate to {} in media server", plumber.getLabel(), cause);
+    }
+  }
+
   @Override
   public void release() {
     super.release();
-    endpoint.release();
+    // An endpoint that failed to be created has nothing to release
+    endpoint.thenAccept(webRtc -> webRtc.release(new ReleaseContinuation(this)));
+  }
+
+  @Override
+  public String getId() {
+    return getMediaElement().getId();
   }
 
   @Override
   public void setLabel(String label) {
     super.setLabel(label);
-    endpoint.setName(label);
+    if (async) {
+      endpoint.thenAccept(webRtc -> webRtc.setName(label, new NameContinuation(this)));
+    } else {
+      getMediaElement().setName(label);
+    }
   }
 }
@@ -0,0 +1,164 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.kurento.client.RtpEndpoint;
+import org.kurento.tree.server.kms.Element;
+import org.kurento.tree.server.kms.Plumber;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class RealRtpPlumber extends Plumber implements RealElement {
+
+  private static Logger log = LoggerFactory.getLogger(RealRtpPlumber.class);
+
+  private final CompletableFuture<RtpEndpoint> endpoint;
+  private final boolean async;
+
+  public RealRtpPlumber(RealPipeline pipeline) {
+    this(pipeline, new RtpEndpoint.Builder(pipeline.getMediaPipeline()).build());
+  }
+
+  /**
+   * Creates a plumber for an endpoint that already exists in the kms.
+   */
+  public RealRtpPlumber(RealPipeline pipeline, RtpEndpoint endpoint) {
+    this(pipeline, CompletableFuture.completedFuture(endpoint), false);
+  }
+
+  /**
+   * Creates a plumber for an endpoint that is being created in the kms. Its operations are
+   * invoked once it exists.
+   */
+  public RealRtpPlumber(RealPipeline pipeline, CompletableFuture<RtpEndpoint> endpoint) {
+    this(pipeline, endpoint, true);
+  }
+
+  private RealRtpPlumber(RealPipeline pipeline, CompletableFuture<RtpEndpoint> endpoint,
+      boolean async) {
+    super(pipeline);
+    this.endpoint = endpoint;
+    this.async = async;
+  }
+
+  @Override
+  public void connect(Element element) {
+    if (!(element instanceof RealElement)) {
+      throw new RuntimeException("A real element can not be connected to non real one");
+    }
+    super.connect(element);
+    getMediaElement().connect(((RealElement) element).getMediaElement());
+  }
+
+  @Override
+  public CompletableFuture<Void> connectAsync(Element element) {
+    if (!(element instanceof RealElement)) {
+      throw new RuntimeException("A real element can not be connected to non real one");
+    }
+    super.connect(element);
+    return RealElement.connectAsync(this, (RealElement) element);
+  }
+
+  @Override
+  public RtpEndpoint getMediaElement() {
+    return endpoint.join();
+  }
+
+  @Override
+  public CompletableFuture<RtpEndpoint> getMediaElementAsync() {
+    return endpoint;
+  }
+
+  @Override
+  public CompletableFuture<Void> whenCreated() {
+    return endpoint.thenApply(rtp -> null);
+  }
+
+  @Override
+  public void link(Plumber plumber) {
+    if (!(plumber instanceof RealRtpPlumber)) {
+      throw new RuntimeException("A rtp plumber can only be linked to another rtp plumber");
+    }
+
+    super.link(plumber);
+
+    RtpEndpoint thisRtp = getMediaElement();
+    RtpEndpoint otherRtp = ((RealRtpPlumber) plumber).getMediaElement();
+
+    log.debug("Connecting rtps from Kms {} to Kms {}", this.getPipeline().getKms(),
+        plumber.getPipeline().getKms());
+
+    // Plain RTP has no ICE, so the SDP exchange is enough to start sending media
+    thisRtp.processAnswer(otherRtp.processOffer(thisRtp.generateOffer()));
+  }
+
+  @Override
+  public CompletableFuture<Void> linkAsync(Plumber plumber) {
+    if (!(plumber instanceof RealRtpPlumber)) {
+      throw new RuntimeException("A rtp plumber can only be linked to another rtp plumber");
+    }
+
+    super.link(plumber);
+
+    log.debug("Connecting rtps from Kms {} to Kms {} asynchronously", this.getPipeline().getKms(),
+        plumber.getPipeline().getKms());
+
+    return endpoint.thenCombine(((RealRtpPlumber) plumber).endpoint,
+        (thisRtp, otherRtp) -> linkEndpointsAsync(thisRtp, otherRtp))
+        .thenCompose(linked -> linked);
+  }
+
+  private CompletableFuture<Void> linkEndpointsAsync(RtpEndpoint thisRtp, RtpEndpoint otherRtp) {
+
+    ContinuationFuture<String> offer = new ContinuationFuture<>();
+    thisRtp.generateOffer(offer);
+
+    return offer.thenCompose(sdpOffer -> {
+      ContinuationFuture<String> answer = new ContinuationFuture<>();
+      otherRtp.processOffer(sdpOffer, answer);
+      return answer;
+    }).thenCompose(sdpAnswer -> {
+      ContinuationFuture<String> answerProcessed = new ContinuationFuture<>();
+      thisRtp.processAnswer(sdpAnswer, answerProcessed);
+      return answerProcessed.thenApply(sdp -> (Void) null);
+    });
+  }
+
+  @Override
+  public void release() {
+    super.release();
+    // An endpoint that failed to be created has nothing to release
+    endpoint.thenAccept(rtp -> rtp.release(new ReleaseContinuation(this)));
+  }
+
+  @Override
+  public String getId() {
+    return getMediaElement().getId();
+  }
+
+  @Override
+  public void setLabel(String label) {
+    super.setLabel(label);
+    if (async) {
+      endpoint.thenAccept(rtp -> rtp.setName(label, new NameContinuation(this)));
+    } else {
+      getMediaElement().setName(label);
+    }
+  }
+}
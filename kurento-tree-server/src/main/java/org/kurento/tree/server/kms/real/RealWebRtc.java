@@ -16,103 +16,203 @@
  */
 package org.kurento.tree.server.kms.real;
 
-import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.OnIceCandidateEvent;
+import org.kurento.client.MediaFlowState;
+import org.kurento.client.MediaState;
+import org.kurento.client.MediaType;
 import org.kurento.client.WebRtcEndpoint;
-import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.commons.exception.KurentoException;
 import org.kurento.tree.server.app.TreeElementSession;
 import org.kurento.tree.server.kms.Element;
 import org.kurento.tree.server.kms.WebRtc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.JsonObject;
-
 public class RealWebRtc extends WebRtc implements RealElement {
   private static final Logger log = LoggerFactory.getLogger(RealWebRtc.class);
 
-  private WebRtcEndpoint webRtcEndpoint;
+  private final CompletableFuture<WebRtcEndpoint> webRtcEndpoint;
+  private final boolean async;
+  private IceCandidateNotifier iceCandidateNotifier;
+
+  // Candidates are gathered once their listeners are subscribed, so none is lost
+  private CompletableFuture<Void> iceListenersSubscribed;
+
+  // Media types (audio, video...) being sent to the client
+  private final Set<MediaType> flowingTypes = ConcurrentHashMap.newKeySet();
 
   public RealWebRtc(RealPipeline pipeline, final TreeElementSession session) {
-    super(pipeline);
+    this(pipeline, session, new WebRtcEndpoint.Builder(pipeline.getMediaPipeline()).build());
+  }
+
+  /**
+   * Creates a webrtc for an endpoint that already exists in the kms.
+   */
+  public RealWebRtc(RealPipeline pipeline, final TreeElementSession session,
+      WebRtcEndpoint webRtcEndpoint) {
+    this(pipeline, session, CompletableFuture.completedFuture(webRtcEndpoint), false);
+  }
 
-    this.webRtcEndpoint = new WebRtcEndpoint.Builder(pipeline.getMediaPipeline()).build();
+  /**
+   * Creates a webrtc for an endpoint that is being created in the kms. Listeners are subscribed
+   * and operations are invoked once it exists, without waiting for the KMS round trips.
+   */
+  public RealWebRtc(RealPipeline pipeline, final TreeElementSession session,
+      CompletableFuture<WebRtcEndpoint> webRtcEndpoint) {
+    this(pipeline, session, webRtcEndpoint, true);
+  }
 
-    if (getLabel() != null) {
-      this.webRtcEndpoint.setName(getLabel());
-    }
+  private RealWebRtc(RealPipeline pipeline, final TreeElementSession session,
+      CompletableFuture<WebRtcEndpoint> webRtcEndpoint, boolean async) {
+    super(pipeline, session);
+
+    this.webRtcEndpoint = webRtcEndpoint;
+    this.async = async;
+    this.iceCandidateNotifier = new IceCandidateNotifier(session);
+    this.iceListenersSubscribed = webRtcEndpoint.thenCompose(this::subscribeListeners);
+  }
 
-    this.webRtcEndpoint
-        .addMediaStateChangedListener(e -> log.info("WebRtcEndpoint {} state changed from {} to {}",
-            this.getLabel(), e.getOldState(), e.getNewState()));
-
-    this.webRtcEndpoint.addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-      @Override
-      public void onEvent(OnIceCandidateEvent event) {
-        try {
-          JsonObject params = new JsonObject();
-          params.addProperty(ProtocolElements.TREE_ID, session.getTreeId());
-          params.addProperty(ProtocolElements.SINK_ID, session.getSinkId());
-          params.addProperty(ProtocolElements.ICE_SDP_M_LINE_INDEX,
-              event.getCandidate().getSdpMLineIndex());
-          params.addProperty(ProtocolElements.ICE_SDP_MID, event.getCandidate().getSdpMid());
-          params.addProperty(ProtocolElements.ICE_CANDIDATE, event.getCandidate().getCandidate());
-          session.getSession().sendNotification(ProtocolElements.ICE_CANDIDATE_EVENT, params);
-          log.debug("Sent ICE candidate notif for {}: {} - {}", session,
-              event.getCandidate().getSdpMid(), event.getCandidate().getCandidate());
-        } catch (IOException e) {
-          log.warn("Exception while sending ice candidate for {}", session, e);
+  private CompletableFuture<Void> subscribeListeners(WebRtcEndpoint endpoint) {
+
+    endpoint.addMediaStateChangedListener(e -> {
+      log.info("WebRtcEndpoint {} state changed from {} to {}", this.getLabel(), e.getOldState(),
+          e.getNewState());
+      setMediaConnected(e.getNewState() == MediaState.CONNECTED);
+    }, new SubscriptionContinuation(this, "MediaStateChanged"));
+
+    endpoint.addMediaFlowOutStateChangeListener(e -> {
+      log.debug("WebRtcEndpoint {} {} media is {}", this.getLabel(), e.getMediaType(),
+          e.getState());
+      if (e.getState() == MediaFlowState.FLOWING) {
+        flowingTypes.add(e.getMediaType());
+      } else {
+        flowingTypes.remove(e.getMediaType());
+      }
+      setMediaFlowing(!flowingTypes.isEmpty());
+    }, new SubscriptionContinuation(this, "MediaFlowOutStateChange"));
+
+    SubscriptionContinuation candidateSubscription = new SubscriptionContinuation(this,
+        "OnIceCandidate");
+    SubscriptionContinuation gatheringDoneSubscription = new SubscriptionContinuation(this,
+        "OnIceGatheringDone");
+    endpoint.addOnIceCandidateListener(
+        e -> iceCandidateNotifier.candidateGathered(e.getCandidate()), candidateSubscription);
+    endpoint.addOnIceGatheringDoneListener(e -> iceCandidateNotifier.gatheringDone(),
+        gatheringDoneSubscription);
+    return CompletableFuture.allOf(candidateSubscription, gatheringDoneSubscription);
+  }
+
+  @Override
+  protected void recoverMediaState() {
+    try {
+      WebRtcEndpoint endpoint = getMediaElement();
+      setMediaConnected(endpoint.getMediaState() == MediaState.CONNECTED);
+      for (MediaType mediaType : new MediaType[] { MediaType.AUDIO, MediaType.VIDEO }) {
+        if (endpoint.isMediaFlowingOut(mediaType)) {
+          flowingTypes.add(mediaType);
         }
       }
-    });
+      setMediaFlowing(!flowingTypes.isEmpty());
+    } catch (KurentoException e) {
+      // Left as not connected, so it is evicted if the media never connects
+      log.warn("Exception loading media state of WebRtcEndpoint {}: {}", getLabel(),
+          e.getMessage());
+    }
   }
 
   @Override
   public String processSdpOffer(String sdpOffer) {
-    return webRtcEndpoint.processOffer(sdpOffer);
+    return getMediaElement().processOffer(sdpOffer);
+  }
+
+  @Override
+  public CompletableFuture<String> processSdpOfferAsync(String sdpOffer) {
+    return webRtcEndpoint.thenCompose(endpoint -> {
+      ContinuationFuture<String> sdpAnswer = new ContinuationFuture<>();
+      endpoint.processOffer(sdpOffer, sdpAnswer);
+      return sdpAnswer;
+    });
   }
 
   @Override
   public void gatherCandidates() {
-    webRtcEndpoint.gatherCandidates();
+    iceListenersSubscribed.join();
+    getMediaElement().gatherCandidates();
+  }
+
+  @Override
+  public CompletableFuture<Void> gatherCandidatesAsync() {
+    return webRtcEndpoint.thenCombine(iceListenersSubscribed, (endpoint, v) -> endpoint)
+        .thenCompose(endpoint -> {
+          ContinuationFuture<Void> gathering = new ContinuationFuture<>();
+          endpoint.gatherCandidates(gathering);
+          return gathering;
+        });
   }
 
   @Override
   public void addIceCandidate(IceCandidate candidate) {
-    webRtcEndpoint.addIceCandidate(candidate);
+    getMediaElement().addIceCandidate(candidate);
   }
 
   @Override
   public void release() {
     super.release();
-    webRtcEndpoint.release();
+    iceCandidateNotifier.cancel();
+    // An endpoint that failed to be created has nothing to release
+    webRtcEndpoint.thenAccept(endpoint -> endpoint.release(new ReleaseContinuation(this)));
   }
 
   @Override
   public WebRtcEndpoint getMediaElement() {
+    return webRtcEndpoint.join();
+  }
+
+  @Override
+  public CompletableFuture<WebRtcEndpoint> getMediaElementAsync() {
     return webRtcEndpoint;
   }
 
+  @Override
+  public CompletableFuture<Void> whenCreated() {
+    return webRtcEndpoint.thenApply(endpoint -> null);
+  }
+
   @Override
   public void connect(Element element) {
     if (!(element instanceof RealElement)) {
       throw new RuntimeException("A real element can not be connected to non real one");
     }
     super.connect(element);
-    webRtcEndpoint.connect(((RealElement) element).getMediaElement());
+    getMediaElement().connect(((RealElement) element).getMediaElement());
+  }
+
+  @Override
+  public CompletableFuture<Void> connectAsync(Element element) {
+    if (!(element instanceof RealElement)) {
+      throw new RuntimeException("A real element can not be connected to non real one");
+    }
+    super.connect(element);
+    return RealElement.connectAsync(this, (RealElement) element);
   }
 
   @Override
   public String getId() {
-    return webRtcEndpoint.getId();
+    return getMediaElement().getId();
   }
 
   @Override
   public void setLabel(String label) {
     super.setLabel(label);
-    webRtcEndpoint.setName(label);
+    if (async) {
+      webRtcEndpoint
+          .thenAccept(endpoint -> endpoint.setName(label, new NameContinuation(this)));
+    } else {
+      getMediaElement().setName(label);
+    }
   }
 }
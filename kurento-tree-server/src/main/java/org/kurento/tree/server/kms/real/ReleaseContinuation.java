@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import org.kurento.client.Continuation;
+import org.kurento.tree.server.kms.KurentoObj;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Media objects are released in the media server asynchronously. The tree model is updated
+ * immediately, so there is no need to wait for the KMS round trip.
+ */
+class ReleaseContinuation implements Continuation<Void> {
+
+  private static final Logger log = LoggerFactory.getLogger(ReleaseContinuation.class);
+
+  private KurentoObj obj;
+
+  ReleaseContinuation(KurentoObj obj) {
+    this.obj = obj;
+  }
+
+  @Override
+  public void onSuccess(Void result) {
+    log.debug("Released {} in media server", obj.getLabel());
+  }
+
+  @Override
+  public void onError(Throwable cause) {
+    log.warn("Exception releasing {} in media server", obj.getLabel(), cause);
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kms.real;
+
+import org.kurento.client.ListenerSubscription;
+import org.kurento.tree.server.kms.KurentoObj;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Listeners of media events are subscribed in the media server asynchronously, as elements are
+ * created while holding the lock of their tree. Operations that need the events, like gathering
+ * candidates, can wait for this future.
+ */
+class SubscriptionContinuation extends ContinuationFuture<ListenerSubscription> {
+
+  private static final Logger log = LoggerFactory.getLogger(SubscriptionContinuation.class);
+
+  private KurentoObj obj;
+  private String event;
+
+  SubscriptionContinuation(KurentoObj obj, String event) {
+    this.obj = obj;
+    this.event = event;
+  }
+
+  @Override
+  public void onSuccess(ListenerSubscription result) {
+    log.debug("Subscribed to {} of {} in media server", event, obj.getLabel());
+    super.onSuccess(result);
+  }
+
+  @Override
+  public void onError(Throwable cause) {
+    log.warn("Exception subscribing to {} of {} in media server", event, obj.getLabel(), cause);
+    super.onError(cause);
+  }
+}
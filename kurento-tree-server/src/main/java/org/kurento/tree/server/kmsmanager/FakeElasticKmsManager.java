@@ -41,10 +41,15 @@ public class FakeElasticKmsManager extends KmsManager {
     this.maxKmss = maxKmss;
     this.ignoreFirstKmsInLoadMeasure = ignoreFirstKmsInLoadMeasure;
     for (int i = 0; i < minKmss; i++) {
-      kmss.add(newKms(i));
+      addKms(newKms(i));
     }
   }
 
+  private void addKms(Kms kms) {
+    kmss.add(kms);
+    addToLoadIndex(kms);
+  }
+
   private Kms newKms(int num) {
     Kms kms = new Kms("Kms " + num);
     if (loadManager != null) {
@@ -76,7 +81,7 @@ public class FakeElasticKmsManager extends KmsManager {
       double meanLoad = totalLoad / kmssToMean;
       System.out.println("Mean load: " + meanLoad);
       if (meanLoad > meanLoadToGrow) {
-        this.kmss.add(newKms(kmss.size()));
+        addKms(newKms(kmss.size()));
       }
     }
   }
@@ -20,6 +20,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.fake.FakeKms;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
 import org.kurento.tree.server.kms.loadmanager.LoadManager;
 
 public class FakeFixedNKmsManager extends KmsManager {
@@ -31,12 +33,21 @@ public class FakeFixedNKmsManager extends KmsManager {
   }
 
   public FakeFixedNKmsManager(int numKmss, LoadManager loadManager) {
+    this(numKmss, loadManager, null);
+  }
+
+  /**
+   * Creates kmss that inject the latencies and faults of the given configuration, or plain kmss if
+   * it is null.
+   */
+  public FakeFixedNKmsManager(int numKmss, LoadManager loadManager, FakeKmsConfig config) {
     for (int i = 0; i < numKmss; i++) {
-      Kms kms = new Kms();
+      Kms kms = config != null ? new FakeKms(config) : new Kms();
       if (loadManager != null) {
         kms.setLoadManager(loadManager);
       }
       this.kmss.add(kms);
+      addToLoadIndex(kms);
     }
   }
 
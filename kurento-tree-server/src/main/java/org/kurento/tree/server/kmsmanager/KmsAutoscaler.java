@@ -0,0 +1,291 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kmsmanager;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.WebRtcListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adds and removes kmss in background so requests do not wait for new kmss. It measures the rate
+ * of webrtcs created in a moving window and keeps capacity for the current load, the webrtcs
+ * expected within the look-ahead horizon and some headroom.
+ * <p>
+ * Kmss are removed one at a time, when the capacity has been exceeding the demand by more than one
+ * kms during the scale down delay, so capacity does not flap with load spikes. The least loaded
+ * kms is drained, as with continuous traffic no kms is ever empty. It receives no new elements and
+ * is destroyed in a later run, once its elements and the ones reserved in it by concurrent
+ * requests have been released.
+ * <p>
+ * It is disabled unless kms.autoscaler.interval is set. Otherwise kmss are checked in each request.
+ */
+public class KmsAutoscaler implements WebRtcListener {
+
+  private static final Logger log = LoggerFactory.getLogger(KmsAutoscaler.class);
+
+  public static final long INTERVAL = PropertiesManager.getProperty("kms.autoscaler.interval",
+      0L);
+
+  public static final long RATE_WINDOW = PropertiesManager
+      .getProperty("kms.autoscaler.rateWindow", 60000L);
+
+  public static final long HORIZON = PropertiesManager.getProperty("kms.autoscaler.horizon",
+      10000L);
+
+  public static final double HEADROOM = PropertiesManager.getProperty("kms.autoscaler.headroom",
+      PropertiesManager.getProperty("kms.minFreeSpace", 3));
+
+  public static final long SCALE_DOWN_DELAY = PropertiesManager
+      .getProperty("kms.autoscaler.scaleDownDelay", 60000L);
+
+  private static final int RATE_BUCKETS = 20;
+
+  // Each bucket packs its period in the high bits and its count in the low ones, so both are
+  // updated together. Periods wrap after 2^40 buckets and counts saturate
+  private static final int COUNT_BITS = 24;
+  private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+  private static final long PERIOD_MASK = (1L << (Long.SIZE - COUNT_BITS)) - 1;
+
+  /**
+   * The kmss managed by the autoscaler.
+   */
+  public interface Target {
+
+    List<Kms> getKmss();
+
+    /**
+     * Returns the load points used in a kms, as they are compared with {@link #getKmsCapacity()}.
+     */
+    double getLoadPoints(Kms kms);
+
+    int getKmsCapacity();
+
+    void addKms();
+
+    /**
+     * Stops selecting the kms for new elements and removes it from {@link #getKmss()}. It is
+     * removed by {@link #removeDrainedKmss()} once its elements are released.
+     */
+    void drainKms(Kms kms);
+
+    /**
+     * Removes the draining kmss without elements nor reservations.
+     *
+     * @return the number of removed kmss
+     */
+    int removeDrainedKmss();
+  }
+
+  private final Target target;
+  private final long horizon;
+  private final double headroom;
+  private final long scaleDownDelay;
+  private final ScheduledExecutorService executor;
+  private final LongSupplier clock;
+
+  // Period and webrtcs created of each bucket of the rate window. A bucket is
+  // reset the first time it is used in a new period
+  private final long bucketMillis;
+  private final AtomicLongArray buckets = new AtomicLongArray(RATE_BUCKETS);
+
+  // Time since the kmss exceed the demand, or -1
+  private long overProvisionedSince = -1;
+
+  private volatile int targetKmss = 1;
+  private final AtomicLong scaleUps = new AtomicLong();
+  private final AtomicLong scaleDowns = new AtomicLong();
+
+  public KmsAutoscaler(Target target) {
+    this(target, INTERVAL, RATE_WINDOW, HORIZON, HEADROOM, SCALE_DOWN_DELAY);
+  }
+
+  public KmsAutoscaler(Target target, long interval, long rateWindow, long horizon,
+      double headroom, long scaleDownDelay) {
+    this(target, interval, rateWindow, horizon, headroom, scaleDownDelay,
+        System::currentTimeMillis);
+  }
+
+  /**
+   * @param clock
+   *          current time in millis, used for the rate window and the scale down delay
+   */
+  public KmsAutoscaler(Target target, long interval, long rateWindow, long horizon,
+      double headroom, long scaleDownDelay, LongSupplier clock) {
+
+    this.clock = clock;
+    this.target = target;
+    this.horizon = horizon;
+    this.headroom = headroom;
+    this.scaleDownDelay = scaleDownDelay;
+    this.bucketMillis = Math.max(1, rateWindow / RATE_BUCKETS);
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "kms-autoscaler");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    if (interval > 0) {
+      executor.scheduleWithFixedDelay(this::scaleSafely, interval, interval,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void webRtcAdded(WebRtc webRtc) {
+
+    long period = currentPeriod();
+    int bucket = (int) (period % RATE_BUCKETS);
+
+    buckets.getAndUpdate(bucket, state -> {
+      if (state >>> COUNT_BITS != period) {
+        return (period << COUNT_BITS) | 1;
+      }
+      return (state & COUNT_MASK) == COUNT_MASK ? state : state + 1;
+    });
+  }
+
+  @Override
+  public void webRtcRemoved(WebRtc webRtc) {
+  }
+
+  @Override
+  public void mediaChanged(WebRtc webRtc) {
+  }
+
+  /**
+   * Returns the webrtcs created per second in the rate window.
+   */
+  public double getRate() {
+
+    long period = currentPeriod();
+
+    long count = 0;
+    for (int i = 0; i < RATE_BUCKETS; i++) {
+      long state = buckets.get(i);
+      if (((period - (state >>> COUNT_BITS)) & PERIOD_MASK) < RATE_BUCKETS) {
+        count += state & COUNT_MASK;
+      }
+    }
+    return count * 1000.0 / (bucketMillis * RATE_BUCKETS);
+  }
+
+  private long currentPeriod() {
+    return (clock.getAsLong() / bucketMillis) & PERIOD_MASK;
+  }
+
+  /**
+   * Returns the number of kmss needed for the current load, the load expected within the horizon
+   * and the headroom.
+   */
+  public int calculateTargetKmss() {
+
+    double load = 0;
+    for (Kms kms : target.getKmss()) {
+      load += target.getLoadPoints(kms);
+    }
+
+    double demand = load + getRate() * horizon / 1000.0 + headroom;
+    return Math.max(1, (int) Math.ceil(demand / target.getKmsCapacity()));
+  }
+
+  private void scaleSafely() {
+    try {
+      scale();
+    } catch (Exception e) {
+      log.warn("Exception scaling kmss", e);
+    }
+  }
+
+  /**
+   * Adds or removes kmss to reach the target. It is invoked periodically, but it can also be
+   * invoked to scale immediately.
+   */
+  public synchronized void scale() {
+
+    target.removeDrainedKmss();
+
+    int numKmss = target.getKmss().size();
+    int newTarget = calculateTargetKmss();
+    targetKmss = newTarget;
+
+    if (numKmss < newTarget) {
+      overProvisionedSince = -1;
+      log.info("Adding {} kmss for a rate of {} webrtcs/s", newTarget - numKmss, getRate());
+      for (int i = numKmss; i < newTarget; i++) {
+        target.addKms();
+        scaleUps.incrementAndGet();
+      }
+      return;
+    }
+
+    if (numKmss == newTarget) {
+      overProvisionedSince = -1;
+      return;
+    }
+
+    long now = clock.getAsLong();
+    if (overProvisionedSince == -1) {
+      overProvisionedSince = now;
+    } else if (now - overProvisionedSince >= scaleDownDelay) {
+      Kms drainedKms = null;
+      double drainedLoad = Double.MAX_VALUE;
+      for (Kms kms : target.getKmss()) {
+        double load = target.getLoadPoints(kms);
+        if (load < drainedLoad) {
+          drainedKms = kms;
+          drainedLoad = load;
+        }
+      }
+      if (drainedKms != null) {
+        log.info("Draining kms {} with {} load points because {} kmss are enough",
+            drainedKms.getLabel(), drainedLoad, newTarget);
+        target.drainKms(drainedKms);
+        scaleDowns.incrementAndGet();
+        // The next kms needs a new delay
+        overProvisionedSince = now;
+      }
+    }
+  }
+
+  public int getTargetKmss() {
+    return targetKmss;
+  }
+
+  public long getScaleUps() {
+    return scaleUps.get();
+  }
+
+  public long getScaleDowns() {
+    return scaleDowns.get();
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+}
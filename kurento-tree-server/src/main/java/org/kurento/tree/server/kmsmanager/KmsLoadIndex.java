@@ -0,0 +1,179 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kmsmanager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.KmsLoadListener;
+
+/**
+ * Index of kmss ordered by load. It is updated each time the load of an indexed kms changes, so the
+ * less loaded kms is obtained in O(log K) without sorting the kmss in each request.
+ * <p>
+ * Each kms has a single entry that is moved in the index when its load changes, so updating the
+ * index and walking it with {@link #selectKms(Predicate)} do not allocate memory.
+ * <p>
+ * Draining kmss stay indexed, so their load is still tracked, but they are not returned when
+ * selecting kmss by load.
+ */
+public class KmsLoadIndex implements KmsLoadListener {
+
+  private static class IndexedKms {
+
+    private final Kms kms;
+    private final long seq;
+    // Only changed while the entry is out of the index
+    private volatile double load;
+
+    public IndexedKms(Kms kms, double load, long seq) {
+      this.kms = kms;
+      this.load = load;
+      this.seq = seq;
+    }
+  }
+
+  // Kmss with the same load are ordered by the time they were added
+  private static final Comparator<IndexedKms> LOAD_ORDER = Comparator
+      .comparingDouble((IndexedKms e) -> e.load).thenComparingLong(e -> e.seq);
+
+  private final AtomicLong seqGenerator = new AtomicLong();
+  private final ConcurrentSkipListSet<IndexedKms> index = new ConcurrentSkipListSet<>(LOAD_ORDER);
+  private final ConcurrentHashMap<Kms, IndexedKms> entries = new ConcurrentHashMap<>();
+
+  public void add(Kms kms) {
+    entries.compute(kms, (k, entry) -> reindex(kms, entry));
+    kms.addLoadListener(this);
+  }
+
+  public void remove(Kms kms) {
+    kms.removeLoadListener(this);
+    entries.computeIfPresent(kms, (k, entry) -> {
+      index.remove(entry);
+      return null;
+    });
+  }
+
+  @Override
+  public void loadChanged(Kms kms) {
+    entries.computeIfPresent(kms, (k, entry) -> reindex(kms, entry));
+  }
+
+  // Invoked inside a compute of entries, so updates of the same kms are serialized
+  private IndexedKms reindex(Kms kms, IndexedKms entry) {
+
+    double load = kms.getLoad();
+
+    if (entry == null) {
+      entry = new IndexedKms(kms, load, seqGenerator.incrementAndGet());
+      index.add(entry);
+      return entry;
+    }
+
+    if (entry.load != load) {
+      index.remove(entry);
+      entry.load = load;
+      index.add(entry);
+    }
+    return entry;
+  }
+
+  public boolean isEmpty() {
+    return index.isEmpty();
+  }
+
+  /**
+   * Returns the less loaded kms that is not draining.
+   *
+   * @throws NoSuchElementException
+   *           if all kmss are draining
+   */
+  public Kms getLessLoadedKms() {
+    Kms kms = selectKms(k -> true);
+    if (kms == null) {
+      throw new NoSuchElementException("There isn't any kms that is not draining");
+    }
+    return kms;
+  }
+
+  /**
+   * Returns the first kms, from the less to the most loaded one, that is not draining and is
+   * accepted by the selector, or null if there is none. The selector can reserve space in the
+   * kms, as it is not invoked again once it accepts a kms.
+   * <p>
+   * A kms whose load changes while walking the index can be missed or visited twice, so kmss are
+   * visited once more in any order before returning null.
+   */
+  public Kms selectKms(Predicate<Kms> selector) {
+
+    for (IndexedKms entry = first(); entry != null; entry = index.higher(entry)) {
+      if (!entry.kms.isDraining() && selector.test(entry.kms)) {
+        return entry.kms;
+      }
+    }
+
+    for (Kms kms : entries.keySet()) {
+      if (!kms.isDraining() && selector.test(kms)) {
+        return kms;
+      }
+    }
+    return null;
+  }
+
+  private IndexedKms first() {
+    try {
+      return index.first();
+    } catch (NoSuchElementException e) {
+      // Emptied concurrently
+      return null;
+    }
+  }
+
+  public List<KmsLoad> getKmssSortedByLoad() {
+
+    List<KmsLoad> kmsLoads = new ArrayList<>(entries.size());
+    Map<Kms, Boolean> added = new IdentityHashMap<>();
+
+    for (IndexedKms entry : index) {
+      if (entry.kms.isDraining()) {
+        continue;
+      }
+      // A kms can be seen twice while its load is being updated
+      if (added.put(entry.kms, Boolean.TRUE) == null) {
+        kmsLoads.add(new KmsLoad(entry.kms, entry.load));
+      }
+    }
+    return kmsLoads;
+  }
+
+  public List<Kms> getKmss() {
+    return new ArrayList<>(entries.keySet());
+  }
+
+  public int size() {
+    return entries.size();
+  }
+}
@@ -16,31 +16,79 @@
  */
 package org.kurento.tree.server.kmsmanager;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
 
 import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.WebRtcListener;
 
 public abstract class KmsManager {
 
+  private final KmsLoadIndex loadIndex = new KmsLoadIndex();
+  private final List<WebRtcListener> webRtcListeners = new CopyOnWriteArrayList<>();
+
   public abstract List<Kms> getKmss();
 
   public Kms getLessLoadedKms() {
-    ArrayList<KmsLoad> kmsLoads = new ArrayList<>();
-    for (Kms kms : getKmss()) {
-      kmsLoads.add(new KmsLoad(kms, kms.getLoad()));
-    }
-    return Collections.min(kmsLoads).getKms();
+    // Elastic managers update their kmss when they are requested
+    getKmss();
+    return loadIndex.getLessLoadedKms();
+  }
+
+  /**
+   * Returns the first kms, from the less to the most loaded one, accepted by the selector, or null
+   * if there is none. Unlike {@link #getKmssSortedByLoad()}, kmss are walked in the load index
+   * without copying them.
+   *
+   * @see KmsLoadIndex#selectKms(Predicate)
+   */
+  public Kms selectKmsByLoad(Predicate<Kms> selector) {
+    // Elastic managers update their kmss when they are requested
+    getKmss();
+    return loadIndex.selectKms(selector);
   }
 
   public List<KmsLoad> getKmssSortedByLoad() {
-    ArrayList<KmsLoad> kmsLoads = new ArrayList<>();
-    for (Kms kms : getKmss()) {
-      kmsLoads.add(new KmsLoad(kms, kms.getLoad()));
+    // Elastic managers update their kmss when they are requested
+    getKmss();
+    return loadIndex.getKmssSortedByLoad();
+  }
+
+  /**
+   * Returns the kmss added by this manager without updating them, so it can be used from background
+   * tasks even with elastic managers.
+   */
+  public List<Kms> getRegisteredKmss() {
+    return loadIndex.getKmss();
+  }
+
+  /**
+   * Adds a listener to the current and future kmss of this manager.
+   */
+  public void addWebRtcListener(WebRtcListener listener) {
+    webRtcListeners.add(listener);
+    for (Kms kms : getRegisteredKmss()) {
+      kms.addWebRtcListener(listener);
+    }
+  }
+
+  /**
+   * Subclasses have to invoke this method for each kms they add, so it is taken into account when
+   * selecting kmss by load and it is observed by the webrtc listeners.
+   */
+  protected void addToLoadIndex(Kms kms) {
+    for (WebRtcListener listener : webRtcListeners) {
+      kms.addWebRtcListener(listener);
+    }
+    loadIndex.add(kms);
+  }
+
+  protected void removeFromLoadIndex(Kms kms) {
+    loadIndex.remove(kms);
+    for (WebRtcListener listener : webRtcListeners) {
+      kms.removeWebRtcListener(listener);
     }
-    Collections.sort(kmsLoads);
-    return kmsLoads;
   }
 
 }
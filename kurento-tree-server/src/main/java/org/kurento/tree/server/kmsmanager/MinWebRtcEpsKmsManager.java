@@ -16,17 +16,20 @@
  */
 package org.kurento.tree.server.kmsmanager;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.kurento.client.KurentoClient;
 import org.kurento.client.Properties;
 import org.kurento.commons.PropertiesManager;
 import org.kurento.tree.server.kms.Kms;
-import org.kurento.tree.server.kms.Pipeline;
-import org.kurento.tree.server.kms.loadmanager.MaxWebRtcLoadManager;
+import org.kurento.tree.server.kms.fake.FakeKms;
+import org.kurento.tree.server.kms.loadmanager.LoadManagers;
+import org.kurento.tree.server.kms.real.KmsStatsPoller;
+import org.kurento.tree.server.kms.real.PlumberType;
 import org.kurento.tree.server.kms.real.RealKms;
 import org.kurento.tree.server.treemanager.KmsListener;
 import org.slf4j.Logger;
@@ -38,34 +41,98 @@ public class MinWebRtcEpsKmsManager extends KmsManager {
 
   public static final int KMS_MAX_WEBRTC = PropertiesManager.getProperty("kms.maxWebrtc", 50);
 
+  // Otherwise kmss are fake, with the latencies and faults of kms.fake.* properties
   private static final boolean REAL_KMS = PropertiesManager.getProperty("kms.real", true);
 
+  private static final PlumberType PLUMBER_TYPE = PlumberType.fromConfig();
+
   private static final int KMS_MIN_FREE_SPACE = PropertiesManager.getProperty("kms.minFreeSpace",
       3);
 
-  private List<Kms> kmss = new ArrayList<>();
+  private List<Kms> kmss = new CopyOnWriteArrayList<>();
+  // Kmss not selected for new elements, that are removed once they are idle.
+  // Elements reserved before draining can still be created in them
+  private List<Kms> drainingKmss = new CopyOnWriteArrayList<>();
+  private final AtomicInteger kmsCounter = new AtomicInteger();
 
   private KmsListener kmsListener;
 
+  private KmsStatsPoller statsPoller = REAL_KMS && LoadManagers.areStatsUsed()
+      ? new KmsStatsPoller() : null;
+
+  // Adds and removes kmss in background when enabled. Otherwise kmss are
+  // checked in each request
+  private KmsAutoscaler autoscaler;
+
   public MinWebRtcEpsKmsManager() {
 
     log.info("Requesting new Kms because the app is starting");
 
     addKms();
+
+    if (KmsAutoscaler.INTERVAL > 0) {
+      autoscaler = new KmsAutoscaler(new KmsAutoscaler.Target() {
+
+        @Override
+        public List<Kms> getKmss() {
+          return kmss;
+        }
+
+        @Override
+        public double getLoadPoints(Kms kms) {
+          return calculateLoadPoints(kms);
+        }
+
+        @Override
+        public int getKmsCapacity() {
+          return KMS_MAX_WEBRTC;
+        }
+
+        @Override
+        public void addKms() {
+          MinWebRtcEpsKmsManager.this.addKms();
+        }
+
+        @Override
+        public void drainKms(Kms kms) {
+          MinWebRtcEpsKmsManager.this.drainKms(kms);
+        }
+
+        @Override
+        public int removeDrainedKmss() {
+          return MinWebRtcEpsKmsManager.this.removeDrainedKmss();
+        }
+      });
+      addWebRtcListener(autoscaler);
+    }
   }
 
-  private void addKms() {
+  private synchronized void addKms() {
+
+    if (!drainingKmss.isEmpty()) {
+      Kms kms = drainingKmss.remove(drainingKmss.size() - 1);
+      kms.setDraining(false);
+      kmss.add(kms);
+      log.info("Reusing draining Kms {}", kms.getLabel());
+      return;
+    }
 
     Kms kms;
     if (REAL_KMS) {
-      kms = new RealKms(KurentoClient.create(Properties.of("loadPoints", KMS_MAX_WEBRTC)));
+      RealKms realKms = new RealKms(
+          KurentoClient.create(Properties.of("loadPoints", KMS_MAX_WEBRTC)), PLUMBER_TYPE);
+      if (statsPoller != null) {
+        statsPoller.addKms(realKms);
+      }
+      kms = realKms;
     } else {
-      kms = new Kms();
+      kms = new FakeKms();
     }
 
-    kms.setLoadManager(new MaxWebRtcLoadManager(KMS_MAX_WEBRTC));
-    kms.setLabel("Kms" + kmss.size());
+    kms.setLoadManager(LoadManagers.create(KMS_MAX_WEBRTC, PLUMBER_TYPE.getLoadWeight()));
+    kms.setLabel("Kms" + kmsCounter.getAndIncrement());
     kmss.add(kms);
+    addToLoadIndex(kms);
 
     log.info("Obtained new Kms: " + kms.getLabel());
 
@@ -76,21 +143,40 @@ public class MinWebRtcEpsKmsManager extends KmsManager {
 
   @Override
   public List<Kms> getKmss() {
-    checkLoadAndUpdateKmss();
+    if (autoscaler == null) {
+      checkLoadAndUpdateKmss();
+    } else if (!hasFreeSpace()) {
+      addKmsIfFull();
+    }
     return kmss;
   }
 
-  private int calculateLoadPoints(Kms kms) {
-    int count = 0;
-    for (Pipeline pipeline : kms.getPipelines()) {
-      count += pipeline.getWebRtcs().size();
-      count += pipeline.getPlumbers().size();
+  // The autoscaler has not anticipated the load, so the request has to wait
+  // for a new kms
+  private synchronized void addKmsIfFull() {
+    if (!hasFreeSpace()) {
+      log.warn("Requesting new Kms in request because there isn't a KMS with free space");
+      addKms();
+    }
+  }
+
+  private boolean hasFreeSpace() {
+    for (Kms kms : kmss) {
+      if (KMS_MAX_WEBRTC - calculateLoadPoints(kms) >= 1) {
+        return true;
+      }
     }
-    return count;
+    return false;
+  }
+
+  private double calculateLoadPoints(Kms kms) {
+    return kms.getNumWebRtcs() + PLUMBER_TYPE.getLoadWeight() * kms.getNumPlumbers();
   }
 
   private synchronized void checkLoadAndUpdateKmss() {
 
+    removeDrainedKmss();
+
     List<KmsLoad> kmsLoads = kmss.stream().map(kms -> new KmsLoad(kms, calculateLoadPoints(kms)))
         .collect(Collectors.toList());
 
@@ -129,17 +215,42 @@ public class MinWebRtcEpsKmsManager extends KmsManager {
         KmsLoad kmsLoad = kmsLoads.get(i);
         Kms kms = kmsLoad.getKms();
         if (kmsLoad.getLoad() == 0) {
-          log.info("Removing Kms " + kms.getLabel() + " because its load is 0");
-          removeKms(kms);
+          log.info("Draining Kms " + kms.getLabel() + " because its load is 0");
+          drainKms(kms);
         }
       }
     }
   }
 
-  private void removeKms(Kms kms) {
-    log.info("Removing Kms {}", kms.getLabel());
+  private synchronized void drainKms(Kms kms) {
+    log.info("Draining Kms {}", kms.getLabel());
+    // Marked before removing it, so trees reserving holes concurrently
+    // either see it draining or leave a reservation that delays its removal
+    kms.setDraining(true);
     kmss.remove(kms);
+    drainingKmss.add(kms);
+  }
+
+  private synchronized int removeDrainedKmss() {
+    int removed = 0;
+    for (Kms kms : drainingKmss) {
+      if (kms.getNumElements() == 0 && kms.getPipelines().isEmpty()
+          && (kmsListener == null || !kmsListener.hasReservations(kms))) {
+        drainingKmss.remove(kms);
+        removeKms(kms);
+        removed++;
+      }
+    }
+    return removed;
+  }
+
+  private synchronized void removeKms(Kms kms) {
+    log.info("Removing Kms {}", kms.getLabel());
+    removeFromLoadIndex(kms);
     if (kms instanceof RealKms) {
+      if (statsPoller != null) {
+        statsPoller.removeKms((RealKms) kms);
+      }
       KurentoClient client = ((RealKms) kms).getKurentoClient();
       client.destroy();
     } else {
@@ -155,4 +266,16 @@ public class MinWebRtcEpsKmsManager extends KmsManager {
     this.kmsListener = kmsListener;
   }
 
+  /**
+   * Stops the background tasks of this manager. Kmss are not released.
+   */
+  public void close() {
+    if (autoscaler != null) {
+      autoscaler.close();
+    }
+    if (statsPoller != null) {
+      statsPoller.close();
+    }
+  }
+
 }
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.kmsmanager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.tree.server.kms.Kms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically compares the pipelines that exist in each media server with the pipelines of the
+ * model, and releases the ones that are not in the model, like the pipelines left by failed
+ * releases or by a previous execution of the server. A pipeline is only released when it has been
+ * unknown for the grace period, so pipelines being created are not released. Collections are
+ * disabled when the interval is 0, but they can be requested with {@link #collect()}.
+ * <p>
+ * All the pipelines of the media servers are supposed to be managed by this server, so it must not
+ * be enabled when media servers are shared with other applications.
+ */
+public class OrphanPipelineCollector {
+
+  private static final Logger log = LoggerFactory.getLogger(OrphanPipelineCollector.class);
+
+  public static final long COLLECT_INTERVAL = PropertiesManager.getProperty("kms.gc.interval",
+      0L);
+
+  public static final long GRACE_PERIOD = PropertiesManager.getProperty("kms.gc.gracePeriod",
+      30000L);
+
+  private final KmsManager kmsManager;
+  private final long gracePeriod;
+  private final ScheduledExecutorService executor;
+
+  // Time when each unknown pipeline was found, by kms
+  private final Map<Kms, Map<String, Long>> unknownPipelines = new ConcurrentHashMap<>();
+
+  private final AtomicLong collections = new AtomicLong();
+  private final AtomicLong releasedPipelines = new AtomicLong();
+  private final AtomicLong failedReleases = new AtomicLong();
+
+  public OrphanPipelineCollector(KmsManager kmsManager) {
+    this(kmsManager, COLLECT_INTERVAL, GRACE_PERIOD);
+  }
+
+  public OrphanPipelineCollector(KmsManager kmsManager, long collectInterval, long gracePeriod) {
+
+    this.kmsManager = kmsManager;
+    this.gracePeriod = gracePeriod;
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "orphan-pipeline-collector");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    if (collectInterval > 0) {
+      executor.scheduleWithFixedDelay(this::collect, collectInterval, collectInterval,
+          TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Releases the pipelines that have been unknown for more than the grace period and returns the
+   * number of released pipelines.
+   */
+  public synchronized int collect() {
+
+    List<Kms> kmss = kmsManager.getRegisteredKmss();
+    unknownPipelines.keySet().retainAll(kmss);
+
+    int released = 0;
+    for (Kms kms : kmss) {
+      try {
+        released += collect(kms);
+      } catch (Exception e) {
+        log.warn("Exception collecting orphan pipelines of kms {}", kms, e);
+      }
+    }
+
+    collections.incrementAndGet();
+    return released;
+  }
+
+  private int collect(Kms kms) {
+
+    // Server pipelines are requested first, so pipelines created in between
+    // are known
+    List<String> serverIds = kms.getServerPipelineIds();
+    Set<String> knownIds = kms.getPipelineIds();
+
+    long now = System.currentTimeMillis();
+    Map<String, Long> previous = unknownPipelines.getOrDefault(kms, new HashMap<>());
+    Map<String, Long> current = new HashMap<>();
+
+    for (String id : serverIds) {
+      if (!knownIds.contains(id)) {
+        Long since = previous.get(id);
+        current.put(id, since != null ? since : now);
+      }
+    }
+
+    int released = 0;
+    Iterator<Entry<String, Long>> it = current.entrySet().iterator();
+    while (it.hasNext()) {
+      Entry<String, Long> entry = it.next();
+      if (previous.containsKey(entry.getKey()) && now - entry.getValue() >= gracePeriod) {
+        it.remove();
+        if (kms.releaseUnknownPipeline(entry.getKey())) {
+          log.info("Released orphan pipeline {} of kms {}", entry.getKey(), kms);
+          releasedPipelines.incrementAndGet();
+          released++;
+        } else {
+          failedReleases.incrementAndGet();
+        }
+      }
+    }
+
+    unknownPipelines.put(kms, current);
+    return released;
+  }
+
+  public long getCollections() {
+    return collections.get();
+  }
+
+  public long getReleasedPipelines() {
+    return releasedPipelines.get();
+  }
+
+  public long getFailedReleases() {
+    return failedReleases.get();
+  }
+
+  /**
+   * Returns the number of unknown pipelines found in the last collection that have not been
+   * released yet.
+   */
+  public int getPendingPipelines() {
+    int pending = 0;
+    for (Map<String, Long> pipelines : unknownPipelines.values()) {
+      pending += pipelines.size();
+    }
+    return pending;
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -20,14 +20,25 @@ import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.kurento.client.KurentoClient;
+import org.kurento.commons.PropertiesManager;
 import org.kurento.tree.server.app.KmsRegistrar;
 import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.loadmanager.LoadManagers;
+import org.kurento.tree.server.kms.loadmanager.LoadManagers.LoadModel;
+import org.kurento.tree.server.kms.real.KmsStatsPoller;
+import org.kurento.tree.server.kms.real.PlumberType;
 import org.kurento.tree.server.kms.real.RealKms;
 
 public class RealElasticKmsManager extends KmsManager implements KmsRegistrar {
 
+  public static final int KMS_MAX_WEBRTC = PropertiesManager.getProperty("kms.maxWebrtc", 50);
+
+  private static final PlumberType PLUMBER_TYPE = PlumberType.fromConfig();
+
   public List<Kms> kmss = new CopyOnWriteArrayList<>();
 
+  private KmsStatsPoller statsPoller = LoadManagers.areStatsUsed() ? new KmsStatsPoller() : null;
+
   public RealElasticKmsManager(List<String> kmsWsUris) {
     for (String kmsWsUri : kmsWsUris) {
       addKms(kmsWsUri);
@@ -35,7 +46,16 @@ public class RealElasticKmsManager extends KmsManager implements KmsRegistrar {
   }
 
   private void addKms(String kmsWsUri) {
-    this.kmss.add(new RealKms(KurentoClient.create(kmsWsUri)));
+    RealKms kms = new RealKms(KurentoClient.create(kmsWsUri), PLUMBER_TYPE);
+    // Registered kmss keep their default load manager unless a load model is configured
+    if (LoadManagers.LOAD_MODEL == LoadModel.WEIGHTED) {
+      kms.setLoadManager(LoadManagers.create(KMS_MAX_WEBRTC, PLUMBER_TYPE.getLoadWeight()));
+    }
+    if (statsPoller != null) {
+      statsPoller.addKms(kms);
+    }
+    this.kmss.add(kms);
+    addToLoadIndex(kms);
   }
 
   public List<Kms> getKmss() {
@@ -46,4 +66,13 @@ public class RealElasticKmsManager extends KmsManager implements KmsRegistrar {
   public void register(String kmsWsUri) {
     addKms(kmsWsUri);
   }
+
+  /**
+   * Stops the background tasks of this manager. Kmss are not released.
+   */
+  public void close() {
+    if (statsPoller != null) {
+      statsPoller.close();
+    }
+  }
 }
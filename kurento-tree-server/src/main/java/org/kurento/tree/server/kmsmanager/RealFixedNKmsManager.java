@@ -30,7 +30,9 @@ public class RealFixedNKmsManager extends KmsManager {
 
   public RealFixedNKmsManager(List<String> kmsWsUris) throws IOException {
     for (String kmsWsUri : kmsWsUris) {
-      this.kmss.add(new RealKms(KurentoClient.create(kmsWsUri)));
+      Kms kms = new RealKms(KurentoClient.create(kmsWsUri));
+      this.kmss.add(kms);
+      addToLoadIndex(kms);
     }
   }
 
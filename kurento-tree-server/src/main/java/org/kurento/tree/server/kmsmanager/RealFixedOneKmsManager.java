@@ -31,7 +31,9 @@ public class RealFixedOneKmsManager extends KmsManager {
   public RealFixedOneKmsManager(String kmsWsUri, int numKmss) throws IOException {
     for (int i = 0; i < numKmss; i++) {
       KurentoClient client = KurentoClient.create(kmsWsUri);
-      this.kmss.add(new RealKms(client));
+      Kms kms = new RealKms(client);
+      this.kmss.add(kms);
+      addToLoadIndex(kms);
     }
   }
 
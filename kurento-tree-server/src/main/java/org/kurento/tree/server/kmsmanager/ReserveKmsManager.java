@@ -17,14 +17,17 @@
 package org.kurento.tree.server.kmsmanager;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.kurento.client.KurentoClient;
 import org.kurento.client.Properties;
 import org.kurento.commons.PropertiesManager;
 import org.kurento.tree.server.kms.Kms;
-import org.kurento.tree.server.kms.loadmanager.MaxWebRtcLoadManager;
+import org.kurento.tree.server.kms.fake.FakeKms;
+import org.kurento.tree.server.kms.loadmanager.LoadManagers;
+import org.kurento.tree.server.kms.real.KmsStatsPoller;
+import org.kurento.tree.server.kms.real.PlumberType;
 import org.kurento.tree.server.kms.real.RealKms;
 import org.kurento.tree.server.treemanager.KmsListener;
 import org.slf4j.Logger;
@@ -38,13 +41,18 @@ public class ReserveKmsManager extends KmsManager {
 
   private static final boolean REAL_KMS = PropertiesManager.getProperty("kms.real", true);
 
+  private static final PlumberType PLUMBER_TYPE = PlumberType.fromConfig();
+
   private static final double AVG_LOAD_TO_NEW_KMS = PropertiesManager
       .getProperty("kms.avgLoadToNewKms", 0.8);
 
-  private List<Kms> kmss = new ArrayList<>();
+  private List<Kms> kmss = new CopyOnWriteArrayList<>();
 
   private KmsListener kmsListener;
 
+  private KmsStatsPoller statsPoller = REAL_KMS && LoadManagers.areStatsUsed()
+      ? new KmsStatsPoller() : null;
+
   public ReserveKmsManager() {
     addKms();
   }
@@ -52,14 +60,20 @@ public class ReserveKmsManager extends KmsManager {
   private void addKms() {
     Kms kms;
     if (REAL_KMS) {
-      kms = new RealKms(KurentoClient.create(Properties.of("loadPoints", KMS_MAX_WEBRTC)));
+      RealKms realKms = new RealKms(
+          KurentoClient.create(Properties.of("loadPoints", KMS_MAX_WEBRTC)), PLUMBER_TYPE);
+      if (statsPoller != null) {
+        statsPoller.addKms(realKms);
+      }
+      kms = realKms;
     } else {
-      kms = new Kms();
+      kms = new FakeKms();
     }
 
-    kms.setLoadManager(new MaxWebRtcLoadManager(KMS_MAX_WEBRTC));
+    kms.setLoadManager(LoadManagers.create(KMS_MAX_WEBRTC, PLUMBER_TYPE.getLoadWeight()));
     kms.setLabel("Kms" + kmss.size());
     kmss.add(kms);
+    addToLoadIndex(kms);
 
     log.debug("Added new kms " + kms.getLabel());
 
@@ -74,23 +88,21 @@ public class ReserveKmsManager extends KmsManager {
     return kmss;
   }
 
-  private void checkLoadAndUpdateKmss() {
-
-    Iterator<Kms> it = kmss.iterator();
+  private synchronized void checkLoadAndUpdateKmss() {
 
     double loadSum = 0;
     int numKms = 0;
 
     List<Kms> removedKmss = new ArrayList<Kms>();
 
-    while (it.hasNext()) {
-      Kms kms = it.next();
+    for (Kms kms : kmss) {
 
       double load = kms.getLoad();
 
       if (load == 0) {
         if (kmss.size() > 1) {
-          it.remove();
+          kmss.remove(kms);
+          removeFromLoadIndex(kms);
           removedKmss.add(kms);
         }
       } else {
@@ -104,6 +116,7 @@ public class ReserveKmsManager extends KmsManager {
       if (removedKmss.size() > 0) {
         Kms kms = removedKmss.remove(0);
         kmss.add(kms);
+        addToLoadIndex(kms);
       } else {
         log.info("Creating new Kms for avg load {}", loadSum / numKms);
         addKms();
@@ -119,6 +132,9 @@ public class ReserveKmsManager extends KmsManager {
   private void removeKms(Kms kms) {
     log.info("Removing Kms {}", kms.getLabel());
     if (kms instanceof RealKms) {
+      if (statsPoller != null) {
+        statsPoller.removeKms((RealKms) kms);
+      }
       KurentoClient client = ((RealKms) kms).getKurentoClient();
       client.destroy();
     } else {
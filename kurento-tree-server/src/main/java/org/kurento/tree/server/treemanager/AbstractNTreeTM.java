@@ -16,22 +16,95 @@
  */
 package org.kurento.tree.server.treemanager;
 
+import static org.kurento.commons.PropertiesManager.getProperty;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.TreeBatchResult;
 import org.kurento.tree.client.TreeEndpoint;
 import org.kurento.tree.client.TreeException;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.KurentoObj;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.Plumber;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.treemanager.TreeJournal.JournaledPipeline;
+import org.kurento.tree.server.treemanager.TreeJournal.JournaledTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public abstract class AbstractNTreeTM implements TreeManager {
+public abstract class AbstractNTreeTM implements AsyncTreeManager {
 
   private static final Logger log = LoggerFactory.getLogger(AbstractNTreeTM.class);
 
+  public static final String CONCURRENCY_MODE_PROPERTY = "tree.concurrencyMode";
+
+  /**
+   * How operations over trees are serialized. In {@link #GLOBAL} mode all operations share a
+   * single lock (the historical behaviour). In {@link #PER_TREE} mode each tree has its own lock,
+   * so operations on different trees run in parallel and only operations on the same tree are
+   * serialized.
+   */
+  public enum ConcurrencyMode {
+    GLOBAL, PER_TREE
+  }
+
   public abstract class TreeInfo {
 
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // Entries wait for the media objects they refer to, chained so that they are still recorded
+    // in order. Only updated holding the lock of the tree
+    private CompletableFuture<Void> journaled = CompletableFuture.completedFuture(null);
+
+    /**
+     * Records a mutation of the tree once the given media objects exist in the media server, as
+     * the objects created asynchronously do not know their ids before. The action must only read
+     * the ids of those objects.
+     */
+    protected void journal(Consumer<TreeJournal> action, KurentoObj... objs) {
+
+      if (journal == null) {
+        return;
+      }
+
+      CompletableFuture<?>[] created = new CompletableFuture<?>[objs.length];
+      for (int i = 0; i < objs.length; i++) {
+        created[i] = objs[i].whenCreated();
+      }
+
+      journaled = journaled.thenCompose(v -> CompletableFuture.allOf(created)).handle((v, e) -> {
+        if (e != null) {
+          log.debug("Entry not journaled, as its media objects were not created: {}",
+              e.getMessage());
+          return null;
+        }
+        try {
+          AbstractNTreeTM.this.journal(action);
+        } catch (RuntimeException ex) {
+          log.warn("Exception journaling an entry", ex);
+        }
+        return null;
+      });
+    }
+
     public abstract void release();
 
     public abstract String setTreeSource(Session session, String offerSdp);
@@ -45,49 +118,161 @@ public abstract class AbstractNTreeTM implements TreeManager {
     public abstract void addSinkIceCandidate(String sinkId, IceCandidate iceCandidate);
 
     public abstract void addTreeIceCandidate(IceCandidate iceCandidate);
-  }
 
-  private final TreeInfo DUMMY_TREE_INFO = new TreeInfo() {
-    @Override
-    public void release() {
+    /**
+     * Asynchronous version of {@link #setTreeSource(Session, String)}. It is invoked holding the
+     * lock of the tree, so the tree structure has to be updated before returning. Only the media
+     * negotiation should be left for the returned future.
+     */
+    public CompletableFuture<String> setTreeSourceAsync(Session session, String offerSdp) {
+      return CompletableFuture.completedFuture(setTreeSource(session, offerSdp));
     }
 
-    @Override
-    public String setTreeSource(Session session, String offerSdp) {
-      return null;
+    /**
+     * Asynchronous version of {@link #addTreeSink(Session, String)}. Same considerations than
+     * {@link #setTreeSourceAsync(Session, String)} apply.
+     */
+    public CompletableFuture<TreeEndpoint> addTreeSinkAsync(Session session, String sdpOffer) {
+      return CompletableFuture.completedFuture(addTreeSink(session, sdpOffer));
     }
 
-    @Override
-    public void removeTreeSource() {
+    public CompletableFuture<Void> removeTreeSinkAsync(String sinkId) {
+      removeTreeSink(sinkId);
+      return CompletableFuture.completedFuture(null);
     }
 
-    @Override
-    public TreeEndpoint addTreeSink(Session session, String sdpOffer) {
-      return null;
+    /**
+     * Adds a sink for each offer. All of them are added holding the lock of the tree once, so
+     * subclasses can plan the placement of the whole batch.
+     */
+    public CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> addTreeSinksAsync(
+        Session session, List<String> sdpOffers) {
+
+      List<CompletableFuture<TreeEndpoint>> futures = new ArrayList<>();
+      for (String sdpOffer : sdpOffers) {
+        futures.add(failIfThrown(() -> addTreeSinkAsync(session, sdpOffer)));
+      }
+      return collectResults(futures);
     }
 
-    @Override
-    public void removeTreeSink(String sinkId) {
+    public CompletableFuture<List<TreeBatchResult<Void>>> removeTreeSinksAsync(
+        List<String> sinkIds) {
+
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (String sinkId : sinkIds) {
+        futures.add(failIfThrown(() -> removeTreeSinkAsync(sinkId)));
+      }
+      return collectResults(futures);
     }
 
-    @Override
-    public void addSinkIceCandidate(String sinkId, IceCandidate iceCandidate) {
+    /**
+     * Returns the pipelines used by the tree, so they can be recorded in the {@link TreeJournal}
+     * once the tree is recovered.
+     */
+    public Collection<Pipeline> getPipelines() {
+      return Collections.emptyList();
     }
 
-    @Override
-    public void addTreeIceCandidate(IceCandidate iceCandidate) {
+    /**
+     * Reattaches the tree to the media that a previous execution of the server recorded in the
+     * journal. It is invoked before the tree is available to clients.
+     *
+     * @return the ids of the journaled pipelines that are part of the tree again. The other ones
+     *         are released
+     */
+    public Set<String> recover(JournaledTree tree) {
+      return Collections.emptySet();
     }
-  };
+  }
 
   private ConcurrentHashMap<String, TreeInfo> trees = new ConcurrentHashMap<>();
 
+  private final ConcurrencyMode concurrencyMode;
+  private final ReentrantLock globalLock = new ReentrantLock();
+
+  private volatile TreeJournal journal;
+
   public AbstractNTreeTM() {
+    this(getProperty(CONCURRENCY_MODE_PROPERTY, ConcurrencyMode.GLOBAL));
+  }
+
+  public AbstractNTreeTM(ConcurrencyMode concurrencyMode) {
+    this.concurrencyMode = concurrencyMode;
+    log.info("{} using concurrency mode {}", this.getClass().getSimpleName(), concurrencyMode);
+  }
+
+  public ConcurrencyMode getConcurrencyMode() {
+    return concurrencyMode;
+  }
+
+  /**
+   * Records the mutations of trees in the given journal. Trees of a journal written by a previous
+   * execution should be recovered with {@link #recover(TreeJournal)} first.
+   */
+  public void setJournal(TreeJournal journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Recreates the trees of a journal written by a previous execution with the same ids, so clients
+   * can keep using them. Trees are reattached to the pipelines and endpoints they had in the media
+   * servers, and only the pipelines that can not be reattached are released. Sources and sinks
+   * whose endpoints are lost have to be set again by clients.
+   *
+   * @return the number of released pipelines
+   */
+  public int recover(TreeJournal journal) {
+
+    int released = 0;
+    for (JournaledTree tree : journal.getTrees()) {
+
+      String treeId = tree.getTreeId();
+      TreeInfo treeInfo = createTreeInfo(treeId);
+      Set<String> recovered;
+      try {
+        recovered = treeInfo.recover(tree);
+      } catch (RuntimeException e) {
+        log.warn("Exception recovering tree {}. Releasing its pipelines", treeId, e);
+        for (Pipeline pipeline : treeInfo.getPipelines()) {
+          pipeline.release();
+        }
+        treeInfo = createTreeInfo(treeId);
+        recovered = Collections.emptySet();
+      }
+      trees.putIfAbsent(treeId, treeInfo);
+
+      for (String pipelineId : tree.getPipelineIds()) {
+        if (recovered.contains(pipelineId)) {
+          continue;
+        }
+        for (Kms kms : getKmsManager().getKmss()) {
+          if (kms.releaseUnknownPipeline(pipelineId)) {
+            released++;
+            break;
+          }
+        }
+      }
+
+      int numPipelines = tree.getPipelineIds().size();
+
+      // The journal drops what could not be recovered
+      journalRecoveredMedia(journal, treeId, treeInfo);
+
+      log.info("Recovered tree {} with {} of {} pipelines", treeId, recovered.size(),
+          numPipelines);
+    }
+
+    log.info("Recovered {} trees from journal, releasing {} pipelines", journal.getTrees().size(),
+        released);
+    return released;
   }
 
   @Override
   public String createTree() throws TreeException {
 
     String treeId = UUID.randomUUID().toString();
+    // Journaled before the tree is visible, so its mutations are recorded after its creation
+    journal(j -> j.treeCreated(treeId));
     trees.put(treeId, createTreeInfo(treeId));
     return treeId;
   }
@@ -95,53 +280,253 @@ public abstract class AbstractNTreeTM implements TreeManager {
   protected abstract TreeInfo createTreeInfo(String treeId);
 
   @Override
-  public synchronized void createTree(String treeId) throws TreeException {
+  public void createTree(String treeId) throws TreeException {
+
+    boolean[] created = new boolean[1];
+    trees.computeIfAbsent(treeId, id -> {
+      created[0] = true;
+      journal(j -> j.treeCreated(id));
+      return createTreeInfo(id);
+    });
 
-    TreeInfo prevTreeInfo = trees.putIfAbsent(treeId, DUMMY_TREE_INFO);
-    if (prevTreeInfo != null) {
+    if (!created[0]) {
       log.info("Creating an already created Tree with id '" + treeId + "'");
-    } else {
-      trees.replace(treeId, createTreeInfo(treeId));
     }
   }
 
   @Override
-  public synchronized void releaseTree(String treeId) throws TreeException {
-    getTreeInfo(treeId).release();
-    trees.remove(treeId);
+  public void releaseTree(String treeId) throws TreeException {
+    executeInTree(treeId, treeInfo -> {
+      treeInfo.release();
+      trees.remove(treeId);
+      treeInfo.journal(j -> j.treeReleased(treeId));
+      return null;
+    });
+  }
+
+  @Override
+  public String setTreeSource(Session session, String treeId, String offerSdp)
+      throws TreeException {
+    return executeInTree(treeId, treeInfo -> treeInfo.setTreeSource(session, offerSdp));
+  }
+
+  @Override
+  public void removeTreeSource(String treeId) throws TreeException {
+    executeInTree(treeId, treeInfo -> {
+      treeInfo.removeTreeSource();
+      return null;
+    });
   }
 
   @Override
-  public synchronized String setTreeSource(Session session, String treeId, String offerSdp)
+  public TreeEndpoint addTreeSink(Session session, String treeId, String sdpOffer)
       throws TreeException {
-    return getTreeInfo(treeId).setTreeSource(session, offerSdp);
+    return executeInTree(treeId, treeInfo -> treeInfo.addTreeSink(session, sdpOffer));
+  }
+
+  @Override
+  public void removeTreeSink(String treeId, String sinkId) throws TreeException {
+    executeInTree(treeId, treeInfo -> {
+      treeInfo.removeTreeSink(sinkId);
+      return null;
+    });
   }
 
   @Override
-  public synchronized void removeTreeSource(String treeId) throws TreeException {
-    getTreeInfo(treeId).removeTreeSource();
+  public List<TreeBatchResult<TreeEndpoint>> addTreeSinks(Session session, String treeId,
+      List<String> sdpOffers) throws TreeException {
+    return await(addTreeSinksAsync(session, treeId, sdpOffers));
   }
 
   @Override
-  public synchronized TreeEndpoint addTreeSink(Session session, String treeId, String sdpOffer)
+  public List<TreeBatchResult<Void>> removeTreeSinks(String treeId, List<String> sinkIds)
       throws TreeException {
-    return getTreeInfo(treeId).addTreeSink(session, sdpOffer);
+    return await(removeTreeSinksAsync(treeId, sinkIds));
+  }
+
+  @Override
+  public void addSinkIceCandidate(String treeId, String sinkId, IceCandidate iceCandidate) {
+    executeInTree(treeId, treeInfo -> {
+      treeInfo.addSinkIceCandidate(sinkId, iceCandidate);
+      return null;
+    });
+  }
+
+  @Override
+  public void addTreeIceCandidate(String treeId, IceCandidate iceCandidate) {
+    executeInTree(treeId, treeInfo -> {
+      treeInfo.addTreeIceCandidate(iceCandidate);
+      return null;
+    });
+  }
+
+  @Override
+  public void addSinkIceCandidates(String treeId, String sinkId,
+      List<IceCandidate> iceCandidates) {
+    executeInTree(treeId, treeInfo -> {
+      for (IceCandidate iceCandidate : iceCandidates) {
+        treeInfo.addSinkIceCandidate(sinkId, iceCandidate);
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public void addTreeIceCandidates(String treeId, List<IceCandidate> iceCandidates) {
+    executeInTree(treeId, treeInfo -> {
+      for (IceCandidate iceCandidate : iceCandidates) {
+        treeInfo.addTreeIceCandidate(iceCandidate);
+      }
+      return null;
+    });
+  }
+
+  @Override
+  public CompletableFuture<String> setTreeSourceAsync(Session session, String treeId,
+      String offerSdp) {
+    return executeInTreeAsync(treeId, treeInfo -> treeInfo.setTreeSourceAsync(session, offerSdp));
   }
 
   @Override
-  public synchronized void removeTreeSink(String treeId, String sinkId) throws TreeException {
-    getTreeInfo(treeId).removeTreeSink(sinkId);
+  public CompletableFuture<TreeEndpoint> addTreeSinkAsync(Session session, String treeId,
+      String sdpOffer) {
+    return executeInTreeAsync(treeId, treeInfo -> treeInfo.addTreeSinkAsync(session, sdpOffer));
   }
 
   @Override
-  public synchronized void addSinkIceCandidate(String treeId, String sinkId,
-      IceCandidate iceCandidate) {
-    getTreeInfo(treeId).addSinkIceCandidate(sinkId, iceCandidate);
+  public CompletableFuture<Void> removeTreeSinkAsync(String treeId, String sinkId) {
+    return executeInTreeAsync(treeId, treeInfo -> treeInfo.removeTreeSinkAsync(sinkId));
   }
 
   @Override
-  public synchronized void addTreeIceCandidate(String treeId, IceCandidate iceCandidate) {
-    getTreeInfo(treeId).addTreeIceCandidate(iceCandidate);
+  public CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> addTreeSinksAsync(Session session,
+      String treeId, List<String> sdpOffers) {
+    return executeInTreeAsync(treeId, treeInfo -> treeInfo.addTreeSinksAsync(session, sdpOffers));
+  }
+
+  @Override
+  public CompletableFuture<List<TreeBatchResult<Void>>> removeTreeSinksAsync(String treeId,
+      List<String> sinkIds) {
+    return executeInTreeAsync(treeId, treeInfo -> treeInfo.removeTreeSinksAsync(sinkIds));
+  }
+
+  /**
+   * Executes an operation over a tree holding the lock that corresponds to the configured
+   * {@link ConcurrencyMode}. If the tree is released while waiting for the lock, a
+   * {@link TreeException} is thrown as if the tree never existed.
+   */
+  protected <T> T executeInTree(String treeId, Function<TreeInfo, T> operation) {
+
+    TreeInfo treeInfo = getTreeInfo(treeId);
+
+    ReentrantLock lock = concurrencyMode == ConcurrencyMode.GLOBAL ? globalLock : treeInfo.lock;
+    lock.lock();
+    try {
+      if (trees.get(treeId) != treeInfo) {
+        throw new TreeException("Tree with id '" + treeId + "' not found");
+      }
+      return operation.apply(treeInfo);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  protected <T> CompletableFuture<T> executeInTreeAsync(String treeId,
+      Function<TreeInfo, CompletableFuture<T>> operation) {
+    return failIfThrown(() -> executeInTree(treeId, operation));
+  }
+
+  private void journalRecoveredMedia(TreeJournal journal, String treeId, TreeInfo treeInfo) {
+
+    List<JournaledPipeline> pipelines = new ArrayList<>();
+    List<String> links = new ArrayList<>();
+    for (Pipeline pipeline : treeInfo.getPipelines()) {
+
+      String sourceId = null;
+      Map<String, String> sinkWebRtcIds = new LinkedHashMap<>();
+      for (WebRtc webRtc : pipeline.getWebRtcs()) {
+        if (webRtc.isSink()) {
+          sinkWebRtcIds.put(webRtc.getSession().getSinkId(), webRtc.getId());
+        } else {
+          sourceId = webRtc.getId();
+        }
+      }
+
+      List<String> plumberIds = new ArrayList<>();
+      for (Plumber plumber : pipeline.getPlumbers()) {
+        plumberIds.add(plumber.getId());
+        // Output plumbers feed other kmss, so they have no sinks even without a tree source
+        if (plumber.getSinks().isEmpty() && plumber.getLinkedTo() != null) {
+          links.add(plumber.getId() + "->" + plumber.getLinkedTo().getId());
+        }
+      }
+
+      pipelines.add(new JournaledPipeline(pipeline.getId(), sourceId, plumberIds, sinkWebRtcIds));
+    }
+    journal.treeRecovered(treeId, pipelines, links);
+  }
+
+  /**
+   * Records a mutation of a tree in the journal, if any. Tree infos record each change where they
+   * make it, holding the lock of the tree, so the entries of a tree are queued in order.
+   */
+  protected void journal(Consumer<TreeJournal> action) {
+    TreeJournal journal = this.journal;
+    if (journal != null) {
+      action.accept(journal);
+    }
+  }
+
+  /**
+   * Returns the future created by the operation, or a failed future if the operation throws an
+   * exception instead.
+   */
+  protected static <T> CompletableFuture<T> failIfThrown(
+      Supplier<CompletableFuture<T>> operation) {
+    try {
+      return operation.get();
+    } catch (RuntimeException e) {
+      CompletableFuture<T> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  /**
+   * Returns a future completed when all the given futures are, with a result for each of them.
+   */
+  protected static <T> CompletableFuture<List<TreeBatchResult<T>>> collectResults(
+      List<CompletableFuture<T>> futures) {
+
+    List<CompletableFuture<TreeBatchResult<T>>> results = new ArrayList<>();
+    for (CompletableFuture<T> future : futures) {
+      results.add(future.handle((value, e) -> {
+        if (e == null) {
+          return TreeBatchResult.success(value);
+        }
+        if (e instanceof CompletionException && e.getCause() != null) {
+          e = e.getCause();
+        }
+        return TreeBatchResult.<T> failure(e.getMessage());
+      }));
+    }
+
+    return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+        .thenApply(v -> results.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+  }
+
+  /**
+   * Waits for the given future, rethrowing the original exception if it has failed.
+   */
+  protected static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
   }
 
   protected TreeInfo getTreeInfo(String treeId) {
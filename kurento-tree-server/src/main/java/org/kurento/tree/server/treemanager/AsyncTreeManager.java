@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.treemanager;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.TreeBatchResult;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.client.TreeException;
+
+/**
+ * {@link TreeManager} whose most expensive operations can be executed without blocking the calling
+ * thread while the media server is negotiating. Returned futures complete exceptionally with a
+ * {@link TreeException} when the operation can not be performed.
+ */
+public interface AsyncTreeManager extends TreeManager {
+
+  public CompletableFuture<String> setTreeSourceAsync(Session session, String treeId,
+      String sdpOffer);
+
+  public CompletableFuture<TreeEndpoint> addTreeSinkAsync(Session session, String treeId,
+      String sdpOffer);
+
+  public CompletableFuture<Void> removeTreeSinkAsync(String treeId, String sinkId);
+
+  public CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> addTreeSinksAsync(Session session,
+      String treeId, List<String> sdpOffers);
+
+  public CompletableFuture<List<TreeBatchResult<Void>>> removeTreeSinksAsync(String treeId,
+      List<String> sinkIds);
+
+}
@@ -0,0 +1,693 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.treemanager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.kurento.client.IceCandidate;
+import org.kurento.commons.PropertiesManager;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.client.JsonRpcClientWebSocket;
+import org.kurento.tree.client.IceCandidateInfo;
+import org.kurento.tree.client.KurentoTreeClient;
+import org.kurento.tree.client.TreeBatchResult;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.client.TreeException;
+import org.kurento.tree.client.internal.ConsistentHashRing;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.SessionTreeIndex;
+import org.kurento.tree.server.app.TreeElementSession;
+import org.kurento.tree.server.kms.real.IceCandidateNotifier;
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Splits the ownership of trees among the members of a cluster by consistent hashing of the tree
+ * id. Operations on owned trees are executed by the local tree manager, with its own KMSs, and the
+ * rest are forwarded to the owner. ICE candidates gathered by the owner for forwarded endpoints,
+ * and the evictions of forwarded sinks, are relayed to the session of the client that requested
+ * them.
+ * <p>
+ * Asynchronous operations are forwarded without blocking the calling thread, and executed by the
+ * local tree manager asynchronously if it is an {@link AsyncTreeManager}.
+ * <p>
+ * All the members have to be configured with the same list of members.
+ */
+public class ClusteredTreeManager implements AsyncTreeManager {
+
+  private static final Logger log = LoggerFactory.getLogger(ClusteredTreeManager.class);
+
+  public static final String MEMBERS_PROPERTY = "tree.cluster.members";
+  public static final String SELF_PROPERTY = "tree.cluster.self";
+  public static final String PENDING_CANDIDATES_TIMEOUT_PROPERTY =
+      "tree.cluster.pendingCandidatesTimeout";
+
+  // Key used for the source endpoint, which has no sink id
+  private static final String SOURCE_KEY = "";
+
+  @FunctionalInterface
+  private interface RemoteOperation<T> {
+    T execute(KurentoTreeClient client) throws IOException;
+  }
+
+  private final String self;
+  private final TreeManager localTreeManager;
+  private final Function<String, KurentoTreeClient> clientFactory;
+
+  private final ConsistentHashRing<String> members = new ConsistentHashRing<>();
+  private final Map<String, KurentoTreeClient> memberClients = new ConcurrentHashMap<>();
+
+  // Endpoints of forwarded trees by tree id. Each tree is only read and updated inside compute on
+  // its id, so candidates of different trees are relayed without contending for a lock
+  private final ConcurrentMap<String, ForwardedTree> forwardedTrees = new ConcurrentHashMap<>();
+
+  // Sinks of client sessions, so sinks evicted by the owner are not removed again when their
+  // session is closed
+  private volatile SessionTreeIndex sessionTrees;
+
+  private long pendingCandidatesTimeout = PropertiesManager
+      .getProperty(PENDING_CANDIDATES_TIMEOUT_PROPERTY, 10000L);
+
+  private final ScheduledExecutorService expirer = Executors
+      .newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cluster-candidates-expirer");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  public ClusteredTreeManager(String self, List<String> memberUris,
+      TreeManager localTreeManager) {
+    this(self, memberUris, localTreeManager, wsUri -> {
+      JsonRpcClientWebSocket client = new JsonRpcClientWebSocket(wsUri + "/websocket");
+      client.setTryReconnectingForever(true);
+      return new KurentoTreeClient(client);
+    });
+  }
+
+  /**
+   * @param self
+   *          uri of this member, as it appears in the member list
+   * @param memberUris
+   *          uris of all the members of the cluster, including this one
+   * @param clientFactory
+   *          creates the connection to a member from its uri
+   */
+  public ClusteredTreeManager(String self, List<String> memberUris,
+      TreeManager localTreeManager, Function<String, KurentoTreeClient> clientFactory) {
+
+    if (!memberUris.contains(self)) {
+      throw new TreeException("Member '" + self + "' is not in the member list " + memberUris);
+    }
+
+    this.self = self;
+    this.localTreeManager = localTreeManager;
+    this.clientFactory = clientFactory;
+
+    for (String memberUri : memberUris) {
+      members.addNode(memberUri, memberUri);
+    }
+
+    log.info("Member {} of tree cluster {}", self, memberUris);
+  }
+
+  /**
+   * Sets the milliseconds that candidates of unknown endpoints are kept, waiting for the response
+   * that gives their sink id, and that candidates of removed endpoints are discarded.
+   */
+  public void setPendingCandidatesTimeout(long pendingCandidatesTimeout) {
+    this.pendingCandidatesTimeout = pendingCandidatesTimeout;
+  }
+
+  public void setSessionTreeIndex(SessionTreeIndex sessionTrees) {
+    this.sessionTrees = sessionTrees;
+  }
+
+  /**
+   * Returns the number of endpoints with candidates waiting for their sink id to be known.
+   */
+  public int getNumPendingEndpoints() {
+    int[] numEndpoints = new int[1];
+    for (String treeId : forwardedTrees.keySet()) {
+      forwardedTrees.computeIfPresent(treeId, (id, tree) -> {
+        numEndpoints[0] += tree.pendingCandidates.size();
+        return tree;
+      });
+    }
+    return numEndpoints[0];
+  }
+
+  public String getOwner(String treeId) {
+    return members.getNode(treeId);
+  }
+
+  public boolean isOwner(String treeId) {
+    return self.equals(getOwner(treeId));
+  }
+
+  @Override
+  public String createTree() throws TreeException {
+    String treeId = UUID.randomUUID().toString();
+    createTree(treeId);
+    return treeId;
+  }
+
+  @Override
+  public void createTree(String treeId) throws TreeException {
+    if (isOwner(treeId)) {
+      localTreeManager.createTree(treeId);
+    } else {
+      forward(treeId, client -> {
+        client.createTree(treeId);
+        return null;
+      });
+    }
+  }
+
+  @Override
+  public void releaseTree(String treeId) throws TreeException {
+    if (isOwner(treeId)) {
+      localTreeManager.releaseTree(treeId);
+    } else {
+      try {
+        forward(treeId, client -> {
+          client.releaseTree(treeId);
+          return null;
+        });
+      } finally {
+        removeForwardedTree(treeId);
+      }
+    }
+  }
+
+  @Override
+  public String setTreeSource(Session session, String treeId, String sdpOffer)
+      throws TreeException {
+    if (isOwner(treeId)) {
+      return localTreeManager.setTreeSource(session, treeId, sdpOffer);
+    }
+    // Registered before forwarding, as the owner can send candidates before answering
+    addForwardedEndpoint(session, treeId, null);
+    try {
+      return forward(treeId, client -> client.setTreeSource(treeId, sdpOffer));
+    } catch (RuntimeException e) {
+      removeForwardedEndpoint(treeId, null);
+      throw e;
+    }
+  }
+
+  @Override
+  public void removeTreeSource(String treeId) throws TreeException {
+    if (isOwner(treeId)) {
+      localTreeManager.removeTreeSource(treeId);
+    } else {
+      try {
+        forward(treeId, client -> {
+          client.removeTreeSource(treeId);
+          return null;
+        });
+      } finally {
+        removeForwardedEndpoint(treeId, null);
+      }
+    }
+  }
+
+  @Override
+  public TreeEndpoint addTreeSink(Session session, String treeId, String sdpOffer)
+      throws TreeException {
+    if (isOwner(treeId)) {
+      return localTreeManager.addTreeSink(session, treeId, sdpOffer);
+    }
+    TreeEndpoint endpoint = forward(treeId, client -> client.addTreeSink(treeId, sdpOffer));
+    addForwardedEndpoint(session, treeId, endpoint.getId());
+    return endpoint;
+  }
+
+  @Override
+  public void removeTreeSink(String treeId, String sinkId) throws TreeException {
+    if (isOwner(treeId)) {
+      localTreeManager.removeTreeSink(treeId, sinkId);
+    } else {
+      try {
+        forward(treeId, client -> {
+          client.removeTreeSink(treeId, sinkId);
+          return null;
+        });
+      } finally {
+        removeForwardedEndpoint(treeId, sinkId);
+      }
+    }
+  }
+
+  @Override
+  public List<TreeBatchResult<TreeEndpoint>> addTreeSinks(Session session, String treeId,
+      List<String> sdpOffers) throws TreeException {
+    if (isOwner(treeId)) {
+      return localTreeManager.addTreeSinks(session, treeId, sdpOffers);
+    }
+    List<TreeBatchResult<TreeEndpoint>> results = forward(treeId,
+        client -> client.addTreeSinks(treeId, sdpOffers));
+    for (TreeBatchResult<TreeEndpoint> result : results) {
+      if (result.isSuccess()) {
+        addForwardedEndpoint(session, treeId, result.getValue().getId());
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public List<TreeBatchResult<Void>> removeTreeSinks(String treeId, List<String> sinkIds)
+      throws TreeException {
+    if (isOwner(treeId)) {
+      return localTreeManager.removeTreeSinks(treeId, sinkIds);
+    }
+    try {
+      return forward(treeId, client -> client.removeTreeSinks(treeId, sinkIds));
+    } finally {
+      for (String sinkId : sinkIds) {
+        removeForwardedEndpoint(treeId, sinkId);
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> setTreeSourceAsync(Session session, String treeId,
+      String sdpOffer) {
+    if (isOwner(treeId)) {
+      return executeLocally(
+          asyncTreeManager -> asyncTreeManager.setTreeSourceAsync(session, treeId, sdpOffer),
+          () -> localTreeManager.setTreeSource(session, treeId, sdpOffer));
+    }
+    addForwardedEndpoint(session, treeId, null);
+    return forwardAsync(treeId, client -> client.setTreeSourceAsync(treeId, sdpOffer))
+        .whenComplete((sdpAnswer, e) -> {
+          if (e != null) {
+            removeForwardedEndpoint(treeId, null);
+          }
+        });
+  }
+
+  @Override
+  public CompletableFuture<TreeEndpoint> addTreeSinkAsync(Session session, String treeId,
+      String sdpOffer) {
+    if (isOwner(treeId)) {
+      return executeLocally(
+          asyncTreeManager -> asyncTreeManager.addTreeSinkAsync(session, treeId, sdpOffer),
+          () -> localTreeManager.addTreeSink(session, treeId, sdpOffer));
+    }
+    return forwardAsync(treeId, client -> client.addTreeSinkAsync(treeId, sdpOffer))
+        .thenApply(endpoint -> {
+          addForwardedEndpoint(session, treeId, endpoint.getId());
+          return endpoint;
+        });
+  }
+
+  @Override
+  public CompletableFuture<Void> removeTreeSinkAsync(String treeId, String sinkId) {
+    if (isOwner(treeId)) {
+      return executeLocally(
+          asyncTreeManager -> asyncTreeManager.removeTreeSinkAsync(treeId, sinkId), () -> {
+            localTreeManager.removeTreeSink(treeId, sinkId);
+            return null;
+          });
+    }
+    return forwardAsync(treeId, client -> client.removeTreeSinkAsync(treeId, sinkId))
+        .whenComplete((v, e) -> removeForwardedEndpoint(treeId, sinkId));
+  }
+
+  @Override
+  public CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> addTreeSinksAsync(Session session,
+      String treeId, List<String> sdpOffers) {
+    if (isOwner(treeId)) {
+      return executeLocally(
+          asyncTreeManager -> asyncTreeManager.addTreeSinksAsync(session, treeId, sdpOffers),
+          () -> localTreeManager.addTreeSinks(session, treeId, sdpOffers));
+    }
+    return forwardAsync(treeId, client -> client.addTreeSinksAsync(treeId, sdpOffers))
+        .thenApply(results -> {
+          for (TreeBatchResult<TreeEndpoint> result : results) {
+            if (result.isSuccess()) {
+              addForwardedEndpoint(session, treeId, result.getValue().getId());
+            }
+          }
+          return results;
+        });
+  }
+
+  @Override
+  public CompletableFuture<List<TreeBatchResult<Void>>> removeTreeSinksAsync(String treeId,
+      List<String> sinkIds) {
+    if (isOwner(treeId)) {
+      return executeLocally(
+          asyncTreeManager -> asyncTreeManager.removeTreeSinksAsync(treeId, sinkIds),
+          () -> localTreeManager.removeTreeSinks(treeId, sinkIds));
+    }
+    return forwardAsync(treeId, client -> client.removeTreeSinksAsync(treeId, sinkIds))
+        .whenComplete((v, e) -> {
+          for (String sinkId : sinkIds) {
+            removeForwardedEndpoint(treeId, sinkId);
+          }
+        });
+  }
+
+  @Override
+  public KmsManager getKmsManager() {
+    return localTreeManager.getKmsManager();
+  }
+
+  @Override
+  public void addSinkIceCandidate(String treeId, String sinkId, IceCandidate iceCandidate) {
+    if (isOwner(treeId)) {
+      localTreeManager.addSinkIceCandidate(treeId, sinkId, iceCandidate);
+    } else {
+      forward(treeId, client -> {
+        client.addIceCandidate(treeId, sinkId, iceCandidate);
+        return null;
+      });
+    }
+  }
+
+  @Override
+  public void addTreeIceCandidate(String treeId, IceCandidate iceCandidate) {
+    if (isOwner(treeId)) {
+      localTreeManager.addTreeIceCandidate(treeId, iceCandidate);
+    } else {
+      forward(treeId, client -> {
+        client.addIceCandidate(treeId, null, iceCandidate);
+        return null;
+      });
+    }
+  }
+
+  @Override
+  public void addSinkIceCandidates(String treeId, String sinkId,
+      List<IceCandidate> iceCandidates) {
+    if (isOwner(treeId)) {
+      localTreeManager.addSinkIceCandidates(treeId, sinkId, iceCandidates);
+    } else {
+      forward(treeId, client -> {
+        client.addIceCandidates(treeId, sinkId, iceCandidates);
+        return null;
+      });
+    }
+  }
+
+  @Override
+  public void addTreeIceCandidates(String treeId, List<IceCandidate> iceCandidates) {
+    if (isOwner(treeId)) {
+      localTreeManager.addTreeIceCandidates(treeId, iceCandidates);
+    } else {
+      forward(treeId, client -> {
+        client.addIceCandidates(treeId, null, iceCandidates);
+        return null;
+      });
+    }
+  }
+
+  private <T> T forward(String treeId, RemoteOperation<T> operation) {
+
+    String owner = getOwner(treeId);
+    log.debug("Forwarding operation over tree {} to member {}", treeId, owner);
+
+    try {
+      return operation.execute(getMemberClient(owner));
+    } catch (IOException e) {
+      throw new TreeException(
+          "Error forwarding operation over tree '" + treeId + "' to member " + owner + ": "
+              + e.getMessage());
+    }
+  }
+
+  /**
+   * Forwards an operation without waiting for the response of the owner. The returned future
+   * fails with a {@link TreeException} if the operation can not be forwarded.
+   */
+  private <T> CompletableFuture<T> forwardAsync(String treeId,
+      Function<KurentoTreeClient, CompletableFuture<T>> operation) {
+
+    String owner = getOwner(treeId);
+    log.debug("Forwarding operation over tree {} to member {} asynchronously", treeId, owner);
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    CompletableFuture<T> response;
+    try {
+      response = operation.apply(getMemberClient(owner));
+    } catch (RuntimeException e) {
+      response = new CompletableFuture<>();
+      response.completeExceptionally(e);
+    }
+
+    response.whenComplete((value, e) -> {
+      if (e == null) {
+        result.complete(value);
+        return;
+      }
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause()
+          : e;
+      if (cause instanceof TreeException) {
+        result.completeExceptionally(cause);
+      } else {
+        result.completeExceptionally(new TreeException("Error forwarding operation over tree '"
+            + treeId + "' to member " + owner + ": " + cause.getMessage()));
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Executes an operation over an owned tree with the asynchronous operation of the local tree
+   * manager, or with the synchronous one if it is not an {@link AsyncTreeManager}.
+   */
+  private <T> CompletableFuture<T> executeLocally(
+      Function<AsyncTreeManager, CompletableFuture<T>> asyncOperation, Supplier<T> operation) {
+
+    if (localTreeManager instanceof AsyncTreeManager) {
+      return AbstractNTreeTM
+          .failIfThrown(() -> asyncOperation.apply((AsyncTreeManager) localTreeManager));
+    }
+
+    CompletableFuture<T> result = new CompletableFuture<>();
+    try {
+      result.complete(operation.get());
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  private KurentoTreeClient getMemberClient(String memberUri) {
+    return memberClients.computeIfAbsent(memberUri, uri -> {
+      KurentoTreeClient client = clientFactory.apply(uri);
+      client.setDefaultIceCandidateListener(this::relayCandidate);
+      client.setSinkEvictedListener(this::relayEviction);
+      return client;
+    });
+  }
+
+  private void relayCandidate(IceCandidateInfo candidateInfo) {
+
+    String treeId = candidateInfo.getTreeId();
+    String key = sinkKey(candidateInfo.getSinkId());
+
+    AtomicReference<IceCandidateNotifier> notifier = new AtomicReference<>();
+    updateForwardedTree(treeId, tree -> {
+      notifier.set(tree.notifiers.get(key));
+      if (notifier.get() != null) {
+        return;
+      }
+      if (tree.removalTime != null || tree.removedEndpoints.containsKey(key)) {
+        log.debug("Discarding candidate of removed endpoint {} of tree {}", key, treeId);
+        return;
+      }
+      // The owner can send candidates of a sink before answering the request that created it
+      List<IceCandidate> pending = tree.pendingCandidates.get(key);
+      if (pending == null) {
+        pending = new ArrayList<>();
+        tree.pendingCandidates.put(key, pending);
+        schedulePendingExpiration(treeId, key, pending);
+      }
+      pending.add(candidateInfo.getIceCandidate());
+    });
+
+    if (notifier.get() != null) {
+      notifier.get().candidateGathered(candidateInfo.getIceCandidate());
+    }
+  }
+
+  private void relayEviction(String treeId, String sinkId, String reason) {
+
+    AtomicReference<IceCandidateNotifier> notifier = new AtomicReference<>();
+    updateForwardedTree(treeId, tree -> notifier.set(tree.notifiers.get(sinkKey(sinkId))));
+
+    // Already removed by the owner, so it is not removed again when the client session is closed
+    removeForwardedEndpoint(treeId, sinkId);
+    SessionTreeIndex sessionTrees = this.sessionTrees;
+    if (sessionTrees != null) {
+      sessionTrees.sinkRemoved(treeId, sinkId);
+    }
+
+    if (notifier.get() == null) {
+      log.debug("Evicted sink {} of tree {} is not forwarded by this member", sinkId, treeId);
+      return;
+    }
+
+    Session session = notifier.get().getSession().getSession();
+    try {
+      JsonObject params = new JsonObject();
+      params.addProperty(ProtocolElements.TREE_ID, treeId);
+      params.addProperty(ProtocolElements.SINK_ID, sinkId);
+      params.addProperty(ProtocolElements.REASON, reason);
+      session.sendNotification(ProtocolElements.SINK_EVICTED_EVENT, params);
+    } catch (IOException e) {
+      log.warn("Exception notifying evicted sink {} of tree {}", sinkId, treeId, e);
+    }
+  }
+
+  private void addForwardedEndpoint(Session session, String treeId, String sinkId) {
+
+    IceCandidateNotifier notifier = new IceCandidateNotifier(
+        new TreeElementSession(session, treeId, sinkId));
+
+    AtomicReference<List<IceCandidate>> pending = new AtomicReference<>();
+    updateForwardedTree(treeId, tree -> {
+      tree.notifiers.put(sinkKey(sinkId), notifier);
+      tree.removalTime = null;
+      tree.removedEndpoints.remove(sinkKey(sinkId));
+      pending.set(tree.pendingCandidates.remove(sinkKey(sinkId)));
+    });
+
+    if (pending.get() != null) {
+      for (IceCandidate candidate : pending.get()) {
+        notifier.candidateGathered(candidate);
+      }
+    }
+  }
+
+  private void removeForwardedEndpoint(String treeId, String sinkId) {
+
+    String key = sinkKey(sinkId);
+    Long removalTime = System.nanoTime();
+
+    AtomicReference<IceCandidateNotifier> notifier = new AtomicReference<>();
+    updateForwardedTree(treeId, tree -> {
+      notifier.set(tree.notifiers.remove(key));
+      tree.pendingCandidates.remove(key);
+      tree.removedEndpoints.put(key, removalTime);
+    });
+
+    if (notifier.get() != null) {
+      notifier.get().cancel();
+    }
+
+    expirer.schedule(
+        () -> updateForwardedTree(treeId, tree -> tree.removedEndpoints.remove(key, removalTime)),
+        pendingCandidatesTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  private void removeForwardedTree(String treeId) {
+
+    Long removalTime = System.nanoTime();
+
+    List<IceCandidateNotifier> removedNotifiers = new ArrayList<>();
+    updateForwardedTree(treeId, tree -> {
+      removedNotifiers.addAll(tree.notifiers.values());
+      tree.notifiers.clear();
+      tree.pendingCandidates.clear();
+      tree.removalTime = removalTime;
+    });
+
+    for (IceCandidateNotifier notifier : removedNotifiers) {
+      notifier.cancel();
+    }
+
+    expirer.schedule(() -> updateForwardedTree(treeId, tree -> {
+      if (removalTime.equals(tree.removalTime)) {
+        tree.removalTime = null;
+      }
+    }), pendingCandidatesTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  private void schedulePendingExpiration(String treeId, String key, List<IceCandidate> pending) {
+    expirer.schedule(() -> updateForwardedTree(treeId, tree -> {
+      if (tree.pendingCandidates.get(key) == pending) {
+        tree.pendingCandidates.remove(key);
+        log.debug("Discarded {} candidates of endpoint {} of tree {} never registered",
+            pending.size(), key, treeId);
+      }
+    }), pendingCandidatesTimeout, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Reads or updates the forwarded endpoints of a tree atomically, without blocking the operations
+   * on other trees. Trees left without endpoints, pending candidates or removals are dropped.
+   */
+  private void updateForwardedTree(String treeId, Consumer<ForwardedTree> update) {
+    forwardedTrees.compute(treeId, (id, tree) -> {
+      if (tree == null) {
+        tree = new ForwardedTree();
+      }
+      update.accept(tree);
+      return tree.isEmpty() ? null : tree;
+    });
+  }
+
+  private static String sinkKey(String sinkId) {
+    return sinkId != null ? sinkId : SOURCE_KEY;
+  }
+
+  /**
+   * Endpoints of a forwarded tree by sink key. Pending candidates of endpoints that are never
+   * registered, like sinks whose creation failed, expire after pendingCandidatesTimeout, as well as
+   * the marks of removed endpoints, whose late candidates are discarded meanwhile.
+   */
+  private static class ForwardedTree {
+
+    private final Map<String, IceCandidateNotifier> notifiers = new HashMap<>();
+
+    // Candidates received before the id of their sink was known
+    private final Map<String, List<IceCandidate>> pendingCandidates = new HashMap<>();
+
+    // Endpoints removed recently, with the time they were removed
+    private final Map<String, Long> removedEndpoints = new HashMap<>();
+
+    // Time the whole tree was removed, if it was recently
+    private Long removalTime;
+
+    private boolean isEmpty() {
+      return notifiers.isEmpty() && pendingCandidates.isEmpty() && removedEndpoints.isEmpty()
+          && removalTime == null;
+    }
+  }
+}
@@ -0,0 +1,253 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.treemanager;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.tree.client.TreeException;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.SessionTreeIndex;
+import org.kurento.tree.server.app.TreeElementSession;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.WebRtcListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Removes the sinks whose media is not connected after the connect timeout, or that are not
+ * receiving media (because the client is disconnected or the media server is not sending media to
+ * it) during the idle timeout. The client of the sink is notified with a
+ * {@link ProtocolElements#SINK_EVICTED_EVENT} event. A timeout of 0 disables that check.
+ * <p>
+ * Sinks recovered from a previous execution have no client to remove them, so they are removed
+ * after the orphan timeout whatever their media state.
+ * <p>
+ * Sinks stop receiving media when the source of the tree does, so the idle timeout should be
+ * greater than the pauses of the sources.
+ */
+public class IdleSinkEvictor implements WebRtcListener {
+
+  private static final Logger log = LoggerFactory.getLogger(IdleSinkEvictor.class);
+
+  public static final long CONNECT_TIMEOUT = PropertiesManager
+      .getProperty("tree.sinks.connectTimeout", 60000L);
+
+  public static final long IDLE_TIMEOUT = PropertiesManager.getProperty("tree.sinks.idleTimeout",
+      0L);
+
+  public static final long ORPHAN_TIMEOUT = PropertiesManager
+      .getProperty("tree.sinks.orphanTimeout", 300000L);
+
+  // Only logged, as orphan sinks have no client to notify
+  private static final String EVICTED_ORPHAN = "orphan";
+
+  private final TreeManager treeManager;
+  private final long connectTimeout;
+  private final long idleTimeout;
+  private volatile long orphanTimeout = ORPHAN_TIMEOUT;
+  private final ScheduledExecutorService executor;
+
+  // Sinks of client sessions, so evicted sinks are not removed again when
+  // their session is closed
+  private volatile SessionTreeIndex sessionTrees;
+
+  private class Eviction {
+
+    private final String reason;
+    private final boolean idle;
+    private final boolean orphan;
+    private final ScheduledFuture<?> future;
+
+    public Eviction(WebRtc webRtc, String reason, long timeout) {
+      this.reason = reason;
+      this.idle = ProtocolElements.EVICTED_IDLE.equals(reason);
+      this.orphan = EVICTED_ORPHAN.equals(reason);
+      this.future = executor.schedule(() -> evict(webRtc, this), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    public void cancel() {
+      future.cancel(false);
+    }
+  }
+
+  // Pending eviction of each sink, cancelled when its media is connected and
+  // flowing
+  private final Map<WebRtc, Eviction> evictions = new ConcurrentHashMap<>();
+
+  private final AtomicLong notConnectedSinks = new AtomicLong();
+  private final AtomicLong idleSinks = new AtomicLong();
+  private final AtomicLong orphanSinks = new AtomicLong();
+
+  public IdleSinkEvictor(TreeManager treeManager) {
+    this(treeManager, CONNECT_TIMEOUT, IDLE_TIMEOUT);
+  }
+
+  public IdleSinkEvictor(TreeManager treeManager, long connectTimeout, long idleTimeout) {
+
+    this.treeManager = treeManager;
+    this.connectTimeout = connectTimeout;
+    this.idleTimeout = idleTimeout;
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "idle-sink-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public void setSessionTreeIndex(SessionTreeIndex sessionTrees) {
+    this.sessionTrees = sessionTrees;
+  }
+
+  /**
+   * Sets the time after which recovered sinks are removed. 0 keeps them until their media is lost.
+   */
+  public void setOrphanTimeout(long orphanTimeout) {
+    this.orphanTimeout = orphanTimeout;
+  }
+
+  @Override
+  public void webRtcAdded(WebRtc webRtc) {
+    if (webRtc.isSink() && webRtc.isRecovered() && orphanTimeout > 0) {
+      evictions.put(webRtc, new Eviction(webRtc, EVICTED_ORPHAN, orphanTimeout));
+    } else if (webRtc.isSink() && connectTimeout > 0) {
+      evictions.put(webRtc, new Eviction(webRtc, ProtocolElements.EVICTED_NOT_CONNECTED,
+          connectTimeout));
+    }
+  }
+
+  @Override
+  public void webRtcRemoved(WebRtc webRtc) {
+    Eviction eviction = evictions.remove(webRtc);
+    if (eviction != null) {
+      eviction.cancel();
+    }
+  }
+
+  @Override
+  public void mediaChanged(WebRtc webRtc) {
+
+    if (!webRtc.isSink()) {
+      return;
+    }
+
+    boolean connected = webRtc.isMediaConnected();
+    boolean active = connected && webRtc.isMediaFlowing();
+
+    evictions.compute(webRtc, (w, eviction) -> {
+
+      if (eviction != null) {
+        if (eviction.orphan) {
+          return eviction;
+        }
+        // Running timeouts are not restarted, and the connect timeout is
+        // only replaced when the media connects
+        if (!active && (eviction.idle || !connected)) {
+          return eviction;
+        }
+        eviction.cancel();
+      }
+
+      if (!active && idleTimeout > 0) {
+        return new Eviction(webRtc, ProtocolElements.EVICTED_IDLE, idleTimeout);
+      }
+      return null;
+    });
+  }
+
+  private void evict(WebRtc webRtc, Eviction eviction) {
+
+    // It can be replaced while it is starting
+    if (!evictions.remove(webRtc, eviction)) {
+      return;
+    }
+
+    String reason = eviction.reason;
+
+    TreeElementSession session = webRtc.getSession();
+    String treeId = session.getTreeId();
+    String sinkId = session.getSinkId();
+
+    try {
+      treeManager.removeTreeSink(treeId, sinkId);
+    } catch (TreeException e) {
+      // Removed in the meantime
+      log.debug("Evicted sink {} of tree {} not removed: {}", sinkId, treeId, e.getMessage());
+      return;
+    } catch (RuntimeException e) {
+      // Its elements can be released in the meantime, or its media server fail
+      log.warn("Exception removing evicted sink {} of tree {}", sinkId, treeId, e);
+      return;
+    }
+
+    SessionTreeIndex sessionTrees = this.sessionTrees;
+    if (sessionTrees != null) {
+      sessionTrees.sinkRemoved(treeId, sinkId);
+    }
+
+    if (eviction.orphan) {
+      orphanSinks.incrementAndGet();
+    } else if (eviction.idle) {
+      idleSinks.incrementAndGet();
+    } else {
+      notConnectedSinks.incrementAndGet();
+    }
+    log.info("Evicted sink {} of tree {}: {}", sinkId, treeId, reason);
+
+    if (session.getSession() != null) {
+      try {
+        JsonObject params = new JsonObject();
+        params.addProperty(ProtocolElements.TREE_ID, treeId);
+        params.addProperty(ProtocolElements.SINK_ID, sinkId);
+        params.addProperty(ProtocolElements.REASON, reason);
+        session.getSession().sendNotification(ProtocolElements.SINK_EVICTED_EVENT, params);
+      } catch (IOException e) {
+        log.warn("Exception notifying evicted sink {} of tree {}", sinkId, treeId, e);
+      }
+    }
+  }
+
+  public long getNotConnectedSinks() {
+    return notConnectedSinks.get();
+  }
+
+  public long getIdleSinks() {
+    return idleSinks.get();
+  }
+
+  public long getOrphanSinks() {
+    return orphanSinks.get();
+  }
+
+  public int getPendingEvictions() {
+    return evictions.size();
+  }
+
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -24,4 +24,10 @@ public interface KmsListener {
 
   public void kmsRemoved(Kms kms);
 
+  /**
+   * Returns true if there are elements reserved in the kms that may not be created yet, so the
+   * kms can not be removed even if it is empty.
+   */
+  public boolean hasReservations(Kms kms);
+
 }
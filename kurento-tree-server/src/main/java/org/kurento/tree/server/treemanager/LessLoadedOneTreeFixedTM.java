@@ -164,6 +164,7 @@ public class LessLoadedOneTreeFixedTM extends AbstractOneTreeTM {
         String sdpAnswer = webRtc.processSdpOffer(sdpOffer);
         webRtc.gatherCandidates();
         webRtc.setLabel("Sink " + numSinks + " (WR " + id + ")");
+        sinks.put(id, webRtc);
         result = new TreeEndpoint(sdpAnswer, id);
       }
     } else {
@@ -184,7 +185,7 @@ public class LessLoadedOneTreeFixedTM extends AbstractOneTreeTM {
         String sdpAnswer = webRtc.processSdpOffer(sdpOffer);
         webRtc.gatherCandidates();
         webRtc.setLabel("Sink " + numSinks + " (WR " + id + ")");
-        sinks.put(Integer.toString(numSinks), webRtc);
+        sinks.put(id, webRtc);
 
         result = new TreeEndpoint(sdpAnswer, id);
       } else {
@@ -205,30 +206,28 @@ public class LessLoadedOneTreeFixedTM extends AbstractOneTreeTM {
 
     checkTreeId(treeId);
 
-    String[] sinkIdTokens = sinkId.split("_");
-
-    if (sinkIdTokens[0].equals("r")) {
-
-      int numWebRtc = Integer.parseInt(sinkIdTokens[1]);
-      this.sourcePipeline.getWebRtcs().get(numWebRtc).disconnect();
+    WebRtc sink = getSink(sinkId);
 
+    if (sinkId.startsWith("r_")) {
+      sink.disconnect();
     } else {
-      sinks.get(sinkIdTokens[1]).release();
+      sinks.remove(sinkId);
+      sink.release();
     }
   }
 
   @Override
   public void addSinkIceCandidate(String treeId, String sinkId, IceCandidate iceCandidate) {
     checkTreeId(treeId);
-    String[] sinkIdTokens = sinkId.split("_");
-    if (sinkIdTokens[0].equals("r")) {
-      int numWebRtc = Integer.parseInt(sinkIdTokens[1]);
-      this.sourcePipeline.getWebRtcs().get(numWebRtc).addIceCandidate(iceCandidate);
-    } else {
-      int numPipeline = Integer.parseInt(sinkIdTokens[0]);
-      int numWebRtc = Integer.parseInt(sinkIdTokens[1]);
-      this.leafPipelines.get(numPipeline).getWebRtcs().get(numWebRtc).addIceCandidate(iceCandidate);
+    getSink(sinkId).addIceCandidate(iceCandidate);
+  }
+
+  private WebRtc getSink(String sinkId) {
+    WebRtc sink = sinks.get(sinkId);
+    if (sink == null) {
+      throw new TreeException("Sink " + sinkId + " not found");
     }
+    return sink;
   }
 
   @Override
@@ -16,10 +16,22 @@
  */
 package org.kurento.tree.server.treemanager;
 
+import static org.kurento.commons.PropertiesManager.getProperty;
+
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -27,17 +39,23 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.kurento.client.IceCandidate;
 import org.kurento.commons.exception.KurentoException;
 import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.TreeBatchResult;
 import org.kurento.tree.client.TreeEndpoint;
 import org.kurento.tree.client.TreeException;
 import org.kurento.tree.server.app.TreeElementSession;
 import org.kurento.tree.server.kms.Element;
 import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.KurentoObj;
 import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.PipelinePool;
 import org.kurento.tree.server.kms.Plumber;
 import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.real.PlumberType;
 import org.kurento.tree.server.kmsmanager.KmsLoad;
 import org.kurento.tree.server.kmsmanager.KmsManager;
 import org.kurento.tree.server.kmsmanager.ReserveKmsManager;
+import org.kurento.tree.server.treemanager.TreeJournal.JournaledPipeline;
+import org.kurento.tree.server.treemanager.TreeJournal.JournaledTree;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -50,6 +68,9 @@ import org.slf4j.LoggerFactory;
  * while space available</li>
  * <li>It considers new KMSs after start.</li>
  * <li>It is possible to connect more than 2 KMSs with plumbers</li>
+ * <li>KMSs of a tree form a relay tree with configurable fan-out and depth</li>
+ * <li>Elements are only placed in KMSs with free holes whose load manager allows more elements,
+ * so weighted loads and memory usage limit them too</li>
  * </ul>
  *
  * @author micael.gallego@gmail.com
@@ -58,12 +79,13 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
 
   private static final Logger log = LoggerFactory.getLogger(LessLoadedOnlySource2TM.class);
 
-  public class LessLoadedTreeInfo extends TreeInfo {
+  public static final int RELAY_FAN_OUT = getProperty("tree.relay.fanOut", 2);
+
+  public static final int RELAY_MAX_DEPTH = getProperty("tree.relay.maxDepth", Integer.MAX_VALUE);
+
+  public static final double RELAY_HOP_LOAD_WEIGHT = getProperty("tree.relay.hopLoadWeight", 1.0);
 
-    // Number of webrtcs reserved in each KMS when the source is connected
-    // to it. This allows create new pipelines in another machines to be
-    // connected to source pipeline.
-    private static final int NUM_WEBRTC_FOR_TREE = 2;
+  public class LessLoadedTreeInfo extends TreeInfo {
 
     private String treeId;
 
@@ -75,11 +97,15 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
 
     private List<Pipeline> leafPipelines = new ArrayList<>();
     private List<Plumber> leafPlumbers = new ArrayList<>();
-    private Map<String, WebRtc> sinks = new ConcurrentHashMap<>();
 
     private Map<Kms, Pipeline> ownPipelineByKms = new ConcurrentHashMap<>();
+    private Map<Pipeline, Integer> depthByPipeline = new ConcurrentHashMap<>();
     private Map<String, WebRtc> webRtcsById = new ConcurrentHashMap<>();
 
+    // Completed when the relay pipeline and the ones feeding it are linked in the media servers.
+    // Sinks are negotiated meanwhile, but only answered when their pipeline is linked
+    private Map<Pipeline, CompletableFuture<Void>> linkByPipeline = new ConcurrentHashMap<>();
+
     public LessLoadedTreeInfo(String treeId) {
 
       this.treeId = treeId;
@@ -89,27 +115,50 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
       }
     }
 
+    /**
+     * Releases the sinks first, then the relays and finally the source pipeline, so plumbers are
+     * only released when nothing depends on them.
+     */
     @Override
     public void release() {
 
-      freeWebRtc(sourceKms, 1 + NUM_WEBRTC_FOR_TREE);
+      log.info("releaseTree treeId={} numSinks={}", treeId, webRtcsById.size());
 
-      for (Plumber p : sourcePlumbers) {
-        if (p.getLinkedTo() != null) {
-          throw new TreeException("Exception removing TreeSource. Some plumbers are connected");
-        } else {
-          p.release();
-        }
+      for (WebRtc webRtc : webRtcsById.values()) {
+        freeHoles(webRtc.getPipeline().getKms(), 1, 0);
+        webRtc.release();
       }
+      webRtcsById.clear();
 
-      source.release();
-      for (WebRtc webRtc : sinks.values()) {
-        webRtc.release();
+      for (Pipeline pipeline : leafPipelines) {
+        freeHoles(pipeline.getKms(), 0, pipeline.getPlumbers().size());
+        pipeline.release();
       }
+      leafPipelines.clear();
+
+      if (sourcePipeline != null) {
+        // Source plumbers are kept when the source is removed
+        freeHoles(sourceKms, source != null ? 1 : 0, sourcePlumbers.size());
+        source = null;
+        sourcePipeline.release();
+        sourcePipeline = null;
+        sourcePlumbers.clear();
+      }
+
+      ownPipelineByKms.clear();
+      depthByPipeline.clear();
+      linkByPipeline.clear();
+
+      log.debug("Holes: {}", remainingHoles);
     }
 
     @Override
-    public synchronized String setTreeSource(Session session, String offerSdp) {
+    public String setTreeSource(Session session, String offerSdp) {
+      return await(setTreeSourceAsync(session, offerSdp));
+    }
+
+    @Override
+    public CompletableFuture<String> setTreeSourceAsync(Session session, String offerSdp) {
 
       log.info("setTreeSource treeId={}", treeId);
 
@@ -117,184 +166,401 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
         removeTreeSource();
       }
 
-      if (sourcePipeline == null) {
+      boolean pipelineCreated = sourcePipeline == null;
+      if (pipelineCreated) {
 
-        for (KmsLoad kmsLoad : kmsManager.getKmssSortedByLoad()) {
-          sourceKms = kmsLoad.getKms();
-          if (reserveWebRtc(sourceKms, 1 + NUM_WEBRTC_FOR_TREE)) {
-            break;
-          }
+        Kms selectedKms = kmsManager
+            .selectKmsByLoad(kms -> reserveHoles(kms, 1, getRelayFanOut(0)));
+
+        if (selectedKms == null) {
+          log.warn("remainingHoles: " + remainingHoles);
+          throw new TreeException("No kms allows more WebRtcEndpoints");
         }
 
-        sourcePipeline = sourceKms.createPipeline();
+        sourceKms = selectedKms;
+        sourcePipeline = sourceKms.createPipelineAsync();
         sourcePipeline.setLabel(treeId);
 
         ownPipelineByKms.put(sourceKms, sourcePipeline);
+        depthByPipeline.put(sourcePipeline, 0);
+        journalPipelineAdded(sourcePipeline);
+
+      } else if (!reserveHoles(sourceKms, 1, 0)) {
+        // The plumbers of a removed source are kept, so only the webrtc is reserved
+        log.warn("remainingHoles: " + remainingHoles);
+        throw new TreeException("No kms allows more WebRtcEndpoints");
       }
 
-      source = sourcePipeline.createWebRtc(new TreeElementSession(session, treeId, null));
-      source.setLabel(treeId + "_source");
+      Pipeline pipeline = sourcePipeline;
+      WebRtc treeSource = sourcePipeline
+          .createWebRtcAsync(new TreeElementSession(session, treeId, null));
+      treeSource.setLabel(treeId + "_source");
+      source = treeSource;
 
-      for (int i = 0; i < NUM_WEBRTC_FOR_TREE; i++) {
-        Plumber sourcePipelinePlumber = sourcePipeline.createPlumber();
-        sourcePipelinePlumber.setLabel(treeId + "_plumber" + i);
+      journal(j -> j.sourceSet(treeId, pipeline.getId(), treeSource.getId()), pipeline,
+          treeSource);
 
-        source.connect(sourcePipelinePlumber);
-        this.sourcePlumbers.add(sourcePipelinePlumber);
-      }
+      List<CompletableFuture<Void>> connections = new ArrayList<>();
+      if (pipelineCreated) {
+        for (int i = 0; i < getRelayFanOut(0); i++) {
+          Plumber sourcePipelinePlumber = sourcePipeline.createPlumberAsync();
+          sourcePipelinePlumber.setLabel(treeId + "_plumber" + i);
 
-      String sdpAnswer = source.processSdpOffer(offerSdp);
+          connections.add(source.connectAsync(sourcePipelinePlumber));
+          this.sourcePlumbers.add(sourcePipelinePlumber);
 
-      source.gatherCandidates();
+          journal(j -> j.plumberAdded(treeId, pipeline.getId(), sourcePipelinePlumber.getId()),
+              pipeline, sourcePipelinePlumber);
+        }
+      } else {
+        // They may still feed relays of the tree
+        for (Plumber sourcePipelinePlumber : sourcePlumbers) {
+          connections.add(source.connectAsync(sourcePipelinePlumber));
+        }
+      }
 
-      System.out.println("Holes: " + remainingHoles);
+      log.debug("Holes: {}", remainingHoles);
 
-      return sdpAnswer;
+      return treeSource.processSdpOfferAsync(offerSdp)
+          .thenCompose(sdpAnswer -> treeSource.gatherCandidatesAsync().thenApply(v -> sdpAnswer))
+          .thenCombine(
+              CompletableFuture.allOf(connections.toArray(new CompletableFuture<?>[0])),
+              (sdpAnswer, connected) -> sdpAnswer);
     }
 
     @Override
     public void removeTreeSource() {
       if (source != null) {
 
-        if (source.getSinks().size() > NUM_WEBRTC_FOR_TREE) {
+        if (source.getSinks().size() > sourcePlumbers.size()) {
           throw new TreeException(
               "Removing or changing TreeSource with sinks is not currently supported");
         }
 
-        freeWebRtc(sourceKms, 1 + NUM_WEBRTC_FOR_TREE);
+        // Its plumbers are kept for the next source, with their holes
+        freeHoles(sourceKms, 1, 0);
         source.release();
         source = null;
+
+        Pipeline pipeline = sourcePipeline;
+        journal(j -> j.sourceRemoved(treeId, pipeline.getId()), pipeline);
       }
     }
 
     @Override
     public TreeEndpoint addTreeSink(Session session, String sdpOffer) {
+      return await(addTreeSinkAsync(session, sdpOffer));
+    }
 
-      log.info("addTreeSink treeId={}", treeId);
+    /**
+     * Places as many sinks of the batch as possible in the pipelines the tree already has, walking
+     * the kmss sorted by load once for the whole batch and reserving the holes of each kms at once.
+     * Placement stops at the first kms without a pipeline of the tree, as the tree could be
+     * extended there, so the remaining sinks are placed one by one.
+     */
+    @Override
+    public CompletableFuture<List<TreeBatchResult<TreeEndpoint>>> addTreeSinksAsync(
+        Session session, List<String> sdpOffers) {
+
+      log.info("addTreeSinks treeId={} numSinks={}", treeId, sdpOffers.size());
+
+      List<CompletableFuture<TreeEndpoint>> futures = new ArrayList<>();
+      Iterator<String> offers = sdpOffers.iterator();
+
+      // Removed once the whole batch is created, so a relay is not released
+      // while the other sinks reserved in it are being created
+      List<String> failedSinkIds = new ArrayList<>();
+
+      if (source != null) {
+
+        createSinks(session, offers, sourcePipeline,
+            reserveSinkHoles(sourceKms, sdpOffers.size()), futures, failedSinkIds);
+
+        if (offers.hasNext() && !leafPipelines.isEmpty()) {
+          for (KmsLoad kmsLoad : kmsManager.getKmssSortedByLoad()) {
+
+            Kms kms = kmsLoad.getKms();
+            if (kms == sourceKms) {
+              continue;
+            }
+
+            Pipeline pipeline = ownPipelineByKms.get(kms);
+            if (pipeline == null) {
+              break;
+            }
+
+            createSinks(session, offers, pipeline,
+                reserveSinkHoles(kms, sdpOffers.size() - futures.size()), futures,
+                failedSinkIds);
+            if (!offers.hasNext()) {
+              break;
+            }
+          }
+        }
+      }
+
+      log.debug("Placed {} of {} sinks of tree {} at once", futures.size(), sdpOffers.size(),
+          treeId);
+
+      while (offers.hasNext()) {
+        String sdpOffer = offers.next();
+        futures.add(failIfThrown(() -> addTreeSinkAsync(session, sdpOffer)));
+      }
+
+      removeFailedSinks(failedSinkIds);
+
+      return collectResults(futures);
+    }
+
+    private void createSinks(Session session, Iterator<String> offers, Pipeline pipeline,
+        int numSinks, List<CompletableFuture<TreeEndpoint>> futures, List<String> failedSinkIds) {
+      for (int i = 0; i < numSinks; i++) {
+        String sdpOffer = offers.next();
+        futures.add(failIfThrown(() -> createSink(session, sdpOffer, pipeline, failedSinkIds)));
+      }
+    }
 
-      List<KmsLoad> kmssSortedByLoad = kmsManager.getKmssSortedByLoad();
+    @Override
+    public CompletableFuture<TreeEndpoint> addTreeSinkAsync(Session session, String sdpOffer) {
+
+      log.info("addTreeSink treeId={}", treeId);
 
       Kms selectedKms = null;
       Pipeline pipeline = null;
 
-      if (reserveWebRtc(sourceKms, 1)) {
+      if (reserveHoles(sourceKms, 1, 0)) {
 
-        selectedKms = sourceKms;
         pipeline = sourcePipeline;
 
       } else {
 
-        Plumber freeSourcePlumber = null;
-        for (Plumber p : this.sourcePlumbers) {
-          if (p.getLinkedTo() == null) {
-            freeSourcePlumber = p;
-            break;
-          }
+        // Pipeline to be linked if the tree has to be extended to a new kms
+        Plumber parentPlumber = selectParentPlumber();
+        int depth = -1;
+        int fanOut = -1;
+        if (parentPlumber != null) {
+          depth = depthByPipeline.get(parentPlumber.getPipeline()) + 1;
+          fanOut = getRelayFanOut(depth);
         }
 
-        selectedKms = selectKmsForSink(kmssSortedByLoad);
+        // Kmss are only walked by load when the source kms is full
+        selectedKms = selectKmsForSink(fanOut);
 
         pipeline = ownPipelineByKms.get(selectedKms);
 
         if (pipeline == null) {
 
-          if (freeSourcePlumber == null) {
-
-            if (!allowMoreThan2KmsPerTree) {
-              throw new TreeException("Source KMS doesn't allow new webRtc and hasn't free "
-                  + "plumbers to connect to another KMS");
-            } else {
-              freeSourcePlumber = selectKmsForSinkWithFreePlumber(kmssSortedByLoad);
-
-              if (freeSourcePlumber == null) {
-                throw new TreeException(
-                    "There are no plumbers to connect a new " + "pipeline for tree. This is a bug");
-              }
-            }
-          }
-
-          pipeline = selectedKms.createPipeline();
+          pipeline = createLeafPipeline(selectedKms, fanOut);
           pipeline.setLabel(treeId);
 
           ownPipelineByKms.put(selectedKms, pipeline);
+          depthByPipeline.put(pipeline, depth);
 
           leafPipelines.add(pipeline);
 
-          Plumber sinkPipelinePlumber = pipeline.createPlumber();
+          Plumber sinkPipelinePlumber = pipeline.getPlumbers().get(0);
           sinkPipelinePlumber.setLabel(treeId + "_sinkPlumber_" + pipeline.getKms().getLabel());
-          freeSourcePlumber.link(sinkPipelinePlumber);
-
-          for (int i = 0; i < NUM_WEBRTC_FOR_TREE; i++) {
-            Plumber leafOutputPlumber = pipeline.createPlumber();
+          CompletableFuture<Void> link = parentPlumber.linkAsync(sinkPipelinePlumber)
+              .thenCombine(getLink(pipeline), (linked, connected) -> null);
+          linkByPipeline.put(pipeline, getLink(parentPlumber.getPipeline())
+              .thenCombine(link, (parentLinked, linked) -> null));
+
+          journalPipelineAdded(pipeline);
+          journal(j -> j.linkAdded(treeId, parentPlumber.getId(), sinkPipelinePlumber.getId()),
+              parentPlumber, sinkPipelinePlumber);
+
+          // Output plumbers follow the input one
+          Iterator<Plumber> outputPlumbers = pipeline.getPlumbers().listIterator(1);
+          for (int i = 0; i < fanOut; i++) {
+            Plumber leafOutputPlumber = outputPlumbers.next();
             leafOutputPlumber
                 .setLabel(treeId + "_plumber" + i + "_" + pipeline.getKms().getLabel());
 
-            sinkPipelinePlumber.connect(leafOutputPlumber);
             this.leafPlumbers.add(sinkPipelinePlumber);
           }
 
         }
       }
 
+      List<String> failedSinkIds = new ArrayList<>(1);
+      CompletableFuture<TreeEndpoint> endpoint = createSink(session, sdpOffer, pipeline,
+          failedSinkIds);
+      removeFailedSinks(failedSinkIds);
+      return endpoint;
+    }
+
+    /**
+     * Creates a sink in a pipeline of the tree whose holes are already reserved. If its
+     * negotiation fails right away, its id is added to failedSinkIds and the caller has to remove
+     * it.
+     */
+    private CompletableFuture<TreeEndpoint> createSink(Session session, String sdpOffer,
+        Pipeline pipeline, List<String> failedSinkIds) {
+
       String id = UUID.randomUUID().toString();
-      WebRtc webRtc = pipeline.createWebRtc(new TreeElementSession(session, treeId, id));
+      WebRtc webRtc = pipeline.createWebRtcAsync(new TreeElementSession(session, treeId, id));
       webRtc.setLabel(treeId + "_sink_" + id.substring(0, id.indexOf('-')));
 
+      CompletableFuture<Void> connected;
       if (pipeline != sourcePipeline) {
-        pipeline.getPlumbers().get(0).connect(webRtc);
+        connected = pipeline.getPlumbers().get(0).connectAsync(webRtc);
       } else {
-        source.connect(webRtc);
+        connected = source.connectAsync(webRtc);
       }
 
-      String sdpAnswer = webRtc.processSdpOffer(sdpOffer);
-      webRtc.gatherCandidates();
-
       webRtcsById.put(id, webRtc);
 
-      System.out.println("Holes: " + remainingHoles);
+      journal(j -> j.sinkAdded(treeId, pipeline.getId(), id, webRtc.getId()), pipeline, webRtc);
+
+      log.debug("Holes: {}", remainingHoles);
 
-      return new TreeEndpoint(sdpAnswer, id);
+      CompletableFuture<TreeEndpoint> endpoint = webRtc.processSdpOfferAsync(sdpOffer)
+          .thenCompose(sdpAnswer -> webRtc.gatherCandidatesAsync()
+              .thenApply(v -> new TreeEndpoint(sdpAnswer, id)))
+          .thenCombine(connected.thenCombine(getLink(pipeline), (c, linked) -> linked),
+              (treeEndpoint, linked) -> treeEndpoint);
+
+      // Otherwise a sink whose negotiation fails keeps its endpoint and its
+      // holes. The lock of the tree is held now, but not when the negotiation
+      // fails later, and callers of the sync API wait for it holding the lock
+      if (endpoint.isCompletedExceptionally()) {
+        failedSinkIds.add(id);
+      } else {
+        endpoint.whenCompleteAsync((result, e) -> {
+          if (e != null) {
+            removeFailedSink(id);
+          }
+        });
+      }
+      return endpoint;
+    }
+
+    /**
+     * Records a new pipeline of the tree with the plumbers it has, in creation order, once all of
+     * them exist in the media server.
+     */
+    private void journalPipelineAdded(Pipeline pipeline) {
+
+      List<Plumber> plumbers = new ArrayList<>(pipeline.getPlumbers());
+      List<KurentoObj> objs = new ArrayList<>(plumbers);
+      objs.add(pipeline);
+
+      journal(j -> {
+        String pipelineId = pipeline.getId();
+        j.pipelineAdded(treeId, pipelineId);
+        for (Plumber plumber : plumbers) {
+          j.plumberAdded(treeId, pipelineId, plumber.getId());
+        }
+      }, objs.toArray(new KurentoObj[objs.size()]));
     }
 
-    private Plumber selectKmsForSinkWithFreePlumber(List<KmsLoad> kmssSortedByLoad) {
+    private CompletableFuture<Void> getLink(Pipeline pipeline) {
+      CompletableFuture<Void> link = linkByPipeline.get(pipeline);
+      return link != null ? link : CompletableFuture.completedFuture(null);
+    }
 
-      for (KmsLoad kmsLoad : kmssSortedByLoad) {
+    private void removeFailedSinks(List<String> sinkIds) {
+      for (String sinkId : sinkIds) {
+        removeTreeSink(sinkId);
+      }
+    }
 
-        Kms kms = kmsLoad.getKms();
+    private void removeFailedSink(String sinkId) {
+      try {
+        LessLoadedOnlySource2TM.this.removeTreeSink(treeId, sinkId);
+      } catch (TreeException e) {
+        log.debug("Sink {} of tree {} was already removed after failing", sinkId, treeId);
+      } catch (RuntimeException e) {
+        log.warn("Exception removing failed sink {} of tree {}", sinkId, treeId, e);
+      }
+    }
+
+    /**
+     * Returns a pipeline with an input plumber connected to fanOut output plumbers, taken from the
+     * pool if possible.
+     */
+    private Pipeline createLeafPipeline(Kms kms, int fanOut) {
 
-        Pipeline pipeline = ownPipelineByKms.get(kms);
-        if (pipeline != null) {
+      Pipeline pipeline = null;
+      if (pipelinePool != null && pipelinePool.getNumOutputPlumbers() == fanOut) {
+        pipeline = pipelinePool.acquirePipeline(kms);
+      }
+
+      if (pipeline == null) {
+        pipeline = kms.createPipelineAsync();
+        Plumber inputPlumber = pipeline.createPlumberAsync();
+        List<CompletableFuture<Void>> connections = new ArrayList<>();
+        for (int i = 0; i < fanOut; i++) {
+          connections.add(inputPlumber.connectAsync(pipeline.createPlumberAsync()));
+        }
+        // Its sinks are answered once the plumbers are connected, as with the link
+        linkByPipeline.put(pipeline,
+            CompletableFuture.allOf(connections.toArray(new CompletableFuture<?>[0])));
+      }
+
+      return pipeline;
+    }
+
+    /**
+     * Selects the free output plumber to feed a new pipeline of the tree. Each hop from the source
+     * costs hopLoadWeight, so a relay is only used instead of a shallower one when the latter is
+     * much more loaded.
+     */
+    private Plumber selectParentPlumber() {
+
+      List<Pipeline> candidates = new ArrayList<>();
+      candidates.add(sourcePipeline);
+      if (allowMoreThan2KmsPerTree) {
+        candidates.addAll(leafPipelines);
+      }
+
+      Plumber selectedPlumber = null;
+      double selectedScore = Double.MAX_VALUE;
+
+      for (Pipeline pipeline : candidates) {
+
+        int depth = depthByPipeline.get(pipeline);
+        if (depth >= maxRelayDepth) {
+          continue;
+        }
+
+        double score = depth * hopLoadWeight + pipeline.getKms().getLoad();
+        if (score < selectedScore) {
           for (Plumber p : pipeline.getPlumbers()) {
-            if (p.getLinkedTo() == null) {
-              return p;
+            // Input plumbers of relays have no source
+            if (p.getLinkedTo() == null && p.getSource() != null) {
+              selectedPlumber = p;
+              selectedScore = score;
+              break;
             }
           }
         }
       }
 
-      throw new TreeException("There are no pipeline with free plumber");
+      return selectedPlumber;
     }
 
-    private Kms selectKmsForSink(List<KmsLoad> kmssSortedByLoad) {
-
-      Kms selectedKms = null;
-
-      for (KmsLoad kmsLoad : kmssSortedByLoad) {
+    /**
+     * Selects the less loaded kms with space for a new sink. Kmss without a pipeline of the tree
+     * need also space for a new pipeline with fanOut output plumbers, or are discarded if fanOut
+     * is negative.
+     */
+    private Kms selectKmsForSink(int fanOut) {
 
-        Kms kms = kmsLoad.getKms();
+      Kms selectedKms = kmsManager.selectKmsByLoad(kms -> {
 
-        int numWebRtcs = 1;
+        int numPlumbers = 0;
 
         boolean pipelineTreeInKms = ownPipelineByKms.get(kms) != null;
         if (!pipelineTreeInKms) {
-          numWebRtcs += 1 + NUM_WEBRTC_FOR_TREE;
+          if (fanOut < 0) {
+            return false;
+          }
+          numPlumbers = 1 + fanOut;
         }
 
-        if (reserveWebRtc(kms, numWebRtcs)) {
-          selectedKms = kmsLoad.getKms();
-          break;
-        }
-      }
+        return reserveHoles(kms, 1, numPlumbers);
+      });
 
       if (selectedKms == null) {
         log.warn("remainingHoles: " + remainingHoles);
@@ -308,46 +574,59 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
 
       log.info("removeTreeSink treeId={}", treeId);
 
-      WebRtc webRtc = webRtcsById.get(sinkId);
+      WebRtc webRtc = webRtcsById.remove(sinkId);
+      if (webRtc == null) {
+        throw new TreeException("Sink " + sinkId + " not found in tree " + treeId);
+      }
 
       Element elem = webRtc.getSource();
+      Pipeline pipeline = webRtc.getPipeline();
 
-      freeWebRtc(webRtc.getPipeline().getKms(), 1);
+      freeHoles(pipeline.getKms(), 1, 0);
 
       webRtc.release();
+      journal(j -> j.sinkRemoved(treeId, pipeline.getId(), sinkId), pipeline);
 
       if (elem instanceof Plumber) {
         removePlumberIfNotConnected((Plumber) elem);
       }
 
-      System.out.println("Holes: " + remainingHoles);
+      log.debug("Holes: {}", remainingHoles);
     }
 
     private void removePlumberIfNotConnected(Plumber plumber) {
 
-      if (plumber.getSinks().size() == NUM_WEBRTC_FOR_TREE) {
-
-        boolean remove = true;
-        for (Element e : plumber.getSinks()) {
-          if (((Plumber) e).getLinkedTo() != null) {
-            remove = false;
-            break;
-          }
+      // Only output plumbers not linked to other pipelines
+      boolean remove = true;
+      for (Element e : plumber.getSinks()) {
+        if (!(e instanceof Plumber) || ((Plumber) e).getLinkedTo() != null) {
+          remove = false;
+          break;
         }
+      }
 
-        if (remove) {
+      if (remove) {
 
-          Pipeline pipeline = plumber.getPipeline();
-          ownPipelineByKms.remove(pipeline.getKms());
+        Pipeline pipeline = plumber.getPipeline();
+        ownPipelineByKms.remove(pipeline.getKms());
+        depthByPipeline.remove(pipeline);
+        linkByPipeline.remove(pipeline);
+        leafPipelines.remove(pipeline);
 
-          freeWebRtc(pipeline.getKms(), 1 + NUM_WEBRTC_FOR_TREE);
+        freeHoles(pipeline.getKms(), 0, pipeline.getPlumbers().size());
 
-          pipeline.release();
+        Plumber output = plumber.getLinkedTo();
 
-          Element elem = plumber.getLinkedTo().getSource();
-          if (elem instanceof Plumber) {
-            removePlumberIfNotConnected((Plumber) elem);
-          }
+        pipeline.release();
+
+        journal(j -> {
+          j.linkRemoved(treeId, output.getId(), plumber.getId());
+          j.pipelineRemoved(treeId, pipeline.getId());
+        }, output, plumber, pipeline);
+
+        Element elem = output.getSource();
+        if (elem instanceof Plumber) {
+          removePlumberIfNotConnected((Plumber) elem);
         }
       }
     }
@@ -366,21 +645,256 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
     public void addTreeIceCandidate(IceCandidate iceCandidate) {
       source.addIceCandidate(iceCandidate);
     }
+
+    @Override
+    public Collection<Pipeline> getPipelines() {
+      Set<Pipeline> pipelines = new LinkedHashSet<>();
+      if (sourcePipeline != null) {
+        pipelines.add(sourcePipeline);
+      }
+      pipelines.addAll(ownPipelineByKms.values());
+      pipelines.addAll(leafPipelines);
+      return pipelines;
+    }
+
+    /**
+     * Rebuilds the relay tree from the source pipeline down. Relays whose parent is not recovered
+     * are discarded, and sinks whose webrtc is lost are dropped.
+     */
+    @Override
+    public Set<String> recover(JournaledTree tree) {
+
+      Set<String> recovered = new HashSet<>();
+
+      Map<String, String> inputByOutput = new HashMap<>();
+      for (String link : tree.getLinks()) {
+        String[] plumberIds = link.split("->");
+        inputByOutput.put(plumberIds[0], plumberIds[1]);
+      }
+
+      // Relays are fed through their first plumber, and the source pipeline is the only one not fed
+      JournaledPipeline root = null;
+      Map<String, JournaledPipeline> relayByInput = new HashMap<>();
+      Set<String> inputIds = new HashSet<>(inputByOutput.values());
+      for (JournaledPipeline journaled : tree.getPipelines()) {
+        List<String> plumberIds = journaled.getPlumberIds();
+        if (!plumberIds.isEmpty() && inputIds.contains(plumberIds.get(0))) {
+          relayByInput.put(plumberIds.get(0), journaled);
+        } else if (root == null) {
+          root = journaled;
+        }
+      }
+
+      Pipeline rootPipeline = root != null ? recoverPipeline(root) : null;
+      if (rootPipeline == null) {
+        return recovered;
+      }
+
+      sourceKms = rootPipeline.getKms();
+      sourcePipeline = rootPipeline;
+      sourcePipeline.setLabel(treeId);
+      sourcePlumbers.addAll(sourcePipeline.getPlumbers());
+      ownPipelineByKms.put(sourceKms, sourcePipeline);
+      depthByPipeline.put(sourcePipeline, 0);
+      recovered.add(sourcePipeline.getId());
+
+      if (root.getSourceId() != null) {
+        source = sourcePipeline.recoverWebRtc(root.getSourceId(),
+            new TreeElementSession(null, treeId, null));
+        if (source != null) {
+          source.setLabel(treeId + "_source");
+          for (Plumber plumber : sourcePlumbers) {
+            source.restoreConnection(plumber);
+          }
+        } else {
+          log.warn("Source of tree {} not found in pipeline {}", treeId, sourcePipeline.getId());
+        }
+      }
+      recoverSinks(root, sourcePipeline, source);
+
+      Deque<Pipeline> parents = new ArrayDeque<>();
+      parents.add(sourcePipeline);
+      while (!parents.isEmpty()) {
+
+        Pipeline parent = parents.poll();
+        for (Plumber output : getOutputPlumbers(parent)) {
+
+          JournaledPipeline journaled = relayByInput.get(inputByOutput.get(output.getId()));
+          Pipeline pipeline = journaled != null ? recoverPipeline(journaled) : null;
+          if (pipeline == null) {
+            continue;
+          }
+
+          pipeline.setLabel(treeId);
+          Plumber input = pipeline.getPlumbers().get(0);
+          output.restoreLink(input);
+          for (Plumber relayOutput : getOutputPlumbers(pipeline)) {
+            input.restoreConnection(relayOutput);
+          }
+
+          ownPipelineByKms.put(pipeline.getKms(), pipeline);
+          depthByPipeline.put(pipeline, depthByPipeline.get(parent) + 1);
+          leafPipelines.add(pipeline);
+          recovered.add(pipeline.getId());
+
+          recoverSinks(journaled, pipeline, input);
+          parents.add(pipeline);
+        }
+      }
+
+      // Elements already exist, so their holes are taken without checking the load
+      for (Pipeline pipeline : getPipelines()) {
+        takeRecoveredHoles(pipeline.getKms(), pipeline.getWebRtcs().size(),
+            pipeline.getPlumbers().size());
+      }
+
+      log.debug("Holes: {}", remainingHoles);
+
+      return recovered;
+    }
+
+    /**
+     * Recovers a journaled pipeline with all its plumbers, or returns null if it is not found in
+     * any kms or some of its plumbers are lost.
+     */
+    private Pipeline recoverPipeline(JournaledPipeline journaled) {
+
+      for (Kms kms : kmsManager.getKmss()) {
+
+        Pipeline pipeline = kms.recoverPipeline(journaled.getId());
+        if (pipeline == null) {
+          continue;
+        }
+
+        for (String plumberId : journaled.getPlumberIds()) {
+          if (pipeline.recoverPlumber(plumberId) == null) {
+            log.warn("Plumber {} of tree {} not found. Releasing pipeline {}", plumberId, treeId,
+                journaled.getId());
+            pipeline.release();
+            return null;
+          }
+        }
+        return pipeline;
+      }
+
+      log.warn("Pipeline {} of tree {} not found in any kms", journaled.getId(), treeId);
+      return null;
+    }
+
+    private void recoverSinks(JournaledPipeline journaled, Pipeline pipeline, Element sinksSource) {
+
+      for (Entry<String, String> sink : journaled.getSinkWebRtcIds().entrySet()) {
+
+        String sinkId = sink.getKey();
+        WebRtc webRtc = pipeline.recoverWebRtc(sink.getValue(),
+            new TreeElementSession(null, treeId, sinkId));
+
+        if (webRtc == null) {
+          log.warn("Sink {} of tree {} not found in pipeline {}", sinkId, treeId,
+              pipeline.getId());
+        } else if (sinksSource == null) {
+          log.warn("Sink {} of tree {} has lost its source. Releasing it", sinkId, treeId);
+          webRtc.release();
+        } else {
+          webRtc.setLabel(treeId + "_sink_" + sinkId.substring(0, sinkId.indexOf('-')));
+          sinksSource.restoreConnection(webRtc);
+          webRtcsById.put(sinkId, webRtc);
+        }
+      }
+    }
+
+    private List<Plumber> getOutputPlumbers(Pipeline pipeline) {
+      List<Plumber> outputs = new ArrayList<>(pipeline.getPlumbers());
+      if (pipeline != sourcePipeline) {
+        // Input plumber of the relay
+        outputs.remove(0);
+      }
+      return outputs;
+    }
   }
 
+  // Holes are counted in hundredths of a webrtc, so plumbers take the fraction
+  // of a hole given by their load weight
+  private static final int HOLE_UNITS = 100;
+
   private KmsManager kmsManager;
   private int maxWebRtcsPerKMS;
+  private int plumberHoleUnits = toHoleUnits(PlumberType.fromConfig().getLoadWeight());
   private ConcurrentMap<Kms, AtomicInteger> remainingHoles = new ConcurrentHashMap<>();
   private boolean allowMoreThan2KmsPerTree = true;
+  private PipelinePool pipelinePool;
+
+  // Number of pipelines of other kmss that can be fed from each pipeline of a
+  // tree, and maximum number of hops from the source pipeline
+  private int relayFanOut = RELAY_FAN_OUT;
+  private int maxRelayDepth = RELAY_MAX_DEPTH;
+  private double hopLoadWeight = RELAY_HOP_LOAD_WEIGHT;
 
   public LessLoadedOnlySource2TM(KmsManager kmsManager, int maxWebRtcsPerKMS) {
     this.kmsManager = kmsManager;
     this.maxWebRtcsPerKMS = maxWebRtcsPerKMS;
+    initPipelinePool();
   }
 
   public LessLoadedOnlySource2TM(KmsManager kmsManager) {
-    this.kmsManager = kmsManager;
-    this.maxWebRtcsPerKMS = ReserveKmsManager.KMS_MAX_WEBRTC;
+    this(kmsManager, ReserveKmsManager.KMS_MAX_WEBRTC);
+  }
+
+  private void initPipelinePool() {
+    if (PipelinePool.HIGH_WATERMARK > 0) {
+      setPipelinePool(new PipelinePool(relayFanOut));
+    }
+  }
+
+  /**
+   * Configures the relay tree built for each tree source.
+   *
+   * @param fanOut
+   *          number of kmss fed from each kms of the tree
+   * @param maxDepth
+   *          maximum number of hops between the source kms and a kms with sinks
+   * @param hopLoadWeight
+   *          load that an additional hop is considered equivalent to when choosing the kms that
+   *          feeds a new one. 0 ignores depth, and values greater than 1 always fill shallower kmss
+   *          first
+   */
+  public void setRelayTopology(int fanOut, int maxDepth, double hopLoadWeight) {
+    this.relayFanOut = fanOut;
+    this.maxRelayDepth = maxDepth;
+    this.hopLoadWeight = hopLoadWeight;
+  }
+
+  /**
+   * Sets the load of a plumber relative to a webrtc, so kmss linked with cheaper plumbers can host
+   * more sinks. It is the load weight of the configured {@link PlumberType} by default.
+   */
+  public void setPlumberLoadWeight(double plumberLoadWeight) {
+    this.plumberHoleUnits = toHoleUnits(plumberLoadWeight);
+  }
+
+  private static int toHoleUnits(double loadWeight) {
+    return (int) Math.round(loadWeight * HOLE_UNITS);
+  }
+
+  private int getRelayFanOut(int depth) {
+    // Pipelines at max depth do not need output plumbers
+    return depth < maxRelayDepth ? relayFanOut : 0;
+  }
+
+  /**
+   * Sets the pool used to obtain pipelines when a tree is extended to a new kms. Kmss known by the
+   * kms manager start to be filled.
+   */
+  public void setPipelinePool(PipelinePool pipelinePool) {
+    if (this.pipelinePool != null) {
+      this.pipelinePool.close();
+    }
+    this.pipelinePool = pipelinePool;
+    if (pipelinePool != null) {
+      for (Kms kms : kmsManager.getKmss()) {
+        pipelinePool.addKms(kms);
+      }
+    }
   }
 
   @Override
@@ -393,55 +907,136 @@ public class LessLoadedOnlySource2TM extends AbstractNTreeTM implements KmsListe
     return new LessLoadedTreeInfo(treeId);
   }
 
-  private boolean reserveWebRtc(Kms kms, int numWebRtc) {
+  private int getMaxHoles() {
+    return maxWebRtcsPerKMS * HOLE_UNITS;
+  }
+
+  private int getHoles(int numWebRtcs, int numPlumbers) {
+    return numWebRtcs * HOLE_UNITS + numPlumbers * plumberHoleUnits;
+  }
+
+  private boolean reserveHoles(Kms kms, int numWebRtcs, int numPlumbers) {
 
     AtomicInteger space = remainingHoles.computeIfAbsent(kms,
-        k -> new AtomicInteger(maxWebRtcsPerKMS));
+        k -> new AtomicInteger(getMaxHoles()));
 
     checkLoad(kms, space);
 
-    int holes = space.addAndGet(-numWebRtc);
-    if (holes >= 0) {
-      log.debug("Reserve {} #webRtc {} => {}", kms, numWebRtc, holes);
-      return true;
-    } else {
-      space.addAndGet(numWebRtc);
+    if (!kms.allowMoreElements()) {
+      return false;
+    }
+
+    int numHoles = getHoles(numWebRtcs, numPlumbers);
+
+    // Compare-and-set loop so that trees reserving in parallel never take
+    // holes beyond zero, even transiently
+    int holes;
+    int newHoles;
+    do {
+      holes = space.get();
+      newHoles = holes - numHoles;
+      if (newHoles < 0) {
+        return false;
+      }
+    } while (!space.compareAndSet(holes, newHoles));
+
+    // The kms can start draining while reserving. As it is marked before
+    // checking its reservations, either the drainer sees this reservation or
+    // the reservation is undone here
+    if (kms.isDraining()) {
+      space.addAndGet(numHoles);
       return false;
     }
+
+    log.debug("Reserve {} #webRtc {} #plumber {} => {}", kms, numWebRtcs, numPlumbers, newHoles);
+    return true;
+  }
+
+  /**
+   * Reserves the holes of up to maxWebRtcs webrtcs in a kms at once. The load manager of the kms
+   * is only consulted once, with the elements it has before the batch.
+   *
+   * @return the number of webrtcs whose holes have been reserved
+   */
+  private int reserveSinkHoles(Kms kms, int maxWebRtcs) {
+
+    AtomicInteger space = remainingHoles.computeIfAbsent(kms,
+        k -> new AtomicInteger(getMaxHoles()));
+
+    checkLoad(kms, space);
+
+    if (!kms.allowMoreElements()) {
+      return 0;
+    }
+
+    int holes;
+    int numWebRtcs;
+    do {
+      holes = space.get();
+      numWebRtcs = Math.min(maxWebRtcs, holes / HOLE_UNITS);
+      if (numWebRtcs <= 0) {
+        return 0;
+      }
+    } while (!space.compareAndSet(holes, holes - getHoles(numWebRtcs, 0)));
+
+    // Same as in reserveHoles
+    if (kms.isDraining()) {
+      space.addAndGet(getHoles(numWebRtcs, 0));
+      return 0;
+    }
+
+    log.debug("Reserve {} #webRtc {} => {}", kms, numWebRtcs, holes - getHoles(numWebRtcs, 0));
+    return numWebRtcs;
   }
 
   private void checkLoad(Kms kms, AtomicInteger space) {
-    int count = countWebRtcsAndPlumbers(kms);
-    if (maxWebRtcsPerKMS - count != space.get()) {
+
+    // When trees are managed in parallel, other trees can have reserved holes
+    // whose elements are not created yet, so the count is only congruent when
+    // all operations are serialized
+    if (getConcurrencyMode() != ConcurrencyMode.GLOBAL) {
+      return;
+    }
+
+    int count = getHoles(kms.getNumWebRtcs(), kms.getNumPlumbers());
+    if (getMaxHoles() - count != space.get()) {
       throw new TreeException("Incongruent count in kms " + kms.getLabel() + ". There are "
-          + space.get() + " holes but should be " + (maxWebRtcsPerKMS - count));
+          + space.get() + " holes but should be " + (getMaxHoles() - count));
     }
   }
 
-  private int countWebRtcsAndPlumbers(Kms kms) {
-    int count = 0;
-    for (Pipeline pipeline : kms.getPipelines()) {
-      count += pipeline.getWebRtcs().size();
-      count += pipeline.getPlumbers().size();
-    }
-    return count;
+  private void takeRecoveredHoles(Kms kms, int numWebRtcs, int numPlumbers) {
+    int holes = remainingHoles.computeIfAbsent(kms, k -> new AtomicInteger(getMaxHoles()))
+        .addAndGet(-getHoles(numWebRtcs, numPlumbers));
+    log.debug("Recovered {} #webRtc {} #plumber {} => {}", kms, numWebRtcs, numPlumbers, holes);
   }
 
-  public void freeWebRtc(Kms kms, int numWebRtc) {
+  public void freeHoles(Kms kms, int numWebRtcs, int numPlumbers) {
     AtomicInteger space = remainingHoles.get(kms);
     checkLoad(kms, space);
-    int holes = space.addAndGet(numWebRtc);
-    log.debug("Free {} #webRtc {} => {}", kms, numWebRtc, holes);
+    int holes = space.addAndGet(getHoles(numWebRtcs, numPlumbers));
+    log.debug("Free {} #webRtc {} #plumber {} => {}", kms, numWebRtcs, numPlumbers, holes);
   }
 
   @Override
   public void kmsRemoved(Kms kms) {
     this.remainingHoles.remove(kms);
+    if (pipelinePool != null) {
+      pipelinePool.removeKms(kms);
+    }
   }
 
   @Override
-  public void kmsAdded(Kms kms) {
+  public boolean hasReservations(Kms kms) {
+    AtomicInteger space = remainingHoles.get(kms);
+    return space != null && space.get() < getMaxHoles();
+  }
 
+  @Override
+  public void kmsAdded(Kms kms) {
+    if (pipelinePool != null) {
+      pipelinePool.addKms(kms);
+    }
   }
 
 }
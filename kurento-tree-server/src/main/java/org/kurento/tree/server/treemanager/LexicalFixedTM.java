@@ -163,6 +163,7 @@ public class LexicalFixedTM extends AbstractOneTreeTM {
         sourceWebRtc.connect(webRtc);
         String sdpAnswer = webRtc.processSdpOffer(sdpOffer);
         webRtc.gatherCandidates();
+        sinks.put(id, webRtc);
         result = new TreeEndpoint(sdpAnswer, id);
       } else {
         throw new TreeException("Max number of viewers reached");
@@ -176,6 +177,7 @@ public class LexicalFixedTM extends AbstractOneTreeTM {
           pipeline.getPlumbers().get(0).connect(webRtc);
           String sdpAnswer = webRtc.processSdpOffer(sdpOffer);
           webRtc.gatherCandidates();
+          sinks.put(id, webRtc);
           result = new TreeEndpoint(sdpAnswer, id);
           break;
         }
@@ -210,15 +212,9 @@ public class LexicalFixedTM extends AbstractOneTreeTM {
   }
 
   private WebRtc getSink(String sinkId) {
-    WebRtc sink;
-    String[] sinkIdTokens = sinkId.split("_");
-    if (sinkIdTokens[0].equals("r")) {
-      int numWebRtc = Integer.parseInt(sinkIdTokens[1]);
-      sink = this.rootPipeline.getWebRtcs().get(numWebRtc);
-    } else {
-      int numPipeline = Integer.parseInt(sinkIdTokens[0]);
-      int numWebRtc = Integer.parseInt(sinkIdTokens[1]);
-      sink = this.leafPipelines.get(numPipeline).getWebRtcs().get(numWebRtc);
+    WebRtc sink = sinks.get(sinkId);
+    if (sink == null) {
+      throw new TreeException("Sink " + sinkId + " not found");
     }
     return sink;
   }
@@ -119,7 +119,7 @@ public class OneKmsTM extends AbstractNTreeTM {
 
     @Override
     public void removeTreeSink(String sinkId) {
-      WebRtc webRtc = sinksById.get(sinkId);
+      WebRtc webRtc = sinksById.remove(sinkId);
       webRtc.release();
     }
 
@@ -0,0 +1,660 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.treemanager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.commons.PropertiesManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+
+/**
+ * Append-only journal of the mutations of trees. Each entry is a json object in its own line, that
+ * records a tree, pipeline, element or link added to or removed from a tree. Every
+ * {@link #SNAPSHOT_INTERVAL} entries the whole state is written to a snapshot file and the journal
+ * is truncated, so recovering only needs the snapshot and the entries written after it. Entries are
+ * idempotent, so a crash between writing a snapshot and truncating the journal is harmless.
+ * <p>
+ * Recording a mutation only queues its entry. A single thread applies the entries to the journaled
+ * state, writes them in batches and takes the snapshots, so recording never waits for the disk nor
+ * for other trees. Entries recorded just before a crash can be lost.
+ */
+public class TreeJournal implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(TreeJournal.class);
+
+  public static final String PATH_PROPERTY = "tree.journal.path";
+
+  public static final int SNAPSHOT_INTERVAL = PropertiesManager
+      .getProperty("tree.journal.snapshotInterval", 1000);
+
+  private static final String OP = "op";
+  private static final String TREE_ID = "treeId";
+  private static final String PIPELINE_ID = "pipelineId";
+  private static final String ELEMENT_ID = "elementId";
+  private static final String SINK_ID = "sinkId";
+  private static final String LINK = "link";
+
+  private static final String CREATE_TREE = "createTree";
+  private static final String RELEASE_TREE = "releaseTree";
+  private static final String ADD_PIPELINE = "addPipeline";
+  private static final String REMOVE_PIPELINE = "removePipeline";
+  private static final String SET_SOURCE = "setSource";
+  private static final String REMOVE_SOURCE = "removeSource";
+  private static final String ADD_SINK = "addSink";
+  private static final String REMOVE_SINK = "removeSink";
+  private static final String ADD_PLUMBER = "addPlumber";
+  private static final String REMOVE_PLUMBER = "removePlumber";
+  private static final String ADD_LINK = "addLink";
+  private static final String REMOVE_LINK = "removeLink";
+
+  // Markers queued with the entries, handled by the writer thread in order
+  private static final Object SNAPSHOT = new Object();
+  private static final Object CLOSE = new Object();
+
+  private static final class RecoveredTree {
+
+    private final String treeId;
+    private final List<JournaledPipeline> pipelines;
+    private final List<String> links;
+
+    private RecoveredTree(String treeId, List<JournaledPipeline> pipelines, List<String> links) {
+      this.treeId = treeId;
+      this.pipelines = pipelines;
+      this.links = links;
+    }
+  }
+
+  /**
+   * Media pipeline of a tree and the ids of its elements in the media server. Plumbers are in
+   * creation order, as pipelines keep them, so the input plumber of a relay pipeline is the first
+   * one. Sink webrtcs are indexed by the id of their sink.
+   */
+  public static class JournaledPipeline {
+
+    private String id;
+    private String sourceId;
+    private List<String> plumberIds = new ArrayList<>();
+    private Map<String, String> sinkWebRtcIds = new LinkedHashMap<>();
+
+    public JournaledPipeline(String id) {
+      this.id = id;
+    }
+
+    public JournaledPipeline(String id, String sourceId, List<String> plumberIds,
+        Map<String, String> sinkWebRtcIds) {
+      this.id = id;
+      this.sourceId = sourceId;
+      this.plumberIds = plumberIds;
+      this.sinkWebRtcIds = sinkWebRtcIds;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    /**
+     * Returns the id of the webrtc of the tree source, or null if it is not in this pipeline.
+     */
+    public String getSourceId() {
+      return sourceId;
+    }
+
+    public List<String> getPlumberIds() {
+      return plumberIds;
+    }
+
+    public Map<String, String> getSinkWebRtcIds() {
+      return sinkWebRtcIds;
+    }
+  }
+
+  /**
+   * Last known state of a tree. Pipeline ids are the ids of the media pipelines in the media
+   * servers, and links are the ids of plumbers linked between them, as "outputId->inputId".
+   */
+  public static class JournaledTree {
+
+    private String treeId;
+    private Map<String, JournaledPipeline> pipelines = new LinkedHashMap<>();
+    private Set<String> links = new LinkedHashSet<>();
+
+    public JournaledTree(String treeId) {
+      this.treeId = treeId;
+    }
+
+    public String getTreeId() {
+      return treeId;
+    }
+
+    /**
+     * Returns true if the webrtc of the tree source is in one of its pipelines.
+     */
+    public boolean hasSource() {
+      for (JournaledPipeline pipeline : pipelines.values()) {
+        if (pipeline.getSourceId() != null) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Returns the ids of the sinks whose webrtcs are in the pipelines of the tree.
+     */
+    public Set<String> getSinkIds() {
+      Set<String> sinkIds = new LinkedHashSet<>();
+      for (JournaledPipeline pipeline : pipelines.values()) {
+        sinkIds.addAll(pipeline.getSinkWebRtcIds().keySet());
+      }
+      return sinkIds;
+    }
+
+    public List<String> getPipelineIds() {
+      return new ArrayList<>(pipelines.keySet());
+    }
+
+    public List<JournaledPipeline> getPipelines() {
+      return new ArrayList<>(pipelines.values());
+    }
+
+    public List<String> getLinks() {
+      return new ArrayList<>(links);
+    }
+  }
+
+  private final Gson gson = new Gson();
+
+  private final Path journalPath;
+  private final Path snapshotPath;
+
+  // Only updated by the writer thread, once the journal is loaded. Guarded by itself so that
+  // the trees can be read from other threads
+  private final Map<String, JournaledTree> trees = new LinkedHashMap<>();
+  private int entriesSinceSnapshot;
+
+  private volatile boolean closed;
+
+  // Entries and markers waiting for the writer thread
+  private final BlockingQueue<Object> pending = new LinkedBlockingQueue<>();
+  private final Thread writerThread;
+
+  // Only used by the writer thread
+  private BufferedWriter writer;
+
+  /**
+   * Opens the journal, loading the state written by previous executions if any.
+   */
+  public TreeJournal(Path journalPath) throws IOException {
+    this.journalPath = journalPath;
+    this.snapshotPath = Paths.get(journalPath.toString() + ".snapshot");
+
+    load();
+
+    this.writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+    this.writerThread = new Thread(this::writeEntries, "tree-journal-writer");
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  /**
+   * Returns the trees in the journal, once the entries recorded before are applied. They are
+   * updated as new entries are recorded.
+   */
+  public Collection<JournaledTree> getTrees() {
+    awaitWriter();
+    synchronized (trees) {
+      return new ArrayList<>(trees.values());
+    }
+  }
+
+  public void treeCreated(String treeId) {
+    append(entry(CREATE_TREE, treeId));
+  }
+
+  public void treeReleased(String treeId) {
+    append(entry(RELEASE_TREE, treeId));
+  }
+
+  public void pipelineAdded(String treeId, String pipelineId) {
+    append(pipelineEntry(ADD_PIPELINE, treeId, pipelineId));
+  }
+
+  public void pipelineRemoved(String treeId, String pipelineId) {
+    append(pipelineEntry(REMOVE_PIPELINE, treeId, pipelineId));
+  }
+
+  /**
+   * Records a plumber added to a pipeline. Plumbers have to be recorded in creation order.
+   */
+  public void plumberAdded(String treeId, String pipelineId, String plumberId) {
+    append(elementEntry(ADD_PLUMBER, treeId, pipelineId, plumberId));
+  }
+
+  public void sourceSet(String treeId, String pipelineId, String webRtcId) {
+    append(elementEntry(SET_SOURCE, treeId, pipelineId, webRtcId));
+  }
+
+  public void sourceRemoved(String treeId, String pipelineId) {
+    append(pipelineEntry(REMOVE_SOURCE, treeId, pipelineId));
+  }
+
+  public void sinkAdded(String treeId, String pipelineId, String sinkId, String webRtcId) {
+    append(sinkEntry(ADD_SINK, treeId, pipelineId, sinkId, webRtcId));
+  }
+
+  public void sinkRemoved(String treeId, String pipelineId, String sinkId) {
+    append(sinkEntry(REMOVE_SINK, treeId, pipelineId, sinkId, null));
+  }
+
+  /**
+   * Records the link of the output plumber of a pipeline to the input plumber of another one.
+   */
+  public void linkAdded(String treeId, String outputId, String inputId) {
+    append(linkEntry(ADD_LINK, treeId, outputId + "->" + inputId));
+  }
+
+  public void linkRemoved(String treeId, String outputId, String inputId) {
+    append(linkEntry(REMOVE_LINK, treeId, outputId + "->" + inputId));
+  }
+
+  /**
+   * Records the media pipelines, with their elements, and plumber links that form a tree once it
+   * is recovered. The journaled media that could not be recovered is removed.
+   */
+  public void treeRecovered(String treeId, List<JournaledPipeline> pipelines, List<String> links) {
+    enqueue(new RecoveredTree(treeId, pipelines, links));
+  }
+
+  /**
+   * Writes the state to the snapshot file and truncates the journal, once the entries recorded
+   * before are written.
+   */
+  public void snapshot() {
+    enqueue(SNAPSHOT);
+  }
+
+  /**
+   * Writes the recorded entries and closes the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      pending.add(CLOSE);
+    }
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing the journal");
+    }
+  }
+
+  private void append(JsonObject entry) {
+    enqueue(entry);
+  }
+
+  private void enqueue(Object item) {
+    if (closed) {
+      log.warn("Ignoring journal entry recorded after closing the journal: {}", item);
+      return;
+    }
+    pending.add(item);
+  }
+
+  /**
+   * Waits for the writer thread to handle the items queued before.
+   */
+  private void awaitWriter() {
+
+    if (closed) {
+      return;
+    }
+
+    CountDownLatch latch = new CountDownLatch(1);
+    pending.add(latch);
+
+    try {
+      while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+        if (!writerThread.isAlive()) {
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void writeEntries() {
+
+    List<Object> batch = new ArrayList<>();
+    while (true) {
+      try {
+        batch.add(pending.take());
+      } catch (InterruptedException e) {
+        log.warn("Journal writer interrupted with {} entries pending", pending.size());
+        return;
+      }
+      pending.drainTo(batch);
+
+      for (Object item : batch) {
+        try {
+          if (item == CLOSE) {
+            writer.close();
+            return;
+          } else if (item == SNAPSHOT) {
+            writeSnapshot();
+          } else if (item instanceof CountDownLatch) {
+            writer.flush();
+            ((CountDownLatch) item).countDown();
+          } else if (item instanceof RecoveredTree) {
+            recordRecovery((RecoveredTree) item);
+          } else {
+            record((JsonObject) item);
+          }
+        } catch (IOException e) {
+          log.error("Exception writing journal entry {}", item, e);
+        }
+      }
+
+      try {
+        writer.flush();
+      } catch (IOException e) {
+        log.error("Exception flushing {} journal entries", batch.size(), e);
+      }
+      batch.clear();
+    }
+  }
+
+  private void record(JsonObject entry) throws IOException {
+
+    synchronized (trees) {
+      apply(entry);
+    }
+    writer.write(entry.toString());
+    writer.newLine();
+
+    entriesSinceSnapshot++;
+    if (entriesSinceSnapshot >= SNAPSHOT_INTERVAL) {
+      writeSnapshot();
+    }
+  }
+
+  private void recordRecovery(RecoveredTree recovered) throws IOException {
+
+    String treeId = recovered.treeId;
+    JournaledTree tree = trees.get(treeId);
+    if (tree == null) {
+      log.warn("Ignoring media of unknown tree {}", treeId);
+      return;
+    }
+
+    Set<String> pipelineIds = new HashSet<>();
+    for (JournaledPipeline pipeline : recovered.pipelines) {
+      pipelineIds.add(pipeline.getId());
+      if (!tree.pipelines.containsKey(pipeline.getId())) {
+        record(pipelineEntry(ADD_PIPELINE, treeId, pipeline.getId()));
+      }
+      recordChanges(treeId, tree.pipelines.get(pipeline.getId()), pipeline);
+    }
+    for (String pipelineId : new ArrayList<>(tree.pipelines.keySet())) {
+      if (!pipelineIds.contains(pipelineId)) {
+        record(pipelineEntry(REMOVE_PIPELINE, treeId, pipelineId));
+      }
+    }
+
+    Set<String> currentLinks = new HashSet<>(recovered.links);
+    for (String link : new ArrayList<>(tree.links)) {
+      if (!currentLinks.contains(link)) {
+        record(linkEntry(REMOVE_LINK, treeId, link));
+      }
+    }
+    for (String link : recovered.links) {
+      if (!tree.links.contains(link)) {
+        record(linkEntry(ADD_LINK, treeId, link));
+      }
+    }
+  }
+
+  private void recordChanges(String treeId, JournaledPipeline journaled,
+      JournaledPipeline pipeline) throws IOException {
+
+    String pipelineId = pipeline.getId();
+
+    if (!Objects.equals(journaled.sourceId, pipeline.sourceId)) {
+      if (pipeline.sourceId == null) {
+        record(pipelineEntry(REMOVE_SOURCE, treeId, pipelineId));
+      } else {
+        record(elementEntry(SET_SOURCE, treeId, pipelineId, pipeline.sourceId));
+      }
+    }
+
+    Set<String> plumberIds = new HashSet<>(pipeline.plumberIds);
+    for (String plumberId : new ArrayList<>(journaled.plumberIds)) {
+      if (!plumberIds.contains(plumberId)) {
+        record(elementEntry(REMOVE_PLUMBER, treeId, pipelineId, plumberId));
+      }
+    }
+    if (journaled.plumberIds.size() < pipeline.plumberIds.size()) {
+      Set<String> journaledIds = new HashSet<>(journaled.plumberIds);
+      for (String plumberId : pipeline.plumberIds) {
+        if (!journaledIds.contains(plumberId)) {
+          record(elementEntry(ADD_PLUMBER, treeId, pipelineId, plumberId));
+        }
+      }
+    }
+
+    for (String sinkId : new ArrayList<>(journaled.sinkWebRtcIds.keySet())) {
+      if (!pipeline.sinkWebRtcIds.containsKey(sinkId)) {
+        record(sinkEntry(REMOVE_SINK, treeId, pipelineId, sinkId, null));
+      }
+    }
+    for (Map.Entry<String, String> sink : pipeline.sinkWebRtcIds.entrySet()) {
+      if (!sink.getValue().equals(journaled.sinkWebRtcIds.get(sink.getKey()))) {
+        record(sinkEntry(ADD_SINK, treeId, pipelineId, sink.getKey(), sink.getValue()));
+      }
+    }
+  }
+
+  private void writeSnapshot() throws IOException {
+
+    // Only this thread updates the trees, so they are serialized without blocking readers
+    String json = gson.toJson(trees.values());
+
+    Path tmpPath = Paths.get(snapshotPath.toString() + ".tmp");
+    Files.write(tmpPath, json.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmpPath, snapshotPath, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+
+    writer.close();
+    writer = Files.newBufferedWriter(journalPath, StandardCharsets.UTF_8,
+        StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+    entriesSinceSnapshot = 0;
+
+    log.debug("Written journal snapshot with {} trees", trees.size());
+  }
+
+  private JsonObject entry(String op, String treeId) {
+    JsonObject entry = new JsonObject();
+    entry.addProperty(OP, op);
+    entry.addProperty(TREE_ID, treeId);
+    return entry;
+  }
+
+  private JsonObject pipelineEntry(String op, String treeId, String pipelineId) {
+    JsonObject entry = entry(op, treeId);
+    entry.addProperty(PIPELINE_ID, pipelineId);
+    return entry;
+  }
+
+  private JsonObject elementEntry(String op, String treeId, String pipelineId,
+      String elementId) {
+    JsonObject entry = pipelineEntry(op, treeId, pipelineId);
+    entry.addProperty(ELEMENT_ID, elementId);
+    return entry;
+  }
+
+  private JsonObject sinkEntry(String op, String treeId, String pipelineId, String sinkId,
+      String webRtcId) {
+    JsonObject entry = webRtcId != null ? elementEntry(op, treeId, pipelineId, webRtcId)
+        : pipelineEntry(op, treeId, pipelineId);
+    entry.addProperty(SINK_ID, sinkId);
+    return entry;
+  }
+
+  private JsonObject linkEntry(String op, String treeId, String link) {
+    JsonObject entry = entry(op, treeId);
+    entry.addProperty(LINK, link);
+    return entry;
+  }
+
+  private void apply(JsonObject entry) {
+
+    String treeId = entry.get(TREE_ID).getAsString();
+    String op = entry.get(OP).getAsString();
+
+    if (op.equals(CREATE_TREE)) {
+      trees.putIfAbsent(treeId, new JournaledTree(treeId));
+      return;
+    }
+    if (op.equals(RELEASE_TREE)) {
+      trees.remove(treeId);
+      return;
+    }
+
+    JournaledTree tree = trees.get(treeId);
+    if (tree == null) {
+      log.warn("Ignoring journal entry of unknown tree: {}", entry);
+      return;
+    }
+
+    switch (op) {
+      case ADD_PIPELINE:
+        String pipelineId = entry.get(PIPELINE_ID).getAsString();
+        tree.pipelines.putIfAbsent(pipelineId, new JournaledPipeline(pipelineId));
+        return;
+      case REMOVE_PIPELINE:
+        tree.pipelines.remove(entry.get(PIPELINE_ID).getAsString());
+        return;
+      case ADD_LINK:
+        tree.links.add(entry.get(LINK).getAsString());
+        return;
+      case REMOVE_LINK:
+        tree.links.remove(entry.get(LINK).getAsString());
+        return;
+      default:
+        break;
+    }
+
+    JournaledPipeline pipeline = entry.has(PIPELINE_ID)
+        ? tree.pipelines.get(entry.get(PIPELINE_ID).getAsString()) : null;
+    if (pipeline == null) {
+      log.warn("Ignoring journal entry of unknown pipeline: {}", entry);
+      return;
+    }
+
+    switch (op) {
+      case SET_SOURCE:
+        pipeline.sourceId = entry.get(ELEMENT_ID).getAsString();
+        break;
+      case REMOVE_SOURCE:
+        pipeline.sourceId = null;
+        break;
+      case ADD_PLUMBER:
+        String plumberId = entry.get(ELEMENT_ID).getAsString();
+        if (!pipeline.plumberIds.contains(plumberId)) {
+          pipeline.plumberIds.add(plumberId);
+        }
+        break;
+      case REMOVE_PLUMBER:
+        pipeline.plumberIds.remove(entry.get(ELEMENT_ID).getAsString());
+        break;
+      case ADD_SINK:
+        pipeline.sinkWebRtcIds.put(entry.get(SINK_ID).getAsString(),
+            entry.get(ELEMENT_ID).getAsString());
+        break;
+      case REMOVE_SINK:
+        pipeline.sinkWebRtcIds.remove(entry.get(SINK_ID).getAsString());
+        break;
+      default:
+        log.warn("Ignoring unknown journal entry: {}", entry);
+    }
+  }
+
+  private void load() throws IOException {
+
+    if (Files.exists(snapshotPath)) {
+      String snapshot = new String(Files.readAllBytes(snapshotPath), StandardCharsets.UTF_8);
+      for (JournaledTree tree : gson.fromJson(snapshot, JournaledTree[].class)) {
+        trees.put(tree.getTreeId(), tree);
+      }
+    }
+
+    if (Files.exists(journalPath)) {
+      try (BufferedReader reader = Files.newBufferedReader(journalPath, StandardCharsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isEmpty()) {
+            continue;
+          }
+          try {
+            apply(new JsonParser().parse(line).getAsJsonObject());
+            entriesSinceSnapshot++;
+          } catch (JsonSyntaxException | IllegalStateException e) {
+            // The last entry can be incomplete if the server crashed while writing it
+            log.warn("Ignoring corrupted journal entry: {}", line);
+          }
+        }
+      }
+    }
+
+    log.info("Loaded journal {} with {} trees", journalPath, trees.size());
+  }
+}
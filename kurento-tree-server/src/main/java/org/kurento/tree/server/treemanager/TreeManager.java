@@ -16,8 +16,12 @@
  */
 package org.kurento.tree.server.treemanager;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.kurento.client.IceCandidate;
 import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.TreeBatchResult;
 import org.kurento.tree.client.TreeEndpoint;
 import org.kurento.tree.client.TreeException;
 import org.kurento.tree.server.kmsmanager.KmsManager;
@@ -39,10 +43,63 @@ public interface TreeManager {
 
   public void removeTreeSink(String treeId, String sinkId) throws TreeException;
 
+  /**
+   * Adds a sink for each offer. Results are in the same order as the offers, and a failure adding
+   * one of the sinks does not prevent adding the others.
+   */
+  public default List<TreeBatchResult<TreeEndpoint>> addTreeSinks(Session session, String treeId,
+      List<String> sdpOffers) throws TreeException {
+
+    List<TreeBatchResult<TreeEndpoint>> results = new ArrayList<>();
+    for (String sdpOffer : sdpOffers) {
+      try {
+        results.add(TreeBatchResult.success(addTreeSink(session, treeId, sdpOffer)));
+      } catch (RuntimeException e) {
+        results.add(TreeBatchResult.failure(e.getMessage()));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Removes the given sinks. Results are in the same order as the sink ids.
+   */
+  public default List<TreeBatchResult<Void>> removeTreeSinks(String treeId, List<String> sinkIds)
+      throws TreeException {
+
+    List<TreeBatchResult<Void>> results = new ArrayList<>();
+    for (String sinkId : sinkIds) {
+      try {
+        removeTreeSink(treeId, sinkId);
+        results.add(TreeBatchResult.success(null));
+      } catch (RuntimeException e) {
+        results.add(TreeBatchResult.failure(e.getMessage()));
+      }
+    }
+    return results;
+  }
+
   public KmsManager getKmsManager();
 
   public void addSinkIceCandidate(String treeId, String sinkId, IceCandidate iceCandidate);
 
   public void addTreeIceCandidate(String treeId, IceCandidate iceCandidate);
 
+  /**
+   * Adds several candidates of a sink. Implementations should apply all of them in a single
+   * operation.
+   */
+  public default void addSinkIceCandidates(String treeId, String sinkId,
+      List<IceCandidate> iceCandidates) {
+    for (IceCandidate iceCandidate : iceCandidates) {
+      addSinkIceCandidate(treeId, sinkId, iceCandidate);
+    }
+  }
+
+  public default void addTreeIceCandidates(String treeId, List<IceCandidate> iceCandidates) {
+    for (IceCandidate iceCandidate : iceCandidates) {
+      addTreeIceCandidate(treeId, iceCandidate);
+    }
+  }
+
 }
@@ -0,0 +1,102 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.WebRtc;
+
+/**
+ * Measures the time sinks need to leave a source with many sinks in the same pipeline, which is
+ * the shape of a single kms tree. Sinks leave one by one in join order, in reverse order and in
+ * random order, and all at once when the broadcast ends and the pipeline is released.
+ */
+public class MassLeaveBenchmark {
+
+  private static final int[] NUM_SINKS = { 100, 1000, 10000 };
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int ITERATIONS = 10;
+
+  private enum LeaveOrder {
+    JOIN_ORDER, REVERSE_ORDER, RANDOM_ORDER, BROADCAST_END
+  }
+
+  private final Random random = new Random(0);
+
+  public static void main(String[] args) {
+    new MassLeaveBenchmark().run();
+  }
+
+  public void run() {
+    for (LeaveOrder order : LeaveOrder.values()) {
+      for (int numSinks : NUM_SINKS) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+          leave(numSinks, order);
+        }
+        long time = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+          time += leave(numSinks, order);
+        }
+        System.out.printf("%-14s %6d sinks: %8.1f ns/sink%n", order, numSinks,
+            (double) time / ITERATIONS / numSinks);
+      }
+    }
+  }
+
+  /**
+   * Returns the nanoseconds needed for all the sinks to leave.
+   */
+  private long leave(int numSinks, LeaveOrder order) {
+
+    Kms kms = new Kms();
+    Pipeline pipeline = kms.createPipeline();
+    WebRtc source = pipeline.createWebRtc(null);
+
+    List<WebRtc> sinks = new ArrayList<>(numSinks);
+    for (int i = 0; i < numSinks; i++) {
+      WebRtc sink = pipeline.createWebRtc(null);
+      source.connect(sink);
+      sinks.add(sink);
+    }
+
+    if (order == LeaveOrder.REVERSE_ORDER) {
+      Collections.reverse(sinks);
+    } else if (order == LeaveOrder.RANDOM_ORDER) {
+      Collections.shuffle(sinks, random);
+    }
+
+    long start = System.nanoTime();
+    if (order == LeaveOrder.BROADCAST_END) {
+      pipeline.release();
+    } else {
+      for (WebRtc sink : sinks) {
+        sink.release();
+      }
+    }
+    long time = System.nanoTime() - start;
+
+    if (kms.getNumWebRtcs() != (order == LeaveOrder.BROADCAST_END ? 0 : 1)) {
+      throw new IllegalStateException("Sinks have not left");
+    }
+    return time;
+  }
+}
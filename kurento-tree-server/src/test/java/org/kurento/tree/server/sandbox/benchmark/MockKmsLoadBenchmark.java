@@ -0,0 +1,110 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
+import org.kurento.tree.server.kms.mock.MockKms;
+import org.kurento.tree.server.kms.real.RealKms;
+import org.kurento.tree.server.kmsmanager.RealFixedNKmsManager;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+import org.mockito.Mockito;
+
+/**
+ * Load test of the real kms classes and kurento-client against an in-process {@link MockKms}.
+ * Trees are created and filled with sinks, and the latencies of addTreeSink are printed. Useful to
+ * profile the code path of a tree server without media servers. Latencies of the mock are read
+ * from the kms.fake.* properties.
+ */
+public class MockKmsLoadBenchmark {
+
+  private static final int NUM_KMSS = 4;
+  private static final int NUM_TREES = 20;
+  private static final int SINKS_PER_TREE = 50;
+  private static final int ROUNDS = 3;
+
+  // Client session receiving the ice candidates, without recording them
+  private static final Session session = Mockito.mock(Session.class,
+      Mockito.withSettings().stubOnly());
+
+  public static void main(String[] args) throws Exception {
+
+    try (MockKms mockKms = new MockKms(FakeKmsConfig.fromConfig()).start()) {
+
+      List<String> uris = new ArrayList<>();
+      for (int i = 0; i < NUM_KMSS; i++) {
+        uris.add(mockKms.getUri());
+      }
+      RealFixedNKmsManager kmsManager = new RealFixedNKmsManager(uris);
+      LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager,
+          NUM_TREES * SINKS_PER_TREE);
+
+      // The first round warms up the jvm
+      for (int round = 0; round < ROUNDS; round++) {
+        run(treeManager, round);
+      }
+
+      System.out.printf("Requests received by the mock kms: %d%n",
+          mockKms.getHandler().getRequests());
+
+      for (Kms kms : kmsManager.getKmss()) {
+        ((RealKms) kms).getKurentoClient().destroy();
+      }
+    }
+  }
+
+  private static void run(LessLoadedOnlySource2TM treeManager, int round) {
+
+    List<String> treeIds = new ArrayList<>();
+    List<Long> latencies = new ArrayList<>();
+
+    long start = System.nanoTime();
+    for (int i = 0; i < NUM_TREES; i++) {
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(session, treeId, "sdpOffer");
+      treeIds.add(treeId);
+    }
+    for (int i = 0; i < SINKS_PER_TREE; i++) {
+      for (String treeId : treeIds) {
+        long sinkStart = System.nanoTime();
+        treeManager.addTreeSink(session, treeId, "sdpOffer");
+        latencies.add(System.nanoTime() - sinkStart);
+      }
+    }
+    for (String treeId : treeIds) {
+      treeManager.releaseTree(treeId);
+    }
+    long time = System.nanoTime() - start;
+
+    Collections.sort(latencies);
+    System.out.printf(
+        "Round %d: %d sinks in %d ms (%.1f sinks/s), addTreeSink p50 %.2f ms, p99 %.2f ms%n",
+        round, latencies.size(), TimeUnit.NANOSECONDS.toMillis(time),
+        latencies.size() * 1e9 / time, percentile(latencies, 0.5), percentile(latencies, 0.99));
+  }
+
+  private static double percentile(List<Long> sortedNanos, double percentile) {
+    int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+    return sortedNanos.get(Math.max(index, 0)) / 1e6;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import java.util.Random;
+
+/**
+ * Times at which viewers arrive, as a Poisson process whose rate may change with time. Arrivals of
+ * processes with a variable rate are generated by thinning a process with the maximum rate.
+ * Times and rates are in seconds of simulated time.
+ */
+public abstract class ArrivalProcess {
+
+  /**
+   * Arrivals per second at the given time.
+   */
+  public abstract double getRate(double time);
+
+  /**
+   * Upper bound of {@link #getRate(double)} for any time.
+   */
+  public abstract double getMaxRate();
+
+  /**
+   * Returns the time of the first arrival after the given time, or infinity if there are no more
+   * arrivals.
+   */
+  public double nextArrival(double time, Random random) {
+    double maxRate = getMaxRate();
+    if (maxRate <= 0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    do {
+      time += -Math.log(1 - random.nextDouble()) / maxRate;
+    } while (random.nextDouble() * maxRate > getRate(time));
+    return time;
+  }
+
+  /**
+   * Arrivals with a constant rate.
+   */
+  public static ArrivalProcess poisson(double rate) {
+    return new ArrivalProcess() {
+
+      @Override
+      public double getRate(double time) {
+        return rate;
+      }
+
+      @Override
+      public double getMaxRate() {
+        return rate;
+      }
+    };
+  }
+
+  /**
+   * Arrivals with a base rate that grows linearly to a peak rate in rampUp seconds after start, is
+   * kept for duration seconds, and goes back linearly to the base rate in rampUp seconds.
+   */
+  public static ArrivalProcess flashCrowd(double baseRate, double peakRate, double start,
+      double rampUp, double duration) {
+    return new ArrivalProcess() {
+
+      @Override
+      public double getRate(double time) {
+        double elapsed = time - start;
+        double ramp;
+        if (elapsed <= 0 || elapsed >= 2 * rampUp + duration) {
+          ramp = 0;
+        } else if (elapsed < rampUp) {
+          ramp = elapsed / rampUp;
+        } else if (elapsed <= rampUp + duration) {
+          ramp = 1;
+        } else {
+          ramp = (2 * rampUp + duration - elapsed) / rampUp;
+        }
+        return baseRate + (peakRate - baseRate) * ramp;
+      }
+
+      @Override
+      public double getMaxRate() {
+        return Math.max(baseRate, peakRate);
+      }
+    };
+  }
+
+  /**
+   * Arrivals with a rate that follows a sinusoid around the mean rate with the given period, having
+   * its maximum at peakTime. Amplitude is relative to the mean rate, between 0 and 1.
+   */
+  public static ArrivalProcess diurnal(double meanRate, double amplitude, double period,
+      double peakTime) {
+    return new ArrivalProcess() {
+
+      @Override
+      public double getRate(double time) {
+        return meanRate * (1 + amplitude * Math.cos(2 * Math.PI * (time - peakTime) / period));
+      }
+
+      @Override
+      public double getMaxRate() {
+        return meanRate * (1 + amplitude);
+      }
+    };
+  }
+}
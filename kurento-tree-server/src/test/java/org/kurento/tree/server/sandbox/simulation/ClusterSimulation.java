@@ -0,0 +1,420 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.kurento.commons.PropertiesManager;
+import org.kurento.tree.client.TreeException;
+import org.kurento.tree.server.kms.Element;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Plumber;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.WebRtcListener;
+import org.kurento.tree.server.sandbox.experiment.framework.TreeManagerCreator;
+import org.kurento.tree.server.treemanager.KmsListener;
+import org.kurento.tree.server.treemanager.TreeManager;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Discrete event simulation of the viewers of a cluster of fake kmss. Viewers arrive following an
+ * arrival process, join a tree chosen by its popularity and leave after a random session length,
+ * while kmss are added and removed at given times. Simulated time advances from event to event, so
+ * hours of traffic are simulated in seconds.
+ *
+ * <p>
+ * Each tree manager is simulated with each kms capacity (kms.maxWebrtc), and the state of the
+ * cluster is sampled periodically into a CSV and a JSON file. Subclasses configure the simulation
+ * in {@link #configureSimulation()}, like experiments do.
+ */
+public abstract class ClusterSimulation {
+
+  private static final int MAX_HOP_DEPTH = 64;
+
+  private enum EventType {
+    ARRIVAL, LEAVE, ADD_KMS, REMOVE_KMS, SAMPLE
+  }
+
+  private static class Event implements Comparable<Event> {
+
+    private final double time;
+    private final long seq;
+    private final EventType type;
+    private int tree;
+    private String sinkId;
+    private int hopDepth;
+
+    public Event(double time, long seq, EventType type) {
+      this.time = time;
+      this.seq = seq;
+      this.type = type;
+    }
+
+    @Override
+    public int compareTo(Event other) {
+      int result = Double.compare(time, other.time);
+      return result != 0 ? result : Long.compare(seq, other.seq);
+    }
+  }
+
+  private double duration = 3600;
+  private double sampleInterval = 10;
+  private ArrivalProcess arrivals = ArrivalProcess.poisson(10);
+  private Distribution sessionLength = Distribution.exponential(300);
+  private int numTrees = 10;
+  private TreePopularity popularity;
+  private int initialKmss = 4;
+  private long randomSeed = 0;
+  private List<Integer> maxWebRtcs = new ArrayList<>();
+  private List<TreeManagerCreator> treeManagerCreators = new ArrayList<>();
+  private Map<Double, List<EventType>> kmsEvents = new HashMap<>();
+
+  public abstract void configureSimulation();
+
+  /**
+   * Seconds of simulated time.
+   */
+  protected void setDuration(double duration) {
+    this.duration = duration;
+  }
+
+  protected void setSampleInterval(double sampleInterval) {
+    this.sampleInterval = sampleInterval;
+  }
+
+  protected void setArrivals(ArrivalProcess arrivals) {
+    this.arrivals = arrivals;
+  }
+
+  /**
+   * Seconds each viewer stays in its tree.
+   */
+  protected void setSessionLength(Distribution sessionLength) {
+    this.sessionLength = sessionLength;
+  }
+
+  /**
+   * Number of trees, all of them with a source during the whole simulation.
+   */
+  protected void setNumTrees(int numTrees) {
+    this.numTrees = numTrees;
+  }
+
+  /**
+   * Defaults to all trees being equally popular.
+   */
+  protected void setPopularity(TreePopularity popularity) {
+    this.popularity = popularity;
+  }
+
+  protected void setInitialKmss(int initialKmss) {
+    this.initialKmss = initialKmss;
+  }
+
+  protected void setRandomSeed(long randomSeed) {
+    this.randomSeed = randomSeed;
+  }
+
+  /**
+   * Adds a kms capacity to simulate. Defaults to property kms.maxWebrtc.
+   */
+  protected void addMaxWebRtcs(int maxWebRtcs) {
+    this.maxWebRtcs.add(maxWebRtcs);
+  }
+
+  /**
+   * Adds a tree manager to simulate. The kms manager passed to the creator is a
+   * {@link SimulatedKmsManager}, whose capacity should be used for the tree manager.
+   */
+  protected void addTreeManagerCreator(TreeManagerCreator treeManagerCreator) {
+    this.treeManagerCreators.add(treeManagerCreator);
+  }
+
+  protected void addKmsAt(double time) {
+    kmsEvents.computeIfAbsent(time, t -> new ArrayList<>()).add(EventType.ADD_KMS);
+  }
+
+  protected void removeKmsAt(double time) {
+    kmsEvents.computeIfAbsent(time, t -> new ArrayList<>()).add(EventType.REMOVE_KMS);
+  }
+
+  public void run() {
+
+    configureSimulation();
+
+    if (maxWebRtcs.isEmpty()) {
+      maxWebRtcs.add(PropertiesManager.getProperty("kms.maxWebrtc", 50));
+    }
+    if (popularity == null) {
+      popularity = TreePopularity.uniform(numTrees);
+    }
+
+    // Logging every operation or rejected join would take much longer than the simulation itself
+    org.slf4j.Logger logger = LoggerFactory.getLogger("org.kurento");
+    if (logger instanceof ch.qos.logback.classic.Logger) {
+      ((ch.qos.logback.classic.Logger) logger).setLevel(ch.qos.logback.classic.Level.ERROR);
+    }
+
+    String reportPath = System.getProperty("user.home") + "/Data/Kurento/Tree";
+    new File(reportPath).mkdirs();
+
+    for (TreeManagerCreator treeManagerCreator : treeManagerCreators) {
+      for (int maxWebRtcs : this.maxWebRtcs) {
+
+        Run run = new Run(treeManagerCreator, maxWebRtcs);
+        run.simulate();
+
+        String name = reportPath + "/simulation_" + this.getClass().getSimpleName() + "_"
+            + run.treeManager.getClass().getSimpleName() + "_" + maxWebRtcs;
+        try {
+          writeCsv(run.samples, new File(name + ".csv"));
+          writeJson(run.samples, new File(name + ".json"));
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+
+        System.out.println(run.getSummary());
+        System.out.println("Time series written to " + name + ".{csv,json}");
+      }
+    }
+  }
+
+  private void writeCsv(List<SimulationSample> samples, File file) throws IOException {
+    try (PrintWriter writer = new PrintWriter(
+        Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+      writer.println(SimulationSample.CSV_HEADER);
+      for (SimulationSample sample : samples) {
+        writer.println(sample.toCsv());
+      }
+    }
+  }
+
+  private void writeJson(List<SimulationSample> samples, File file) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      new GsonBuilder().setPrettyPrinting().create().toJson(samples, writer);
+    }
+  }
+
+  private class Run implements WebRtcListener {
+
+    private final Random random = new Random(randomSeed);
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final SimulatedKmsManager kmsManager;
+    private final TreeManager treeManager;
+    private final List<String> treeIds = new ArrayList<>();
+    private final Map<String, WebRtc> sinks = new HashMap<>();
+    private final int[] viewersByHopDepth = new int[MAX_HOP_DEPTH];
+    private final List<SimulationSample> samples = new ArrayList<>();
+    private final int maxWebRtcs;
+    private long seq;
+
+    private int viewers;
+    private int joins;
+    private int rejectedJoins;
+    private int leaves;
+    private long totalJoins;
+    private long totalRejectedJoins;
+    private long numEvents;
+    private int maxKmss;
+    private long wallTime;
+
+    public Run(TreeManagerCreator treeManagerCreator, int maxWebRtcs) {
+      this.maxWebRtcs = maxWebRtcs;
+      this.kmsManager = new SimulatedKmsManager(initialKmss, maxWebRtcs);
+      this.treeManager = treeManagerCreator.createTreeManager(kmsManager);
+      if (treeManager instanceof KmsListener) {
+        kmsManager.setKmsListener((KmsListener) treeManager);
+      }
+      kmsManager.addWebRtcListener(this);
+    }
+
+    public void simulate() {
+
+      long start = System.nanoTime();
+
+      for (int i = 0; i < numTrees; i++) {
+        String treeId = treeManager.createTree();
+        treeManager.setTreeSource(null, treeId, "fakeSdp");
+        treeIds.add(treeId);
+      }
+
+      for (Map.Entry<Double, List<EventType>> entry : kmsEvents.entrySet()) {
+        for (EventType type : entry.getValue()) {
+          schedule(entry.getKey(), type);
+        }
+      }
+      schedule(arrivals.nextArrival(0, random), EventType.ARRIVAL);
+      schedule(0, EventType.SAMPLE);
+
+      Event event;
+      while ((event = events.poll()) != null && event.time <= duration) {
+        numEvents++;
+        switch (event.type) {
+          case ARRIVAL:
+            arrive(event.time);
+            break;
+          case LEAVE:
+            leave(event);
+            break;
+          case ADD_KMS:
+            kmsManager.addKms();
+            break;
+          case REMOVE_KMS:
+            kmsManager.removeKms();
+            break;
+          case SAMPLE:
+            sample(event.time);
+            break;
+        }
+      }
+
+      wallTime = System.nanoTime() - start;
+    }
+
+    private Event schedule(double time, EventType type) {
+      Event event = new Event(time, seq++, type);
+      events.add(event);
+      return event;
+    }
+
+    private void arrive(double time) {
+
+      schedule(arrivals.nextArrival(time, random), EventType.ARRIVAL);
+
+      int tree = popularity.sampleTree(random);
+      String sinkId;
+      try {
+        sinkId = treeManager.addTreeSink(null, treeIds.get(tree), "fakeSdp").getId();
+      } catch (TreeException e) {
+        rejectedJoins++;
+        totalRejectedJoins++;
+        return;
+      }
+
+      int hopDepth = getHopDepth(sinks.get(sinkId));
+      viewersByHopDepth[hopDepth]++;
+      viewers++;
+      joins++;
+      totalJoins++;
+
+      Event leave = schedule(time + sessionLength.sample(random), EventType.LEAVE);
+      leave.tree = tree;
+      leave.sinkId = sinkId;
+      leave.hopDepth = hopDepth;
+    }
+
+    private void leave(Event event) {
+      treeManager.removeTreeSink(treeIds.get(event.tree), event.sinkId);
+      viewersByHopDepth[event.hopDepth]--;
+      viewers--;
+      leaves++;
+    }
+
+    /**
+     * Returns the number of kms hops between the source of the tree and the given sink.
+     */
+    private int getHopDepth(WebRtc sink) {
+      int depth = 0;
+      Element element = sink.getSource();
+      while (element instanceof Plumber && depth < MAX_HOP_DEPTH - 1) {
+        Plumber linkedTo = ((Plumber) element).getLinkedTo();
+        if (linkedTo == null) {
+          break;
+        }
+        element = linkedTo.getSource();
+        depth++;
+      }
+      return depth;
+    }
+
+    private void sample(double time) {
+
+      if (time + sampleInterval <= duration) {
+        schedule(time + sampleInterval, EventType.SAMPLE);
+      }
+
+      List<Kms> usedKmss = kmsManager.getUsedKmss();
+      double totalLoad = 0;
+      double maxLoad = 0;
+      for (Kms kms : usedKmss) {
+        double load = kms.getLoad();
+        totalLoad += load;
+        maxLoad = Math.max(maxLoad, load);
+      }
+      maxKmss = Math.max(maxKmss, usedKmss.size());
+
+      long totalDepth = 0;
+      int maxDepth = 0;
+      for (int depth = 0; depth < MAX_HOP_DEPTH; depth++) {
+        if (viewersByHopDepth[depth] > 0) {
+          totalDepth += (long) depth * viewersByHopDepth[depth];
+          maxDepth = depth;
+        }
+      }
+
+      samples.add(new SimulationSample(time, usedKmss.size(),
+          usedKmss.isEmpty() ? 0 : totalLoad / usedKmss.size(), maxLoad, viewers, joins,
+          rejectedJoins, leaves, viewers == 0 ? 0 : (double) totalDepth / viewers, maxDepth));
+
+      joins = 0;
+      rejectedJoins = 0;
+      leaves = 0;
+    }
+
+    public String getSummary() {
+      double seconds = wallTime / 1e9;
+      long attempts = totalJoins + totalRejectedJoins;
+      return String.format(
+          "%s with kms.maxWebrtc=%d: %d joins, %d rejected (%.2f%%), up to %d kmss. "
+              + "%d events in %.1f s (%.0f events/min)",
+          treeManager.getClass().getSimpleName(), maxWebRtcs, totalJoins, totalRejectedJoins,
+          attempts == 0 ? 0 : 100.0 * totalRejectedJoins / attempts, maxKmss, numEvents, seconds,
+          numEvents / seconds * 60);
+    }
+
+    @Override
+    public void webRtcAdded(WebRtc webRtc) {
+      if (webRtc.isSink()) {
+        sinks.put(webRtc.getSession().getSinkId(), webRtc);
+      }
+    }
+
+    @Override
+    public void webRtcRemoved(WebRtc webRtc) {
+      if (webRtc.isSink()) {
+        sinks.remove(webRtc.getSession().getSinkId());
+      }
+    }
+
+    @Override
+    public void mediaChanged(WebRtc webRtc) {
+    }
+  }
+}
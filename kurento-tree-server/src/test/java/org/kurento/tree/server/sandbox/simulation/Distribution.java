@@ -0,0 +1,59 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import java.util.Random;
+
+/**
+ * Random values of the simulation, like the seconds a viewer stays watching a tree.
+ */
+public abstract class Distribution {
+
+  public abstract double sample(Random random);
+
+  public static Distribution fixed(double value) {
+    return new Distribution() {
+      @Override
+      public double sample(Random random) {
+        return value;
+      }
+    };
+  }
+
+  public static Distribution exponential(double mean) {
+    return new Distribution() {
+      @Override
+      public double sample(Random random) {
+        return -Math.log(1 - random.nextDouble()) * mean;
+      }
+    };
+  }
+
+  /**
+   * Log-normal distribution with the given mean and standard deviation of the underlying normal
+   * distribution. Session lengths of viewers are usually heavy tailed like this one.
+   */
+  public static Distribution logNormal(double mean, double sigma) {
+    double mu = Math.log(mean) - sigma * sigma / 2;
+    return new Distribution() {
+      @Override
+      public double sample(Random random) {
+        return Math.exp(mu + sigma * random.nextGaussian());
+      }
+    };
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.sandbox.experiment.framework.TreeManagerCreator;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+import org.kurento.tree.server.treemanager.TreeManager;
+
+/**
+ * A week of daily traffic peaking at 21:00, with the kmss of the cluster resized before and after
+ * the peak of each day. Used to check the millions of events a long simulation needs.
+ */
+public class DiurnalSimulation extends ClusterSimulation {
+
+  private static final double DAY = 24 * 3600;
+
+  @Override
+  public void configureSimulation() {
+
+    setDuration(7 * DAY);
+    setSampleInterval(300);
+
+    setNumTrees(50);
+    setPopularity(TreePopularity.zipf(50, 1));
+    setArrivals(ArrivalProcess.diurnal(5, 0.8, DAY, 21 * 3600));
+    setSessionLength(Distribution.exponential(600));
+
+    setInitialKmss(60);
+    for (int day = 0; day < 7; day++) {
+      for (int i = 0; i < 20; i++) {
+        addKmsAt(day * DAY + 17 * 3600);
+        removeKmsAt(day * DAY + 25 * 3600);
+      }
+    }
+
+    addMaxWebRtcs(50);
+
+    addTreeManagerCreator(new TreeManagerCreator() {
+      @Override
+      public TreeManager createTreeManager(KmsManager kmsManager) {
+        return new LessLoadedOnlySource2TM(kmsManager,
+            ((SimulatedKmsManager) kmsManager).getMaxWebRtcs());
+      }
+    });
+  }
+
+  public static void main(String[] args) {
+    new DiurnalSimulation().run();
+  }
+}
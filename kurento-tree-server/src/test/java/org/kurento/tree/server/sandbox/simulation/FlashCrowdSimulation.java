@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.sandbox.experiment.framework.TreeManagerCreator;
+import org.kurento.tree.server.treemanager.LessLoadedElasticTM;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+import org.kurento.tree.server.treemanager.TreeManager;
+
+/**
+ * An hour of steady traffic on a few popular trees with a flash crowd of five times the usual
+ * arrivals after 20 minutes. Four kmss are added to absorb it and removed later.
+ */
+public class FlashCrowdSimulation extends ClusterSimulation {
+
+  @Override
+  public void configureSimulation() {
+
+    setDuration(3600);
+    setSampleInterval(10);
+
+    setNumTrees(20);
+    setPopularity(TreePopularity.zipf(20, 1.2));
+    setArrivals(ArrivalProcess.flashCrowd(0.5, 2.5, 1200, 120, 600));
+    setSessionLength(Distribution.logNormal(300, 1));
+
+    setInitialKmss(10);
+    for (int i = 0; i < 4; i++) {
+      addKmsAt(1260);
+      removeKmsAt(2400);
+    }
+
+    addMaxWebRtcs(50);
+    addMaxWebRtcs(100);
+
+    addTreeManagerCreator(new TreeManagerCreator() {
+      @Override
+      public TreeManager createTreeManager(KmsManager kmsManager) {
+        return new LessLoadedOnlySource2TM(kmsManager,
+            ((SimulatedKmsManager) kmsManager).getMaxWebRtcs());
+      }
+    });
+
+    addTreeManagerCreator(new TreeManagerCreator() {
+      @Override
+      public TreeManager createTreeManager(KmsManager kmsManager) {
+        return new LessLoadedElasticTM(kmsManager);
+      }
+    });
+  }
+
+  public static void main(String[] args) {
+    new FlashCrowdSimulation().run();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.loadmanager.MaxWebRtcLoadManager;
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.treemanager.KmsListener;
+
+/**
+ * Fake kmss added and removed by the events of a simulation. Removed kmss are drained: they are
+ * not offered for new pipelines, but the viewers already there stay until they leave, as tree
+ * managers can't move sinks to other kmss. Like the real kms managers, the kms listener is only
+ * told about the removal once the kms has no elements.
+ */
+public class SimulatedKmsManager extends KmsManager {
+
+  private final int maxWebRtcs;
+  private final List<Kms> kmss = new ArrayList<>();
+  private final List<Kms> drainingKmss = new ArrayList<>();
+  private KmsListener kmsListener;
+  private int numKms;
+
+  public SimulatedKmsManager(int numKmss, int maxWebRtcs) {
+    this.maxWebRtcs = maxWebRtcs;
+    for (int i = 0; i < numKmss; i++) {
+      addKms();
+    }
+  }
+
+  @Override
+  public List<Kms> getKmss() {
+    return kmss;
+  }
+
+  /**
+   * Webrtcs allowed in each kms, the equivalent of property kms.maxWebrtc.
+   */
+  public int getMaxWebRtcs() {
+    return maxWebRtcs;
+  }
+
+  public void setKmsListener(KmsListener kmsListener) {
+    this.kmsListener = kmsListener;
+  }
+
+  public Kms addKms() {
+    Kms kms = new Kms("Kms " + numKms++);
+    kms.setLoadManager(new MaxWebRtcLoadManager(maxWebRtcs));
+    kmss.add(kms);
+    addToLoadIndex(kms);
+    if (kmsListener != null) {
+      kmsListener.kmsAdded(kms);
+    }
+    return kms;
+  }
+
+  /**
+   * Drains the newest kms, or returns null if there is only one kms left.
+   */
+  public Kms removeKms() {
+    if (kmss.size() <= 1) {
+      return null;
+    }
+    Kms kms = kmss.remove(kmss.size() - 1);
+    removeFromLoadIndex(kms);
+    drainingKmss.add(kms);
+    return kms;
+  }
+
+  /**
+   * Returns the kmss that are in use, including the removed ones that still have elements. Removed
+   * kmss found empty are released.
+   */
+  public List<Kms> getUsedKmss() {
+    for (Iterator<Kms> it = drainingKmss.iterator(); it.hasNext();) {
+      Kms kms = it.next();
+      if (kms.getNumElements() == 0) {
+        it.remove();
+        if (kmsListener != null) {
+          kmsListener.kmsRemoved(kms);
+        }
+        kms.release();
+      }
+    }
+    List<Kms> usedKmss = new ArrayList<>(kmss);
+    usedKmss.addAll(drainingKmss);
+    return usedKmss;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import java.util.Locale;
+
+/**
+ * State of the cluster at a time of a simulation. Joins, rejected joins and leaves are counted
+ * since the previous sample.
+ */
+public class SimulationSample {
+
+  public static final String CSV_HEADER = "time,kmss,utilisation,maxUtilisation,viewers,joins,"
+      + "rejectedJoins,leaves,meanHopDepth,maxHopDepth";
+
+  private final double time;
+  private final int kmss;
+  private final double utilisation;
+  private final double maxUtilisation;
+  private final int viewers;
+  private final int joins;
+  private final int rejectedJoins;
+  private final int leaves;
+  private final double meanHopDepth;
+  private final int maxHopDepth;
+
+  public SimulationSample(double time, int kmss, double utilisation, double maxUtilisation,
+      int viewers, int joins, int rejectedJoins, int leaves, double meanHopDepth, int maxHopDepth) {
+    this.time = time;
+    this.kmss = kmss;
+    this.utilisation = utilisation;
+    this.maxUtilisation = maxUtilisation;
+    this.viewers = viewers;
+    this.joins = joins;
+    this.rejectedJoins = rejectedJoins;
+    this.leaves = leaves;
+    this.meanHopDepth = meanHopDepth;
+    this.maxHopDepth = maxHopDepth;
+  }
+
+  public double getTime() {
+    return time;
+  }
+
+  public int getKmss() {
+    return kmss;
+  }
+
+  /**
+   * Mean load of the kmss in use.
+   */
+  public double getUtilisation() {
+    return utilisation;
+  }
+
+  public double getMaxUtilisation() {
+    return maxUtilisation;
+  }
+
+  public int getViewers() {
+    return viewers;
+  }
+
+  public int getJoins() {
+    return joins;
+  }
+
+  public int getRejectedJoins() {
+    return rejectedJoins;
+  }
+
+  public int getLeaves() {
+    return leaves;
+  }
+
+  /**
+   * Mean number of kms hops between the source of a tree and its viewers.
+   */
+  public double getMeanHopDepth() {
+    return meanHopDepth;
+  }
+
+  public int getMaxHopDepth() {
+    return maxHopDepth;
+  }
+
+  public String toCsv() {
+    return String.format(Locale.ROOT, "%.3f,%d,%.4f,%.4f,%d,%d,%d,%d,%.4f,%d", time, kmss,
+        utilisation, maxUtilisation, viewers, joins, rejectedJoins, leaves, meanHopDepth,
+        maxHopDepth);
+  }
+}
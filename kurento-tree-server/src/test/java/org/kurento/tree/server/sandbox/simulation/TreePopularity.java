@@ -0,0 +1,63 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.sandbox.simulation;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Chooses the tree each arriving viewer joins.
+ */
+public abstract class TreePopularity {
+
+  /**
+   * Returns the index of a tree, between 0 and numTrees - 1.
+   */
+  public abstract int sampleTree(Random random);
+
+  public static TreePopularity uniform(int numTrees) {
+    return new TreePopularity() {
+      @Override
+      public int sampleTree(Random random) {
+        return random.nextInt(numTrees);
+      }
+    };
+  }
+
+  /**
+   * Tree i is chosen with a probability proportional to 1 / (i + 1)^exponent, so a few trees have
+   * most of the viewers.
+   */
+  public static TreePopularity zipf(int numTrees, double exponent) {
+
+    double[] cumulative = new double[numTrees];
+    double total = 0;
+    for (int i = 0; i < numTrees; i++) {
+      total += 1 / Math.pow(i + 1, exponent);
+      cumulative[i] = total;
+    }
+    double sum = total;
+
+    return new TreePopularity() {
+      @Override
+      public int sampleTree(Random random) {
+        int pos = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+        return Math.min(pos < 0 ? -pos - 1 : pos, numTrees - 1);
+      }
+    };
+  }
+}
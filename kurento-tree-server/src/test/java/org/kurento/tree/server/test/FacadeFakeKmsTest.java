@@ -27,7 +27,10 @@ import org.junit.Test;
 import org.kurento.tree.server.kms.Element;
 import org.kurento.tree.server.kms.Kms;
 import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.Plumber;
 import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.loadmanager.MaxWebRtcLoadManager;
+import org.kurento.tree.server.kms.loadmanager.WeightedLoadManager;
 
 public class FacadeFakeKmsTest {
 
@@ -57,4 +60,106 @@ public class FacadeFakeKmsTest {
     assertThat(master.getSinks(), is(Collections.<Element> emptyList()));
 
   }
+
+  @Test
+  public void elementCountersTest() {
+
+    Kms kms = new Kms();
+    Kms otherKms = new Kms();
+
+    Pipeline pipeline = kms.createPipeline();
+    WebRtc master = pipeline.createWebRtc(null);
+    WebRtc viewer = pipeline.createWebRtc(null);
+    master.connect(viewer);
+
+    Pipeline otherPipeline = otherKms.createPipeline();
+    Plumber[] plumbers = pipeline.link(otherPipeline);
+
+    assertThat(kms.getNumWebRtcs(), is(2));
+    assertThat(kms.getNumPlumbers(), is(1));
+    assertThat(otherKms.getNumElements(), is(1));
+
+    viewer.release();
+    assertThat(kms.getNumElements(), is(2));
+
+    plumbers[1].release();
+    assertThat(otherKms.getNumElements(), is(0));
+
+    pipeline.release();
+    assertThat(kms.getNumElements(), is(0));
+    assertThat(kms.getPipelines().isEmpty(), is(true));
+  }
+
+  @Test
+  public void plumberLoadWeightTest() {
+
+    Kms kms = new Kms();
+    kms.setLoadManager(new MaxWebRtcLoadManager(4, 0.5));
+    Kms otherKms = new Kms();
+
+    Pipeline pipeline = kms.createPipeline();
+    pipeline.createWebRtc(null);
+    pipeline.link(otherKms.createPipeline());
+    pipeline.link(otherKms.createPipeline());
+
+    // One webRtc plus two plumbers weighted as one webRtc
+    assertThat(kms.getLoad(), is(0.5));
+    assertThat(kms.allowMoreElements(), is(true));
+
+    pipeline.createWebRtc(null);
+    pipeline.createWebRtc(null);
+    assertThat(kms.allowMoreElements(), is(false));
+  }
+
+  @Test
+  public void weightedLoadTest() {
+
+    Kms kms = new Kms();
+    WeightedLoadManager loadManager = new WeightedLoadManager(10, 3, 1, 0.5, 1000);
+    kms.setLoadManager(loadManager);
+
+    Pipeline pipeline = kms.createPipeline();
+    WebRtc source = pipeline.createWebRtc(null);
+    WebRtc sink = pipeline.createWebRtc(null);
+    assertThat(kms.getNumSourceWebRtcs(), is(0));
+
+    source.connect(sink);
+    source.connect(pipeline.createWebRtc(null));
+    pipeline.link(new Kms().createPipeline())[0].connect(pipeline.createWebRtc(null));
+
+    // One source, three sinks and one plumber
+    assertThat(kms.getNumSourceWebRtcs(), is(1));
+    assertThat(loadManager.calculateLoadPoints(kms), is(6.5));
+    assertThat(kms.getLoad(), is(0.65));
+
+    // Memory usage is considered when higher than elements load
+    kms.setUsedMemory(900);
+    assertThat(kms.getLoad(), is(0.9));
+
+    sink.release();
+    source.getSinks().get(0).release();
+    assertThat(kms.getNumSourceWebRtcs(), is(0));
+    assertThat(loadManager.calculateLoadPoints(kms), is(2.5));
+  }
+
+  @Test
+  public void weightedCpuLoadTest() {
+
+    Kms kms = new Kms();
+    kms.setLoadManager(new WeightedLoadManager(10, 1, 1, 1, 0, 80));
+
+    Pipeline pipeline = kms.createPipeline();
+    pipeline.createWebRtc(null);
+    pipeline.createWebRtc(null);
+    assertThat(kms.getLoad(), is(0.2));
+
+    // Cpu usage is considered when higher than elements load
+    kms.setUsedCpu(40);
+    assertThat(kms.getLoad(), is(0.5));
+    assertThat(kms.allowMoreElements(), is(true));
+
+    kms.setUsedCpu(80);
+    assertThat(kms.getLoad(), is(1.0));
+    assertThat(kms.allowMoreElements(), is(false));
+  }
 }
@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+import org.kurento.commons.exception.KurentoException;
+import org.kurento.tree.client.TreeBatchResult;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.fake.FakeKms;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.LatencyDistribution;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+import org.kurento.tree.server.kmsmanager.FakeFixedNKmsManager;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+
+public class FakeKmsTest {
+
+  @Test
+  public void latencyTest() throws Exception {
+
+    FakeKmsConfig config = new FakeKmsConfig();
+    config.setLatencyDistribution(LatencyDistribution.FIXED);
+    config.setLatency(Operation.PROCESS_OFFER, 200);
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(1, null, config);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 10);
+
+    String treeId = treeManager.createTree();
+    long start = System.nanoTime();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+    long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertThat(elapsed >= 200, is(true));
+
+    // Asynchronous operations don't block the caller
+    Pipeline pipeline = kmsManager.getKmss().get(0).getPipelines().get(0);
+    CompletableFuture<String> answer = pipeline.getWebRtcs().get(0).processSdpOfferAsync("sdp");
+    assertThat(answer.isDone(), is(false));
+    assertThat(answer.get(2, TimeUnit.SECONDS), is("fakeSdpResponse"));
+  }
+
+  @Test
+  public void errorAndCrashTest() {
+
+    FakeKmsConfig config = new FakeKmsConfig();
+    config.setErrorRate(Operation.LINK, 1);
+    FakeKms kms = new FakeKms(config);
+
+    Pipeline pipeline = kms.createPipeline();
+    WebRtc webRtc = pipeline.createWebRtc(null);
+    webRtc.gatherCandidates();
+    assertThat(webRtc.isMediaConnected(), is(true));
+
+    try {
+      pipeline.createPlumber().link(new Kms().createPipeline().createPlumber());
+      fail("Link should fail");
+    } catch (KurentoException e) {
+      assertThat(kms.getInjectedErrors(), is(1L));
+    }
+
+    assertThat(kms.getServerPipelineIds().size(), is(1));
+
+    kms.crash();
+    assertThat(webRtc.isMediaConnected(), is(false));
+    assertThat(webRtc.isMediaFlowing(), is(false));
+    try {
+      kms.createPipeline();
+      fail("Crashed kms should not create pipelines");
+    } catch (KurentoException e) {
+      assertThat(kms.isCrashed(), is(true));
+    }
+
+    // The media server is back without the pipelines it had
+    kms.recover();
+    assertThat(kms.getServerPipelineIds().isEmpty(), is(true));
+    kms.createPipeline();
+    assertThat(kms.getServerPipelineIds().size(), is(1));
+  }
+
+  @Test
+  public void failedSinkTest() throws InterruptedException {
+
+    FakeKmsConfig config = new FakeKmsConfig();
+    config.setLatencyDistribution(LatencyDistribution.FIXED);
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(1, null, config);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 10);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+    Kms kms = kmsManager.getKmss().get(0);
+    int numElements = kms.getNumElements();
+
+    // Failing while adding the sink
+    config.setErrorRate(Operation.PROCESS_OFFER, 1);
+    try {
+      treeManager.addTreeSink(null, treeId, "fakeSdp");
+      fail("Sink should fail");
+    } catch (KurentoException e) {
+      assertThat(kms.getNumElements(), is(numElements));
+    }
+
+    // Failing once the tree is not locked
+    config.setLatency(Operation.PROCESS_OFFER, 50);
+    for (TreeBatchResult<TreeEndpoint> result : treeManager.addTreeSinks(null, treeId,
+        Collections.nCopies(3, "fakeSdp"))) {
+      assertThat(result.isSuccess(), is(false));
+    }
+    waitFor(() -> kms.getNumElements() == numElements);
+
+    // Holes of failed sinks are free again. The source takes 3 of them
+    config.setErrorRate(Operation.PROCESS_OFFER, 0);
+    List<TreeBatchResult<TreeEndpoint>> results = treeManager.addTreeSinks(null, treeId,
+        Collections.nCopies(8, "fakeSdp"));
+    for (int i = 0; i < 7; i++) {
+      assertThat(results.get(i).isSuccess(), is(true));
+    }
+    assertThat(results.get(7).isSuccess(), is(false));
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timeout waiting for failed sinks to be removed", condition.getAsBoolean());
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.IceCandidate;
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.TreeElementSession;
+import org.kurento.tree.server.kms.real.IceCandidateNotifier;
+import org.mockito.ArgumentCaptor;
+
+import com.google.gson.JsonObject;
+
+public class IceCandidateNotifierTest {
+
+  private Session session;
+  private ScheduledExecutorService scheduler;
+
+  @Before
+  public void init() {
+    session = mock(Session.class);
+    scheduler = Executors.newSingleThreadScheduledExecutor();
+  }
+
+  @After
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  @Test
+  public void testWithoutBatchWindow() throws IOException {
+
+    IceCandidateNotifier notifier = new IceCandidateNotifier(
+        new TreeElementSession(session, "TreeId", "SinkId"), 0, null);
+
+    notifier.candidateGathered(new IceCandidate("candidate1", "audio", 0));
+
+    verify(session).sendNotification(eq(ProtocolElements.ICE_CANDIDATE_EVENT), any());
+  }
+
+  @Test
+  public void testFlushOnGatheringDone() throws IOException {
+
+    IceCandidateNotifier notifier = new IceCandidateNotifier(
+        new TreeElementSession(session, "TreeId", "SinkId"), 60000, scheduler);
+
+    notifier.candidateGathered(new IceCandidate("candidate1", "audio", 0));
+    notifier.candidateGathered(new IceCandidate("candidate2", "audio", 0));
+    verify(session, never()).sendNotification(any(), any());
+
+    notifier.gatheringDone();
+
+    ArgumentCaptor<Object> params = ArgumentCaptor.forClass(Object.class);
+    verify(session).sendNotification(eq(ProtocolElements.ICE_CANDIDATES_EVENT), params.capture());
+    assertThat(((JsonObject) params.getValue()).getAsJsonArray(ProtocolElements.ICE_CANDIDATES)
+        .size(), is(2));
+  }
+
+  @Test
+  public void testFlushOnWindowExpiration() throws IOException {
+
+    IceCandidateNotifier notifier = new IceCandidateNotifier(
+        new TreeElementSession(session, "TreeId", "SinkId"), 50, scheduler);
+
+    notifier.candidateGathered(new IceCandidate("candidate1", "audio", 0));
+    notifier.candidateGathered(new IceCandidate("candidate2", "video", 1));
+
+    verify(session, timeout(2000)).sendNotification(eq(ProtocolElements.ICE_CANDIDATES_EVENT),
+        any());
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.SessionTreeIndex;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kmsmanager.FakeFixedNKmsManager;
+import org.kurento.tree.server.treemanager.IdleSinkEvictor;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+
+import com.google.gson.JsonObject;
+
+public class IdleSinkEvictorTest {
+
+  @Test
+  public void evictionTest() throws InterruptedException, IOException {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(1);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 10);
+    IdleSinkEvictor evictor = new IdleSinkEvictor(treeManager, 300, 300);
+    SessionTreeIndex sessionTrees = new SessionTreeIndex();
+    evictor.setSessionTreeIndex(sessionTrees);
+    kmsManager.addWebRtcListener(evictor);
+
+    Session session = mock(Session.class);
+    Kms kms = kmsManager.getKmss().get(0);
+
+    try {
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(session, treeId, "fakeSdp");
+      String activeId = treeManager.addTreeSink(session, treeId, "fakeSdp").getId();
+      String deadId = treeManager.addTreeSink(session, treeId, "fakeSdp").getId();
+      sessionTrees.sinkAdded("session", treeId, activeId);
+      sessionTrees.sinkAdded("session", treeId, deadId);
+
+      WebRtc active = findSink(kms, activeId);
+      active.setMediaConnected(true);
+      active.setMediaFlowing(true);
+
+      // The sink that never connects is evicted, but not the source
+      waitFor(() -> evictor.getNotConnectedSinks() == 1);
+      assertThat(kms.getNumWebRtcs(), is(2));
+      verify(session, timeout(2000)).sendNotification(ProtocolElements.SINK_EVICTED_EVENT,
+          evictedParams(treeId, deadId, ProtocolElements.EVICTED_NOT_CONNECTED));
+
+      // Media that stops for less than the idle timeout is not evicted
+      active.setMediaFlowing(false);
+      active.setMediaFlowing(true);
+      Thread.sleep(400);
+      assertThat(evictor.getIdleSinks(), is(0L));
+
+      active.setMediaFlowing(false);
+      verify(session, timeout(2000)).sendNotification(ProtocolElements.SINK_EVICTED_EVENT,
+          evictedParams(treeId, activeId, ProtocolElements.EVICTED_IDLE));
+      assertThat(evictor.getIdleSinks(), is(1L));
+      assertThat(kms.getNumWebRtcs(), is(1));
+      assertThat(evictor.getPendingEvictions(), is(0));
+
+      // Evicted sinks are not removed again when the session is closed
+      assertThat(sessionTrees.getNumSessions(), is(0));
+
+    } finally {
+      evictor.close();
+    }
+  }
+
+  private WebRtc findSink(Kms kms, String sinkId) {
+    for (Pipeline pipeline : kms.getPipelines()) {
+      for (WebRtc webRtc : pipeline.getWebRtcs()) {
+        if (webRtc.isSink() && webRtc.getSession().getSinkId().equals(sinkId)) {
+          return webRtc;
+        }
+      }
+    }
+    throw new AssertionError("Sink " + sinkId + " not found");
+  }
+
+  private JsonObject evictedParams(String treeId, String sinkId, String reason) {
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, treeId);
+    params.addProperty(ProtocolElements.SINK_ID, sinkId);
+    params.addProperty(ProtocolElements.REASON, reason);
+    return params;
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timeout waiting for eviction", condition.getAsBoolean());
+  }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kmsmanager.KmsAutoscaler;
+
+public class KmsAutoscalerTest {
+
+  private static class FakeTarget implements KmsAutoscaler.Target {
+
+    private final List<Kms> kmss = new CopyOnWriteArrayList<>();
+    private final List<Kms> drainingKmss = new CopyOnWriteArrayList<>();
+    private int numRemovedKmss;
+    private final Map<Kms, Double> loads = new HashMap<>();
+
+    @Override
+    public List<Kms> getKmss() {
+      return kmss;
+    }
+
+    @Override
+    public double getLoadPoints(Kms kms) {
+      return loads.getOrDefault(kms, 0.0);
+    }
+
+    @Override
+    public int getKmsCapacity() {
+      return 10;
+    }
+
+    @Override
+    public void addKms() {
+      kmss.add(new Kms("Kms" + kmss.size()));
+    }
+
+    @Override
+    public void drainKms(Kms kms) {
+      kms.setDraining(true);
+      kmss.remove(kms);
+      drainingKmss.add(kms);
+    }
+
+    @Override
+    public int removeDrainedKmss() {
+      int removed = 0;
+      for (Kms kms : drainingKmss) {
+        if (getLoadPoints(kms) == 0) {
+          drainingKmss.remove(kms);
+          removed++;
+        }
+      }
+      numRemovedKmss += removed;
+      return removed;
+    }
+  }
+
+  @Test
+  public void scaleTest() {
+
+    FakeTarget target = new FakeTarget();
+    target.addKms();
+    target.loads.put(target.kmss.get(0), 5.0);
+
+    AtomicLong now = new AtomicLong(1000000);
+    KmsAutoscaler autoscaler = new KmsAutoscaler(target, 0, 1000, 1000, 2, 200, now::get);
+    try {
+      autoscaler.scale();
+      assertThat(target.kmss.size(), is(1));
+
+      // 20 webrtcs/s during the 1s horizon need 5 + 20 + 2 load points
+      for (int i = 0; i < 20; i++) {
+        autoscaler.webRtcAdded(null);
+      }
+      autoscaler.scale();
+      assertThat(autoscaler.getTargetKmss(), is(3));
+      assertThat(target.kmss.size(), is(3));
+
+      // Kmss are removed one at a time after the delay once the rate drops
+      now.addAndGet(1100);
+      autoscaler.scale();
+      assertThat(autoscaler.getTargetKmss(), is(1));
+      assertThat(target.kmss.size(), is(3));
+
+      now.addAndGet(250);
+      autoscaler.scale();
+      assertThat(target.kmss.size(), is(2));
+      assertThat(target.drainingKmss.size(), is(1));
+
+      // The drained kms is removed in the next run, without a new delay
+      autoscaler.scale();
+      assertThat(target.kmss.size(), is(2));
+      assertThat(target.drainingKmss.size(), is(0));
+      assertThat(target.numRemovedKmss, is(1));
+
+      now.addAndGet(250);
+      autoscaler.scale();
+      assertThat(target.kmss.size(), is(1));
+      autoscaler.scale();
+      assertThat(target.numRemovedKmss, is(2));
+      assertThat(target.getLoadPoints(target.kmss.get(0)), is(5.0));
+      assertThat(autoscaler.getScaleUps(), is(2L));
+      assertThat(autoscaler.getScaleDowns(), is(2L));
+
+    } finally {
+      autoscaler.close();
+    }
+  }
+
+  @Test
+  public void concurrentRateTest() throws InterruptedException {
+
+    KmsAutoscaler autoscaler = new KmsAutoscaler(new FakeTarget(), 0, 60000, 1000, 2, 0);
+    try {
+      // Buckets rolled over by a thread do not lose the webrtcs added by others
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < 4; i++) {
+        Thread thread = new Thread(() -> {
+          for (int j = 0; j < 10000; j++) {
+            autoscaler.webRtcAdded(null);
+          }
+        });
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertThat(Math.round(autoscaler.getRate() * 60), is(40000L));
+
+    } finally {
+      autoscaler.close();
+    }
+  }
+
+  @Test
+  public void drainedKmsInUseTest() throws InterruptedException {
+
+    FakeTarget target = new FakeTarget();
+    target.addKms();
+    target.addKms();
+    target.loads.put(target.kmss.get(0), 5.0);
+    Kms emptyKms = target.kmss.get(1);
+
+    KmsAutoscaler autoscaler = new KmsAutoscaler(target, 0, 1000, 1000, 2, 0);
+    try {
+      autoscaler.scale();
+      autoscaler.scale();
+      assertThat(target.kmss.size(), is(1));
+      assertThat(emptyKms.isDraining(), is(true));
+
+      // A request that reserved the kms before draining creates its elements
+      target.loads.put(emptyKms, 1.0);
+      autoscaler.scale();
+      assertThat(target.drainingKmss.size(), is(1));
+
+      target.loads.put(emptyKms, 0.0);
+      autoscaler.scale();
+      assertThat(target.drainingKmss.size(), is(0));
+      assertThat(autoscaler.getScaleDowns(), is(1L));
+
+    } finally {
+      autoscaler.close();
+    }
+  }
+
+  @Test
+  public void drainLeastLoadedKmsTest() throws InterruptedException {
+
+    // With continuous traffic no kms is ever empty
+    FakeTarget target = new FakeTarget();
+    for (int i = 0; i < 3; i++) {
+      target.addKms();
+    }
+    Kms mostLoadedKms = target.kmss.get(0);
+    Kms leastLoadedKms = target.kmss.get(1);
+    Kms otherKms = target.kmss.get(2);
+    target.loads.put(mostLoadedKms, 4.0);
+    target.loads.put(leastLoadedKms, 1.0);
+    target.loads.put(otherKms, 2.0);
+
+    KmsAutoscaler autoscaler = new KmsAutoscaler(target, 0, 1000, 1000, 2, 0);
+    try {
+      autoscaler.scale();
+      autoscaler.scale();
+      assertThat(leastLoadedKms.isDraining(), is(true));
+      assertThat(target.kmss.size(), is(2));
+
+      autoscaler.scale();
+      assertThat(otherKms.isDraining(), is(true));
+      assertThat(target.kmss.size(), is(1));
+      assertThat(target.kmss.get(0), is(mostLoadedKms));
+
+      // Drained kmss are only removed when their sinks leave
+      autoscaler.scale();
+      assertThat(target.drainingKmss.size(), is(2));
+
+      target.loads.put(leastLoadedKms, 0.0);
+      target.loads.put(otherKms, 0.0);
+      autoscaler.scale();
+      assertThat(target.drainingKmss.size(), is(0));
+      assertThat(target.numRemovedKmss, is(2));
+      assertThat(autoscaler.getScaleDowns(), is(2L));
+
+    } finally {
+      autoscaler.close();
+    }
+  }
+}
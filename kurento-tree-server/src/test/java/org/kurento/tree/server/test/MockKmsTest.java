@@ -0,0 +1,149 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+import org.kurento.commons.exception.KurentoException;
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.TreeElementSession;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.LatencyDistribution;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig.Operation;
+import org.kurento.tree.server.kms.mock.MockKms;
+import org.kurento.tree.server.kms.real.RealKms;
+import org.kurento.tree.server.kmsmanager.RealFixedNKmsManager;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+
+/**
+ * Real kms classes and kurento-client working against an in-process {@link MockKms}.
+ */
+public class MockKmsTest {
+
+  @Test
+  public void treeTest() throws Exception {
+
+    try (MockKms mockKms = new MockKms(new FakeKmsConfig()).start()) {
+
+      RealFixedNKmsManager kmsManager = new RealFixedNKmsManager(
+          Arrays.asList(mockKms.getUri(), mockKms.getUri()));
+      LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 10);
+      Session session = mock(Session.class);
+
+      String treeId = treeManager.createTree();
+      assertThat(treeManager.setTreeSource(session, treeId, "sdpOffer"), notNullValue());
+      String sinkId = treeManager.addTreeSink(session, treeId, "sdpOffer").getId();
+
+      verify(session, timeout(5000).atLeastOnce())
+          .sendNotification(eq(ProtocolElements.ICE_CANDIDATE_EVENT), any());
+
+      WebRtc sink = findSink(kmsManager.getKmss(), sinkId);
+      waitFor(() -> sink.isMediaConnected() && sink.isMediaFlowing());
+
+      Kms kms = sink.getPipeline().getKms();
+      assertThat(new HashSet<>(kms.getServerPipelineIds()), is(kms.getPipelineIds()));
+
+      // Objects in the server mirror the model after releasing the tree
+      treeManager.releaseTree(treeId);
+      waitFor(() -> mockKms.getHandler().getNumObjects() == countObjects(kmsManager.getKmss()));
+
+      for (Kms realKms : kmsManager.getKmss()) {
+        ((RealKms) realKms).getKurentoClient().destroy();
+      }
+    }
+  }
+
+  @Test
+  public void latencyAndErrorTest() throws Exception {
+
+    FakeKmsConfig config = new FakeKmsConfig();
+    config.setLatencyDistribution(LatencyDistribution.FIXED);
+    config.setLatency(Operation.PROCESS_OFFER, 200);
+    config.setErrorRate(Operation.LINK, 1);
+
+    try (MockKms mockKms = new MockKms(config).start()) {
+
+      RealKms kms = new RealKms(KurentoClient.create(mockKms.getUri()));
+      Pipeline pipeline = kms.createPipeline();
+      WebRtc source = pipeline.createWebRtc(new TreeElementSession(null, "tree", null));
+
+      long start = System.nanoTime();
+      assertThat(source.processSdpOffer("sdpOffer"), notNullValue());
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      assertThat(elapsed >= 200, is(true));
+
+      try {
+        source.connect(pipeline.createWebRtc(new TreeElementSession(null, "tree", "sink")));
+        fail("Connect should fail");
+      } catch (KurentoException e) {
+        assertThat(mockKms.getHandler().getInjectedErrors(), is(1L));
+      }
+
+      kms.getKurentoClient().destroy();
+    }
+  }
+
+  private int countObjects(Iterable<Kms> kmss) {
+    int numObjects = 0;
+    for (Kms kms : kmss) {
+      numObjects += kms.getPipelines().size() + kms.getNumElements();
+    }
+    return numObjects;
+  }
+
+  private WebRtc findSink(Iterable<Kms> kmss, String sinkId) {
+    for (Kms kms : kmss) {
+      for (Pipeline pipeline : kms.getPipelines()) {
+        for (WebRtc webRtc : pipeline.getWebRtcs()) {
+          if (webRtc.isSink() && webRtc.getSession().getSinkId().equals(sinkId)) {
+            return webRtc;
+          }
+        }
+      }
+    }
+    throw new AssertionError("Sink " + sinkId + " not found");
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timeout waiting for condition", condition.getAsBoolean());
+  }
+}
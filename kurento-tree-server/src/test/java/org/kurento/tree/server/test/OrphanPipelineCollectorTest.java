@@ -0,0 +1,100 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.kmsmanager.OrphanPipelineCollector;
+
+public class OrphanPipelineCollectorTest {
+
+  private static class LeakingKms extends Kms {
+
+    private final List<String> leakedIds = new ArrayList<>();
+    private final List<String> releasedIds = new ArrayList<>();
+
+    @Override
+    public List<String> getServerPipelineIds() {
+      List<String> ids = super.getServerPipelineIds();
+      ids.addAll(leakedIds);
+      return ids;
+    }
+
+    @Override
+    public boolean releaseUnknownPipeline(String pipelineId) {
+      releasedIds.add(pipelineId);
+      return leakedIds.remove(pipelineId);
+    }
+  }
+
+  @Test
+  public void collectTest() {
+
+    LeakingKms kms = new LeakingKms();
+    KmsManager kmsManager = new KmsManager() {
+      {
+        addToLoadIndex(kms);
+      }
+
+      @Override
+      public List<Kms> getKmss() {
+        return Arrays.asList(kms);
+      }
+    };
+
+    Pipeline pipeline = kms.createPipeline();
+    pipeline.setLabel("known");
+    kms.leakedIds.add("leaked");
+
+    OrphanPipelineCollector collector = new OrphanPipelineCollector(kmsManager, 0, 0);
+    try {
+      // Unknown pipelines are released when they are found again
+      assertThat(collector.collect(), is(0));
+      assertThat(collector.getPendingPipelines(), is(1));
+
+      assertThat(collector.collect(), is(1));
+      assertThat(kms.releasedIds, is(Arrays.asList("leaked")));
+      assertThat(collector.getReleasedPipelines(), is(1L));
+      assertThat(collector.getPendingPipelines(), is(0));
+
+      // Pipelines released from the model disappear from the media server later
+      Pipeline released = kms.createPipeline();
+      released.setLabel("released");
+      kms.leakedIds.add("released");
+      released.release();
+      assertThat(collector.collect(), is(0));
+      kms.leakedIds.remove("released");
+      assertThat(collector.collect(), is(0));
+      assertThat(collector.getPendingPipelines(), is(0));
+
+      assertThat(kms.getPipelines().size(), is(1));
+      assertThat(collector.getCollections(), is(4L));
+    } finally {
+      collector.close();
+    }
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.kurento.client.IceCandidate;
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.treemanager.AbstractNTreeTM;
+
+public class PerTreeLockingTest {
+
+  private static final String SLOW_TREE = "slowTree";
+
+  private static class BlockingTM extends AbstractNTreeTM {
+
+    private final CountDownLatch slowStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseSlow = new CountDownLatch(1);
+
+    public BlockingTM(ConcurrencyMode mode) {
+      super(mode);
+    }
+
+    @Override
+    public KmsManager getKmsManager() {
+      return null;
+    }
+
+    @Override
+    protected TreeInfo createTreeInfo(String treeId) {
+      return new TreeInfo() {
+
+        @Override
+        public TreeEndpoint addTreeSink(Session session, String sdpOffer) {
+          if (SLOW_TREE.equals(treeId)) {
+            slowStarted.countDown();
+            try {
+              releaseSlow.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+          return new TreeEndpoint("sdpAnswer", treeId);
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public String setTreeSource(Session session, String offerSdp) {
+          return null;
+        }
+
+        @Override
+        public void removeTreeSource() {
+        }
+
+        @Override
+        public void removeTreeSink(String sinkId) {
+        }
+
+        @Override
+        public void addSinkIceCandidate(String sinkId, IceCandidate iceCandidate) {
+        }
+
+        @Override
+        public void addTreeIceCandidate(IceCandidate iceCandidate) {
+        }
+      };
+    }
+  }
+
+  @Test
+  public void slowTreeDoesNotBlockOtherTrees() throws Exception {
+
+    BlockingTM treeManager = new BlockingTM(AbstractNTreeTM.ConcurrencyMode.PER_TREE);
+    treeManager.createTree(SLOW_TREE);
+    treeManager.createTree("fastTree");
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<TreeEndpoint> slow = executor
+          .submit(() -> treeManager.addTreeSink(null, SLOW_TREE, "sdpOffer"));
+
+      assertTrue(treeManager.slowStarted.await(5, TimeUnit.SECONDS));
+
+      Future<TreeEndpoint> fast = executor
+          .submit(() -> treeManager.addTreeSink(null, "fastTree", "sdpOffer"));
+
+      assertThat(fast.get(5, TimeUnit.SECONDS).getId(), is("fastTree"));
+      assertThat(slow.isDone(), is(false));
+
+      treeManager.releaseSlow.countDown();
+      assertThat(slow.get(5, TimeUnit.SECONDS).getId(), is(SLOW_TREE));
+
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void globalModeSerializesAllTrees() throws Exception {
+
+    BlockingTM treeManager = new BlockingTM(AbstractNTreeTM.ConcurrencyMode.GLOBAL);
+    treeManager.createTree(SLOW_TREE);
+    treeManager.createTree("fastTree");
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      executor.submit(() -> treeManager.addTreeSink(null, SLOW_TREE, "sdpOffer"));
+
+      assertTrue(treeManager.slowStarted.await(5, TimeUnit.SECONDS));
+
+      Future<TreeEndpoint> fast = executor
+          .submit(() -> treeManager.addTreeSink(null, "fastTree", "sdpOffer"));
+
+      Thread.sleep(200);
+      assertThat(fast.isDone(), is(false));
+
+      treeManager.releaseSlow.countDown();
+      assertThat(fast.get(5, TimeUnit.SECONDS).getId(), is("fastTree"));
+
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+}
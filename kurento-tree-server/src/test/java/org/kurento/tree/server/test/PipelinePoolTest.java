@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.PipelinePool;
+import org.kurento.tree.server.kmsmanager.FakeFixedNKmsManager;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+
+public class PipelinePoolTest {
+
+  @Test
+  public void fillAndAcquireTest() throws InterruptedException {
+
+    Kms kms = new Kms();
+    PipelinePool pool = new PipelinePool(2, 1, 3, 60000);
+
+    try {
+      pool.addKms(kms);
+      waitFor(() -> pool.getNumIdlePipelines(kms) == 3);
+
+      // Idle pipelines are not part of the kms load
+      assertThat(kms.getNumElements(), is(0));
+      assertThat(kms.getPipelines().size(), is(0));
+
+      Pipeline pipeline = pool.acquirePipeline(kms);
+      assertThat(pipeline, is(notNullValue()));
+      assertThat(pipeline.getPlumbers().size(), is(3));
+      assertThat(pipeline.getPlumbers().get(0).getSinks().size(), is(2));
+      assertThat(kms.getNumPlumbers(), is(3));
+      assertThat(kms.getPipelines().size(), is(1));
+
+      int acquired = 1;
+      while (pool.getNumIdlePipelines(kms) > 1) {
+        pool.acquirePipeline(kms);
+        acquired++;
+      }
+
+      // Reaching the low watermark fills the pool up to the high watermark
+      waitFor(() -> pool.getNumIdlePipelines(kms) == 3);
+      assertThat(kms.getNumPlumbers(), is(3 * acquired));
+
+      pipeline.release();
+      assertThat(kms.getNumPlumbers(), is(3 * (acquired - 1)));
+
+    } finally {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void releaseIdlePipelinesTest() throws InterruptedException {
+
+    Kms kms = new Kms();
+    PipelinePool pool = new PipelinePool(2, 1, 3, 500);
+
+    try {
+      pool.addKms(kms);
+      waitFor(() -> pool.getNumIdlePipelines(kms) == 3);
+
+      // Pipelines above the low watermark are released when idle timeout expires
+      waitFor(() -> pool.getNumIdlePipelines(kms) == 1);
+      assertThat(kms.getNumElements(), is(0));
+    } finally {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void treeUsesPooledPipelineTest() throws InterruptedException {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(2);
+    Kms leafKms = kmsManager.getKmss().get(1);
+
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 5);
+    PipelinePool pool = new PipelinePool(2, 0, 2, 60000);
+    treeManager.setPipelinePool(pool);
+
+    try {
+      waitFor(() -> pool.getNumIdlePipelines(leafKms) == 2);
+
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+      // Source kms has room for source, its plumbers and two sinks
+      for (int i = 0; i < 4; i++) {
+        treeManager.addTreeSink(null, treeId, "fakeSdp");
+      }
+
+      assertThat(pool.getNumIdlePipelines(leafKms), is(1));
+      assertThat(leafKms.getNumPlumbers(), is(3));
+      assertThat(leafKms.getNumWebRtcs(), is(2));
+
+    } finally {
+      pool.close();
+    }
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timeout waiting for pool", condition.getAsBoolean());
+  }
+
+}
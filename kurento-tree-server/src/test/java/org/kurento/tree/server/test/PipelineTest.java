@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.Plumber;
+
+public class PipelineTest {
+
+  @Test
+  public void elementsKeepCreationOrderTest() {
+
+    Pipeline pipeline = new Kms().createPipeline();
+    Plumber input = pipeline.createPlumber();
+    Plumber first = pipeline.createPlumber();
+    Plumber second = pipeline.createPlumber();
+    Plumber third = pipeline.createPlumber();
+
+    // Removing an element does not move the rest
+    first.release();
+    assertThat(pipeline.getPlumbers(), is(Arrays.asList(input, second, third)));
+    assertThat(pipeline.getPlumbers().indexOf(third), is(2));
+    assertThat(pipeline.getPlumbers().contains(first), is(false));
+
+    second.release();
+    assertThat(pipeline.getPlumbers(), is(Arrays.asList(input, third)));
+
+    Plumber fourth = pipeline.createPlumber();
+    assertThat(pipeline.getPlumbers(), is(Arrays.asList(input, third, fourth)));
+    assertThat(pipeline.getPlumbers().get(0), is(input));
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.kurento.tree.client.TreeBatchResult;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.client.TreeException;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.loadmanager.WeightedLoadManager;
+import org.kurento.tree.server.kmsmanager.FakeFixedNKmsManager;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+
+public class RelayTreeTest {
+
+  @Test
+  public void relayTreeTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(8);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 2, 1);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    // Source kms: source, 2 plumbers and 1 sink. Depth 1 kmss: input plumber,
+    // 2 plumbers and 1 sink. Depth 2 kmss: input plumber and 3 sinks
+    int capacity = 1 + 2 * 1 + 4 * 3;
+
+    List<String> sinkIds = new ArrayList<>();
+    for (int i = 0; i < capacity; i++) {
+      sinkIds.add(treeManager.addTreeSink(null, treeId, "fakeSdp").getId());
+    }
+
+    List<Kms> kmss = kmsManager.getKmss();
+    for (int i = 0; i < 7; i++) {
+      assertThat(kmss.get(i).getNumElements(), is(4));
+    }
+
+    // Last kms would be at depth 3
+    assertThat(kmss.get(7).getNumElements(), is(0));
+    try {
+      treeManager.addTreeSink(null, treeId, "fakeSdp");
+      fail("TreeException expected");
+    } catch (TreeException e) {
+      // Expected
+    }
+
+    for (String sinkId : sinkIds) {
+      treeManager.removeTreeSink(treeId, sinkId);
+    }
+
+    assertThat(kmss.get(0).getNumElements(), is(3));
+    for (int i = 1; i < 8; i++) {
+      assertThat(kmss.get(i).getNumElements(), is(0));
+      assertThat(kmss.get(i).getPipelines().isEmpty(), is(true));
+    }
+  }
+
+  @Test
+  public void batchRelayTreeTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(8);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 2, 1);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    // Source kms: source, 2 plumbers and 1 sink. Depth 1 kmss: input plumber,
+    // 2 plumbers and 1 sink. Depth 2 kmss: input plumber and 3 sinks
+    int capacity = 1 + 2 * 1 + 4 * 3;
+
+    List<TreeBatchResult<TreeEndpoint>> results = treeManager.addTreeSinks(null, treeId,
+        Collections.nCopies(capacity + 1, "fakeSdp"));
+
+    List<String> sinkIds = new ArrayList<>();
+    for (int i = 0; i < capacity; i++) {
+      assertThat(results.get(i).isSuccess(), is(true));
+      sinkIds.add(results.get(i).getValue().getId());
+    }
+
+    // Last kms would be at depth 3
+    assertThat(results.get(capacity).isSuccess(), is(false));
+
+    List<Kms> kmss = kmsManager.getKmss();
+    for (int i = 0; i < 7; i++) {
+      assertThat(kmss.get(i).getNumElements(), is(4));
+    }
+    assertThat(kmss.get(7).getNumElements(), is(0));
+
+    for (TreeBatchResult<Void> result : treeManager.removeTreeSinks(treeId, sinkIds)) {
+      assertThat(result.isSuccess(), is(true));
+    }
+
+    assertThat(kmss.get(0).getNumElements(), is(3));
+    for (int i = 1; i < 8; i++) {
+      assertThat(kmss.get(i).getNumElements(), is(0));
+      assertThat(kmss.get(i).getPipelines().isEmpty(), is(true));
+    }
+  }
+
+  @Test
+  public void batchFillsRelaysTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(3);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 1, 1);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    // A sink in the source kms and one in each relay
+    for (int i = 0; i < 3; i++) {
+      treeManager.addTreeSink(null, treeId, "fakeSdp");
+    }
+
+    // The batch is placed at once in the holes left in the relays
+    for (TreeBatchResult<TreeEndpoint> result : treeManager.addTreeSinks(null, treeId,
+        Collections.nCopies(4, "fakeSdp"))) {
+      assertThat(result.isSuccess(), is(true));
+    }
+    for (Kms kms : kmsManager.getKmss()) {
+      assertThat(kms.getNumElements(), is(4));
+    }
+
+    List<TreeBatchResult<TreeEndpoint>> results = treeManager.addTreeSinks(null, treeId,
+        Collections.nCopies(1, "fakeSdp"));
+    assertThat(results.get(0).isSuccess(), is(false));
+
+    treeManager.releaseTree(treeId);
+    for (Kms kms : kmsManager.getKmss()) {
+      assertThat(kms.getNumElements(), is(0));
+    }
+  }
+
+  @Test
+  public void releaseRelayTreeTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(3);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 1, 1);
+
+    // Source kms: source, 2 plumbers and 1 sink. Relays: input plumber and 3 sinks
+    int capacity = 1 + 2 * 3;
+
+    for (int i = 0; i < 2; i++) {
+
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+      for (TreeBatchResult<TreeEndpoint> result : treeManager.addTreeSinks(null, treeId,
+          Collections.nCopies(capacity, "fakeSdp"))) {
+        assertThat(result.isSuccess(), is(true));
+      }
+
+      // Plumbers linked to relays do not prevent the release, and all holes are
+      // free again for the next tree
+      treeManager.releaseTree(treeId);
+
+      for (Kms kms : kmsManager.getKmss()) {
+        assertThat(kms.getNumElements(), is(0));
+        assertThat(kms.getPipelines().isEmpty(), is(true));
+      }
+    }
+  }
+
+  @Test
+  public void setSourceAgainTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(3);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 1, 1);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    // The first sink is placed in the source kms and the second one in a relay
+    String sourceKmsSinkId = treeManager.addTreeSink(null, treeId, "fakeSdp").getId();
+    treeManager.addTreeSink(null, treeId, "fakeSdp");
+    treeManager.removeTreeSink(treeId, sourceKmsSinkId);
+
+    // The plumbers of the previous source are reused, so they still feed the relay
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+    Kms sourceKms = kmsManager.getKmss().get(0);
+    assertThat(sourceKms.getNumWebRtcs(), is(1));
+    assertThat(sourceKms.getNumPlumbers(), is(2));
+
+    treeManager.addTreeSink(null, treeId, "fakeSdp");
+    assertThat(sourceKms.getNumWebRtcs(), is(2));
+
+    treeManager.releaseTree(treeId);
+
+    // All holes are free again for the next tree
+    int capacity = 1 + 2 * 3;
+    String otherTreeId = treeManager.createTree();
+    treeManager.setTreeSource(null, otherTreeId, "fakeSdp");
+    for (TreeBatchResult<TreeEndpoint> result : treeManager.addTreeSinks(null, otherTreeId,
+        Collections.nCopies(capacity, "fakeSdp"))) {
+      assertThat(result.isSuccess(), is(true));
+    }
+  }
+
+  @Test
+  public void sourceWithoutSpaceTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(1);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 2);
+
+    // The source and its 2 plumbers need 3 holes
+    String treeId = treeManager.createTree();
+    try {
+      treeManager.setTreeSource(null, treeId, "fakeSdp");
+      fail("TreeException expected");
+    } catch (TreeException e) {
+      assertThat(kmsManager.getKmss().get(0).getPipelines().isEmpty(), is(true));
+    }
+  }
+
+  @Test
+  public void weightedPlumbersTest() {
+
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(3);
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 1, 1);
+    treeManager.setPlumberLoadWeight(0.5);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    // Source kms: source, 2 plumbers of half a hole and 2 sinks. Relays: input
+    // plumber of half a hole and 3 sinks. With full holes there would be 7
+    int capacity = 2 + 2 * 3;
+
+    List<TreeBatchResult<TreeEndpoint>> results = treeManager.addTreeSinks(null, treeId,
+        Collections.nCopies(capacity + 1, "fakeSdp"));
+
+    for (int i = 0; i < capacity; i++) {
+      assertThat(results.get(i).isSuccess(), is(true));
+    }
+    assertThat(results.get(capacity).isSuccess(), is(false));
+
+    treeManager.releaseTree(treeId);
+    for (Kms kms : kmsManager.getKmss()) {
+      assertThat(kms.getNumElements(), is(0));
+    }
+  }
+
+  @Test
+  public void weightedLoadLimitsSinksTest() {
+
+    // Sinks weigh 2 load points out of 4, so the kms is full before its holes
+    FakeFixedNKmsManager kmsManager = new FakeFixedNKmsManager(1,
+        new WeightedLoadManager(4, 1, 2, 1));
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 0, 1);
+
+    String treeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    treeManager.addTreeSink(null, treeId, "fakeSdp");
+    treeManager.addTreeSink(null, treeId, "fakeSdp");
+    try {
+      treeManager.addTreeSink(null, treeId, "fakeSdp");
+      fail("TreeException expected");
+    } catch (TreeException e) {
+      assertThat(kmsManager.getKmss().get(0).getNumWebRtcs(), is(3));
+    }
+
+    treeManager.releaseTree(treeId);
+    assertThat(kmsManager.getKmss().get(0).getNumElements(), is(0));
+  }
+}
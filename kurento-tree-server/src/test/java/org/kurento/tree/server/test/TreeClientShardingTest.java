@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.tree.client.KurentoTreeClient;
+import org.kurento.tree.client.ShardedKurentoTreeClient;
+import org.kurento.tree.client.internal.ConsistentHashRing;
+import org.kurento.tree.server.app.ClientsJsonRpcHandler;
+import org.kurento.tree.server.treemanager.TreeManager;
+
+public class TreeClientShardingTest {
+
+  private Map<String, TreeManager> treeMgrs = new HashMap<>();
+  private Map<KurentoTreeClient, String> servers = new HashMap<>();
+
+  private ShardedKurentoTreeClient createClient(int connectionsPerServer) {
+    return new ShardedKurentoTreeClient(Arrays.asList("ws://server1", "ws://server2"),
+        connectionsPerServer, wsUri -> {
+          TreeManager treeMgr = treeMgrs.computeIfAbsent(wsUri, uri -> mock(TreeManager.class));
+          KurentoTreeClient client = new KurentoTreeClient(
+              new JsonRpcClientLocal(new ClientsJsonRpcHandler(treeMgr, false)));
+          servers.put(client, wsUri);
+          return client;
+        });
+  }
+
+  @Test
+  public void testTreesAreRoutedConsistently() throws IOException {
+
+    ShardedKurentoTreeClient client = createClient(3);
+    assertThat(client.getClients().size(), is(6));
+
+    Set<KurentoTreeClient> used = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      String treeId = "tree" + i;
+      KurentoTreeClient treeClient = client.getClient(treeId);
+      assertThat(client.getClient(treeId), is(sameInstance(treeClient)));
+      used.add(treeClient);
+    }
+    assertThat(used.size(), is(6));
+
+    // The same servers give the same routing to a new client
+    ShardedKurentoTreeClient otherClient = createClient(3);
+    for (int i = 0; i < 100; i++) {
+      assertThat(servers.get(otherClient.getClient("tree" + i)),
+          is(servers.get(client.getClient("tree" + i))));
+    }
+  }
+
+  @Test
+  public void testTreesAreRoutedToClusterOwner() throws IOException {
+
+    ShardedKurentoTreeClient client = createClient(3);
+
+    // Members are hashed by their uri in the cluster
+    ConsistentHashRing<String> members = new ConsistentHashRing<>();
+    members.addNode("ws://server1", "ws://server1");
+    members.addNode("ws://server2", "ws://server2");
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(servers.get(client.getClient("tree" + i)), is(members.getNode("tree" + i)));
+    }
+  }
+
+  @Test
+  public void testCreateTree() throws IOException {
+
+    ShardedKurentoTreeClient client = createClient(2);
+
+    String treeId = client.createTree();
+    verify(treeMgrs.get(servers.get(client.getClient(treeId)))).createTree(treeId);
+    assertTrue(treeId != null);
+  }
+}
@@ -0,0 +1,288 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.core.StringContains.containsString;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
+import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.tree.client.KurentoTreeClient;
+import org.kurento.tree.client.ServerJsonRpcHandler;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.client.TreeException;
+import org.kurento.tree.client.internal.ProtocolElements;
+import org.kurento.tree.server.app.ClientsJsonRpcHandler;
+import org.kurento.tree.server.treemanager.AsyncTreeManager;
+import org.kurento.tree.server.treemanager.ClusteredTreeManager;
+import org.kurento.tree.server.treemanager.TreeManager;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Several members of a tree cluster embedded in the same JVM, connected with local clients.
+ */
+public class TreeClusterTest {
+
+  private static final List<String> MEMBERS = Arrays.asList("ws://member1", "ws://member2",
+      "ws://member3");
+
+  private Map<String, TreeManager> localTreeMgrs = new HashMap<>();
+  private Map<String, ClusteredTreeManager> clusteredTreeMgrs = new HashMap<>();
+  private Map<String, ClientsJsonRpcHandler> handlers = new HashMap<>();
+
+  // Handlers of the notifications received by the first member from the others
+  private Map<String, ServerJsonRpcHandler> notificationHandlers = new HashMap<>();
+
+  @Before
+  public void init() {
+    for (String member : MEMBERS) {
+      TreeManager localTreeMgr = mock(TreeManager.class);
+      ClusteredTreeManager clusteredTreeMgr = new ClusteredTreeManager(member, MEMBERS,
+          localTreeMgr, uri -> {
+            ServerJsonRpcHandler handler = new ServerJsonRpcHandler();
+            if (member.equals(MEMBERS.get(0))) {
+              notificationHandlers.put(uri, handler);
+            }
+            return new KurentoTreeClient(new JsonRpcClientLocal(handlers.get(uri)), handler);
+          });
+      localTreeMgrs.put(member, localTreeMgr);
+      clusteredTreeMgrs.put(member, clusteredTreeMgr);
+      handlers.put(member, new ClientsJsonRpcHandler(clusteredTreeMgr, false));
+    }
+  }
+
+  @Test
+  public void testOperationsAreForwardedToOwner() {
+
+    String treeId = findTreeNotOwnedBy(MEMBERS.get(0));
+    String owner = clusteredTreeMgrs.get(MEMBERS.get(0)).getOwner(treeId);
+
+    for (String member : MEMBERS) {
+      assertThat(clusteredTreeMgrs.get(member).getOwner(treeId), is(owner));
+    }
+
+    clusteredTreeMgrs.get(MEMBERS.get(0)).createTree(treeId);
+    clusteredTreeMgrs.get(MEMBERS.get(0)).releaseTree(treeId);
+
+    verify(localTreeMgrs.get(owner)).createTree(treeId);
+    verify(localTreeMgrs.get(owner)).releaseTree(treeId);
+    verify(localTreeMgrs.get(MEMBERS.get(0)), never()).createTree(anyString());
+  }
+
+  @Test
+  public void testAsyncOperationsAreForwardedToOwner() throws Exception {
+
+    String treeId = findTreeNotOwnedBy(MEMBERS.get(0));
+    String owner = clusteredTreeMgrs.get(MEMBERS.get(0)).getOwner(treeId);
+
+    when(localTreeMgrs.get(owner).addTreeSink(any(), eq(treeId), eq("sdpOffer")))
+        .thenReturn(new TreeEndpoint("sdpAnswer", "SinkId"));
+
+    TreeEndpoint endpoint = clusteredTreeMgrs.get(MEMBERS.get(0))
+        .addTreeSinkAsync(mock(Session.class), treeId, "sdpOffer").get(5, TimeUnit.SECONDS);
+    assertThat(endpoint.getId(), is("SinkId"));
+
+    clusteredTreeMgrs.get(MEMBERS.get(0)).removeTreeSinkAsync(treeId, "SinkId").get(5,
+        TimeUnit.SECONDS);
+    verify(localTreeMgrs.get(owner)).removeTreeSink(treeId, "SinkId");
+    verify(localTreeMgrs.get(MEMBERS.get(0)), never()).addTreeSink(any(), anyString(),
+        anyString());
+  }
+
+  @Test
+  public void testAsyncOperationsOfOwnedTreesAreLocal() throws Exception {
+
+    AsyncTreeManager localTreeMgr = mock(AsyncTreeManager.class);
+    ClusteredTreeManager treeMgr = new ClusteredTreeManager(MEMBERS.get(0), MEMBERS, localTreeMgr,
+        uri -> new KurentoTreeClient(new JsonRpcClientLocal(handlers.get(uri))));
+
+    String treeId = "tree0";
+    for (int i = 1; !treeMgr.isOwner(treeId); i++) {
+      treeId = "tree" + i;
+    }
+
+    Session session = mock(Session.class);
+    CompletableFuture<TreeEndpoint> endpoint = CompletableFuture
+        .completedFuture(new TreeEndpoint("sdpAnswer", "SinkId"));
+    when(localTreeMgr.addTreeSinkAsync(session, treeId, "sdpOffer")).thenReturn(endpoint);
+
+    assertThat(treeMgr.addTreeSinkAsync(session, treeId, "sdpOffer").get().getId(),
+        is("SinkId"));
+    verify(localTreeMgr, never()).addTreeSink(any(), anyString(), anyString());
+  }
+
+  @Test
+  public void testCandidatesAreRelayedToClientSession() throws Exception {
+
+    String treeId = findTreeNotOwnedBy(MEMBERS.get(0));
+    String owner = clusteredTreeMgrs.get(MEMBERS.get(0)).getOwner(treeId);
+
+    // The owner gathers a candidate before answering the request
+    when(localTreeMgrs.get(owner).addTreeSink(any(), eq(treeId), eq("sdpOffer")))
+        .thenAnswer(invocation -> {
+          JsonObject params = new JsonObject();
+          params.addProperty(ProtocolElements.TREE_ID, treeId);
+          params.addProperty(ProtocolElements.SINK_ID, "SinkId");
+          params.addProperty(ProtocolElements.ICE_CANDIDATE, "candidate");
+          params.addProperty(ProtocolElements.ICE_SDP_MID, "audio");
+          params.addProperty(ProtocolElements.ICE_SDP_M_LINE_INDEX, 0);
+          notificationHandlers.get(owner).handleRequest(mock(Transaction.class),
+              new Request<>(ProtocolElements.ICE_CANDIDATE_EVENT, params));
+          return new TreeEndpoint("sdpAnswer", "SinkId");
+        });
+
+    Session clientSession = mock(Session.class);
+    TreeEndpoint endpoint = clusteredTreeMgrs.get(MEMBERS.get(0)).addTreeSink(clientSession,
+        treeId, "sdpOffer");
+
+    assertThat(endpoint.getId(), is("SinkId"));
+    verify(clientSession, timeout(5000))
+        .sendNotification(eq(ProtocolElements.ICE_CANDIDATE_EVENT), any());
+  }
+
+  @Test
+  public void testEvictionsAreRelayedToClientSession() throws Exception {
+
+    ClusteredTreeManager treeMgr = clusteredTreeMgrs.get(MEMBERS.get(0));
+    treeMgr.setPendingCandidatesTimeout(300);
+
+    String treeId = findTreeNotOwnedBy(MEMBERS.get(0));
+    String owner = treeMgr.getOwner(treeId);
+
+    when(localTreeMgrs.get(owner).addTreeSink(any(), eq(treeId), eq("sdpOffer")))
+        .thenReturn(new TreeEndpoint("sdpAnswer", "SinkId"));
+
+    Session clientSession = mock(Session.class);
+    treeMgr.addTreeSink(clientSession, treeId, "sdpOffer");
+
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, treeId);
+    params.addProperty(ProtocolElements.SINK_ID, "SinkId");
+    params.addProperty(ProtocolElements.REASON, ProtocolElements.EVICTED_IDLE);
+    notificationHandlers.get(owner).handleRequest(mock(Transaction.class),
+        new Request<>(ProtocolElements.SINK_EVICTED_EVENT, params));
+
+    verify(clientSession, timeout(5000))
+        .sendNotification(eq(ProtocolElements.SINK_EVICTED_EVENT), any());
+
+    // The forwarded endpoint is removed, so late candidates are discarded
+    relayCandidate(owner, treeId, "SinkId");
+    Thread.sleep(100);
+    assertThat(treeMgr.getNumPendingEndpoints(), is(0));
+  }
+
+  @Test
+  public void testFailedForwardedSourceIsUnregistered() throws Exception {
+
+    ClusteredTreeManager treeMgr = clusteredTreeMgrs.get(MEMBERS.get(0));
+
+    String treeId = findTreeNotOwnedBy(MEMBERS.get(0));
+    String owner = treeMgr.getOwner(treeId);
+
+    when(localTreeMgrs.get(owner).setTreeSource(any(), eq(treeId), eq("sdpOffer")))
+        .thenThrow(new TreeException("Tree has a source"));
+
+    Session clientSession = mock(Session.class);
+    try {
+      treeMgr.setTreeSource(clientSession, treeId, "sdpOffer");
+      fail("TreeException expected");
+    } catch (TreeException e) {
+      assertThat(e.getMessage(), containsString("Tree has a source"));
+    }
+
+    // Late candidates of the failed source are discarded
+    relayCandidate(owner, treeId, null);
+    Thread.sleep(100);
+    verify(clientSession, never()).sendNotification(anyString(), any());
+    assertThat(treeMgr.getNumPendingEndpoints(), is(0));
+  }
+
+  @Test
+  public void testPendingCandidatesAreBounded() throws Exception {
+
+    ClusteredTreeManager treeMgr = clusteredTreeMgrs.get(MEMBERS.get(0));
+    treeMgr.setPendingCandidatesTimeout(300);
+
+    String treeId = findTreeNotOwnedBy(MEMBERS.get(0));
+    String owner = treeMgr.getOwner(treeId);
+
+    // Late candidates of a removed sink are discarded
+    treeMgr.removeTreeSink(treeId, "RemovedSink");
+    relayCandidate(owner, treeId, "RemovedSink");
+    Thread.sleep(100);
+    assertThat(treeMgr.getNumPendingEndpoints(), is(0));
+
+    // Candidates of a sink that is never registered, as its creation failed, expire
+    relayCandidate(owner, treeId, "FailedSink");
+    waitFor(() -> treeMgr.getNumPendingEndpoints() == 1);
+    waitFor(() -> treeMgr.getNumPendingEndpoints() == 0);
+  }
+
+  private void relayCandidate(String owner, String treeId, String sinkId) throws Exception {
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, treeId);
+    if (sinkId != null) {
+      params.addProperty(ProtocolElements.SINK_ID, sinkId);
+    }
+    params.addProperty(ProtocolElements.ICE_CANDIDATE, "candidate");
+    params.addProperty(ProtocolElements.ICE_SDP_MID, "audio");
+    params.addProperty(ProtocolElements.ICE_SDP_M_LINE_INDEX, 0);
+    notificationHandlers.get(owner).handleRequest(mock(Transaction.class),
+        new Request<>(ProtocolElements.ICE_CANDIDATE_EVENT, params));
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timeout waiting for condition", condition.getAsBoolean());
+  }
+
+  private String findTreeNotOwnedBy(String member) {
+    ClusteredTreeManager treeMgr = clusteredTreeMgrs.get(member);
+    for (int i = 0;; i++) {
+      if (!treeMgr.isOwner("tree" + i)) {
+        return "tree" + i;
+      }
+    }
+  }
+}
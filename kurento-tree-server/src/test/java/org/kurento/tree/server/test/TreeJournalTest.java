@@ -0,0 +1,344 @@
+/*
+ * (C) Copyright 2016 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.kurento.tree.server.test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.jsonrpc.Session;
+import org.kurento.tree.client.TreeEndpoint;
+import org.kurento.tree.client.TreeException;
+import org.kurento.tree.server.kms.Kms;
+import org.kurento.tree.server.kms.Pipeline;
+import org.kurento.tree.server.kms.WebRtc;
+import org.kurento.tree.server.kms.fake.FakeKmsConfig;
+import org.kurento.tree.server.kms.mock.MockKms;
+import org.kurento.tree.server.kms.real.RealKms;
+import org.kurento.tree.server.kmsmanager.FakeFixedNKmsManager;
+import org.kurento.tree.server.kmsmanager.KmsManager;
+import org.kurento.tree.server.kmsmanager.RealFixedNKmsManager;
+import org.kurento.tree.server.treemanager.IdleSinkEvictor;
+import org.kurento.tree.server.treemanager.LessLoadedOnlySource2TM;
+import org.kurento.tree.server.treemanager.TreeJournal;
+import org.kurento.tree.server.treemanager.TreeJournal.JournaledTree;
+
+public class TreeJournalTest {
+
+  @Test
+  public void journalTest() throws IOException {
+
+    Path dir = Files.createTempDirectory("tree-journal");
+    Path journalPath = dir.resolve("journal");
+
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(
+        new FakeFixedNKmsManager(2), 4);
+    treeManager.setRelayTopology(2, 1, 1);
+    TreeJournal journal = new TreeJournal(journalPath);
+    treeManager.setJournal(journal);
+
+    String treeId = treeManager.createTree();
+    String releasedTreeId = treeManager.createTree();
+    treeManager.setTreeSource(null, treeId, "fakeSdp");
+
+    List<String> sinkIds = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      TreeEndpoint endpoint = treeManager.addTreeSink(null, treeId, "fakeSdp");
+      sinkIds.add(endpoint.getId());
+    }
+    treeManager.removeTreeSink(treeId, sinkIds.remove(0));
+    treeManager.releaseTree(releasedTreeId);
+
+    // The state survives compaction
+    journal.snapshot();
+    treeManager.removeTreeSink(treeId, sinkIds.remove(0));
+    journal.close();
+
+    TreeJournal reopened = new TreeJournal(journalPath);
+    assertThat(reopened.getTrees().size(), is(1));
+
+    JournaledTree tree = reopened.getTrees().iterator().next();
+    assertThat(tree.getTreeId(), is(treeId));
+    assertThat(tree.hasSource(), is(true));
+    assertThat(new ArrayList<>(tree.getSinkIds()), is(sinkIds));
+    assertThat(tree.getPipelineIds().size(), is(2));
+    assertThat(tree.getLinks().size(), is(1));
+
+    // Fake kmss have no media server to reattach to, so only the tree ids are recovered
+    LessLoadedOnlySource2TM newTreeManager = new LessLoadedOnlySource2TM(
+        new FakeFixedNKmsManager(2), 4);
+    newTreeManager.recover(reopened);
+    newTreeManager.setJournal(reopened);
+    newTreeManager.setTreeSource(null, treeId, "fakeSdp");
+    reopened.close();
+
+    JournaledTree recovered = new TreeJournal(journalPath).getTrees().iterator().next();
+    assertThat(recovered.hasSource(), is(true));
+    assertThat(recovered.getSinkIds().isEmpty(), is(true));
+
+    delete(dir);
+  }
+
+  @Test
+  public void recoveryTest() throws Exception {
+
+    Path dir = Files.createTempDirectory("tree-journal");
+    Path journalPath = dir.resolve("journal");
+    Session session = mock(Session.class);
+
+    try (MockKms sourceMockKms = new MockKms(new FakeKmsConfig()).start();
+        MockKms relayMockKms = new MockKms(new FakeKmsConfig()).start()) {
+
+      List<String> uris = Arrays.asList(sourceMockKms.getUri(), relayMockKms.getUri());
+
+      RealFixedNKmsManager kmsManager = new RealFixedNKmsManager(uris);
+      TreeJournal journal = new TreeJournal(journalPath);
+      LessLoadedOnlySource2TM treeManager = createTreeManager(kmsManager, journal);
+
+      // The source kms gets the source and a sink, and the other one a relay with three sinks
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(session, treeId, "sdpOffer");
+      Set<String> sinkIds = new LinkedHashSet<>();
+      for (int i = 0; i < 4; i++) {
+        sinkIds.add(treeManager.addTreeSink(session, treeId, "sdpOffer").getId());
+      }
+      journal.close();
+      destroyClients(kmsManager);
+
+      int numObjects = countObjects(sourceMockKms, relayMockKms);
+
+      // Another server reattaches the tree to the same media
+      RealFixedNKmsManager newKmsManager = new RealFixedNKmsManager(uris);
+      TreeJournal reopened = new TreeJournal(journalPath);
+      LessLoadedOnlySource2TM newTreeManager = createTreeManager(newKmsManager, reopened);
+      assertThat(newTreeManager.recover(reopened), is(0));
+
+      assertThat(countObjects(sourceMockKms, relayMockKms), is(numObjects));
+      assertThat(countObjects(newKmsManager), is(numObjects));
+
+      JournaledTree recovered = reopened.getTrees().iterator().next();
+      assertThat(recovered.hasSource(), is(true));
+      assertThat(recovered.getSinkIds(), is(sinkIds));
+
+      // Recovered elements take the holes of both kmss
+      try {
+        newTreeManager.addTreeSink(session, treeId, "sdpOffer");
+        fail("Kmss should be full");
+      } catch (TreeException e) {
+        // Expected
+      }
+
+      for (String sinkId : sinkIds) {
+        newTreeManager.removeTreeSink(treeId, sinkId);
+      }
+      newTreeManager.addTreeSink(session, treeId, "sdpOffer");
+      waitFor(() -> countObjects(sourceMockKms, relayMockKms) == countObjects(newKmsManager));
+
+      reopened.close();
+      destroyClients(newKmsManager);
+    }
+
+    delete(dir);
+  }
+
+  @Test
+  public void recoveryWithLostPipelineTest() throws Exception {
+
+    Path dir = Files.createTempDirectory("tree-journal");
+    Path journalPath = dir.resolve("journal");
+    Session session = mock(Session.class);
+
+    try (MockKms sourceMockKms = new MockKms(new FakeKmsConfig()).start();
+        MockKms relayMockKms = new MockKms(new FakeKmsConfig()).start()) {
+
+      List<String> uris = Arrays.asList(sourceMockKms.getUri(), relayMockKms.getUri());
+
+      RealFixedNKmsManager kmsManager = new RealFixedNKmsManager(uris);
+      TreeJournal journal = new TreeJournal(journalPath);
+      LessLoadedOnlySource2TM treeManager = createTreeManager(kmsManager, journal);
+
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(session, treeId, "sdpOffer");
+      String sourceSinkId = treeManager.addTreeSink(session, treeId, "sdpOffer").getId();
+      for (int i = 0; i < 3; i++) {
+        treeManager.addTreeSink(session, treeId, "sdpOffer");
+      }
+      journal.close();
+      destroyClients(kmsManager);
+
+      // The relay is lost while the server is down
+      List<String> pipelineIds = new TreeJournal(journalPath).getTrees().iterator().next()
+          .getPipelineIds();
+      KurentoClient client = KurentoClient.create(relayMockKms.getUri());
+      client.getById(pipelineIds.get(1), MediaPipeline.class).release();
+      client.destroy();
+
+      RealFixedNKmsManager newKmsManager = new RealFixedNKmsManager(uris);
+      TreeJournal reopened = new TreeJournal(journalPath);
+      LessLoadedOnlySource2TM newTreeManager = createTreeManager(newKmsManager, reopened);
+      newTreeManager.recover(reopened);
+
+      JournaledTree recovered = reopened.getTrees().iterator().next();
+      assertThat(recovered.hasSource(), is(true));
+      assertThat(new ArrayList<>(recovered.getSinkIds()), is(Arrays.asList(sourceSinkId)));
+      assertThat(recovered.getPipelineIds(), is(pipelineIds.subList(0, 1)));
+      assertThat(countObjects(sourceMockKms, relayMockKms), is(countObjects(newKmsManager)));
+
+      // The tree is extended again to the kms of the lost relay
+      for (int i = 0; i < 3; i++) {
+        newTreeManager.addTreeSink(session, treeId, "sdpOffer");
+      }
+
+      reopened.close();
+      destroyClients(newKmsManager);
+    }
+
+    delete(dir);
+  }
+
+  @Test
+  public void recoveredSinksTest() throws Exception {
+
+    Path dir = Files.createTempDirectory("tree-journal");
+    Path journalPath = dir.resolve("journal");
+    Session session = mock(Session.class);
+
+    try (MockKms sourceMockKms = new MockKms(new FakeKmsConfig()).start();
+        MockKms relayMockKms = new MockKms(new FakeKmsConfig()).start()) {
+
+      List<String> uris = Arrays.asList(sourceMockKms.getUri(), relayMockKms.getUri());
+
+      RealFixedNKmsManager kmsManager = new RealFixedNKmsManager(uris);
+      TreeJournal journal = new TreeJournal(journalPath);
+      LessLoadedOnlySource2TM treeManager = createTreeManager(kmsManager, journal);
+
+      String treeId = treeManager.createTree();
+      treeManager.setTreeSource(session, treeId, "sdpOffer");
+      for (int i = 0; i < 2; i++) {
+        treeManager.addTreeSink(session, treeId, "sdpOffer");
+      }
+      journal.close();
+      destroyClients(kmsManager);
+
+      RealFixedNKmsManager newKmsManager = new RealFixedNKmsManager(uris);
+      TreeJournal reopened = new TreeJournal(journalPath);
+      LessLoadedOnlySource2TM newTreeManager = createTreeManager(newKmsManager, reopened);
+      IdleSinkEvictor evictor = new IdleSinkEvictor(newTreeManager, 60000, 60000);
+      evictor.setOrphanTimeout(500);
+      newKmsManager.addWebRtcListener(evictor);
+
+      try {
+        newTreeManager.recover(reopened);
+
+        // The media state is loaded from the kms, as its events were sent to the old server
+        List<WebRtc> sinks = getSinks(newKmsManager);
+        assertThat(sinks.size(), is(2));
+        for (WebRtc sink : sinks) {
+          assertThat(sink.isMediaConnected(), is(true));
+          assertThat(sink.isMediaFlowing(), is(true));
+        }
+
+        // Their clients are gone, so they are removed even if their media is flowing
+        waitFor(() -> evictor.getOrphanSinks() == 2);
+        assertThat(getSinks(newKmsManager).size(), is(0));
+        assertThat(reopened.getTrees().iterator().next().getSinkIds().isEmpty(), is(true));
+
+      } finally {
+        evictor.close();
+      }
+
+      reopened.close();
+      destroyClients(newKmsManager);
+    }
+
+    delete(dir);
+  }
+
+  private List<WebRtc> getSinks(KmsManager kmsManager) {
+    List<WebRtc> sinks = new ArrayList<>();
+    for (Kms kms : kmsManager.getKmss()) {
+      for (Pipeline pipeline : kms.getPipelines()) {
+        for (WebRtc webRtc : pipeline.getWebRtcs()) {
+          if (webRtc.isSink()) {
+            sinks.add(webRtc);
+          }
+        }
+      }
+    }
+    return sinks;
+  }
+
+  private LessLoadedOnlySource2TM createTreeManager(KmsManager kmsManager, TreeJournal journal) {
+    LessLoadedOnlySource2TM treeManager = new LessLoadedOnlySource2TM(kmsManager, 4);
+    treeManager.setRelayTopology(2, 1, 1);
+    treeManager.setJournal(journal);
+    return treeManager;
+  }
+
+  private int countObjects(KmsManager kmsManager) {
+    int numObjects = 0;
+    for (Kms kms : kmsManager.getKmss()) {
+      numObjects += kms.getPipelines().size() + kms.getNumElements();
+    }
+    return numObjects;
+  }
+
+  private int countObjects(MockKms... mockKmss) {
+    int numObjects = 0;
+    for (MockKms mockKms : mockKmss) {
+      numObjects += mockKms.getHandler().getNumObjects();
+    }
+    return numObjects;
+  }
+
+  private void destroyClients(KmsManager kmsManager) {
+    for (Kms kms : kmsManager.getKmss()) {
+      ((RealKms) kms).getKurentoClient().destroy();
+    }
+  }
+
+  private void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + 5000;
+    while (!condition.getAsBoolean() && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+    assertTrue("Timeout waiting for condition", condition.getAsBoolean());
+  }
+
+  private void delete(Path dir) throws IOException {
+    for (Path path : Files.newDirectoryStream(dir)) {
+      Files.delete(path);
+    }
+    Files.delete(dir);
+  }
+}
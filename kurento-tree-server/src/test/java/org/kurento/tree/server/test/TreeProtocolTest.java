@@ -20,32 +20,60 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.kurento.client.IceCandidate;
+import org.kurento.jsonrpc.Session;
+import org.kurento.jsonrpc.Transaction;
 import org.kurento.jsonrpc.client.JsonRpcClientLocal;
+import org.kurento.jsonrpc.message.Request;
+import org.kurento.jsonrpc.message.Response;
+import org.kurento.tree.client.IceCandidateInfo;
 import org.kurento.tree.client.KurentoTreeClient;
+import org.kurento.tree.client.ServerJsonRpcHandler;
+import org.kurento.tree.client.TreeBatchResult;
 import org.kurento.tree.client.TreeEndpoint;
 import org.kurento.tree.client.TreeException;
+import org.kurento.tree.client.internal.ProtocolElements;
 import org.kurento.tree.server.app.ClientsJsonRpcHandler;
+import org.kurento.tree.server.treemanager.AsyncTreeManager;
 import org.kurento.tree.server.treemanager.TreeManager;
+import org.mockito.ArgumentCaptor;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 public class TreeProtocolTest {
 
   private TreeManager treeMgr;
+  private ClientsJsonRpcHandler handler;
   private JsonRpcClientLocal localClient;
   private KurentoTreeClient client;
 
   @Before
   public void init() {
     treeMgr = mock(TreeManager.class);
-    localClient = new JsonRpcClientLocal(new ClientsJsonRpcHandler(treeMgr));
+    handler = new ClientsJsonRpcHandler(treeMgr);
+    localClient = new JsonRpcClientLocal(handler);
     client = new KurentoTreeClient(localClient);
   }
 
@@ -113,4 +141,297 @@ public class TreeProtocolTest {
     client.removeTreeSource("TreeId");
     verify(treeMgr).removeTreeSource("TreeId");
   }
+
+  @Test
+  public void testAddTreeSinkAsync() throws IOException, TreeException {
+
+    AsyncTreeManager asyncTreeMgr = mock(AsyncTreeManager.class);
+    JsonRpcClientLocal asyncLocalClient = new JsonRpcClientLocal(
+        new ClientsJsonRpcHandler(asyncTreeMgr, false));
+    KurentoTreeClient asyncClient = new KurentoTreeClient(asyncLocalClient);
+
+    when(asyncTreeMgr.addTreeSinkAsync(asyncLocalClient.getSession(), "TreeId", "sdpOffer"))
+        .thenReturn(CompletableFuture.completedFuture(new TreeEndpoint("sdpAnswer", "SinkId")));
+
+    assertThat(asyncClient.addTreeSink("TreeId", "sdpOffer"),
+        is(new TreeEndpoint("sdpAnswer", "SinkId")));
+  }
+
+  @Test
+  public void testAddTreeSinkAsyncFailure() throws IOException {
+
+    AsyncTreeManager asyncTreeMgr = mock(AsyncTreeManager.class);
+    JsonRpcClientLocal asyncLocalClient = new JsonRpcClientLocal(
+        new ClientsJsonRpcHandler(asyncTreeMgr, false));
+    KurentoTreeClient asyncClient = new KurentoTreeClient(asyncLocalClient);
+
+    CompletableFuture<TreeEndpoint> failed = new CompletableFuture<>();
+    failed.completeExceptionally(new TreeException("No kms allows more WebRtcEndpoints"));
+    when(asyncTreeMgr.addTreeSinkAsync(asyncLocalClient.getSession(), "TreeId", "sdpOffer"))
+        .thenReturn(failed);
+
+    try {
+      asyncClient.addTreeSink("TreeId", "sdpOffer");
+      fail("TreeException should be thrown");
+    } catch (TreeException e) {
+      assertThat(e.getMessage(), containsString("No kms allows more WebRtcEndpoints"));
+    }
+  }
+
+  @Test
+  public void testAddTreeSinks() throws IOException, TreeException {
+
+    List<String> offers = Arrays.asList("sdpOffer1", "sdpOffer2");
+    when(treeMgr.addTreeSinks(localClient.getSession(), "TreeId", offers)).thenReturn(Arrays.asList(
+        TreeBatchResult.success(new TreeEndpoint("sdpAnswer1", "SinkId1")),
+        TreeBatchResult.<TreeEndpoint> failure("No kms allows more WebRtcEndpoints")));
+
+    List<TreeBatchResult<TreeEndpoint>> results = client.addTreeSinks("TreeId", offers);
+
+    assertThat(results.size(), is(2));
+    assertThat(results.get(0).isSuccess(), is(true));
+    assertThat(results.get(0).getValue(), is(new TreeEndpoint("sdpAnswer1", "SinkId1")));
+    assertThat(results.get(1).isSuccess(), is(false));
+    assertThat(results.get(1).getError(), is("No kms allows more WebRtcEndpoints"));
+  }
+
+  @Test
+  public void testRemoveTreeSinks() throws IOException, TreeException {
+
+    List<String> sinkIds = Arrays.asList("SinkId1", "SinkId2");
+    when(treeMgr.removeTreeSinks("TreeId", sinkIds)).thenReturn(Arrays.asList(
+        TreeBatchResult.<Void> success(null), TreeBatchResult.<Void> failure("Unknown sink")));
+
+    List<TreeBatchResult<Void>> results = client.removeTreeSinks("TreeId", sinkIds);
+
+    assertThat(results.get(0).isSuccess(), is(true));
+    assertThat(results.get(1).getError(), is("Unknown sink"));
+  }
+
+  @Test
+  public void testAddIceCandidate() throws IOException, TreeException {
+
+    client.addIceCandidate("TreeId", "SinkId", new IceCandidate("candidate1", "audio", 0));
+    client.addIceCandidate("TreeId", null, new IceCandidate("candidate2", "video", 1));
+
+    ArgumentCaptor<IceCandidate> captor = ArgumentCaptor.forClass(IceCandidate.class);
+    verify(treeMgr).addSinkIceCandidate(eq("TreeId"), eq("SinkId"), captor.capture());
+    assertThat(captor.getValue().getCandidate(), is("candidate1"));
+    assertThat(captor.getValue().getSdpMid(), is("audio"));
+
+    verify(treeMgr).addTreeIceCandidate(eq("TreeId"), captor.capture());
+    assertThat(captor.getValue().getSdpMLineIndex(), is(1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testAddIceCandidates() throws IOException, TreeException {
+
+    client.addIceCandidates("TreeId", "SinkId", Arrays.asList(
+        new IceCandidate("candidate1", "audio", 0), new IceCandidate("candidate2", "video", 1)));
+
+    ArgumentCaptor<List<IceCandidate>> captor = ArgumentCaptor.forClass((Class) List.class);
+    verify(treeMgr).addSinkIceCandidates(eq("TreeId"), eq("SinkId"), captor.capture());
+
+    List<IceCandidate> candidates = captor.getValue();
+    assertThat(candidates.size(), is(2));
+    assertThat(candidates.get(0).getCandidate(), is("candidate1"));
+    assertThat(candidates.get(1).getSdpMid(), is("video"));
+    assertThat(candidates.get(1).getSdpMLineIndex(), is(1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testClientCoalescesIceCandidates() throws Exception {
+
+    client.setIceCandidatesBatchWindow(60000);
+
+    CompletableFuture<Void> first = client.addIceCandidateAsync("TreeId", "SinkId",
+        new IceCandidate("candidate1", "audio", 0));
+    CompletableFuture<Void> second = client.addIceCandidateAsync("TreeId", "SinkId",
+        new IceCandidate("candidate2", "video", 1));
+    client.flushIceCandidates("TreeId", "SinkId");
+
+    CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+
+    ArgumentCaptor<List<IceCandidate>> captor = ArgumentCaptor.forClass((Class) List.class);
+    verify(treeMgr).addSinkIceCandidates(eq("TreeId"), eq("SinkId"), captor.capture());
+    assertThat(captor.getValue().size(), is(2));
+    verify(treeMgr, never()).addSinkIceCandidate(anyString(), anyString(), any());
+  }
+
+  @Test
+  public void testAsyncClient() throws Exception {
+
+    when(treeMgr.addTreeSink(localClient.getSession(), "TreeId", "sdpOffer"))
+        .thenReturn(new TreeEndpoint("sdpAnswer", "SinkId"));
+    doThrow(new TreeException("Tree not found")).when(treeMgr).removeTreeSource("OtherTreeId");
+
+    CompletableFuture<TreeEndpoint> sink = client.addTreeSinkAsync("TreeId", "sdpOffer");
+    CompletableFuture<Void> source = client.removeTreeSourceAsync("OtherTreeId");
+
+    assertThat(sink.get(), is(new TreeEndpoint("sdpAnswer", "SinkId")));
+    try {
+      source.join();
+      fail("TreeException should be thrown");
+    } catch (CompletionException e) {
+      assertThat(e.getCause() instanceof TreeException, is(true));
+    }
+  }
+
+  @Test
+  public void testIceCandidateListener() throws Exception {
+
+    ServerJsonRpcHandler handler = new ServerJsonRpcHandler();
+    ServerJsonRpcHandler otherHandler = new ServerJsonRpcHandler();
+
+    BlockingQueue<IceCandidateInfo> received = new LinkedBlockingQueue<>();
+
+    // Candidates received before the listener is added, as the sink id is not known yet, are also
+    // delivered to it
+    handler.handleRequest(mock(Transaction.class), createIceCandidateEvent("SinkId"));
+    handler.addIceCandidateListener("TreeId", "SinkId", received::add);
+    assertThat(received.poll(5, TimeUnit.SECONDS).getSinkId(), is("SinkId"));
+
+    handler.handleRequest(mock(Transaction.class), createIceCandidateEvent("SinkId"));
+    assertThat(received.poll(5, TimeUnit.SECONDS).getIceCandidate().getCandidate(),
+        is("candidate"));
+
+    // Candidates without listener are queued only in the handler that received them
+    handler.handleRequest(mock(Transaction.class), createIceCandidateEvent(null));
+    assertThat(handler.getCandidateInfo().getSinkId(), is((String) null));
+
+    handler.removeIceCandidateListener("TreeId", "SinkId");
+    otherHandler.handleRequest(mock(Transaction.class), createIceCandidateEvent("SinkId"));
+    assertThat(otherHandler.getCandidateInfo().getSinkId(), is("SinkId"));
+    assertThat(received.isEmpty(), is(true));
+
+    handler.close();
+    otherHandler.close();
+  }
+
+  @Test
+  public void testPendingCandidatesLimits() throws Exception {
+
+    ServerJsonRpcHandler handler = new ServerJsonRpcHandler();
+    handler.setMaxPendingCandidates(2);
+    handler.setPendingCandidatesTimeout(50);
+
+    BlockingQueue<IceCandidateInfo> received = new LinkedBlockingQueue<>();
+
+    // Only the last candidates of an endpoint are kept
+    for (int i = 0; i < 3; i++) {
+      handler.handleRequest(mock(Transaction.class), createIceCandidateEvent("SinkId"));
+    }
+    handler.addIceCandidateListener("TreeId", "SinkId", received::add);
+    assertThat(received.poll(5, TimeUnit.SECONDS).getSinkId(), is("SinkId"));
+    assertThat(received.poll(5, TimeUnit.SECONDS).getSinkId(), is("SinkId"));
+    assertThat(received.poll(100, TimeUnit.MILLISECONDS), is((IceCandidateInfo) null));
+
+    // Candidates of endpoints without listener expire when other candidates are received
+    handler.handleRequest(mock(Transaction.class), createIceCandidateEvent("ExpiredId"));
+    Thread.sleep(100);
+    handler.handleRequest(mock(Transaction.class), createIceCandidateEvent("OtherId"));
+
+    // Delivered after the expiration, as listeners are invoked in order
+    handler.addIceCandidateListener("TreeId", "OtherId", received::add);
+    assertThat(received.poll(5, TimeUnit.SECONDS).getSinkId(), is("OtherId"));
+
+    handler.addIceCandidateListener("TreeId", "ExpiredId", received::add);
+    assertThat(received.poll(100, TimeUnit.MILLISECONDS), is((IceCandidateInfo) null));
+
+    handler.close();
+  }
+
+  private Request<JsonObject> createIceCandidateEvent(String sinkId) {
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, "TreeId");
+    params.addProperty(ProtocolElements.SINK_ID, sinkId);
+    params.addProperty(ProtocolElements.ICE_CANDIDATE, "candidate");
+    params.addProperty(ProtocolElements.ICE_SDP_MID, "audio");
+    params.addProperty(ProtocolElements.ICE_SDP_M_LINE_INDEX, 0);
+    return new Request<>(ProtocolElements.ICE_CANDIDATE_EVENT, params);
+  }
+
+  @Test
+  public void testSessionClosedWhileAddingSink() throws Exception {
+
+    AsyncTreeManager asyncTreeMgr = mock(AsyncTreeManager.class);
+    ClientsJsonRpcHandler asyncHandler = new ClientsJsonRpcHandler(asyncTreeMgr);
+    Session session = mock(Session.class);
+    when(session.getSessionId()).thenReturn("SessionId");
+
+    CompletableFuture<TreeEndpoint> negotiation = new CompletableFuture<>();
+    when(asyncTreeMgr.addTreeSinkAsync(session, "TreeId", "sdpOffer")).thenReturn(negotiation);
+    when(asyncTreeMgr.removeTreeSinksAsync("TreeId", Arrays.asList("SinkId"))).thenReturn(
+        CompletableFuture.completedFuture(Arrays.asList(TreeBatchResult.<Void> success(null))));
+
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, "TreeId");
+    params.addProperty(ProtocolElements.OFFER_SDP, "sdpOffer");
+    CompletableFuture<Response<JsonElement>> response = asyncHandler.addTreeSink(session,
+        new Request<>(ProtocolElements.ADD_TREE_SINK_METHOD, params));
+
+    asyncHandler.afterConnectionClosed(session, "closed");
+    negotiation.complete(new TreeEndpoint("sdpAnswer", "SinkId"));
+
+    // The sink is removed, as the cleanup of the session has already been done
+    verify(asyncTreeMgr, timeout(5000)).removeTreeSinksAsync("TreeId", Arrays.asList("SinkId"));
+    assertThat(response.isCompletedExceptionally(), is(true));
+    assertThat(asyncHandler.getSessionTreeIndex().getNumSessions(), is(0));
+  }
+
+  @Test
+  public void testSessionClosedWhileSettingSource() throws Exception {
+
+    AsyncTreeManager asyncTreeMgr = mock(AsyncTreeManager.class);
+    ClientsJsonRpcHandler asyncHandler = new ClientsJsonRpcHandler(asyncTreeMgr);
+    Session session = mock(Session.class);
+    when(session.getSessionId()).thenReturn("SessionId");
+
+    CompletableFuture<String> negotiation = new CompletableFuture<>();
+    when(asyncTreeMgr.setTreeSourceAsync(session, "TreeId", "sdpOffer")).thenReturn(negotiation);
+
+    JsonObject params = new JsonObject();
+    params.addProperty(ProtocolElements.TREE_ID, "TreeId");
+    params.addProperty(ProtocolElements.OFFER_SDP, "sdpOffer");
+    CompletableFuture<Response<JsonElement>> response = asyncHandler.setTreeSource(session,
+        new Request<>(ProtocolElements.SET_TREE_SOURCE_METHOD, params));
+
+    asyncHandler.afterConnectionClosed(session, "closed");
+    negotiation.complete("sdpAnswer");
+
+    // The source is removed and the closed session is not indexed again
+    verify(asyncTreeMgr, timeout(5000)).removeTreeSource("TreeId");
+    assertThat(response.isCompletedExceptionally(), is(true));
+    assertThat(asyncHandler.getSessionTreeIndex().getNumSessions(), is(0));
+
+    asyncHandler.close();
+  }
+
+  @Test
+  public void testSessionClosedCleanup() throws Exception {
+
+    when(treeMgr.createTree()).thenReturn("CreatedTree");
+    when(treeMgr.setTreeSource(localClient.getSession(), "SourceTree", "sdpOffer"))
+        .thenReturn("sdpAnswer");
+    when(treeMgr.addTreeSink(localClient.getSession(), "SinkTree", "sdpOffer")).thenReturn(
+        new TreeEndpoint("sdpAnswer", "Sink1"), new TreeEndpoint("sdpAnswer", "Sink2"),
+        new TreeEndpoint("sdpAnswer", "Sink3"));
+
+    client.createTree();
+    client.setTreeSource("SourceTree", "sdpOffer");
+    for (int i = 0; i < 3; i++) {
+      client.addTreeSink("SinkTree", "sdpOffer");
+    }
+    client.removeTreeSink("SinkTree", "Sink2");
+
+    handler.afterConnectionClosed(localClient.getSession(), "closed");
+
+    verify(treeMgr, timeout(5000)).releaseTree("CreatedTree");
+    verify(treeMgr, timeout(5000)).removeTreeSource("SourceTree");
+
+    verify(treeMgr, timeout(5000)).removeTreeSinks("SinkTree", Arrays.asList("Sink1", "Sink3"));
+  }
+
 }